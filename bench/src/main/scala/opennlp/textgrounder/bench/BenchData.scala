@@ -0,0 +1,71 @@
+///////////////////////////////////////////////////////////////////////////////
+//  BenchData.scala
+//
+//  Copyright (C) 2012 Ben Wing, The University of Texas at Austin
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//  See the License for the specific language governing permissions and
+//  limitations under the License.
+///////////////////////////////////////////////////////////////////////////////
+
+package opennlp.textgrounder.bench
+
+import util.Random
+
+import opennlp.textgrounder.util.distances.SphereCoord
+
+/**
+ * Synthetic data for the benchmarks.  Everything is generated from a fixed
+ * seed so that runs are comparable.
+ */
+object BenchData {
+  def random() = new Random(42)
+
+  def word_string(index: Int) = "w" + index
+
+  /**
+   * Sampler for word indices 0 to `vocab_size - 1` following Zipf's law,
+   * as word frequencies in text roughly do.
+   */
+  class ZipfSampler(vocab_size: Int, rand: Random) {
+    protected val cumulative = {
+      val weights = (1 to vocab_size).map(1.0 / _)
+      val total = weights.sum
+      weights.scanLeft(0.0)(_ + _).tail.map(_ / total).toArray
+    }
+
+    def sample() = {
+      val index = java.util.Arrays.binarySearch(cumulative, rand.nextDouble)
+      (if (index >= 0) index else -index - 1) min (vocab_size - 1)
+    }
+  }
+
+  /**
+   * Generate word counts for a document of `length` tokens, as parallel
+   * arrays of word strings and counts.
+   */
+  def word_counts(sampler: ZipfSampler, length: Int) = {
+    val counts = collection.mutable.Map[Int, Int]()
+    for (i <- 0 until length) {
+      val word = sampler.sample()
+      counts(word) = counts.getOrElse(word, 0) + 1
+    }
+    val sorted = counts.toSeq.sortBy(_._1)
+    (sorted.map(x => word_string(x._1)).toArray, sorted.map(_._2).toArray)
+  }
+
+  /** Generate a random coordinate, uniformly distributed over the sphere. */
+  def sphere_coord(rand: Random) = {
+    val lat = math.asin(2 * rand.nextDouble - 1) * 180 / math.Pi
+    val long = rand.nextDouble * 360 - 180
+    SphereCoord(lat, long)
+  }
+}
@@ -0,0 +1,100 @@
+///////////////////////////////////////////////////////////////////////////////
+//  DistanceBenchmark.scala
+//
+//  Copyright (C) 2012 Ben Wing, The University of Texas at Austin
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//  See the License for the specific language governing permissions and
+//  limitations under the License.
+///////////////////////////////////////////////////////////////////////////////
+
+package opennlp.textgrounder.bench
+
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations._
+
+import opennlp.textgrounder.tr.topo.Coordinate
+import opennlp.textgrounder.util.distances.{SphereCoord, spheredist}
+
+/**
+ * Great-circle distances between random pairs of points: the toponym
+ * resolver's `Coordinate.distance`, its `FastTrig`-based approximation
+ * and the squared chord distance used for comparisons, and geolocate's
+ * `spheredist`.  Each invocation computes `num_pairs` distances.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+class DistanceBenchmark {
+  val num_pairs = 1024
+
+  var coords1: Array[Coordinate] = _
+  var coords2: Array[Coordinate] = _
+  var sphere_coords1: Array[SphereCoord] = _
+  var sphere_coords2: Array[SphereCoord] = _
+
+  @Setup(Level.Trial)
+  def setup() {
+    val rand = BenchData.random()
+    sphere_coords1 = Array.fill(num_pairs)(BenchData.sphere_coord(rand))
+    sphere_coords2 = Array.fill(num_pairs)(BenchData.sphere_coord(rand))
+    coords1 = sphere_coords1.map(c => Coordinate.fromDegrees(c.lat, c.long))
+    coords2 = sphere_coords2.map(c => Coordinate.fromDegrees(c.lat, c.long))
+  }
+
+  @Benchmark
+  def coordinate_distance() = {
+    var total = 0.0
+    var i = 0
+    while (i < num_pairs) {
+      total += coords1(i).distance(coords2(i))
+      i += 1
+    }
+    total
+  }
+
+  @Benchmark
+  def fast_distance() = {
+    var total = 0.0
+    var i = 0
+    while (i < num_pairs) {
+      total += coords1(i).fastDistance(coords2(i))
+      i += 1
+    }
+    total
+  }
+
+  @Benchmark
+  def chord_distance_squared() = {
+    var total = 0.0
+    var i = 0
+    while (i < num_pairs) {
+      total += coords1(i).chordDistanceSquared(coords2(i))
+      i += 1
+    }
+    total
+  }
+
+  @Benchmark
+  def sphere_distance() = {
+    var total = 0.0
+    var i = 0
+    while (i < num_pairs) {
+      total += spheredist(sphere_coords1(i), sphere_coords2(i))
+      i += 1
+    }
+    total
+  }
+}
@@ -0,0 +1,83 @@
+///////////////////////////////////////////////////////////////////////////////
+//  MemoizerBenchmark.scala
+//
+//  Copyright (C) 2012 Ben Wing, The University of Texas at Austin
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//  See the License for the specific language governing permissions and
+//  limitations under the License.
+///////////////////////////////////////////////////////////////////////////////
+
+package opennlp.textgrounder.bench
+
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations._
+
+import opennlp.textgrounder.worddist.IntStringMemoizer
+
+/**
+ * Word memoization, as done for every word read from a counts file:
+ * looking up words already memoized, with Zipf-distributed frequencies,
+ * and mapping IDs back to strings.  Each invocation does `num_lookups`
+ * lookups.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+class MemoizerBenchmark {
+  @Param(Array("10000", "1000000"))
+  var vocab_size: Int = _
+
+  val num_lookups = 4096
+
+  var memoizer: IntStringMemoizer = _
+  var words: Array[String] = _
+  var ids: Array[Int] = _
+
+  @Setup(Level.Trial)
+  def setup() {
+    memoizer = new IntStringMemoizer
+    for (i <- 0 until vocab_size)
+      memoizer.memoize_string(BenchData.word_string(i))
+    val sampler = new BenchData.ZipfSampler(vocab_size, BenchData.random())
+    // Fresh string objects, as when reading a file, so that lookups have to
+    // hash and compare them.
+    words = Array.fill(num_lookups)(
+      new String(BenchData.word_string(sampler.sample())))
+    ids = words.map(memoizer.memoize_string)
+  }
+
+  @Benchmark
+  def memoize_existing() = {
+    var total = 0
+    var i = 0
+    while (i < num_lookups) {
+      total += memoizer.memoize_string(words(i))
+      i += 1
+    }
+    total
+  }
+
+  @Benchmark
+  def unmemoize() = {
+    var total = 0
+    var i = 0
+    while (i < num_lookups) {
+      total += memoizer.unmemoize_string(ids(i)).length
+      i += 1
+    }
+    total
+  }
+}
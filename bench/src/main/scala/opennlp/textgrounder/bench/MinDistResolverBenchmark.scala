@@ -0,0 +1,115 @@
+///////////////////////////////////////////////////////////////////////////////
+//  MinDistResolverBenchmark.scala
+//
+//  Copyright (C) 2012 Ben Wing, The University of Texas at Austin
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//  See the License for the specific language governing permissions and
+//  limitations under the License.
+///////////////////////////////////////////////////////////////////////////////
+
+package opennlp.textgrounder.bench
+
+import java.util.concurrent.TimeUnit
+
+import scala.collection.JavaConversions._
+
+import org.openjdk.jmh.annotations._
+import org.openjdk.jmh.infra.Blackhole
+
+import opennlp.textgrounder.tr.resolver.BasicMinDistResolver
+import opennlp.textgrounder.tr.text._
+import opennlp.textgrounder.tr.topo.{Coordinate, Location, PointRegion}
+
+/**
+ * Minimum-distance toponym resolution over a synthetic document: each
+ * invocation picks, for every toponym, the candidate minimizing the total
+ * distance to the other toponyms, using
+ * `BasicMinDistResolver.checkCandidate` as `disambiguate` does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+class MinDistResolverBenchmark {
+  /** Number of toponyms in the document. */
+  @Param(Array("10", "50"))
+  var num_toponyms: Int = _
+
+  /** Number of candidate locations per toponym. */
+  @Param(Array("1", "10", "100"))
+  var ambiguity: Int = _
+
+  /** Toponyms per sentence. */
+  val toponyms_per_sentence = 5
+
+  var resolver: BasicMinDistResolver = _
+  var toponyms: Seq[Toponym] = _
+  var doc: Document[StoredToken] = _
+
+  /**
+   * A sentence holding a fixed list of toponyms and no other tokens,
+   * which is all that `checkCandidate` looks at.
+   */
+  class ToponymSentence(id: String, toponyms: java.util.List[Toponym])
+      extends Sentence[StoredToken](id) {
+    def tokens() = new java.util.ArrayList[StoredToken]().iterator
+    override def getToponyms() = toponyms
+  }
+
+  class ToponymDocument(sentences: Seq[Sentence[StoredToken]])
+      extends Document[StoredToken]("bench") {
+    def iterator(): java.util.Iterator[Sentence[StoredToken]] =
+      sentences.iterator
+  }
+
+  @Setup(Level.Trial)
+  def setup() {
+    val rand = BenchData.random()
+    resolver = new BasicMinDistResolver
+    toponyms =
+      for (i <- 0 until num_toponyms) yield {
+        val candidates =
+          for (j <- 0 until ambiguity) yield {
+            val c = BenchData.sphere_coord(rand)
+            new Location("loc%s-%s" format (i, j),
+              new PointRegion(Coordinate.fromDegrees(c.lat, c.long)))
+          }
+        new SimpleToponym("toponym" + i,
+          new java.util.ArrayList[Location](candidates)): Toponym
+      }
+    val sentences =
+      for ((group, i) <- toponyms.grouped(toponyms_per_sentence).zipWithIndex)
+        yield new ToponymSentence("s" + i,
+          new java.util.ArrayList[Toponym](group)): Sentence[StoredToken]
+    doc = new ToponymDocument(sentences.toList)
+  }
+
+  @Benchmark
+  def resolve_document(bh: Blackhole) {
+    for (toponym <- toponyms) {
+      var min = Double.MaxValue
+      var min_idx = -1
+      var idx = 0
+      for (candidate <- toponym) {
+        val candidate_min = resolver.checkCandidate(toponym, candidate, doc, min)
+        if (candidate_min != null) {
+          min = candidate_min
+          min_idx = idx
+        }
+        idx += 1
+      }
+      bh.consume(min_idx)
+    }
+  }
+}
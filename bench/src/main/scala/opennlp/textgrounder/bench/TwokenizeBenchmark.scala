@@ -0,0 +1,100 @@
+///////////////////////////////////////////////////////////////////////////////
+//  TwokenizeBenchmark.scala
+//
+//  Copyright (C) 2012 Ben Wing, The University of Texas at Austin
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//  See the License for the specific language governing permissions and
+//  limitations under the License.
+///////////////////////////////////////////////////////////////////////////////
+
+package opennlp.textgrounder.bench
+
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations._
+
+import opennlp.textgrounder.util.{Twokenize, TwokenizeScanner}
+
+/**
+ * Tweet tokenization throughput: the regexp-based Twokenize against the
+ * hand-written scanner, both filling its reusable buffer and through
+ * `Twokenize.apply`, which converts the result to a list.  The tweets are
+ * put together from pieces with words, hashtags, mentions, URLs, numbers,
+ * emoticons, contractions and punctuation.  Results are in tweets per
+ * millisecond.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+class TwokenizeBenchmark {
+  val num_tweets = 1000
+
+  val pieces = Array(
+    "just", "landed", "in", "Austin", "TX", "the", "weather", "is", "great",
+    "see", "y'all", "tomorrow", "at", "conference", "New", "York", "lol",
+    "#sxsw", "#nyc", "@someone", "RT @friend:", "http://bit.ly/abc123",
+    "www.example.com/page?id=7", "8:42", "3.5", "1,234", "$20", ":)",
+    ":-D", ";p", "can't", "I'm", "don't", "it's", "Mr.", "U.S.", "...",
+    "!!!", "?", ",", "\"quoted\"", "(maybe)", "&amp;", "--", "♫", "é")
+
+  var tweets: Array[String] = _
+  val scanner = new TwokenizeScanner
+
+  @Setup(Level.Trial)
+  def setup() {
+    val rand = BenchData.random()
+    tweets = Array.fill(num_tweets) {
+      val words = Array.fill(8 + rand.nextInt(16))(
+        pieces(rand.nextInt(pieces.length)))
+      words mkString " "
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(1000)
+  def regex_tokenize() = {
+    var total = 0
+    var i = 0
+    while (i < num_tweets) {
+      total += Twokenize.regexTokenize(tweets(i)).length
+      i += 1
+    }
+    total
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(1000)
+  def scanner_tokenize() = {
+    var total = 0
+    var i = 0
+    while (i < num_tweets) {
+      total += scanner.tokenize(tweets(i)).length
+      i += 1
+    }
+    total
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(1000)
+  def apply_tokenize() = {
+    var total = 0
+    var i = 0
+    while (i < num_tweets) {
+      total += Twokenize(tweets(i)).length
+      i += 1
+    }
+    total
+  }
+}
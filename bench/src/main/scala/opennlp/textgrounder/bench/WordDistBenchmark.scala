@@ -0,0 +1,125 @@
+///////////////////////////////////////////////////////////////////////////////
+//  WordDistBenchmark.scala
+//
+//  Copyright (C) 2012 Ben Wing, The University of Texas at Austin
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//  See the License for the specific language governing permissions and
+//  limitations under the License.
+///////////////////////////////////////////////////////////////////////////////
+
+package opennlp.textgrounder.bench
+
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations._
+import org.openjdk.jmh.infra.Blackhole
+
+import opennlp.textgrounder.gridlocate.{GridLocateDriver, GridLocateParameters}
+import opennlp.textgrounder.worddist._
+
+/**
+ * Scoring of one test document against every cell, as done by the
+ * KL-divergence and Naive Bayes strategies, over synthetic cells and
+ * documents with Zipf-distributed words.  Each invocation scores one
+ * document against all `num_cells` cells.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+class WordDistBenchmark {
+  @Param(Array("100", "1000"))
+  var num_cells: Int = _
+
+  @Param(Array("1000", "50000"))
+  var vocab_size: Int = _
+
+  @Param(Array("20", "500"))
+  var doc_length: Int = _
+
+  /** Number of tokens in each cell. */
+  val cell_length = 5000
+  val num_docs = 64
+
+  var cells: Array[DiscountedUnigramWordDist] = _
+  var docs: Array[DiscountedUnigramWordDist] = _
+  var caches: Array[DiscountedUnigramKLDivergenceCache] = _
+  var next_doc = 0
+
+  @Setup(Level.Trial)
+  def setup() {
+    GridLocateDriver.Params = new GridLocateParameters()
+    val factory = new PseudoGoodTuringUnigramWordDistFactory("no")
+    factory.set_word_dist_constructor(
+      new DefaultUnigramWordDistConstructor(factory, ignore_case = false,
+        stopwords = Set[String](), whitelist = Set[String]()))
+    val rand = BenchData.random()
+    val sampler = new BenchData.ZipfSampler(vocab_size, rand)
+    def create(length: Int, note_globally: Boolean) = {
+      val dist = factory.create_word_dist(note_globally).
+        asInstanceOf[DiscountedUnigramWordDist]
+      val (keys, values) = BenchData.word_counts(sampler, length)
+      dist.add_keys_values(keys, values, keys.length)
+      dist.finish_before_global()
+      dist
+    }
+    cells = Array.fill(num_cells)(create(cell_length, true))
+    docs = Array.fill(num_docs)(create(doc_length, false))
+    factory.finish_global_distribution()
+    cells.foreach(_.finish_after_global())
+    docs.foreach(_.finish_after_global())
+    caches = docs.map(FastDiscountedUnigramWordDist.get_kl_divergence_cache)
+  }
+
+  protected def next_doc_index() = {
+    next_doc = (next_doc + 1) % num_docs
+    next_doc
+  }
+
+  @Benchmark
+  def fast_kl_divergence(bh: Blackhole) {
+    val i = next_doc_index()
+    val doc = docs(i)
+    val cache = caches(i)
+    var j = 0
+    while (j < cells.length) {
+      bh.consume(FastDiscountedUnigramWordDist.fast_kl_divergence(
+        doc, cache, cells(j), interpolate = false))
+      j += 1
+    }
+  }
+
+  @Benchmark
+  def partial_kl_divergence(bh: Blackhole) {
+    val i = next_doc_index()
+    val doc = docs(i)
+    val cache = caches(i)
+    var j = 0
+    while (j < cells.length) {
+      bh.consume(FastDiscountedUnigramWordDist.fast_kl_divergence(
+        doc, cache, cells(j), interpolate = false, partial = true))
+      j += 1
+    }
+  }
+
+  @Benchmark
+  def nbayes_logprob(bh: Blackhole) {
+    val doc = docs(next_doc_index())
+    var j = 0
+    while (j < cells.length) {
+      bh.consume(cells(j).get_nbayes_logprob(doc))
+      j += 1
+    }
+  }
+}
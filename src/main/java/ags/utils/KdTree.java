@@ -20,6 +20,9 @@
 
 package ags.utils;
 
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
@@ -55,6 +58,21 @@ public class KdTree {
     public double[]                    minLimit, maxLimit;
     private boolean                    singularity;
 
+    // Dense node id, assigned in preorder (the order of getNodes()) by
+    // numberNodes(); -1 until then
+    private int                        id = -1;
+
+    // Root only: flat copy of the structure, indexed by node id, built by
+    // numberNodes(). A stem's left child always has the id following the
+    // stem's own; rightIds is -1 for leaves.
+    private KdTree[]                   nodeArray;
+    private int[]                      parentIds;
+    private int[]                      rightIds;
+    private int[]                      subtreeEnds;
+    private int[]                      depths;
+    private int[]                      splitDims;
+    private double[]                   splitVals;
+
     /**
      * Construct a KdTree with a given number of dimensions and a limit on
      * maxiumum size (after which it throws away old points)
@@ -97,6 +115,132 @@ public class KdTree {
         return locationCount;
     }
 
+    /**
+     * Get the dense id of this node, from 0 (the root) to
+     * getNodeCount() - 1. Ids are assigned in the order of getNodes(), so
+     * the ids in the subtree of a node run from its own id up to (but not
+     * including) getSubtreeEnd() of that id.
+     */
+    public int getId() {
+        return id;
+    }
+
+    private void checkNumbered() {
+        if (nodeArray == null)
+            throw new IllegalStateException(
+                "Node ids are only available on the root of a balanced tree");
+    }
+
+    public int getNodeCount() {
+        checkNumbered();
+        return nodeArray.length;
+    }
+
+    public KdTree getNode(int id) {
+        checkNumbered();
+        return nodeArray[id];
+    }
+
+    /**
+     * Get the id of the parent of the node with the given id, or -1 for the
+     * root.
+     */
+    public int getParentId(int id) {
+        checkNumbered();
+        return parentIds[id];
+    }
+
+    public boolean isLeafId(int id) {
+        checkNumbered();
+        return rightIds[id] < 0;
+    }
+
+    /**
+     * Get the id of the right child of the stem with the given id, or -1
+     * for a leaf. The left child of a stem always has the stem's id plus one.
+     */
+    public int getRightId(int id) {
+        checkNumbered();
+        return rightIds[id];
+    }
+
+    /**
+     * Get the id following the last node in the subtree of the node with
+     * the given id.
+     */
+    public int getSubtreeEnd(int id) {
+        checkNumbered();
+        return subtreeEnds[id];
+    }
+
+    /**
+     * Get the depth of the node with the given id (0 for the root).
+     */
+    public int getDepth(int id) {
+        checkNumbered();
+        return depths[id];
+    }
+
+    /**
+     * Get the id of the leaf containing a two-dimensional location, like
+     * getLeaf() but using the flat arrays, without recursion or allocation.
+     */
+    public int getLeafId(double x, double y) {
+        checkNumbered();
+        int cur = 0;
+        int right;
+        while ((right = rightIds[cur]) >= 0) {
+            double value = splitDims[cur] == 0 ? x : y;
+            cur = value <= splitVals[cur] ? cur + 1 : right;
+        }
+        return cur;
+    }
+
+    /**
+     * Get the id of the leaf containing a location of any dimension.
+     */
+    public int getLeafId(double[] location) {
+        checkNumbered();
+        int cur = 0;
+        int right;
+        while ((right = rightIds[cur]) >= 0)
+            cur = location[splitDims[cur]] <= splitVals[cur] ? cur + 1 : right;
+        return cur;
+    }
+
+    /**
+     * Assign node ids and build the flat arrays. Called on the root once
+     * its structure is final, i.e. after balance() or readStructure().
+     */
+    private void numberNodes() {
+        List<KdTree> nodes = getNodes();
+        int count = nodes.size();
+        nodeArray = nodes.toArray(new KdTree[count]);
+        parentIds = new int[count];
+        rightIds = new int[count];
+        subtreeEnds = new int[count];
+        depths = new int[count];
+        splitDims = new int[count];
+        splitVals = new double[count];
+        for (int i = 0; i < count; i++)
+            nodeArray[i].id = i;
+        for (int i = 0; i < count; i++) {
+            KdTree node = nodeArray[i];
+            parentIds[i] = node.parent == null ? -1 : node.parent.id;
+            depths[i] = node.parent == null ? 0 : depths[parentIds[i]] + 1;
+            if (node.left != null && node.right != null) {
+                rightIds[i] = node.right.id;
+                splitDims[i] = node.splitDimension;
+                splitVals[i] = node.splitValue;
+            } else
+                rightIds[i] = -1;
+        }
+        // Children have higher ids than their parents, so going backwards
+        // sees every node's subtree before the node itself.
+        for (int i = count - 1; i >= 0; i--)
+            subtreeEnds[i] = rightIds[i] < 0 ? i + 1 : subtreeEnds[rightIds[i]];
+    }
+
     public KdTree getLeaf(double[] location) {
         if (left == null || right == null)
             return this;
@@ -224,8 +368,82 @@ public class KdTree {
         }
     }
 
+    /**
+     * Write the structure of the tree (splits, bounds and point counts of
+     * all nodes, but not the points themselves), so that it can be
+     * recreated by readStructure(). Nodes are written in the same order
+     * as getNodes() returns them.
+     */
+    public void writeStructure(DataOutput out) throws IOException {
+        out.writeInt(dimensions);
+        out.writeInt(bucketSize);
+        out.writeInt(splitMethod.ordinal());
+        writeNodeStructure(out);
+    }
+
+    private void writeNodeStructure(DataOutput out) throws IOException {
+        out.writeInt(locationCount);
+        out.writeBoolean(singularity);
+        out.writeBoolean(minLimit != null);
+        if (minLimit != null) {
+            for (int i = 0; i < dimensions; i++) {
+                out.writeDouble(minLimit[i]);
+                out.writeDouble(maxLimit[i]);
+            }
+        }
+        boolean stem = left != null && right != null;
+        out.writeBoolean(stem);
+        if (stem) {
+            out.writeInt(splitDimension);
+            out.writeDouble(splitValue);
+            left.writeNodeStructure(out);
+            right.writeNodeStructure(out);
+        }
+    }
+
+    /**
+     * Recreate a tree written by writeStructure(). The points themselves
+     * are not restored, as after annihilateData(), so no more points can
+     * be added.
+     */
+    public static KdTree readStructure(ByteBuffer in) {
+        int dimensions = in.getInt();
+        int bucketSize = in.getInt();
+        SplitMethod splitMethod = SplitMethod.values()[in.getInt()];
+        KdTree tree = new KdTree(dimensions, bucketSize, splitMethod);
+        tree.readNodeStructure(in);
+        tree.numberNodes();
+        return tree;
+    }
+
+    private void readNodeStructure(ByteBuffer in) {
+        int count = in.getInt();
+        singularity = in.get() != 0;
+        if (in.get() != 0) {
+            minLimit = new double[dimensions];
+            maxLimit = new double[dimensions];
+            for (int i = 0; i < dimensions; i++) {
+                minLimit[i] = in.getDouble();
+                maxLimit[i] = in.getDouble();
+            }
+        }
+        locations = null;
+        if (in.get() != 0) {
+            splitDimension = in.getInt();
+            splitValue = in.getDouble();
+            // Children are created before the count is set, so that they
+            // don't allocate point arrays sized to hold all of our points.
+            left = new ChildNode(this, false);
+            right = new ChildNode(this, true);
+            left.readNodeStructure(in);
+            right.readNodeStructure(in);
+        }
+        locationCount = count;
+    }
+
     public void balance() {
         nodeSplit(this);
+        numberNodes();
     }
 
     private void nodeSplit(KdTree cursor) {
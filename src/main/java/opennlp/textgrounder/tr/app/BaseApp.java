@@ -117,7 +117,7 @@ public class BaseApp {
         options.addOption("is", "input-stoplist", true,
                 "(preprocess-labelprob only) path to stop list input file (one stop word per line)");
 
-        options.addOption("l", "log file input", true, "log file input, from document geolocation");
+        options.addOption("l", "log file input", true, "log file input, from document geolocation (or a file written with --prediction-file)");
         options.addOption("knn", "knn", true, "k nearest neighbors to consider from document geolocation log file");
 
         options.addOption("ner", "named-entity-recognizer", true,
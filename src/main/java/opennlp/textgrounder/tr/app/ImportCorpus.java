@@ -8,11 +8,31 @@ import opennlp.textgrounder.tr.text.io.*;
 import opennlp.textgrounder.tr.text.prep.*;
 import opennlp.textgrounder.tr.topo.gaz.*;
 import java.io.*;
+import java.util.concurrent.*;
 import java.util.zip.*;
 
 public class ImportCorpus extends BaseApp {
 
     //private static int sentsPerDocument;
+
+    // Number of GeoText documents read ahead while toponyms are recognized.
+    private static final int GEOTEXT_PREFETCH = 256;
+
+    // Directory sources parse this many files at once, each thread with its
+    // own tokenizer (and sentence divider), since OpenNLP's aren't thread-safe.
+    private static final int DIR_THREADS = Runtime.getRuntime().availableProcessors();
+
+    private static final Callable<Tokenizer> TOKENIZER_FACTORY = new Callable<Tokenizer>() {
+        public Tokenizer call() throws Exception {
+            return new OpenNLPTokenizer();
+        }
+    };
+
+    private static final Callable<SentenceDivider> DIVIDER_FACTORY = new Callable<SentenceDivider>() {
+        public SentenceDivider call() throws Exception {
+            return new OpenNLPSentenceDivider();
+        }
+    };
     
     public static void main(String[] args) throws Exception {
 
@@ -72,14 +92,14 @@ public class ImportCorpus extends BaseApp {
             File corpusInputFile = new File(corpusInputPath);
             if(useGoldToponyms) {
                 if(corpusInputFile.isDirectory())
-                    corpus.addSource(new CandidateRepopulator(new TrXMLDirSource(new File(corpusInputPath), tokenizer, sentsPerDocument), gnGaz));
+                    corpus.addSource(new CandidateRepopulator(new TrXMLDirSource(new File(corpusInputPath), TOKENIZER_FACTORY, sentsPerDocument, DIR_THREADS), gnGaz));
                 else
                     corpus.addSource(new CandidateRepopulator(new TrXMLSource(new BufferedReader(new FileReader(corpusInputPath)), tokenizer, sentsPerDocument), gnGaz));
             }
             else {
                 if(corpusInputFile.isDirectory())
                     corpus.addSource(new ToponymAnnotator(
-                           new ToponymRemover(new TrXMLDirSource(new File(corpusInputPath), tokenizer)),
+                           new ToponymRemover(new TrXMLDirSource(new File(corpusInputPath), TOKENIZER_FACTORY, -1, DIR_THREADS)),
                            recognizer, gnGaz, null));
                 else
                     corpus.addSource(new ToponymAnnotator(
@@ -89,7 +109,7 @@ public class ImportCorpus extends BaseApp {
         }
         else if(corpusFormat == CORPUS_FORMAT.GEOTEXT) {
             corpus.addSource(new ToponymAnnotator(new GeoTextSource(
-                new BufferedReader(new FileReader(corpusInputPath)), tokenizer),
+                new BufferedReader(new FileReader(corpusInputPath)), tokenizer, GEOTEXT_PREFETCH),
                 recognizer, gnGaz, null));
         }
 	else if (corpusInputPath.endsWith("txt")) {
@@ -99,7 +119,7 @@ public class ImportCorpus extends BaseApp {
 	}
         else {
             corpus.addSource(new ToponymAnnotator(new PlainTextDirSource(
-                new File(corpusInputPath), new OpenNLPSentenceDivider(), tokenizer),
+                new File(corpusInputPath), DIVIDER_FACTORY, TOKENIZER_FACTORY, DIR_THREADS),
                 recognizer, gnGaz, null));
         }
         corpus.setFormat(corpusFormat);
@@ -118,10 +118,10 @@ public class SignatureEvaluator extends Evaluator {
         if(predLoc == null)
             return false;
 
-        double distanceToBeat = predLoc.distance(goldLoc);
+        double distanceToBeat = predLoc.comparableDistance(goldLoc);
 
         for(Location otherLoc : curPredCandidates) {
-            if(otherLoc.distance(goldLoc) < distanceToBeat)
+            if(otherLoc.comparableDistance(goldLoc) < distanceToBeat)
                 return false;
         }
         return true;
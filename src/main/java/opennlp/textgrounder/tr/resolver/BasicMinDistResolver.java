@@ -55,17 +55,19 @@ public class BasicMinDistResolver extends Resolver {
         /* We don't want to compute distances if this other toponym is the
          * same as the current one, or if it has no candidates. */  
         if (!otherToponym.equals(toponym) && otherToponym.getAmbiguity() > 0) {
+          /* Only the closest candidate counts, so compare cheaply and convert
+           * just that one to an actual distance. */
           double min = Double.MAX_VALUE;
 
           for (Location otherLoc : otherToponym) {
-            double dist = candidate.distance(otherLoc);
+            double dist = candidate.comparableDistance(otherLoc);
             if (dist < min) {
               min = dist;
             }
           }
 
           seen++;
-          total += min;
+          total += Coordinate.chordSquaredToDistance(min);
 
           /* If the running total is greater than the current minimum, we can
            * stop. */
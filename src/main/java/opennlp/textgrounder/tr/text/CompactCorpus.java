@@ -16,10 +16,12 @@
 package opennlp.textgrounder.tr.text;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.io.*;
 
 import opennlp.textgrounder.tr.topo.*;
@@ -48,14 +50,24 @@ public class CompactCorpus extends StoredCorpus implements Serializable {
 
   private final ArrayList<Document<StoredToken>> documents;
   private final ArrayList<List<Location>> candidateLists;
+
+  /* Cell numbers of the candidates of each toponym type, for the most
+   * recently requested cell size.  Built on first use and dropped when a
+   * candidate list is replaced. */
+  private transient volatile CandidateCells candidateCells;
+
+  /* The token object shared by all tokens of each original type, and the
+   * corpus as a stream of token ids; both built on first use. */
+  private transient volatile StoredToken[] tokenTypes;
+  private transient volatile TokenStream tokenStream;
   
   CompactCorpus(Corpus<Token> wrapped) {
     this.wrapped = wrapped;
 
-    this.tokenLexicon = new SimpleCountingLexicon<String>();
-    this.toponymLexicon = new SimpleCountingLexicon<String>();
-    this.tokenOrigLexicon = new SimpleCountingLexicon<String>();
-    this.toponymOrigLexicon = new SimpleCountingLexicon<String>();
+    this.tokenLexicon = new CompactCountingLexicon();
+    this.toponymLexicon = new CompactCountingLexicon();
+    this.tokenOrigLexicon = new CompactCountingLexicon();
+    this.toponymOrigLexicon = new CompactCountingLexicon();
     this.maxToponymAmbiguity = 0;
 
     this.documents = new ArrayList<Document<StoredToken>>();
@@ -186,6 +198,11 @@ public class CompactCorpus extends StoredCorpus implements Serializable {
       i++;
     }
     
+    this.tokenLexicon.stopGrowing();
+    this.toponymLexicon.stopGrowing();
+    this.tokenOrigLexicon.stopGrowing();
+    this.toponymOrigLexicon.stopGrowing();
+
     this.wrapped.close();
     this.wrapped = null;
 
@@ -204,6 +221,185 @@ public class CompactCorpus extends StoredCorpus implements Serializable {
       }
   }
 
+  private CandidateCells getCandidateCells(double dpc) {
+    CandidateCells cells = this.candidateCells;
+    if (cells == null || cells.dpc != dpc) {
+      synchronized (this) {
+        cells = this.candidateCells;
+        if (cells == null || cells.dpc != dpc) {
+          cells = new CandidateCells(this.candidateLists, dpc);
+          this.candidateCells = cells;
+        }
+      }
+    }
+    return cells;
+  }
+
+  private static class CandidateCells {
+    private final double dpc;
+    private final int[][] cellNumbers;
+    private final int[][] distinctCellNumbers;
+
+    private CandidateCells(List<List<Location>> candidateLists, double dpc) {
+      this.dpc = dpc;
+      this.cellNumbers = new int[candidateLists.size()][];
+      this.distinctCellNumbers = new int[candidateLists.size()][];
+
+      for (int i = 0; i < candidateLists.size(); i++) {
+        List<Location> candidates = candidateLists.get(i);
+        int[] cells = new int[candidates.size()];
+        for (int j = 0; j < cells.length; j++) {
+          cells[j] = TopoUtil.getCellNumber(candidates.get(j).getRegion().getCenter(), dpc);
+        }
+        this.cellNumbers[i] = cells;
+
+        int[] sorted = cells.clone();
+        Arrays.sort(sorted);
+        int distinct = 0;
+        for (int j = 0; j < sorted.length; j++) {
+          if (j == 0 || sorted[j] != sorted[j - 1]) {
+            sorted[distinct++] = sorted[j];
+          }
+        }
+        this.distinctCellNumbers[i] = Arrays.copyOf(sorted, distinct);
+      }
+    }
+  }
+
+  private StoredToken[] getTokenTypes() {
+    StoredToken[] types = this.tokenTypes;
+    if (types == null) {
+      synchronized (this) {
+        types = this.tokenTypes;
+        if (types == null) {
+          types = new StoredToken[this.tokenOrigLexicon.size()];
+          for (int i = 0; i < types.length; i++) {
+            types[i] = new CompactToken(i);
+          }
+          this.tokenTypes = types;
+        }
+      }
+    }
+    return types;
+  }
+
+  public TokenCursor getTokenCursor() {
+    if (this.wrapped != null) {
+      this.load();
+    }
+
+    TokenStream stream = this.tokenStream;
+    if (stream == null) {
+      synchronized (this) {
+        stream = this.tokenStream;
+        if (stream == null) {
+          stream = this.buildTokenStream();
+          this.tokenStream = stream;
+        }
+      }
+    }
+    return new TokenCursor(stream);
+  }
+
+  private TokenStream buildTokenStream() {
+    int sentenceCount = 0;
+    int tokenCount = 0;
+    int toponymCount = 0;
+    for (Document<StoredToken> document : this.documents) {
+      for (Sentence<StoredToken> sentence : document) {
+        StoredSentence stored = (StoredSentence) sentence;
+        sentenceCount++;
+        tokenCount += stored.tokens.length;
+        toponymCount += stored.toponymSpans.size();
+      }
+    }
+
+    int[] items = new int[tokenCount + toponymCount];
+    StoredToponym[] toponyms = new StoredToponym[toponymCount];
+    int[] spanStarts = new int[toponymCount];
+    int[] spanEnds = new int[toponymCount];
+    int[] sentenceStarts = new int[sentenceCount + 1];
+    int[] documentStarts = new int[this.documents.size() + 1];
+
+    int item = 0;
+    int toponym = 0;
+    int sentenceIdx = 0;
+    int documentIdx = 0;
+    for (Document<StoredToken> document : this.documents) {
+      documentStarts[documentIdx++] = sentenceIdx;
+      for (Sentence<StoredToken> sentence : document) {
+        StoredSentence stored = (StoredSentence) sentence;
+        sentenceStarts[sentenceIdx++] = item;
+
+        // Collapse each toponym's span into one entry, as Sentence.iterator
+        // does.
+        Iterator<Span<StoredToken>> spans = stored.toponymSpans.iterator();
+        Span<StoredToken> span = spans.hasNext() ? spans.next() : null;
+        int current = 0;
+        while (current < stored.tokens.length) {
+          if (span != null && span.getStart() == current) {
+            toponyms[toponym] = (StoredToponym) span.getItem();
+            spanStarts[toponym] = span.getStart();
+            spanEnds[toponym] = span.getEnd();
+            items[item++] = -(toponym + 1);
+            toponym++;
+            current = span.getEnd();
+            span = spans.hasNext() ? spans.next() : null;
+          } else {
+            items[item++] = stored.tokens[current++];
+          }
+        }
+      }
+    }
+    sentenceStarts[sentenceIdx] = item;
+    documentStarts[documentIdx] = sentenceIdx;
+
+    return new TokenStream(this.getTokenTypes(), Arrays.copyOf(items, item),
+                           Arrays.copyOf(toponyms, toponym),
+                           Arrays.copyOf(spanStarts, toponym),
+                           Arrays.copyOf(spanEnds, toponym),
+                           sentenceStarts, documentStarts, this.documents);
+  }
+
+  private class CompactToken implements StoredToken {
+
+    private static final long serialVersionUID = 42L;
+
+    private final int idx;
+
+    private CompactToken(int idx) {
+      this.idx = idx;
+    }
+
+    public String getForm() {
+      return CompactCorpus.this.tokenLexicon.atIndex(CompactCorpus.this.tokenOrigMap[this.idx]);
+    }
+
+    public String getOrigForm() {
+      return CompactCorpus.this.tokenOrigLexicon.atIndex(this.idx);
+    }
+
+    public boolean isToponym() {
+      return false;
+    }
+
+    public int getIdx() {
+      return CompactCorpus.this.tokenOrigMap[this.idx];
+    }
+
+    public int getOrigIdx() {
+      return this.idx;
+    }
+
+    public int getTypeCount() {
+      return CompactCorpus.this.tokenLexicon.countAtIndex(CompactCorpus.this.tokenOrigMap[this.idx]);
+    }
+
+    public int getOrigTypeCount() {
+      return CompactCorpus.this.tokenOrigLexicon.countAtIndex(this.idx);
+    }
+  }
+
   public void addSource(DocumentSource source) {
     if (this.wrapped == null) {
       throw new UnsupportedOperationException("Cannot add a source to a stored corpus after it has been loaded.");
@@ -346,7 +542,16 @@ public class CompactCorpus extends StoredCorpus implements Serializable {
 
       public int getAmbiguity() { return CompactCorpus.this.candidateLists.get(this.idx).size(); }
       public List<Location> getCandidates() { return CompactCorpus.this.candidateLists.get(this.idx); }
-      public void setCandidates(List<Location> candidates) { CompactCorpus.this.candidateLists.set(this.idx, candidates); }
+      public void setCandidates(List<Location> candidates) {
+        CompactCorpus.this.candidateLists.set(this.idx, candidates);
+        CompactCorpus.this.candidateCells = null;
+      }
+      public int[] getCandidateCellNumbers(double dpc) {
+        return CompactCorpus.this.getCandidateCells(dpc).cellNumbers[this.idx];
+      }
+      public int[] getDistinctCandidateCellNumbers(double dpc) {
+        return CompactCorpus.this.getCandidateCells(dpc).distinctCellNumbers[this.idx];
+      }
       public Iterator<Location> iterator() { return CompactCorpus.this.candidateLists.get(this.idx).iterator(); }
 
       public List<Token> getTokens() { throw new UnsupportedOperationException(); }
@@ -376,6 +581,7 @@ public class CompactCorpus extends StoredCorpus implements Serializable {
     }
 
     public Iterator<StoredToken> tokens() {
+      final StoredToken[] tokenTypes = CompactCorpus.this.getTokenTypes();
       return new Iterator<StoredToken>() {
         private int current = 0;
 
@@ -384,40 +590,10 @@ public class CompactCorpus extends StoredCorpus implements Serializable {
         }
 
         public StoredToken next() {
-          final int current = this.current++;
-          final int idx = StoredSentence.this.tokens[current];
-          return new StoredToken() {
-
-            private static final long serialVersionUID = 42L;
-
-            public String getForm() {
-              return CompactCorpus.this.tokenLexicon.atIndex(CompactCorpus.this.tokenOrigMap[idx]);
-            }
-
-            public String getOrigForm() {
-              return CompactCorpus.this.tokenOrigLexicon.atIndex(idx);
-            }
-
-            public boolean isToponym() {
-              return false;
-            }
-
-            public int getIdx() {
-              return CompactCorpus.this.tokenOrigMap[idx];
-            }
-
-            public int getOrigIdx() {
-              return idx;
-            }
-
-            public int getTypeCount() {
-              return CompactCorpus.this.tokenLexicon.countAtIndex(CompactCorpus.this.tokenOrigMap[idx]);
-            }
-
-            public int getOrigTypeCount() {
-              return CompactCorpus.this.tokenOrigLexicon.countAtIndex(idx);
-            }
-          };
+          if (!this.hasNext()) {
+            throw new NoSuchElementException();
+          }
+          return tokenTypes[StoredSentence.this.tokens[this.current++]];
         }
 
         public void remove() {
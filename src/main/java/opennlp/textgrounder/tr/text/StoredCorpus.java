@@ -32,4 +32,10 @@ public abstract class StoredCorpus extends Corpus<StoredToken> implements Serial
   public abstract int getTokenCount();
   public abstract int getToponymTokenCount();
   public abstract void load();
+
+  /**
+   * A cursor over the corpus's tokens, for passes that don't need token
+   * objects of their own (loading the corpus first if need be).
+   */
+  public abstract TokenCursor getTokenCursor();
 }
@@ -17,5 +17,17 @@ package opennlp.textgrounder.tr.text;
 import java.io.*;
 
 public interface StoredToponym extends StoredToken, Toponym, Serializable {
+  /**
+   * The cell number (see <code>TopoUtil.getCellNumber</code>) of the center
+   * of each candidate, in candidate order.  The array is shared by every
+   * occurrence of the toponym and must not be modified.
+   */
+  public int[] getCandidateCellNumbers(double dpc);
+
+  /**
+   * The distinct cell numbers of the candidates' centers, sorted.  Shared
+   * like <code>getCandidateCellNumbers</code>.
+   */
+  public int[] getDistinctCandidateCellNumbers(double dpc);
 }
 
@@ -0,0 +1,171 @@
+///////////////////////////////////////////////////////////////////////////////
+//  Copyright (C) 2012 Travis Brown, The University of Texas at Austin
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//  See the License for the specific language governing permissions and
+//  limitations under the License.
+///////////////////////////////////////////////////////////////////////////////
+package opennlp.textgrounder.tr.text;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Walks the tokens of a stored corpus one document at a time, reading them
+ * straight from the corpus's token stream.  Toponyms come out as a single
+ * entry, as when iterating over a sentence.  Nothing is allocated as the
+ * cursor moves: <code>getToken</code> returns the object shared by all
+ * tokens of that type (or the toponym itself), and <code>getForm</code>
+ * the string the corpus's lexicon keeps for the type, which is only made
+ * the first time any token of the type is asked for it.
+ *
+ * A cursor isn't thread-safe, but any number of cursors can be read at
+ * once.
+ */
+public final class TokenCursor {
+  private final TokenStream stream;
+  private int document = -1;
+  private int start;
+  private int end;
+  private int item;
+
+  TokenCursor(TokenStream stream) {
+    this.stream = stream;
+  }
+
+  public int getDocumentCount() {
+    return this.stream.documents.size();
+  }
+
+  /**
+   * Move to just before the first token of the given document (numbered in
+   * the corpus's iteration order).
+   */
+  public void setDocument(int document) {
+    if (document < 0 || document >= this.getDocumentCount()) {
+      throw new IndexOutOfBoundsException("Document: " + document + ", Count: " + this.getDocumentCount());
+    }
+    this.document = document;
+    this.start = this.stream.sentenceStarts[this.stream.documentStarts[document]];
+    this.end = this.stream.sentenceStarts[this.stream.documentStarts[document + 1]];
+    this.item = this.start - 1;
+  }
+
+  public Document<StoredToken> getDocument() {
+    this.checkDocument();
+    return this.stream.documents.get(this.document);
+  }
+
+  /** The number of tokens in the current document. */
+  public int size() {
+    this.checkDocument();
+    return this.end - this.start;
+  }
+
+  /** Move to the next token, returning false at the end of the document. */
+  public boolean next() {
+    this.checkDocument();
+    if (this.item < this.end) {
+      this.item++;
+    }
+    return this.item < this.end;
+  }
+
+  /** Move to the token at the given position in the current document. */
+  public void seek(int position) {
+    if (position < 0 || position >= this.size()) {
+      throw new IndexOutOfBoundsException("Position: " + position + ", Size: " + this.size());
+    }
+    this.item = this.start + position;
+  }
+
+  public int getPosition() {
+    return this.item - this.start;
+  }
+
+  public boolean isToponym() {
+    return this.current() < 0;
+  }
+
+  public StoredToken getToken() {
+    int current = this.current();
+    return current < 0 ? this.stream.toponyms[-current - 1] : this.stream.tokenTypes[current];
+  }
+
+  /** The current toponym, or null if the current token isn't one. */
+  public StoredToponym getToponym() {
+    int current = this.current();
+    return current < 0 ? this.stream.toponyms[-current - 1] : null;
+  }
+
+  public String getForm() {
+    return this.getToken().getForm();
+  }
+
+  public int getIdx() {
+    return this.getToken().getIdx();
+  }
+
+  public int getOrigIdx() {
+    int current = this.current();
+    return current < 0 ? this.stream.toponyms[-current - 1].getOrigIdx() : current;
+  }
+
+  /** The index in the current document of the current token's sentence. */
+  public int getSentence() {
+    this.current();
+    int[] sentenceStarts = this.stream.sentenceStarts;
+    int first = this.stream.documentStarts[this.document];
+    int lo = first;
+    int hi = this.stream.documentStarts[this.document + 1] - 1;
+    // The last sentence starting at or before the current entry.
+    while (lo < hi) {
+      int mid = (lo + hi + 1) >>> 1;
+      if (sentenceStarts[mid] <= this.item) {
+        lo = mid;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    return lo - first;
+  }
+
+  /**
+   * The offset in its sentence of the current toponym's first token, or -1
+   * if the current token isn't a toponym.
+   */
+  public int getSpanStart() {
+    int current = this.current();
+    return current < 0 ? this.stream.spanStarts[-current - 1] : -1;
+  }
+
+  /**
+   * The offset in its sentence just past the current toponym's last token,
+   * or -1 if the current token isn't a toponym.
+   */
+  public int getSpanEnd() {
+    int current = this.current();
+    return current < 0 ? this.stream.spanEnds[-current - 1] : -1;
+  }
+
+  private void checkDocument() {
+    if (this.document < 0) {
+      throw new IllegalStateException("No document selected.");
+    }
+  }
+
+  private int current() {
+    this.checkDocument();
+    if (this.item < this.start || this.item >= this.end) {
+      throw new NoSuchElementException();
+    }
+    return this.stream.items[this.item];
+  }
+}
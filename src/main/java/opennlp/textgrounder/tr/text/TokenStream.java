@@ -0,0 +1,53 @@
+///////////////////////////////////////////////////////////////////////////////
+//  Copyright (C) 2012 Travis Brown, The University of Texas at Austin
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//  See the License for the specific language governing permissions and
+//  limitations under the License.
+///////////////////////////////////////////////////////////////////////////////
+package opennlp.textgrounder.tr.text;
+
+import java.util.List;
+
+/**
+ * A stored corpus laid out as one array of token and toponym ids, in
+ * document order, with toponym spans collapsed into a single entry as when
+ * iterating over a sentence.  Read through a <code>TokenCursor</code>.
+ */
+final class TokenStream {
+  /* The token object shared by every token of each (original) type. */
+  final StoredToken[] tokenTypes;
+  /* Each entry is a token's original type index, or -(n + 1) for the nth
+   * toponym. */
+  final int[] items;
+  final StoredToponym[] toponyms;
+  /* The toponyms' spans, as token offsets in their sentences. */
+  final int[] spanStarts;
+  final int[] spanEnds;
+  /* The entry where each sentence starts, plus the end of the stream. */
+  final int[] sentenceStarts;
+  /* The first sentence of each document, plus the number of sentences. */
+  final int[] documentStarts;
+  final List<Document<StoredToken>> documents;
+
+  TokenStream(StoredToken[] tokenTypes, int[] items, StoredToponym[] toponyms,
+              int[] spanStarts, int[] spanEnds, int[] sentenceStarts,
+              int[] documentStarts, List<Document<StoredToken>> documents) {
+    this.tokenTypes = tokenTypes;
+    this.items = items;
+    this.toponyms = toponyms;
+    this.spanStarts = spanStarts;
+    this.spanEnds = spanEnds;
+    this.sentenceStarts = sentenceStarts;
+    this.documentStarts = documentStarts;
+    this.documents = documents;
+  }
+}
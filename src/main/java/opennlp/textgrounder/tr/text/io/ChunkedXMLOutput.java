@@ -0,0 +1,166 @@
+///////////////////////////////////////////////////////////////////////////////
+//  Copyright (C) 2012 Travis Brown, The University of Texas at Austin
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//  See the License for the specific language governing permissions and
+//  limitations under the License.
+///////////////////////////////////////////////////////////////////////////////
+package opennlp.textgrounder.tr.text.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Writes a long run of sibling elements (documents, placemarks) into an
+ * XML stream, encoding them in chunks into byte buffers on worker threads
+ * and appending the chunks to the output in order.  Only a few chunks are
+ * in flight at once, so memory use doesn't grow with the corpus.  The
+ * result is byte-for-byte what writing the elements one after another to
+ * the stream writer would give.
+ */
+class ChunkedXMLOutput<T> {
+  /** Number of elements encoded together. */
+  public static final int CHUNK_SIZE = 64;
+
+  interface ElementWriter<T> {
+    void write(XMLStreamWriter out, T item) throws Exception;
+  }
+
+  private final XMLOutputFactory factory;
+  private final ElementWriter<T> elementWriter;
+
+  ChunkedXMLOutput(XMLOutputFactory factory, ElementWriter<T> elementWriter) {
+    this.factory = factory;
+    this.elementWriter = elementWriter;
+  }
+
+  /**
+   * Write the elements for <code>items</code> where <code>out</code> is
+   * positioned, <code>stream</code> being the stream it writes to.  If
+   * <code>parallel</code> is false, the elements are encoded on this
+   * thread, in case the items can't be read from another (documents read
+   * lazily from a source, for example); the output is still chunked.
+   */
+  void write(XMLStreamWriter out, OutputStream stream, Iterable<? extends T> items,
+             boolean parallel) throws XMLStreamException, IOException {
+    // Close any open start tag and push everything written so far to the
+    // stream, so the chunks go after it.
+    out.writeCharacters("");
+    out.flush();
+
+    int threads = Runtime.getRuntime().availableProcessors();
+    ExecutorService executor = null;
+    if (parallel) {
+      executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "ChunkedXMLOutput");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+    try {
+      List<T> chunk = new ArrayList<T>(CHUNK_SIZE);
+      for (T item : items) {
+        chunk.add(item);
+        if (chunk.size() == CHUNK_SIZE) {
+          this.submit(executor, pending, chunk, stream);
+          chunk = new ArrayList<T>(CHUNK_SIZE);
+          while (pending.size() > 2 * threads) {
+            stream.write(this.await(pending.removeFirst()));
+          }
+        }
+      }
+      if (!chunk.isEmpty()) {
+        this.submit(executor, pending, chunk, stream);
+      }
+      while (!pending.isEmpty()) {
+        stream.write(this.await(pending.removeFirst()));
+      }
+    } finally {
+      if (executor != null) {
+        executor.shutdownNow();
+      }
+    }
+  }
+
+  private void submit(ExecutorService executor, List<Future<byte[]>> pending,
+                      final List<T> chunk, OutputStream stream)
+    throws XMLStreamException, IOException {
+    // Writers are created here rather than on the workers, since factories
+    // aren't guaranteed to be thread-safe.
+    final ByteArrayOutputStream buffer = new ByteArrayOutputStream(8192);
+    final XMLStreamWriter out = this.factory.createXMLStreamWriter(buffer, "UTF-8");
+    Callable<byte[]> task = new Callable<byte[]>() {
+      public byte[] call() throws Exception {
+        for (T item : chunk) {
+          ChunkedXMLOutput.this.elementWriter.write(out, item);
+        }
+        out.close();
+        return buffer.toByteArray();
+      }
+    };
+
+    if (executor != null) {
+      pending.add(executor.submit(task));
+    } else {
+      try {
+        stream.write(task.call());
+      } catch (XMLStreamException e) {
+        throw e;
+      } catch (IOException e) {
+        throw e;
+      } catch (RuntimeException e) {
+        throw e;
+      } catch (Exception e) {
+        throw new XMLStreamException(e);
+      }
+    }
+  }
+
+  private byte[] await(Future<byte[]> future) throws XMLStreamException, IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof XMLStreamException) {
+        throw (XMLStreamException) cause;
+      } else if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new XMLStreamException(cause);
+    }
+  }
+}
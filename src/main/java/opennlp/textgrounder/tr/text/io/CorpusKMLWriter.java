@@ -128,12 +128,27 @@ public class CorpusKMLWriter {
       public void write(File file) throws Exception {
           assert(!file.isDirectory());
           OutputStream stream = new BufferedOutputStream(new FileOutputStream(file));
-          this.write(this.createXMLStreamWriter(stream));
-          stream.close();
+          try {
+              if(file.getName().endsWith(".gz"))
+                  stream = new ParallelGZIPOutputStream(stream);
+              this.write(stream);
+          } finally {
+              stream.close();
+          }
       }
 
+      // Same output as write(XMLStreamWriter), but with the placemarks
+      // encoded in parallel chunks.
       public void write(OutputStream stream) throws Exception {
-          this.write(this.createXMLStreamWriter(stream));
+          XMLStreamWriter out = this.createXMLStreamWriter(stream);
+
+          KMLUtil.writeHeader(out, "corpus");
+
+          this.writePlacemarks(out, stream);
+
+          KMLUtil.writeFooter(out);
+
+          out.close();
       }
 
       public void write(Writer writer) throws Exception {
@@ -156,6 +171,21 @@ public class CorpusKMLWriter {
           out.close();
       }
 
+      protected void writePlacemarks(XMLStreamWriter out, OutputStream stream) throws Exception {
+
+          countLocationsAndPopulateContexts(corpus);
+
+          ChunkedXMLOutput<opennlp.textgrounder.tr.topo.Location> output =
+              new ChunkedXMLOutput<opennlp.textgrounder.tr.topo.Location>(this.factory,
+                  new ChunkedXMLOutput.ElementWriter<opennlp.textgrounder.tr.topo.Location>() {
+                      public void write(XMLStreamWriter out, opennlp.textgrounder.tr.topo.Location loc) throws Exception {
+                          writePlacemarkAndPolygon(out, loc);
+                          writeContexts(out, loc);
+                      }
+                  });
+          output.write(out, stream, locationCounts.keySet(), true);
+      }
+
       protected void writePlacemarkAndPolygon(XMLStreamWriter out, opennlp.textgrounder.tr.topo.Location loc) throws Exception {
           String name = loc.getName();
           Coordinate coord = loc.getRegion().getCenter();
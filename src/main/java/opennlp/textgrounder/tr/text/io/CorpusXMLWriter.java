@@ -39,6 +39,7 @@ import javax.xml.stream.XMLStreamWriter;
 import opennlp.textgrounder.tr.text.Corpus;
 import opennlp.textgrounder.tr.text.Document;
 import opennlp.textgrounder.tr.text.Sentence;
+import opennlp.textgrounder.tr.text.StoredCorpus;
 import opennlp.textgrounder.tr.text.Token;
 import opennlp.textgrounder.tr.text.Toponym;
 
@@ -47,6 +48,15 @@ import opennlp.textgrounder.tr.topo.Coordinate;
 
 import opennlp.textgrounder.tr.app.BaseApp;
 
+import opennlp.textgrounder.tr.util.ParallelGZIPOutputStream;
+
+/**
+ * Writes a corpus in TR-XML format.  Writing to a file or stream is
+ * streaming and parallel: documents are encoded in chunks on worker threads
+ * (if the corpus is stored, so that documents can be read from any thread)
+ * and the chunks appended in order.  A file whose name ends in
+ * <code>.gz</code> is compressed, also in parallel.
+ */
 public class CorpusXMLWriter {
   protected final Corpus<? extends Token> corpus;
   protected final XMLOutputFactory factory;
@@ -202,20 +212,29 @@ public class CorpusXMLWriter {
         for (Document document : this.corpus) {
           File docFile = new File(file, String.format("%s%06d.xml", prefix, idx));
           OutputStream stream = new BufferedOutputStream(new FileOutputStream(docFile));
-          XMLStreamWriter out = this.createXMLStreamWriter(stream);
-          out.writeStartDocument("UTF-8", "1.0");
-          out.writeStartElement("corpus");
-          out.writeAttribute("created", this.getCalendar().toString());
-          this.writeDocument(out, document);
-          out.writeEndElement();
-          out.close();
-          stream.close();
+          try {
+            XMLStreamWriter out = this.createXMLStreamWriter(stream);
+            out.writeStartDocument("UTF-8", "1.0");
+            out.writeStartElement("corpus");
+            out.writeAttribute("created", this.getCalendar().toString());
+            this.writeDocument(out, document);
+            out.writeEndElement();
+            out.close();
+          } finally {
+            stream.close();
+          }
           idx++;
         }
       } else {
         OutputStream stream = new BufferedOutputStream(new FileOutputStream(file));
-        this.write(this.createXMLStreamWriter(stream));
-        stream.close();
+        try {
+          if (file.getName().endsWith(".gz")) {
+            stream = new ParallelGZIPOutputStream(stream);
+          }
+          this.write(stream);
+        } finally {
+          stream.close();
+        }
       }
     } catch (XMLStreamException e) {
       System.err.println(e);
@@ -228,13 +247,33 @@ public class CorpusXMLWriter {
 
   public void write(OutputStream stream) {
     try {
-      this.write(this.createXMLStreamWriter(stream));
+      XMLStreamWriter out = this.createXMLStreamWriter(stream);
+      out.writeStartDocument("UTF-8", "1.0");
+      out.writeStartElement("corpus");
+      out.writeAttribute("created", this.getCalendar().toString());
+      this.writeDocuments(out, stream);
+      out.writeEndElement();
+      out.close();
     } catch (XMLStreamException e) {
       System.err.println(e);
       System.exit(1);
+    } catch (IOException e) {
+      System.err.println(e);
+      System.exit(1);
     }
   }
 
+  protected void writeDocuments(XMLStreamWriter out, OutputStream stream)
+    throws XMLStreamException, IOException {
+    ChunkedXMLOutput<Document> output = new ChunkedXMLOutput<Document>(this.factory,
+      new ChunkedXMLOutput.ElementWriter<Document>() {
+        public void write(XMLStreamWriter out, Document document) throws XMLStreamException {
+          CorpusXMLWriter.this.writeDocument(out, document);
+        }
+      });
+    output.write(out, stream, this.corpus, this.corpus instanceof StoredCorpus);
+  }
+
   public void write(Writer writer) {
     try {
       this.write(this.createXMLStreamWriter(writer));
@@ -46,6 +46,16 @@ public class GeoTextCorpusKMLWriter extends CorpusKMLWriter {
         return true;
     }
 
+      protected void writePlacemarks(XMLStreamWriter out, java.io.OutputStream stream) throws Exception {
+          ChunkedXMLOutput<Document> output = new ChunkedXMLOutput<Document>(this.factory,
+              new ChunkedXMLOutput.ElementWriter<Document>() {
+                  public void write(XMLStreamWriter out, Document doc) throws XMLStreamException {
+                      writeDocument(out, doc);
+                  }
+              });
+          output.write(out, stream, corpus, corpus instanceof StoredCorpus);
+      }
+
       protected void write(XMLStreamWriter out) throws Exception {
 
           KMLUtil.writeHeader(out, "corpus");
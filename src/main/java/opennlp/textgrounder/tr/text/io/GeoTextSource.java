@@ -2,194 +2,190 @@ package opennlp.textgrounder.tr.text.io;
 
 import java.io.*;
 import java.util.*;
-
-//import javax.xml.stream.XMLInputFactory;
-//import javax.xml.stream.XMLStreamException;
-//import javax.xml.stream.XMLStreamReader;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import opennlp.textgrounder.tr.text.*;
 import opennlp.textgrounder.tr.text.prep.*;
 import opennlp.textgrounder.tr.topo.*;
 import opennlp.textgrounder.tr.util.*;
 
-public class GeoTextSource extends DocumentSource {
-  //private final XMLStreamReader in;
+/**
+ * Reads a GeoText file (one tweet per line, tab-separated: user, timestamp,
+ * ..., latitude, longitude, text), making a document of each run of
+ * consecutive lines from the same user.  Only the training and development
+ * folds (1-4) are read.
+ *
+ * Documents are read and tokenized as they're asked for.  If a prefetch
+ * count is given, a background thread reads up to that many documents
+ * ahead, so reading and tokenizing overlap with whatever is done with the
+ * documents (named entity recognition, for example).
+ */
+public class GeoTextSource extends TextSource {
   private final Tokenizer tokenizer;
-  private List<GeoTextDocument> documents;
-  private int curDocIndex = 0;
-  
+
+  /* The first accepted line of the next document, already split, or null
+   * at the end. */
+  private String[] pendingLine;
+
+  /* With prefetching: documents read ahead by the prefetch thread, then
+   * END once there are none left. */
+  private final BlockingQueue<GeoTextDocument> queue;
+  private final Thread prefetcher;
+  private GeoTextDocument queued;
+  private volatile Throwable failure;
+  private volatile boolean closed;
+  private static final GeoTextDocument END = new GeoTextDocument("", null, 0.0, 0.0);
 
   public GeoTextSource(Reader reader, Tokenizer tokenizer) throws Exception {
-    BufferedReader breader = new BufferedReader(reader);
-    this.tokenizer = tokenizer;
+    this(reader, tokenizer, 0);
+  }
 
-    this.documents = new ArrayList<GeoTextDocument>();
-
-    String curLine;
-    String prevDocId = "-1";
-    GeoTextDocument curDoc = null;
-    int sentIndex = -1;
-    while(true) {
-	curLine = breader.readLine();
-	if(curLine == null)
-	    break;
-	
-	String[] tokens = curLine.split("\t");
-
-        if(tokens.length < 6)
-            continue;
-
-        String docId = tokens[0];
-        long userId = Long.parseLong(docId.substring(docId.indexOf("_")+1), 16);
-        
-        long fold = (userId % 5);
-        fold = fold==0? 5 : fold;
-        if(fold >= 1 && fold <= 4) { // reads train and dev set only
-
-            if(!docId.equals(prevDocId)) {
-                curDoc = new GeoTextDocument(docId, tokens[1],
-                                             Double.parseDouble(tokens[3]),
-                                             Double.parseDouble(tokens[4]),
-                                             fold);
-                documents.add(curDoc);
-                sentIndex = -1;
+  public GeoTextSource(Reader reader, Tokenizer tokenizer, int prefetch) throws Exception {
+    super(reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader));
+    this.tokenizer = tokenizer;
+    this.pendingLine = this.readAcceptedLine();
+
+    if (prefetch > 0) {
+      this.queue = new ArrayBlockingQueue<GeoTextDocument>(prefetch);
+      this.prefetcher = new Thread("GeoTextSource prefetch") {
+        public void run() {
+          try {
+            GeoTextDocument doc;
+            while ((doc = GeoTextSource.this.readDocument()) != null) {
+              GeoTextSource.this.queue.put(doc);
             }
-            prevDocId = docId;
-            
-            String rawSent = tokens[5];
-            sentIndex++;
-            List<Token> wList = new ArrayList<Token>();
-            
-            for(String w : tokenizer.tokenize(rawSent)) {
-                wList.add(new SimpleToken(w));
+          } catch (InterruptedException e) {
+            // Closed early.
+          } catch (Throwable e) {
+            GeoTextSource.this.failure = e;
+          } finally {
+            // Always mark the end, so that the reader can't wait forever,
+            // unless the source was closed and no one is reading.
+            try {
+              if (!GeoTextSource.this.closed)
+                GeoTextSource.this.queue.put(END);
+            } catch (InterruptedException e) {
+              // Closed while waiting for room.
             }
-            
-            curDoc.addSentence(new SimpleSentence("" + sentIndex, wList));
+          }
         }
+      };
+      this.prefetcher.setDaemon(true);
+      this.prefetcher.start();
+    } else {
+      this.queue = null;
+      this.prefetcher = null;
     }
-
-    //XMLInputFactory factory = XMLInputFactory.newInstance();
-    //this.in = factory.createXMLStreamReader(reader);
-
-    //while (this.in.hasNext() && this.in.next() != XMLStreamReader.START_ELEMENT) {}
-    //if (this.in.getLocalName().equals("corpus")) {
-    //  this.in.nextTag();
-    //}
   }
 
-    /*private void nextTag() {
-    try {
-      this.in.nextTag();
-    } catch (XMLStreamException e) {
-      System.err.println("Error while advancing TR-XML file.");
+  /* Read lines until one that belongs to a document we want, and return
+   * its fields, or null at the end of the file.  The fold is worked out
+   * from the user id before the rest of the line is split. */
+  private String[] readAcceptedLine() {
+    String line;
+    while ((line = this.readLine()) != null) {
+      // Lines with fewer than six fields are skipped.
+      int tab = line.indexOf('\t');
+      int tabs = 0;
+      for (int i = tab; i >= 0 && tabs < 5; i = line.indexOf('\t', i + 1))
+        tabs++;
+      if (tabs < 5)
+        continue;
+
+      String docId = line.substring(0, tab);
+      long userId = Long.parseLong(docId.substring(docId.indexOf("_")+1), 16);
+      long fold = (userId % 5);
+      fold = fold==0? 5 : fold;
+      if (fold < 1 || fold > 4) // reads train and dev set only
+        continue;
+
+      String[] fields = line.split("\t");
+      if (fields.length < 6)
+        continue;
+      return fields;
     }
+    return null;
   }
 
-  public void close() {
-    try {
-      this.in.close();
-    } catch (XMLStreamException e) {
-      System.err.println("Error while closing TR-XML file.");
-    }
-    }*/
+  /* Read the document made up of the pending line and the accepted lines
+   * after it with the same user id, or return null at the end. */
+  private GeoTextDocument readDocument() {
+    if (this.pendingLine == null)
+      return null;
+
+    String[] fields = this.pendingLine;
+    String docId = fields[0];
+    long userId = Long.parseLong(docId.substring(docId.indexOf("_")+1), 16);
+    long fold = (userId % 5);
+    fold = fold==0? 5 : fold;
+    GeoTextDocument doc = new GeoTextDocument(docId, fields[1],
+                                              Double.parseDouble(fields[3]),
+                                              Double.parseDouble(fields[4]),
+                                              fold);
+
+    int sentIndex = 0;
+    do {
+      List<Token> wList = new ArrayList<Token>();
+      for (String w : this.tokenizer.tokenize(fields[5])) {
+        wList.add(new SimpleToken(w));
+      }
+      doc.addSentence(new SimpleSentence("" + sentIndex, wList));
+      sentIndex++;
 
-    public Iterator<GeoTextDocument> iterator() {
-        return documents.iterator();
-    }
+      fields = this.readAcceptedLine();
+    } while (fields != null && fields[0].equals(docId));
+
+    this.pendingLine = fields;
+    return doc;
+  }
 
   public boolean hasNext() {
-      return this.curDocIndex < this.documents.size();//this.in.isStartElement() && this.in.getLocalName().equals("doc");
+    if (this.queue == null)
+      return this.pendingLine != null;
+
+    if (this.queued == null) {
+      try {
+        this.queued = this.queue.take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException("Interrupted while reading GeoText file", e);
+      }
+    }
+    if (this.queued == END && this.failure != null) {
+      if (this.failure instanceof RuntimeException)
+        throw (RuntimeException) this.failure;
+      if (this.failure instanceof Error)
+        throw (Error) this.failure;
+      throw new RuntimeException("Error reading GeoText file", this.failure);
+    }
+    return this.queued != END;
   }
 
   public Document<Token> next() {
+    if (!this.hasNext())
+      throw new NoSuchElementException();
+
+    GeoTextDocument doc;
+    if (this.queue == null) {
+      doc = this.readDocument();
+    } else {
+      doc = this.queued;
+      this.queued = null;
+    }
+    return doc;
+  }
 
-      return documents.get(curDocIndex++);
-      /*return new Document(id) {
-	  public Iterator<Sentence<Token>> iterator() {
-	      return new SentenceIterator() {
-		  public boolean hasNext() {
-		      
-		  }
-	      }
-	  }
-	  }*/
-    /*assert this.in.isStartElement() && this.in.getLocalName().equals("doc");
-    String id = TrXMLSource.this.in.getAttributeValue(null, "id");
-    TrXMLSource.this.nextTag();
-
-    return new Document(id) {
-      public Iterator<Sentence<Token>> iterator() {
-        return new SentenceIterator() {
-          public boolean hasNext() {
-            if (TrXMLSource.this.in.isStartElement() &&
-                TrXMLSource.this.in.getLocalName().equals("s")) {
-              return true;
-            } else {
-              return false;
-            }
-          }
-
-          public Sentence<Token> next() {
-            String id = TrXMLSource.this.in.getAttributeValue(null, "id");
-            List<Token> tokens = new ArrayList<Token>();
-            List<Span<Toponym>> toponymSpans = new ArrayList<Span<Toponym>>();
-
-            try {
-              while (TrXMLSource.this.in.nextTag() == XMLStreamReader.START_ELEMENT &&
-                    (TrXMLSource.this.in.getLocalName().equals("w") ||
-                     TrXMLSource.this.in.getLocalName().equals("toponym"))) {
-                String name = TrXMLSource.this.in.getLocalName();
- 
-                if (name.equals("w")) {
-                  tokens.add(new SimpleToken(TrXMLSource.this.in.getAttributeValue(null, "tok")));
-                } else {
-                  int spanStart = tokens.size();
-                  String form = TrXMLSource.this.in.getAttributeValue(null, "term");
-                  List<String> formTokens = TrXMLSource.this.tokenizer.tokenize(form);
-
-                  for (String formToken : TrXMLSource.this.tokenizer.tokenize(form)) {
-                    tokens.add(new SimpleToken(formToken));
-                  }
-
-                  ArrayList<Location> locations = new ArrayList<Location>();
-                  int goldIdx = -1;
-
-                  if (TrXMLSource.this.in.nextTag() == XMLStreamReader.START_ELEMENT &&
-                      TrXMLSource.this.in.getLocalName().equals("candidates")) {
-                    while (TrXMLSource.this.in.nextTag() == XMLStreamReader.START_ELEMENT &&
-                           TrXMLSource.this.in.getLocalName().equals("cand")) {
-                      String selected = TrXMLSource.this.in.getAttributeValue(null, "selected");
-                      if (selected != null && selected.equals("yes")) {
-                        goldIdx = locations.size();
-                      }
-
-                      double lat = Double.parseDouble(TrXMLSource.this.in.getAttributeValue(null, "lat"));
-                      double lng = Double.parseDouble(TrXMLSource.this.in.getAttributeValue(null, "long"));
-                      Region region = new PointRegion(Coordinate.fromDegrees(lat, lng));
-                      locations.add(new Location(form, region));
-                      TrXMLSource.this.nextTag();
-                      assert TrXMLSource.this.in.isEndElement() &&
-                             TrXMLSource.this.in.getLocalName().equals("cand");
-                    }
-                  }
-
-                  if (locations.size() > 0 && goldIdx > -1) {
-                    Toponym toponym = new SimpleToponym(form, locations, goldIdx);
-                    toponymSpans.add(new Span<Toponym>(spanStart, tokens.size(), toponym));
-                  }
-                }
-                TrXMLSource.this.nextTag();
-              }
-            } catch (XMLStreamException e) {
-              System.err.println("Error while reading TR-XML file.");
-            }
-
-            TrXMLSource.this.nextTag();
-            return new SimpleSentence(id, tokens, toponymSpans);           
-          }
-        };
+  public void close() {
+    if (this.prefetcher != null) {
+      this.closed = true;
+      this.prefetcher.interrupt();
+      try {
+        this.prefetcher.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
       }
-      };*/
+    }
+    super.close();
   }
 }
-
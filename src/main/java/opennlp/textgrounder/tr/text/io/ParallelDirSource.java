@@ -0,0 +1,188 @@
+///////////////////////////////////////////////////////////////////////////////
+//  Copyright (C) 2012 Travis Brown, The University of Texas at Austin
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//  See the License for the specific language governing permissions and
+//  limitations under the License.
+///////////////////////////////////////////////////////////////////////////////
+package opennlp.textgrounder.tr.text.io;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import opennlp.textgrounder.tr.text.Document;
+import opennlp.textgrounder.tr.text.DocumentSource;
+import opennlp.textgrounder.tr.text.Sentence;
+import opennlp.textgrounder.tr.text.Token;
+import opennlp.textgrounder.tr.util.MappedFileReader;
+
+/**
+ * A source for a directory of files, each read by a source of its own.
+ * The files are parsed on a pool of threads, a few files ahead of the one
+ * being read from, and their documents are held until it's their turn, so
+ * they come out in the same order (the order of the file list) as they
+ * would reading the files one after another.  Large files are
+ * memory-mapped.
+ */
+abstract class ParallelDirSource extends DocumentSource {
+  /** Files at least this big are memory-mapped. */
+  public static final long MAP_THRESHOLD = 1L << 20;
+
+  private final List<File> files;
+  private final int threads;
+  private int nextFile = 0;
+  private ExecutorService executor;
+  private final LinkedList<Future<List<Document<Token>>>> pending =
+    new LinkedList<Future<List<Document<Token>>>>();
+  private Iterator<Document<Token>> current = Collections.<Document<Token>>emptyList().iterator();
+
+  protected ParallelDirSource(List<File> files, int threads) {
+    this.files = files;
+    this.threads = Math.max(1, threads);
+  }
+
+  /**
+   * Return a source for the documents in the given file, or null (after
+   * reporting the problem) if it can't be read.  Called on a pool thread.
+   */
+  protected abstract DocumentSource openFile(File file, BufferedReader reader);
+
+  public boolean hasNext() {
+    while (!this.current.hasNext()) {
+      this.submitFiles();
+      if (this.pending.isEmpty()) {
+        return false;
+      }
+      this.current = this.await(this.pending.removeFirst()).iterator();
+    }
+    return true;
+  }
+
+  public Document<Token> next() {
+    if (!this.hasNext()) {
+      throw new NoSuchElementException();
+    }
+    return this.current.next();
+  }
+
+  public void close() {
+    if (this.executor != null) {
+      this.executor.shutdownNow();
+    }
+  }
+
+  private void submitFiles() {
+    if (this.executor == null) {
+      this.executor = Executors.newFixedThreadPool(this.threads, new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "ParallelDirSource");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    while (this.pending.size() < 2 * this.threads && this.nextFile < this.files.size()) {
+      final File file = this.files.get(this.nextFile++);
+      this.pending.add(this.executor.submit(new Callable<List<Document<Token>>>() {
+        public List<Document<Token>> call() {
+          return ParallelDirSource.this.readFile(file);
+        }
+      }));
+    }
+  }
+
+  private List<Document<Token>> await(Future<List<Document<Token>>> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new RuntimeException(cause);
+    }
+  }
+
+  /* Read all of a file's documents, so they no longer depend on the
+   * file's reader. */
+  private List<Document<Token>> readFile(File file) {
+    List<Document<Token>> documents = new ArrayList<Document<Token>>();
+    BufferedReader reader;
+    try {
+      reader = new BufferedReader(file.length() >= MAP_THRESHOLD
+                                  ? new MappedFileReader(file)
+                                  : new FileReader(file));
+    } catch (IOException e) {
+      System.err.println("Error while reading directory file " + file.getName());
+      return documents;
+    }
+
+    DocumentSource source = this.openFile(file, reader);
+    if (source == null) {
+      try {
+        reader.close();
+      } catch (IOException e) {
+        System.err.println("Error while closing directory file " + file.getName());
+      }
+      return documents;
+    }
+
+    try {
+      while (source.hasNext()) {
+        Document<Token> document = source.next();
+        List<Sentence<Token>> sentences = new ArrayList<Sentence<Token>>();
+        for (Sentence<Token> sentence : document) {
+          sentences.add(sentence);
+        }
+        documents.add(new LoadedDocument(document, sentences));
+      }
+    } finally {
+      source.close();
+    }
+    return documents;
+  }
+
+  private static class LoadedDocument extends Document<Token> {
+    private static final long serialVersionUID = 42L;
+
+    private final List<Sentence<Token>> sentences;
+
+    private LoadedDocument(Document<Token> document, List<Sentence<Token>> sentences) {
+      super(document.getId(), document.getTimestamp(), document.getGoldCoord(),
+            document.getSystemCoord(), document.getSection(), document.title);
+      this.sentences = sentences;
+    }
+
+    public Iterator<Sentence<Token>> iterator() {
+      return this.sentences.iterator();
+    }
+  }
+}
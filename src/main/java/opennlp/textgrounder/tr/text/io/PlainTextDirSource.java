@@ -5,102 +5,105 @@ package opennlp.textgrounder.tr.text.io;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.Callable;
 
-import javax.xml.stream.XMLStreamException;
-
-import opennlp.textgrounder.tr.text.Document;
 import opennlp.textgrounder.tr.text.DocumentSource;
-import opennlp.textgrounder.tr.text.Token;
 import opennlp.textgrounder.tr.text.prep.SentenceDivider;
 import opennlp.textgrounder.tr.text.prep.Tokenizer;
 
 /**
+ * Reads the <code>.txt</code> files under a directory, recursively, with
+ * each directory's files in sorted order before its subdirectories.  Like
+ * <code>TrXMLDirSource</code>, the files can be read on several threads,
+ * each with its own sentence divider and tokenizer.
+ *
  * @author abhimanu kumar
  *
  */
-public class PlainTextDirSource extends DocumentSource {
+public class PlainTextDirSource extends ParallelDirSource {
+
+	private final ThreadLocal<SentenceDivider> dividers;
+	private final ThreadLocal<Tokenizer> tokenizers;
 
-	private final Tokenizer tokenizer;
-	private final SentenceDivider divider;
-	private final Vector<File> files;
-	private int currentIdx;
-	private PlainTextSource current;
 
+	public PlainTextDirSource(File directory, final SentenceDivider divider, final Tokenizer tokenizer) {
+		this(directory, new Callable<SentenceDivider>() {
+			public SentenceDivider call() {
+				return divider;
+			}
+		}, new Callable<Tokenizer>() {
+			public Tokenizer call() {
+				return tokenizer;
+			}
+		}, 1);
+	}
+
+	/**
+	 * Read the files on <code>threads</code> threads, calling the factories
+	 * for each thread's sentence divider and tokenizer.
+	 */
+	public PlainTextDirSource(File directory, final Callable<? extends SentenceDivider> dividerFactory,
+				  final Callable<? extends Tokenizer> tokenizerFactory, int threads) {
+		super(listFiles(directory), threads);
+		this.dividers = new ThreadLocal<SentenceDivider>() {
+			protected SentenceDivider initialValue() {
+				try {
+					return dividerFactory.call();
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		this.tokenizers = new ThreadLocal<Tokenizer>() {
+			protected Tokenizer initialValue() {
+				try {
+					return tokenizerFactory.call();
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+	}
 
-	public PlainTextDirSource(File directory, SentenceDivider divider, Tokenizer tokenizer) {
-		this.divider = divider;
-		this.tokenizer = tokenizer;
-		files=new Vector<File>();
+	private static List<File> listFiles(File directory) {
+		Vector<File> files = new Vector<File>();
 		FilenameFilter filter=new FilenameFilter() {
 			public boolean accept(File dir, String name) {
 				return name.endsWith(".txt");
 			}
 		};
-		listFiles(directory,filter);
-
-		//		    this.files = files == null ? new File[0] : files;
-		//		    Arrays.sort(this.files);
-
-		this.currentIdx = 0;
-		this.nextFile();
+		listFiles(directory,filter,files);
+		return files;
 	}
 
-	private void listFiles(File directory, FilenameFilter filter) {
+	private static void listFiles(File directory, FilenameFilter filter, List<File> files) {
 		File[] childrenTextFiles=directory.listFiles(filter);
+		Arrays.sort(childrenTextFiles);
 		for(File file : childrenTextFiles){
 			if(file!=null && !file.isDirectory())
 				files.add(file);
 		}
 		File[] childrenDir=directory.listFiles();
+		Arrays.sort(childrenDir);
 		for(File file:childrenDir){
 			if(file.isDirectory())
-				listFiles(file,filter);
+				listFiles(file,filter,files);
 		}
 		return;
 	}
 
-	private void nextFile() {
+	protected DocumentSource openFile(File file, BufferedReader reader) {
 		try {
-			if (this.current != null) {
-				this.current.close();
-			}
-			if (this.currentIdx < this.files.size()) {
-                            File currentFile = this.files.get(this.currentIdx);
-                            this.current = new PlainTextSource(new BufferedReader(new FileReader(currentFile)), this.divider, this.tokenizer, currentFile.getName());
-			}
+			return new PlainTextSource(reader, this.dividers.get(), this.tokenizers.get(), file.getName());
 		} catch (IOException e) {
-			System.err.println("Error while reading text file "+this.files.get(this.currentIdx).getName());
-		} 
-	}
-
-	public void close() {
-		if (this.current != null) {
-			this.current.close();
+			System.err.println("Error while reading text file "+file.getName());
+			return null;
 		}
 	}
 
-	public boolean hasNext() {
-		if (this.currentIdx < this.files.size()) {
-			if (this.current.hasNext()) {
-				return true; 
-			} else {
-				this.currentIdx++;
-				this.nextFile();
-				return this.hasNext();
-			}
-		} else {
-			return false;
-		}
-	}
-
-	public Document<Token> next() {
-		return this.current.next();
-	}
-
 }
@@ -18,90 +18,75 @@ package opennlp.textgrounder.tr.text.io;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FilenameFilter;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.IOException;
 
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Callable;
 
-import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLStreamException;
-import javax.xml.stream.XMLStreamReader;
 
-import com.google.common.collect.Iterators;
-
-import opennlp.textgrounder.tr.text.Document;
 import opennlp.textgrounder.tr.text.DocumentSource;
-import opennlp.textgrounder.tr.text.Token;
 import opennlp.textgrounder.tr.text.prep.Tokenizer;
 
-public class TrXMLDirSource extends DocumentSource {
-  private final Tokenizer tokenizer;
-  private final File[] files;
-  private int currentIdx;
-  private TrXMLSource current;
-  private int sentsPerDocument;
+/**
+ * Reads the <code>.xml</code> files in a directory as TR-XML, in sorted
+ * order.  The files are parsed on a pool of threads, each thread with its
+ * own tokenizer; with a single tokenizer, they're parsed on one thread,
+ * ahead of the reader.
+ */
+public class TrXMLDirSource extends ParallelDirSource {
+  private final ThreadLocal<Tokenizer> tokenizers;
+  private final int sentsPerDocument;
 
   public TrXMLDirSource(File directory, Tokenizer tokenizer) {
     this(directory, tokenizer, -1);
   }
 
-  public TrXMLDirSource(File directory, Tokenizer tokenizer, int sentsPerDocument) {
-    this.tokenizer = tokenizer;
+  public TrXMLDirSource(File directory, final Tokenizer tokenizer, int sentsPerDocument) {
+    this(directory, new Callable<Tokenizer>() {
+      public Tokenizer call() {
+        return tokenizer;
+      }
+    }, sentsPerDocument, 1);
+  }
+
+  /**
+   * Parse the files on <code>threads</code> threads, calling
+   * <code>tokenizerFactory</code> for each thread's tokenizer.
+   */
+  public TrXMLDirSource(File directory, final Callable<? extends Tokenizer> tokenizerFactory,
+                        int sentsPerDocument, int threads) {
+    super(listFiles(directory), threads);
     this.sentsPerDocument = sentsPerDocument;
+    this.tokenizers = new ThreadLocal<Tokenizer>() {
+      protected Tokenizer initialValue() {
+        try {
+          return tokenizerFactory.call();
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+  }
+
+  private static List<File> listFiles(File directory) {
     File[] files = directory.listFiles(new FilenameFilter() {
       public boolean accept(File dir, String name) {
         return name.endsWith(".xml");
       }
     });
 
-    this.files = files == null ? new File[0] : files;
-    Arrays.sort(this.files);
-
-    this.currentIdx = 0;
-    this.nextFile();
+    files = files == null ? new File[0] : files;
+    Arrays.sort(files);
+    return Arrays.asList(files);
   }
 
-  private void nextFile() {
+  protected DocumentSource openFile(File file, BufferedReader reader) {
     try {
-      if (this.current != null) {
-        this.current.close();
-      }
-      if (this.currentIdx < this.files.length) {
-        this.current = new TrXMLSource(new BufferedReader(new FileReader(this.files[this.currentIdx])), this.tokenizer, this.sentsPerDocument);
-      }
+      return new TrXMLSource(reader, this.tokenizers.get(), this.sentsPerDocument);
     } catch (XMLStreamException e) {
       System.err.println("Error while reading TR-XML directory file.");
-    } catch (FileNotFoundException e) {
-      System.err.println("Error while reading TR-XML directory file.");
+      return null;
     }
   }
-
-  public void close() {
-    if (this.current != null) {
-      this.current.close();
-    }
-  }
-
-  public boolean hasNext() {
-    if (this.currentIdx < this.files.length) {
-      if (this.current.hasNext()) {
-        return true; 
-      } else {
-        this.currentIdx++;
-        this.nextFile();
-        return this.hasNext();
-      }
-    } else {
-      return false;
-    }
-  }
-
-  public Document<Token> next() {
-    return this.current.next();
-  }
 }
-
@@ -147,6 +147,14 @@ public class Location implements Serializable {
     return this.getRegion().distance(other.getRegion());
   }
 
+  /**
+   * A value that increases monotonically with <code>distance(other)</code>
+   * but is cheaper to compute; see <code>Region.comparableDistance</code>.
+   */
+  public double comparableDistance(Location other) {
+    return this.getRegion().comparableDistance(other.getRegion());
+  }
+
   public double distanceInKm(Location other) {
     return this.getRegion().distanceInKm(other.getRegion());
   }
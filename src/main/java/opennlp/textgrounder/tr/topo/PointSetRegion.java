@@ -28,6 +28,10 @@ public class PointSetRegion extends Region {
   private final double minLng;
   private final double maxLng;
 
+  /* Spatial index over the representatives, built when first needed
+   * (regions are deserialized in bulk with gazetteers). */
+  private transient volatile RepresentativeIndex index = null;
+
   public PointSetRegion(List<Coordinate> coordinates) {
     this.coordinates = coordinates;
     this.center = Coordinate.centroid(this.coordinates);
@@ -88,19 +92,38 @@ public class PointSetRegion extends Region {
     public void setRepresentatives(List<Coordinate> representatives) {
         this.coordinates = representatives;
         this.center = Coordinate.centroid(representatives);
+        this.index = null;
+    }
+
+  private RepresentativeIndex getIndex() {
+    RepresentativeIndex index = this.index;
+    if (index == null) {
+      index = new RepresentativeIndex(this.coordinates);
+      this.index = index;
     }
+    return index;
+  }
+
+  /* The representatives are searched using a spatial index rather than
+   * compared one by one; see RepresentativeIndex. */
 
   @Override
-  public double distance(Coordinate coordinate) {
-    double minDistance = Double.POSITIVE_INFINITY;
+  public double comparableDistance(Coordinate coordinate) {
+    return this.getIndex().minDistanceSquared(coordinate, Double.POSITIVE_INFINITY);
+  }
 
-    for (Coordinate representative : this.coordinates) {
-      double distance = representative.distance(coordinate);
-      if (distance < minDistance) {
-        minDistance = distance;
-      }
+  @Override
+  public double comparableDistance(Region other) {
+    if (other instanceof PointSetRegion) {
+      return RepresentativeIndex.minDistanceSquared(this.getIndex(),
+        ((PointSetRegion) other).getIndex(), Double.POSITIVE_INFINITY);
     }
 
+    RepresentativeIndex index = this.getIndex();
+    double minDistance = Double.POSITIVE_INFINITY;
+    for (Coordinate otherCoord : other.getRepresentatives()) {
+      minDistance = index.minDistanceSquared(otherCoord, minDistance);
+    }
     return minDistance;
   }
 }
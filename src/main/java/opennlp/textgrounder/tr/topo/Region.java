@@ -54,11 +54,28 @@ public abstract class Region implements Serializable {
   }
 
   public double distance(Region other) {
+    return Coordinate.chordSquaredToDistance(this.comparableDistance(other));
+  }
+
+  public double distance(Coordinate coordinate) {
+    return Coordinate.chordSquaredToDistance(this.comparableDistance(coordinate));
+  }
+
+  /**
+   * A value that increases monotonically with <code>distance(other)</code>
+   * and is cheaper to compute, for when distances are only compared: the
+   * squared chord distance between the closest representatives (see
+   * <code>Coordinate.chordDistanceSquared</code>).
+   */
+  public double comparableDistance(Region other) {
+    // Let a point set use its spatial index.
+    if (other instanceof PointSetRegion)
+        return other.comparableDistance(this);
     //return this.distance(other.getCenter());
     double minDist = Double.POSITIVE_INFINITY;
     for(Coordinate coord : this.getRepresentatives()) {
         for(Coordinate otherCoord : other.getRepresentatives()) {
-            double curDist = coord.distance(otherCoord);
+            double curDist = coord.chordDistanceSquared(otherCoord);
             if(curDist < minDist)
                 minDist = curDist;
         }
@@ -66,11 +83,16 @@ public abstract class Region implements Serializable {
     return minDist;
   }
 
-  public double distance(Coordinate coordinate) {
+  /**
+   * A value that increases monotonically with
+   * <code>distance(coordinate)</code>; see
+   * <code>comparableDistance(Region)</code>.
+   */
+  public double comparableDistance(Coordinate coordinate) {
     //return this.getCenter().distance(coordinate);
     double minDist = Double.POSITIVE_INFINITY;
     for(Coordinate coord : this.getRepresentatives()) {
-        double curDist = coord.distance(coordinate);
+        double curDist = coord.chordDistanceSquared(coordinate);
         if(curDist < minDist)
             minDist = curDist;
     }
@@ -0,0 +1,275 @@
+///////////////////////////////////////////////////////////////////////////////
+//  Copyright (C) 2012 Travis Brown, The University of Texas at Austin
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//  See the License for the specific language governing permissions and
+//  limitations under the License.
+///////////////////////////////////////////////////////////////////////////////
+package opennlp.textgrounder.tr.topo;
+
+import java.util.List;
+
+/**
+ * A small spatial index over the representatives of a region, for finding
+ * the closest representative to a point, or the closest pair between two
+ * regions, without comparing every pair.
+ *
+ * The representatives are taken as unit vectors in 3D space, where the
+ * chord distance between two points is plain Euclidean distance.  They are
+ * split recursively at the median of the box's longest axis into a tree
+ * of axis-aligned bounding boxes, with a few points in each leaf.  The
+ * distance between two boxes (or a box and a point) is a lower bound on
+ * the distance between any points in them, so searches skip any box that
+ * can't beat the best distance found so far, visiting the closer child of
+ * a node first so that a good bound is found early.  Unlike a
+ * latitude/longitude box, this needs no special cases at the poles or the
+ * 180th meridian.
+ *
+ * All distances are squared chord distances, as returned by
+ * <code>Coordinate.chordDistanceSquared</code>.
+ */
+final class RepresentativeIndex {
+
+  /** Maximum number of points in a leaf. */
+  private static final int LEAF_SIZE = 4;
+
+  /* Point coordinates, 3 per point, reordered so that each node's points
+   * are contiguous. */
+  private final double[] points;
+
+  /* Per node: bounding box (3 minima then 3 maxima), range of points, and
+   * children (-1 for a leaf).  Node 0 is the root. */
+  private final double[] boxes;
+  private final int[] starts;
+  private final int[] ends;
+  private final int[] lefts;
+  private final int[] rights;
+  private int numNodes = 0;
+
+  RepresentativeIndex(List<Coordinate> coordinates) {
+    int n = coordinates.size();
+    this.points = new double[n * 3];
+    for (int i = 0; i < n; i++) {
+      Coordinate coord = coordinates.get(i);
+      this.points[i * 3] = coord.getUnitX();
+      this.points[i * 3 + 1] = coord.getUnitY();
+      this.points[i * 3 + 2] = coord.getUnitZ();
+    }
+    // A binary tree whose leaves hold at least one point has fewer than
+    // 2n nodes.
+    int maxNodes = Math.max(1, 2 * n);
+    this.boxes = new double[maxNodes * 6];
+    this.starts = new int[maxNodes];
+    this.ends = new int[maxNodes];
+    this.lefts = new int[maxNodes];
+    this.rights = new int[maxNodes];
+    this.build(0, n);
+  }
+
+  public int size() {
+    return this.points.length / 3;
+  }
+
+  private int build(int start, int end) {
+    int node = this.numNodes++;
+    this.starts[node] = start;
+    this.ends[node] = end;
+    int box = node * 6;
+    for (int d = 0; d < 3; d++) {
+      this.boxes[box + d] = Double.POSITIVE_INFINITY;
+      this.boxes[box + 3 + d] = Double.NEGATIVE_INFINITY;
+    }
+    for (int i = start; i < end; i++) {
+      for (int d = 0; d < 3; d++) {
+        double v = this.points[i * 3 + d];
+        if (v < this.boxes[box + d]) this.boxes[box + d] = v;
+        if (v > this.boxes[box + 3 + d]) this.boxes[box + 3 + d] = v;
+      }
+    }
+
+    if (end - start <= LEAF_SIZE) {
+      this.lefts[node] = -1;
+      this.rights[node] = -1;
+    } else {
+      int axis = 0;
+      double widest = -1.0;
+      for (int d = 0; d < 3; d++) {
+        double width = this.boxes[box + 3 + d] - this.boxes[box + d];
+        if (width > widest) {
+          widest = width;
+          axis = d;
+        }
+      }
+      int mid = (start + end) >>> 1;
+      this.select(start, end, mid, axis);
+      this.lefts[node] = this.build(start, mid);
+      this.rights[node] = this.build(mid, end);
+    }
+    return node;
+  }
+
+  /* Partially sort points [start, end) along the axis so that the point
+   * at `k' is where it would be if fully sorted (quickselect). */
+  private void select(int start, int end, int k, int axis) {
+    int lo = start;
+    int hi = end - 1;
+    while (lo < hi) {
+      double pivot = this.points[((lo + hi) >>> 1) * 3 + axis];
+      int i = lo;
+      int j = hi;
+      while (i <= j) {
+        while (this.points[i * 3 + axis] < pivot) i++;
+        while (this.points[j * 3 + axis] > pivot) j--;
+        if (i <= j) {
+          this.swap(i, j);
+          i++;
+          j--;
+        }
+      }
+      if (k <= j) hi = j;
+      else if (k >= i) lo = i;
+      else break;
+    }
+  }
+
+  private void swap(int i, int j) {
+    for (int d = 0; d < 3; d++) {
+      double tmp = this.points[i * 3 + d];
+      this.points[i * 3 + d] = this.points[j * 3 + d];
+      this.points[j * 3 + d] = tmp;
+    }
+  }
+
+  private double boxDistanceSquared(int node, double x, double y, double z) {
+    int box = node * 6;
+    double dx = gap(this.boxes[box], this.boxes[box + 3], x);
+    double dy = gap(this.boxes[box + 1], this.boxes[box + 4], y);
+    double dz = gap(this.boxes[box + 2], this.boxes[box + 5], z);
+    return dx * dx + dy * dy + dz * dz;
+  }
+
+  private static double gap(double min, double max, double v) {
+    if (v < min) return min - v;
+    if (v > max) return v - max;
+    return 0.0;
+  }
+
+  private static double boxBoxDistanceSquared(RepresentativeIndex a, int nodeA,
+                                              RepresentativeIndex b, int nodeB) {
+    int boxA = nodeA * 6;
+    int boxB = nodeB * 6;
+    double total = 0.0;
+    for (int d = 0; d < 3; d++) {
+      double g = Math.max(0.0, Math.max(a.boxes[boxA + d] - b.boxes[boxB + 3 + d],
+                                        b.boxes[boxB + d] - a.boxes[boxA + 3 + d]));
+      total += g * g;
+    }
+    return total;
+  }
+
+  /**
+   * Return the smaller of <code>best</code> and the squared chord distance
+   * from the coordinate to the closest indexed point.
+   */
+  double minDistanceSquared(Coordinate coord, double best) {
+    if (this.numNodes == 0 || this.size() == 0)
+      return best;
+    return this.search(0, coord.getUnitX(), coord.getUnitY(), coord.getUnitZ(), best);
+  }
+
+  private double search(int node, double x, double y, double z, double best) {
+    if (this.lefts[node] < 0) {
+      for (int i = this.starts[node]; i < this.ends[node]; i++) {
+        double dx = this.points[i * 3] - x;
+        double dy = this.points[i * 3 + 1] - y;
+        double dz = this.points[i * 3 + 2] - z;
+        double dist = dx * dx + dy * dy + dz * dz;
+        if (dist < best)
+          best = dist;
+      }
+      return best;
+    }
+    int first = this.lefts[node];
+    int second = this.rights[node];
+    double firstBound = this.boxDistanceSquared(first, x, y, z);
+    double secondBound = this.boxDistanceSquared(second, x, y, z);
+    if (secondBound < firstBound) {
+      int tmp = first; first = second; second = tmp;
+      double tmpBound = firstBound; firstBound = secondBound; secondBound = tmpBound;
+    }
+    if (firstBound < best)
+      best = this.search(first, x, y, z, best);
+    if (secondBound < best)
+      best = this.search(second, x, y, z, best);
+    return best;
+  }
+
+  /**
+   * Return the smaller of <code>best</code> and the squared chord distance
+   * between the closest pair of points, one from each index.
+   */
+  static double minDistanceSquared(RepresentativeIndex a, RepresentativeIndex b,
+                                   double best) {
+    if (a.size() == 0 || b.size() == 0)
+      return best;
+    if (boxBoxDistanceSquared(a, 0, b, 0) >= best)
+      return best;
+    return search(a, 0, b, 0, best);
+  }
+
+  private static double search(RepresentativeIndex a, int nodeA,
+                               RepresentativeIndex b, int nodeB, double best) {
+    boolean leafA = a.lefts[nodeA] < 0;
+    boolean leafB = b.lefts[nodeB] < 0;
+    if (leafA && leafB) {
+      for (int i = a.starts[nodeA]; i < a.ends[nodeA]; i++) {
+        double x = a.points[i * 3];
+        double y = a.points[i * 3 + 1];
+        double z = a.points[i * 3 + 2];
+        for (int j = b.starts[nodeB]; j < b.ends[nodeB]; j++) {
+          double dx = b.points[j * 3] - x;
+          double dy = b.points[j * 3 + 1] - y;
+          double dz = b.points[j * 3 + 2] - z;
+          double dist = dx * dx + dy * dy + dz * dz;
+          if (dist < best)
+            best = dist;
+        }
+      }
+      return best;
+    }
+
+    // Split the node with more points (or the one that isn't a leaf).
+    boolean splitA = !leafA &&
+      (leafB || a.ends[nodeA] - a.starts[nodeA] >= b.ends[nodeB] - b.starts[nodeB]);
+    int first, second;
+    double firstBound, secondBound;
+    if (splitA) {
+      first = a.lefts[nodeA];
+      second = a.rights[nodeA];
+      firstBound = boxBoxDistanceSquared(a, first, b, nodeB);
+      secondBound = boxBoxDistanceSquared(a, second, b, nodeB);
+    } else {
+      first = b.lefts[nodeB];
+      second = b.rights[nodeB];
+      firstBound = boxBoxDistanceSquared(a, nodeA, b, first);
+      secondBound = boxBoxDistanceSquared(a, nodeA, b, second);
+    }
+    if (secondBound < firstBound) {
+      int tmp = first; first = second; second = tmp;
+      double tmpBound = firstBound; firstBound = secondBound; secondBound = tmpBound;
+    }
+    if (firstBound < best)
+      best = splitA ? search(a, first, b, nodeB, best) : search(a, nodeA, b, first, best);
+    if (secondBound < best)
+      best = splitA ? search(a, second, b, nodeB, best) : search(a, nodeA, b, second, best);
+    return best;
+  }
+}
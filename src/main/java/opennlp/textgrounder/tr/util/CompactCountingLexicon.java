@@ -0,0 +1,80 @@
+///////////////////////////////////////////////////////////////////////////////
+//  Copyright (C) 2012 Travis Brown, The University of Texas at Austin
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//  See the License for the specific language governing permissions and
+//  limitations under the License.
+///////////////////////////////////////////////////////////////////////////////
+package opennlp.textgrounder.tr.util;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import java.util.Arrays;
+
+/**
+ * A <code>CompactLexicon</code> that also counts how many times each entry
+ * has been passed to <code>getOrAdd</code>.
+ */
+public class CompactCountingLexicon extends CompactLexicon
+  implements CountingLexicon<String> {
+
+  private static final long serialVersionUID = 42L;
+
+  private transient int[] counts;
+
+  public CompactCountingLexicon(int capacity) {
+    super(capacity);
+    this.counts = new int[this.hashes.length];
+  }
+
+  public CompactCountingLexicon() {
+    this(2048);
+  }
+
+  public int getOrAdd(String entry) {
+    int index = super.getOrAdd(entry);
+    this.counts[index]++;
+    return index;
+  }
+
+  protected void ensureCapacity(int capacity) {
+    super.ensureCapacity(capacity);
+    // Null while the superclass constructor runs.
+    if (this.counts != null) {
+      this.counts = Arrays.copyOf(this.counts, capacity);
+    }
+  }
+
+  public int count(String entry) {
+    int index = this.get(entry);
+    return index < 0 ? 0 : this.counts[index];
+  }
+
+  public int countAtIndex(int index) {
+    if (index >= this.size) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + this.size);
+    }
+    return this.counts[index];
+  }
+
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    out.defaultWriteObject();
+    out.writeObject(Arrays.copyOf(this.counts, this.size));
+  }
+
+  private void readObject(ObjectInputStream in)
+    throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    this.counts = (int[]) in.readObject();
+  }
+}
@@ -0,0 +1,289 @@
+///////////////////////////////////////////////////////////////////////////////
+//  Copyright (C) 2012 Travis Brown, The University of Texas at Austin
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//  See the License for the specific language governing permissions and
+//  limitations under the License.
+///////////////////////////////////////////////////////////////////////////////
+package opennlp.textgrounder.tr.util;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A lexicon of strings that keeps its entries' characters end to end in a
+ * single array, and looks them up in an open-addressing table of entry
+ * indices, so there are no per-entry strings, boxed integers, or hash map
+ * entries.  Strings are made from the array when asked for with
+ * <code>atIndex</code>.
+ *
+ * Once it stops growing, the arrays are trimmed, and the lexicon is
+ * read-only (and can be read from several threads at once).  From then
+ * on, the string for an entry is made the first time it's asked for and
+ * kept, so <code>atIndex</code> returns the same instance every time.
+ * Only entries that are actually asked for get a string: the table of
+ * strings is itself only allocated on the first call, so a lexicon whose
+ * entries are only looked up by index costs nothing extra, while one read
+ * through <code>atIndex</code> (e.g. by a token cursor) costs a reference
+ * per entry plus a string per entry asked for, in exchange for not
+ * allocating a new string on every call.
+ */
+public class CompactLexicon implements Lexicon<String> {
+
+  private static final long serialVersionUID = 42L;
+
+  protected transient char[] chars;
+  protected transient int charCount;
+  /* Entry i is chars[starts[i]] to chars[starts[i + 1]]. */
+  protected transient int[] starts;
+  protected transient int[] hashes;
+  protected transient int size;
+  /* Entry index plus one for each slot, or zero for an empty slot. */
+  protected transient int[] table;
+  /* Strings already made for entries, once the lexicon stops growing;
+   * allocated by the first call to atIndex after that. */
+  protected transient volatile String[] forms;
+  protected boolean growing;
+
+  public CompactLexicon(int capacity) {
+    capacity = Math.max(capacity, 16);
+    this.chars = new char[capacity * 8];
+    this.starts = new int[capacity + 1];
+    this.hashes = new int[capacity];
+    this.table = new int[tableSize(capacity)];
+    this.growing = true;
+  }
+
+  public CompactLexicon() {
+    this(2048);
+  }
+
+  /* A power of two at least twice the capacity, to keep the load factor
+   * at or below one half. */
+  private static int tableSize(int capacity) {
+    int size = 16;
+    while (size < capacity * 2) {
+      size <<= 1;
+    }
+    return size;
+  }
+
+  private static int hash(String entry) {
+    int h = entry.hashCode() * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  /* The slot holding the entry, or the empty slot where it would go. */
+  protected int slot(String entry, int hash) {
+    int mask = this.table.length - 1;
+    int slot = hash & mask;
+    int index;
+    while ((index = this.table[slot] - 1) >= 0) {
+      if (this.hashes[index] == hash && this.equalsAt(index, entry)) {
+        return slot;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private boolean equalsAt(int index, String entry) {
+    int start = this.starts[index];
+    int length = this.starts[index + 1] - start;
+    if (length != entry.length()) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (this.chars[start + i] != entry.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public boolean contains(String entry) {
+    return this.get(entry) >= 0;
+  }
+
+  public int get(String entry) {
+    return this.table[this.slot(entry, hash(entry))] - 1;
+  }
+
+  public int getOrAdd(String entry) {
+    int hash = hash(entry);
+    int slot = this.slot(entry, hash);
+    int index = this.table[slot] - 1;
+    return index >= 0 ? index : this.add(entry, hash, slot);
+  }
+
+  /* Add an entry that isn't in the lexicon at the given (empty) slot. */
+  protected int add(String entry, int hash, int slot) {
+    if (!this.growing) {
+      throw new UnsupportedOperationException("Cannot add to a non-growing lexicon.");
+    }
+
+    int index = this.size;
+    if (index == this.hashes.length) {
+      this.ensureCapacity(Math.max(index * 2, 16));
+    }
+    if (this.charCount + entry.length() > this.chars.length) {
+      this.chars = Arrays.copyOf(this.chars,
+        Math.max(this.chars.length * 2, this.charCount + entry.length()));
+    }
+
+    entry.getChars(0, entry.length(), this.chars, this.charCount);
+    this.charCount += entry.length();
+    this.starts[index + 1] = this.charCount;
+    this.hashes[index] = hash;
+    this.table[slot] = index + 1;
+    this.size++;
+
+    if (this.size * 2 > this.table.length) {
+      this.rehash(this.table.length * 2);
+    }
+    return index;
+  }
+
+  /* Make room for the given number of entries. */
+  protected void ensureCapacity(int capacity) {
+    this.starts = Arrays.copyOf(this.starts, capacity + 1);
+    this.hashes = Arrays.copyOf(this.hashes, capacity);
+  }
+
+  private void rehash(int tableSize) {
+    int[] table = new int[tableSize];
+    int mask = tableSize - 1;
+    for (int i = 0; i < this.size; i++) {
+      int slot = this.hashes[i] & mask;
+      while (table[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      table[slot] = i + 1;
+    }
+    this.table = table;
+  }
+
+  public String atIndex(int index) {
+    if (index < 0 || index >= this.size) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + this.size);
+    }
+    if (this.growing) {
+      return this.makeString(index);
+    }
+    String[] forms = this.forms;
+    if (forms == null) {
+      forms = this.allocateForms();
+    }
+    // Two threads may both make the string; either one is kept.  Strings
+    // are immutable, so it's safe to hand them between threads this way.
+    String form = forms[index];
+    if (form == null) {
+      form = this.makeString(index);
+      forms[index] = form;
+    }
+    return form;
+  }
+
+  private synchronized String[] allocateForms() {
+    if (this.forms == null) {
+      this.forms = new String[this.size];
+    }
+    return this.forms;
+  }
+
+  private String makeString(int index) {
+    int start = this.starts[index];
+    return new String(this.chars, start, this.starts[index + 1] - start);
+  }
+
+  public int size() {
+    return this.size;
+  }
+
+  public boolean isGrowing() {
+    return this.growing;
+  }
+
+  public void stopGrowing() {
+    if (this.growing) {
+      this.trimToSize();
+      this.growing = false;
+    }
+  }
+
+  public void startGrowing() {
+    this.forms = null;
+    this.growing = true;
+  }
+
+  protected void trimToSize() {
+    this.chars = Arrays.copyOf(this.chars, this.charCount);
+    this.ensureCapacity(this.size);
+    this.rehash(tableSize(this.size));
+  }
+
+  public List<Integer> concatenate(Lexicon<String> other) {
+    List<Integer> conversions = new ArrayList<Integer>(other.size());
+    for (String entry : other) {
+      conversions.add(this.getOrAdd(entry));
+    }
+    return conversions;
+  }
+
+  public Iterator<String> iterator() {
+    return new Iterator<String>() {
+      private int index = 0;
+
+      public boolean hasNext() {
+        return this.index < CompactLexicon.this.size;
+      }
+
+      public String next() {
+        if (!this.hasNext()) {
+          throw new NoSuchElementException();
+        }
+        return CompactLexicon.this.atIndex(this.index++);
+      }
+
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    out.defaultWriteObject();
+    out.writeInt(this.size);
+    out.writeObject(Arrays.copyOf(this.chars, this.charCount));
+    out.writeObject(Arrays.copyOf(this.starts, this.size + 1));
+  }
+
+  private void readObject(ObjectInputStream in)
+    throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    this.size = in.readInt();
+    this.chars = (char[]) in.readObject();
+    this.charCount = this.chars.length;
+    this.starts = (int[]) in.readObject();
+    this.hashes = new int[this.size];
+    for (int i = 0; i < this.size; i++) {
+      this.hashes[i] = hash(this.makeString(i));
+    }
+    this.rehash(tableSize(this.size));
+  }
+}
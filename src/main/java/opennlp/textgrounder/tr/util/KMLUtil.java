@@ -38,7 +38,19 @@ public class KMLUtil {
   public static int SIDES = 10;
   public static int BARSCALE = 50000;
 
-  private final static DecimalFormat df = new DecimalFormat("#.####");
+  // DecimalFormat isn't thread-safe, and placemarks may be written on
+  // several threads at once (see ChunkedXMLOutput), so each thread gets
+  // its own.
+  private final static ThreadLocal<DecimalFormat> decimalFormat =
+    new ThreadLocal<DecimalFormat>() {
+      protected DecimalFormat initialValue() {
+        return new DecimalFormat("#.####");
+      }
+    };
+
+  private static DecimalFormat df() {
+    return decimalFormat.get();
+  }
 
   public static void writeWithCharacters(XMLStreamWriter w, String localName, String text)
     throws XMLStreamException {
@@ -173,7 +185,7 @@ public class KMLUtil {
     for (double currentRadian = startRadian; currentRadian >= startRadian - 2 * Math.PI; currentRadian -= radianUnit) {
       double lat = coord.getLatDegrees() + radius * Math.cos(currentRadian);
       double lon = coord.getLngDegrees() + radius * Math.sin(currentRadian);
-      w.writeCharacters(df.format(lon) + "," + df.format(lat) + "," + df.format(height) + "\n");
+      w.writeCharacters(df().format(lon) + "," + df().format(lat) + "," + df().format(height) + "\n");
     }
 
     w.writeEndElement(); // coordinates
@@ -183,10 +195,10 @@ public class KMLUtil {
     throws XMLStreamException {
     w.writeStartElement("Region");
     w.writeStartElement("LatLonAltBox");
-    KMLUtil.writeWithCharacters(w, "north", df.format(coord.getLatDegrees() + radius));
-    KMLUtil.writeWithCharacters(w, "south", df.format(coord.getLatDegrees() - radius));
-    KMLUtil.writeWithCharacters(w, "east", df.format(coord.getLngDegrees() + radius));
-    KMLUtil.writeWithCharacters(w, "west", df.format(coord.getLngDegrees() - radius));
+    KMLUtil.writeWithCharacters(w, "north", df().format(coord.getLatDegrees() + radius));
+    KMLUtil.writeWithCharacters(w, "south", df().format(coord.getLatDegrees() - radius));
+    KMLUtil.writeWithCharacters(w, "east", df().format(coord.getLngDegrees() + radius));
+    KMLUtil.writeWithCharacters(w, "west", df().format(coord.getLngDegrees() - radius));
     w.writeEndElement(); // LatLonAltBox
     w.writeStartElement("Lod");
     KMLUtil.writeWithCharacters(w, "minLodPixels", Integer.toString(KMLUtil.MIN_LOD_PIXELS));
@@ -214,7 +226,7 @@ public class KMLUtil {
         KMLUtil.writeRegion(w, coord, radius);
         KMLUtil.writeWithCharacters(w, "styleUrl", "#bar");
         w.writeStartElement("Point");
-        KMLUtil.writeWithCharacters(w, "coordinates", df.format(coord.getLngDegrees()) + "," + df.format(coord.getLatDegrees()));
+        KMLUtil.writeWithCharacters(w, "coordinates", df().format(coord.getLngDegrees()) + "," + df().format(coord.getLatDegrees()));
         w.writeEndElement(); // Point
         w.writeEndElement(); // Placemark
     }
@@ -235,7 +247,7 @@ public class KMLUtil {
         KMLUtil.writeWithCharacters(w, "end", (timeIndex + 5) + "");
         w.writeEndElement(); // TimeSpan
         w.writeStartElement("Point");
-        KMLUtil.writeWithCharacters(w, "coordinates", df.format(coord.getLngDegrees()) + "," + df.format(coord.getLatDegrees()));
+        KMLUtil.writeWithCharacters(w, "coordinates", df().format(coord.getLngDegrees()) + "," + df().format(coord.getLatDegrees()));
         w.writeEndElement(); // Point
         w.writeEndElement(); // Placemark
     }
@@ -248,7 +260,7 @@ public class KMLUtil {
         if(styleUrl != null && styleUrl.length() > 0)
             KMLUtil.writeWithCharacters(w, "styleUrl", "#"+styleUrl);
         w.writeStartElement("Point");
-        KMLUtil.writeWithCharacters(w, "coordinates", df.format(coord.getLngDegrees()) + "," + df.format(coord.getLatDegrees()));
+        KMLUtil.writeWithCharacters(w, "coordinates", df().format(coord.getLngDegrees()) + "," + df().format(coord.getLatDegrees()));
         w.writeEndElement(); // Point
         w.writeEndElement(); // Placemark
     }
@@ -269,8 +281,8 @@ public class KMLUtil {
         KMLUtil.writeWithCharacters(w, "altitudeMode", "clampToGround");
         KMLUtil.writeWithCharacters(w, "gx:drawOrder", "0");
         w.writeStartElement("coordinates");
-        w.writeCharacters(df.format(coord1.getLngDegrees())+","+df.format(coord1.getLatDegrees())+",0\n");
-        w.writeCharacters(df.format(coord2.getLngDegrees())+","+df.format(coord2.getLatDegrees())+",0\n");
+        w.writeCharacters(df().format(coord1.getLngDegrees())+","+df().format(coord1.getLatDegrees())+",0\n");
+        w.writeCharacters(df().format(coord2.getLngDegrees())+","+df().format(coord2.getLatDegrees())+",0\n");
         w.writeEndElement(); // coordinates
         w.writeEndElement(); // LineString
         w.writeEndElement(); // Placemark
@@ -290,15 +302,15 @@ public class KMLUtil {
         double dist = coord1.distanceInKm(coord2);
         double lngDiff = coord2.getLngDegrees() - coord1.getLngDegrees();
         double latDiff = coord2.getLatDegrees() - coord1.getLatDegrees();
-        w.writeCharacters(df.format(coord1.getLngDegrees())+","+df.format(coord1.getLatDegrees())+",0\n");
+        w.writeCharacters(df().format(coord1.getLngDegrees())+","+df().format(coord1.getLatDegrees())+",0\n");
         for(double i = .1; i <= .9; i += .1) {
-            w.writeCharacters(df.format(coord1.getLngDegrees()+lngDiff*i)+","
-                              +df.format(coord1.getLatDegrees()+latDiff*i)+","
+            w.writeCharacters(df().format(coord1.getLngDegrees()+lngDiff*i)+","
+                              +df().format(coord1.getLatDegrees()+latDiff*i)+","
                               +(dist*dist)*.05/**(.5-Math.abs(.5-i))*/+"\n");
         }
-        //w.writeCharacters(df.format(coord1.getLngDegrees()+lngDiff*.9)+","
-        //                  +df.format(coord1.getLatDegrees()+latDiff*.9)+","+(dist*20)+"\n");
-        w.writeCharacters(df.format(coord2.getLngDegrees())+","+df.format(coord2.getLatDegrees())+",0");
+        //w.writeCharacters(df().format(coord1.getLngDegrees()+lngDiff*.9)+","
+        //                  +df().format(coord1.getLatDegrees()+latDiff*.9)+","+(dist*20)+"\n");
+        w.writeCharacters(df().format(coord2.getLngDegrees())+","+df().format(coord2.getLatDegrees())+",0");
         w.writeEndElement(); // coordinates
         w.writeEndElement(); // LineString
         w.writeEndElement(); // Placemark
@@ -312,7 +324,7 @@ public class KMLUtil {
     KMLUtil.writeRegion(w, coord, radius);
     KMLUtil.writeWithCharacters(w, "styleUrl", "#bar");
     w.writeStartElement("Point");
-    KMLUtil.writeWithCharacters(w, "coordinates", df.format(coord.getLngDegrees()) + "," + df.format(coord.getLatDegrees()));
+    KMLUtil.writeWithCharacters(w, "coordinates", df().format(coord.getLngDegrees()) + "," + df().format(coord.getLatDegrees()));
     w.writeEndElement(); // Point
     w.writeEndElement(); // Placemark*/
 
@@ -348,7 +360,7 @@ public class KMLUtil {
     KMLUtil.writeRegion(w, coord, radius);
     KMLUtil.writeWithCharacters(w, "styleUrl", "#context");
     w.writeStartElement("Point");
-    KMLUtil.writeWithCharacters(w, "coordinates", df.format(coord.getLngDegrees()) + "," + df.format(coord.getLatDegrees()));
+    KMLUtil.writeWithCharacters(w, "coordinates", df().format(coord.getLngDegrees()) + "," + df().format(coord.getLatDegrees()));
     w.writeEndElement(); // Point
     w.writeEndElement(); // Placemark
   }
@@ -371,7 +383,7 @@ public class KMLUtil {
     w.writeStartElement("Point");
     KMLUtil.writeWithCharacters(w, "altitudeMode", "relativeToGround");
     KMLUtil.writeWithCharacters(w, "coordinates",
-            df.format(coord.getLngDegrees()) + "," + df.format(coord.getLatDegrees()) + "," + df.format(height));
+            df().format(coord.getLngDegrees()) + "," + df().format(coord.getLatDegrees()) + "," + df().format(height));
     w.writeEndElement(); // Point
     w.writeEndElement(); // Placemark
   }
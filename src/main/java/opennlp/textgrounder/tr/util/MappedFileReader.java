@@ -0,0 +1,109 @@
+///////////////////////////////////////////////////////////////////////////////
+//  Copyright (C) 2012 Travis Brown, The University of Texas at Austin
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//  See the License for the specific language governing permissions and
+//  limitations under the License.
+///////////////////////////////////////////////////////////////////////////////
+package opennlp.textgrounder.tr.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * A reader over a memory-mapped file, decoding straight from the mapping
+ * instead of copying the bytes through a stream buffer first.  Like
+ * <code>FileReader</code>, it uses the platform's default charset unless
+ * told otherwise, and replaces malformed input.  Files must be under 2GB.
+ */
+public class MappedFileReader extends Reader {
+  private static final int BUFFER_SIZE = 8192;
+
+  private final ByteBuffer bytes;
+  private final CharsetDecoder decoder;
+  private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+  private boolean decoded = false;
+  private boolean finished = false;
+
+  public MappedFileReader(File file) throws IOException {
+    this(file, Charset.defaultCharset());
+  }
+
+  public MappedFileReader(File file, Charset charset) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      this.bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } finally {
+      raf.close();
+    }
+    this.decoder = charset.newDecoder()
+      .onMalformedInput(CodingErrorAction.REPLACE)
+      .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    this.chars.flip();
+  }
+
+  @Override
+  public int read(char[] cbuf, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (!this.chars.hasRemaining() && !this.fill()) {
+      return -1;
+    }
+    int n = Math.min(len, this.chars.remaining());
+    this.chars.get(cbuf, off, n);
+    return n;
+  }
+
+  /* Decode the next run of characters into the buffer, returning false if
+   * there are none left. */
+  private boolean fill() throws IOException {
+    this.chars.clear();
+    while (this.chars.position() == 0 && !this.finished) {
+      CoderResult result;
+      if (!this.decoded) {
+        result = this.decoder.decode(this.bytes, this.chars, true);
+        if (result.isUnderflow()) {
+          this.decoded = true;
+        }
+      } else {
+        result = this.decoder.flush(this.chars);
+        if (result.isUnderflow()) {
+          this.finished = true;
+        }
+      }
+      if (result.isError()) {
+        result.throwException();
+      }
+    }
+    this.chars.flip();
+    return this.chars.hasRemaining();
+  }
+
+  @Override
+  public void close() {
+    // The mapping is released when the buffer is collected.
+    this.finished = true;
+    this.chars.clear();
+    this.chars.flip();
+  }
+}
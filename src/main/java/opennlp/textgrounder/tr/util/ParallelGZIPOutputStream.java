@@ -0,0 +1,215 @@
+///////////////////////////////////////////////////////////////////////////////
+//  Copyright (C) 2012 Travis Brown, The University of Texas at Austin
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//  See the License for the specific language governing permissions and
+//  limitations under the License.
+///////////////////////////////////////////////////////////////////////////////
+package opennlp.textgrounder.tr.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * An output stream that writes GZIP, like <code>GZIPOutputStream</code>,
+ * but compresses on several threads.
+ *
+ * The data is cut into blocks that are compressed independently, each
+ * ending with a sync flush so that it ends on a byte boundary without
+ * ending the stream.  The compressed blocks can then simply be written out
+ * one after another to form a single deflate stream (this is what pigz
+ * does with its <code>--independent</code> option), so the result is an
+ * ordinary single-member GZIP file that any reader can handle.  Matches
+ * can't reach back across block boundaries, which costs a little in
+ * compression.  Only a few blocks are kept in flight at once, so memory
+ * use is bounded no matter how much is written.
+ */
+public class ParallelGZIPOutputStream extends FilterOutputStream {
+  public static final int DEFAULT_BLOCK_SIZE = 128 * 1024;
+
+  private static final byte[] HEADER = {
+    (byte) 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0
+  };
+
+  private final ExecutorService executor;
+  private final int maxPending;
+  private final int level;
+  private final int blockSize;
+  private final LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+  private final CRC32 crc = new CRC32();
+
+  private byte[] block;
+  private int blockLength = 0;
+  private long totalLength = 0;
+  private boolean closed = false;
+
+  public ParallelGZIPOutputStream(OutputStream out) throws IOException {
+    this(out, Runtime.getRuntime().availableProcessors());
+  }
+
+  public ParallelGZIPOutputStream(OutputStream out, int threads) throws IOException {
+    this(out, threads, DEFAULT_BLOCK_SIZE, Deflater.DEFAULT_COMPRESSION);
+  }
+
+  public ParallelGZIPOutputStream(OutputStream out, int threads, int blockSize, int level)
+    throws IOException {
+    super(out);
+    // Daemon threads, so that a stream that is never closed doesn't keep
+    // the JVM from exiting.
+    this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "ParallelGZIPOutputStream");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    this.maxPending = 2 * threads;
+    this.blockSize = blockSize;
+    this.level = level;
+    this.block = new byte[blockSize];
+    this.out.write(HEADER);
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    this.block[this.blockLength++] = (byte) b;
+    if (this.blockLength == this.blockSize) {
+      this.submitBlock();
+    }
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    while (len > 0) {
+      int n = Math.min(len, this.blockSize - this.blockLength);
+      System.arraycopy(b, off, this.block, this.blockLength, n);
+      this.blockLength += n;
+      off += n;
+      len -= n;
+      if (this.blockLength == this.blockSize) {
+        this.submitBlock();
+      }
+    }
+  }
+
+  /**
+   * Compress whatever has been written so far and write it out.  This
+   * waits for all the blocks in flight, so calling it often defeats the
+   * purpose.
+   */
+  @Override
+  public void flush() throws IOException {
+    if (this.blockLength > 0) {
+      this.submitBlock();
+    }
+    while (!this.pending.isEmpty()) {
+      this.writeCompressed(this.pending.removeFirst());
+    }
+    this.out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (this.closed) {
+      return;
+    }
+    this.closed = true;
+    try {
+      this.flush();
+
+      // An empty final block ends the deflate stream.
+      Deflater deflater = new Deflater(this.level, true);
+      try {
+        deflater.finish();
+        byte[] buf = new byte[64];
+        while (!deflater.finished()) {
+          int n = deflater.deflate(buf);
+          this.out.write(buf, 0, n);
+        }
+      } finally {
+        deflater.end();
+      }
+
+      this.writeInt((int) this.crc.getValue());
+      this.writeInt((int) this.totalLength);
+    } finally {
+      this.executor.shutdownNow();
+      this.out.close();
+    }
+  }
+
+  private void submitBlock() throws IOException {
+    final byte[] data = this.block;
+    final int length = this.blockLength;
+    this.crc.update(data, 0, length);
+    this.totalLength += length;
+    this.pending.add(this.executor.submit(new Callable<byte[]>() {
+      public byte[] call() {
+        return deflate(data, length, ParallelGZIPOutputStream.this.level);
+      }
+    }));
+    this.block = new byte[this.blockSize];
+    this.blockLength = 0;
+
+    while (this.pending.size() > this.maxPending) {
+      this.writeCompressed(this.pending.removeFirst());
+    }
+  }
+
+  private void writeCompressed(Future<byte[]> future) throws IOException {
+    try {
+      this.out.write(future.get());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause());
+    }
+  }
+
+  /* Little-endian, as GZIP wants. */
+  private void writeInt(int value) throws IOException {
+    this.out.write(value & 0xff);
+    this.out.write((value >>> 8) & 0xff);
+    this.out.write((value >>> 16) & 0xff);
+    this.out.write((value >>> 24) & 0xff);
+  }
+
+  private static byte[] deflate(byte[] data, int length, int level) {
+    Deflater deflater = new Deflater(level, true);
+    try {
+      deflater.setInput(data, 0, length);
+      ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 64);
+      byte[] buf = new byte[length + (length >> 10) + 64];
+      int n;
+      do {
+        n = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+        out.write(buf, 0, n);
+      } while (n == buf.length);
+      return out.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+}
@@ -18,11 +18,16 @@
 
 package opennlp.textgrounder.geolocate
 
+import java.io.DataOutput
+import java.nio.ByteBuffer
+
 import opennlp.textgrounder.util.distances.spheredist
 import opennlp.textgrounder.util.distances.SphereCoord
 import opennlp.textgrounder.util.experiment._
 import opennlp.textgrounder.util.printutil.{errprint, warning}
 
+import opennlp.textgrounder.worddist.WordDist.memoizer.Word
+
 class CombinedModelCellGrid(table: SphereDocumentTable,
                             models: Seq[SphereCellGrid])
     extends SphereCellGrid(table) {
@@ -67,6 +72,19 @@ class CombinedModelCellGrid(table: SphereDocumentTable,
     num_non_empty_cells = models.map(_.num_non_empty_cells).sum
   }
 
+  override def write_snapshot(out: DataOutput) {
+    for (model <- models) {
+      model.write_snapshot(out)
+    }
+  }
+
+  override def restore_snapshot(in: ByteBuffer, words: Array[Word]) {
+    for (model <- models) {
+      model.restore_snapshot(in, words)
+    }
+    num_non_empty_cells = models.map(_.num_non_empty_cells).sum
+  }
+
   def iter_nonempty_cells(nonempty_word_dist: Boolean = false): Iterable[SphereCell] = {
     models.map(_.iter_nonempty_cells(nonempty_word_dist))
           .reduce(_ ++ _)
@@ -144,6 +144,9 @@ class GenerateKMLDriver extends
     params.split_kml_words = params.kml_words.split(',')
   }
 
+  override protected def grid_snapshot_key =
+    super.grid_snapshot_key :+ params.kml_words
+
   override protected def initialize_word_dist_constructor(
       factory: WordDistFactory) = {
     if (num_ngrams > 1)
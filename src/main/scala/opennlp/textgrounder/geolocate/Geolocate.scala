@@ -36,7 +36,7 @@ import opennlp.textgrounder.util.printutil.errprint
 import opennlp.textgrounder.gridlocate._
 import GridLocateDriver.Debug._
 
-import opennlp.textgrounder.worddist.{WordDist,WordDistFactory}
+import opennlp.textgrounder.worddist.{UnigramWordDist,WordDist,WordDistFactory}
 import opennlp.textgrounder.worddist.WordDist.memoizer._
 
 /*
@@ -204,6 +204,76 @@ class SphereAverageCellProbabilityStrategy(
     new SphereCellDistFactory(lru_cache_size)
 }
 
+/**
+ * Strategy that locates a document using the training documents nearest
+ * to it, rather than by scoring cells.  The nearest documents are found by
+ * cosine similarity using an inverted index (see `DocumentIndex`); if
+ * `kl_rerank` is set, a larger set of candidates is found that way and then
+ * reranked by (partial) KL-divergence against the candidates' smoothed
+ * distributions.  Cells are ranked by the total similarity of the nearest
+ * documents they contain, followed by the remaining non-empty cells.  With
+ * '--coord-strategy=mean-shift', the coordinates of the nearest documents
+ * themselves are used in place of cell centers.
+ *
+ * @param num_neighbors Number of nearest documents to find.
+ */
+class NearestNeighborGeolocateDocumentStrategy(
+  sphere_grid: SphereCellGrid,
+  index: DocumentIndex[SphereDocument],
+  num_neighbors: Int,
+  kl_rerank: Boolean
+) extends GeolocateDocumentStrategy(sphere_grid)
+    with PointVotingStrategy[SphereCoord] {
+  // How many more candidates to find by cosine similarity when reranking.
+  val kl_candidate_factor = 5
+
+  // The nearest documents for the last distribution seen, which normally
+  // gets passed to `voting_points` right after `return_ranked_cells`.
+  protected var last_word_dist: WordDist = null
+  protected var last_neighbors: Seq[(SphereDocument, Double)] = Seq()
+
+  /**
+   * Return the nearest training documents to the given distribution, best
+   * first, paired with a positive weight (the cosine similarity, or
+   * exp(-KL-divergence) when reranking).
+   */
+  def nearest_documents(gen_word_dist: WordDist) = {
+    if (!(gen_word_dist eq last_word_dist)) {
+      val word_dist = UnigramStrategy.check_unigram_dist(gen_word_dist)
+      val num_candidates =
+        if (kl_rerank) num_neighbors * kl_candidate_factor else num_neighbors
+      val candidates =
+        for ((i, sim) <- index.nearest_documents(word_dist, num_candidates))
+          yield (index.docs(i), sim)
+      last_neighbors =
+        if (!kl_rerank) candidates.toSeq
+        else {
+          val cache = word_dist.get_kl_divergence_cache()
+          (for ((doc, _) <- candidates)
+            yield (doc, word_dist.kl_divergence(cache, doc.dist, partial = true))).
+            sortWith(_._2 < _._2).take(num_neighbors).
+            map { case (doc, kldiv) => (doc, exp(-kldiv)) }.toSeq
+        }
+      last_word_dist = gen_word_dist
+    }
+    last_neighbors
+  }
+
+  def return_ranked_cells(word_dist: WordDist) = {
+    val votes = doublemap[SphereCell]()
+    for ((doc, weight) <- nearest_documents(word_dist)) {
+      val cell = sphere_grid.find_best_cell_for_coord(doc.coord, false)
+      if (cell != null)
+        votes(cell) += weight
+    }
+    merge_numbered_sequences_uniquely(votes.toSeq.sortWith(_._2 > _._2),
+      for (cell <- sphere_grid.iter_nonempty_cells()) yield (cell, 0.0))
+  }
+
+  def voting_points(word_dist: WordDist) =
+    nearest_documents(word_dist).map(_._1.coord)
+}
+
 /////////////////////////////////////////////////////////////////////////////
 //                                  Main code                              //
 /////////////////////////////////////////////////////////////////////////////
@@ -326,6 +396,11 @@ abstract class GeolocateDriver extends GridLocateDriver {
     super.handle_parameters()
   }
 
+  override protected def grid_snapshot_key = super.grid_snapshot_key ++ Seq(
+    degrees_per_cell, params.width_of_multi_cell, params.kd_tree,
+    params.kd_bucket_size, params.kd_split_method, params.kd_use_backoff,
+    params.kd_interpolate_weight, params.combined_kd_grid)
+
   protected def initialize_document_table(word_dist_factory: WordDistFactory) = {
     new SphereDocumentTable(this, word_dist_factory)
   }
@@ -412,7 +487,11 @@ file as a document to evaluate.""")
         "naive-bayes-with-baseline" ->
           Seq("nb-base"),
         "naive-bayes-no-baseline" ->
-          Seq("nb-nobase")),
+          Seq("nb-nobase"),
+        "nearest-neighbor-cosine-similarity" ->
+          Seq("nearest-neighbor-cossim", "knn-cossim", "knn"),
+        "nearest-neighbor-kl-divergence" ->
+          Seq("nearest-neighbor-kldiv", "knn-kldiv", "knn-kl")),
       help = """Strategy/strategies to use for geolocation.
 'baseline' means just use the baseline strategy (see --baseline-strategy).
 
@@ -438,6 +517,18 @@ by assuming that the words of the test document are independent of each
 other, if we are using a unigram word distribution).  The "baseline" is
 currently 
 
+'nearest-neighbor-cosine-similarity' (or 'knn') doesn't score cells but
+finds the training documents most similar to the document by (unsmoothed)
+cosine similarity, using an inverted index, and ranks cells by the total
+similarity of those documents in them; with '--coord-strategy=mean-shift',
+the documents' own coordinates are used in place of cell centers.  The
+number of documents is given by '--num-nearest-neighbors'.  This requires
+keeping all training documents in memory.
+
+'nearest-neighbor-kl-divergence' (or 'knn-kl') is similar but reranks a
+larger set of candidates found by cosine similarity using the partial KL
+divergence.
+
 Default is 'partial-kl-divergence'.
 
 NOTE: Multiple --strategy options can be given, and each strategy will
@@ -477,6 +568,14 @@ Default '%default'.""")
 (see '--coord-strategy').  For this value of K, we choose the K best cells
 and then apply the mean-shift algorithm to the central points of those cells.
 
+Default '%default'.""")
+
+  var num_nearest_neighbors =
+    ap.option[Int]("num-nearest-neighbors", "nnn",
+      default = 20,
+      help = """Number of nearest training documents to find when using a
+'nearest-neighbor-*' strategy (see '--strategy').
+
 Default '%default'.""")
 
   var mean_shift_window =
@@ -504,6 +603,17 @@ Default '%default'.""")
 
 Default '%default'.""")
 
+  var prediction_file =
+    ap.option[String]("prediction-file", "pf",
+      metavar = "FILE",
+      help = """File to write the prediction for each evaluated document to:
+the true and predicted coordinates, the top-ranked cells (as many as
+'--num-top-cells-to-output') with their scores, and the nearest-neighbor
+cells.  The file is binary and indexed by document, and can be given to the
+toponym resolvers in place of the log file.  If more than one strategy is
+given, the strategy name is appended to the file name for each.  Only
+works with '--coord-strategy=top-ranked'.""")
+
   var baseline_strategy =
     ap.multiOption[String]("baseline-strategy", "bs",
       default = Seq("internal-link"),
@@ -569,10 +679,19 @@ abstract class GeolocateDocumentTypeDriver extends GeolocateDriver {
           // the way we construct the training-document distributions.
           param_error("Can't currently mix *-most-common-toponym baseline strategy with other strategies")
         }
+        // These look up training documents by name, which a grid restored
+        // from a snapshot doesn't have.
+        if (params.grid_snapshot_dir != null)
+          param_error("Can't use *-most-common-toponym baseline strategy with --grid-snapshot-dir")
         params.preserve_case_words = true
       }
     }
 
+    if (uses_nearest_neighbors && params.grid_snapshot_dir != null) {
+      // A grid restored from a snapshot has no training documents to index.
+      param_error("Can't use nearest-neighbor strategies with --grid-snapshot-dir")
+    }
+
     if (params.eval_format == "raw-text") {
       // FIXME!!!!
       param_error("Raw-text reading not implemented yet")
@@ -583,8 +702,31 @@ abstract class GeolocateDocumentTypeDriver extends GeolocateDriver {
         param_error("--eval-file should not be given when --eval-format=internal")
     } else
       need_seq(params.eval_file, "eval-file", "evaluation file(s)")
+
+    if (params.prediction_file != null &&
+        (params.coord_strategy != "top-ranked" ||
+         params.eval_format == "pcl-travel"))
+      param_error("--prediction-file only works with --coord-strategy=top-ranked, and not with --eval-format=pcl-travel")
+  }
+
+  def uses_nearest_neighbors =
+    params.strategy.exists(_.startsWith("nearest-neighbor-"))
+
+  override protected def initialize_document_table(
+      word_dist_factory: WordDistFactory) = {
+    val table = super.initialize_document_table(word_dist_factory)
+    table.keep_training_documents = uses_nearest_neighbors
+    table
   }
 
+  /**
+   * Index of the training documents for the nearest-neighbor strategies,
+   * shared by all strategy objects.
+   */
+  lazy val nearest_document_index =
+    new DocumentIndex(
+      document_table.documents_by_split("training").filter(_.has_coord))
+
   /**
    * Set everything up for document geolocation.  Create and save a
    * sequence of strategy objects, used by us and by the Hadoop interface,
@@ -592,6 +734,16 @@ abstract class GeolocateDocumentTypeDriver extends GeolocateDriver {
    */
   override def setup_for_run() {
     super.setup_for_run()
+    strategies = create_strategies()
+  }
+
+  /**
+   * Create a new sequence of (name, strategy) pairs for the strategies given
+   * by '--strategy'.  Some strategy objects keep per-document state (e.g.
+   * the KL-divergence cache), so each thread that evaluates documents
+   * concurrently needs its own set.
+   */
+  def create_strategies() = {
     val strats_unflat = (
       for (stratname <- params.strategy) yield {
         if (stratname == "baseline") {
@@ -647,6 +799,14 @@ abstract class GeolocateDocumentTypeDriver extends GeolocateDriver {
               case "symmetric-partial-kl-divergence" =>
                 new KLDivergenceStrategy[SphereCell, SphereCellGrid](cell_grid, symmetric = true,
                   partial = true)
+              case "nearest-neighbor-cosine-similarity" =>
+                new NearestNeighborGeolocateDocumentStrategy(cell_grid,
+                  nearest_document_index, params.num_nearest_neighbors,
+                  kl_rerank = false)
+              case "nearest-neighbor-kl-divergence" =>
+                new NearestNeighborGeolocateDocumentStrategy(cell_grid,
+                  nearest_document_index, params.num_nearest_neighbors,
+                  kl_rerank = true)
               case "none" =>
                 null
             }
@@ -656,7 +816,7 @@ abstract class GeolocateDocumentTypeDriver extends GeolocateDriver {
             Seq()
         }
       })
-    strategies = strats_unflat reduce (_ ++ _)
+    strats_unflat reduce (_ ++ _)
   }
 
   /**
@@ -677,8 +837,15 @@ abstract class GeolocateDocumentTypeDriver extends GeolocateDriver {
     // Generate reader object
     if (params.eval_format == "pcl-travel")
       new PCLTravelGeolocateDocumentEvaluator(strategy, stratname, this)
-    else if (params.coord_strategy == "top-ranked")
-      new RankedSphereCellGridEvaluator(strategy, stratname, this)
+    else if (params.coord_strategy == "top-ranked") {
+      val prediction_file =
+        if (params.prediction_file == null || strategies.length == 1)
+          params.prediction_file
+        else
+          "%s.%s" format (params.prediction_file, stratname.replace(' ', '-'))
+      new RankedSphereCellGridEvaluator(strategy, stratname, this,
+        prediction_file)
+    }
     else
       new MeanShiftSphereCellGridEvaluator(strategy, stratname, this,
         params.k_best, params.mean_shift_window,
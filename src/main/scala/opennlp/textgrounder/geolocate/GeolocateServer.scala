@@ -0,0 +1,415 @@
+///////////////////////////////////////////////////////////////////////////////
+//  GeolocateServer.scala
+//
+//  Copyright (C) 2012 Ben Wing, The University of Texas at Austin
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//  See the License for the specific language governing permissions and
+//  limitations under the License.
+///////////////////////////////////////////////////////////////////////////////
+
+package opennlp.textgrounder.geolocate
+
+import java.io._
+import java.net.{InetAddress, ServerSocket}
+import java.util.concurrent.LinkedBlockingQueue
+
+import opennlp.textgrounder.util.argparser._
+import opennlp.textgrounder.util.distances._
+import opennlp.textgrounder.util.experiment._
+import opennlp.textgrounder.util.metrics
+import opennlp.textgrounder.util.printutil.{errprint, warning}
+import opennlp.textgrounder.util.textutil.split_text_into_words
+
+import opennlp.textgrounder.gridlocate._
+
+
+/*
+
+A long-running server mode for document geolocation.  The corpus is read,
+the cell grid built and all cell distributions finished once, at startup,
+exactly as for GeolocateDocumentApp; after that, documents to geolocate are
+read one per line, either from standard input or from clients connecting
+to a socket on the local host, and answered one per line.
+
+Request format (fields separated by TAB):
+
+  ID  text    RAW TEXT OF THE DOCUMENT
+  ID  counts  WORD:COUNT WORD:COUNT ...
+
+Response format:
+
+  ID  LAT,LONG  LAT,LONG:SCORE  LAT,LONG:SCORE ...
+
+where the first coordinate is the predicted location (according to
+'--coord-strategy') and the following items are the centers and scores of
+the top-ranked cells (see '--num-top-cells-to-output').  A request that
+can't be handled gets the response "ID  ERROR  MESSAGE".  The special
+request "!stats" returns the number of requests answered and latency
+percentiles in milliseconds, and "!quit" closes the connection (or, when
+reading standard input, shuts down the server).
+
+*/
+
+class GeolocateServerParameters(
+  parser: ArgParser = null
+) extends GeolocateDocumentParameters(parser) {
+  var server_port =
+    ap.option[Int]("server-port",
+      default = 0,
+      metavar = "PORT",
+      help = """Port on the local host to listen on for requests.  If 0,
+read requests from standard input and write responses to standard output.
+Default %default.""")
+
+  var server_threads =
+    ap.option[Int]("server-threads",
+      default = Runtime.getRuntime.availableProcessors,
+      metavar = "NUM",
+      help = """Number of worker threads answering requests.  Default is the
+number of processors (%default).""")
+
+  var server_batch_size =
+    ap.option[Int]("server-batch-size",
+      default = 16,
+      metavar = "NUM",
+      help = """Maximum number of queued requests a worker takes at a time.
+A batch is answered against a single consistent version of the model.
+Default %default.""")
+}
+
+/**
+ * Record of the most recent request latencies, from which percentiles
+ * are computed on demand.
+ */
+class LatencyRecorder(size: Int = 10000) {
+  protected val latencies = new Array[Long](size)
+  protected var next = 0
+  var num_recorded = 0L
+
+  def record(nanos: Long) {
+    synchronized {
+      latencies(next) = nanos
+      next = (next + 1) % size
+      num_recorded += 1
+    }
+  }
+
+  /**
+   * Return the given percentiles (between 0 and 100) of the recorded
+   * latencies, in milliseconds.
+   */
+  def percentiles(pcts: Seq[Double]) = {
+    val sorted = synchronized {
+      latencies.take((num_recorded min size).toInt)
+    }.sorted
+    for (pct <- pcts) yield {
+      if (sorted.length == 0) 0.0
+      else {
+        val index = ((pct / 100.0 * sorted.length).ceil.toInt - 1) max 0
+        sorted(index min (sorted.length - 1)) / 1000000.0
+      }
+    }
+  }
+
+  override def toString = {
+    val Seq(p50, p90, p99, max) = percentiles(Seq(50, 90, 99, 100))
+    "%s requests, latency p50=%.2fms p90=%.2fms p99=%.2fms max=%.2fms" format (
+      num_recorded, p50, p90, p99, max)
+  }
+}
+
+class GeolocateServerDriver extends
+    GeolocateDocumentTypeDriver with StandaloneExperimentDriverStats {
+  override type TParam = GeolocateServerParameters
+
+  /**
+   * A client connection: where to send responses, and how many of the
+   * requests read from it haven't been answered yet, so that the
+   * connection isn't closed while workers still have responses to send.
+   */
+  class ServerConnection(val out: PrintWriter) {
+    private var outstanding = 0
+
+    def request_queued() = synchronized { outstanding += 1 }
+
+    def request_answered() = synchronized {
+      outstanding -= 1
+      if (outstanding == 0)
+        notifyAll()
+    }
+
+    /** Wait until every queued request has been answered. */
+    def await_responses() = synchronized {
+      while (outstanding > 0)
+        wait()
+    }
+  }
+
+  /**
+   * A request read from a client, along with the connection to send the
+   * response to.  A request with a null `id` tells a worker to exit.
+   */
+  case class ServerRequest(id: String, format: String, payload: String,
+    conn: ServerConnection, start_nanos: Long)
+
+  val request_queue = new LinkedBlockingQueue[ServerRequest]
+  val latencies = new LatencyRecorder
+
+  override def handle_parameters() {
+    super.handle_parameters()
+    if (params.server_threads <= 0)
+      param_error("Value for --server-threads must be positive")
+    if (params.server_batch_size <= 0)
+      param_error("Value for --server-batch-size must be positive")
+  }
+
+  /**
+   * Create the word distribution for a request.  Only words already known
+   * to the model are kept: a word never seen in training can't match any
+   * cell, and memoizing it would make the shared memoizer grow with every
+   * new word a client sends.  Since the memoizer is only looked up, not
+   * modified, requests are handled without any lock beyond the read lock
+   * on the model that the caller holds.
+   */
+  def create_request_word_dist(request: ServerRequest) = {
+    val dist = word_dist_factory.create_word_dist()
+    request.format match {
+      case "text" =>
+        dist.add_document(split_text_into_words(request.payload,
+          ignore_punc = true), known_words_only = true)
+      case "counts" => {
+        val wordcounts = request.payload.split(" ").filter(_ != "")
+        val keys = new Array[String](wordcounts.length)
+        val values = new Array[Int](wordcounts.length)
+        for ((wordcount, i) <- wordcounts.zipWithIndex) {
+          val colon = wordcount.lastIndexOf(':')
+          if (colon <= 0)
+            throw new IllegalArgumentException(
+              "Items must be of the form WORD:COUNT, but %s seen" format
+                wordcount)
+          keys(i) = DistDocument.decode_word_for_counts_field(
+            wordcount.substring(0, colon))
+          values(i) = wordcount.substring(colon + 1).toInt
+        }
+        dist.add_keys_values(keys, values, keys.length,
+          known_words_only = true)
+      }
+      case _ =>
+        throw new IllegalArgumentException(
+          "Unknown request format %s; should be 'text' or 'counts'" format
+            request.format)
+    }
+    dist.finish_before_global()
+    dist.finish_after_global()
+    if (dist.num_word_tokens == 0)
+      throw new IllegalArgumentException("No known words in document")
+    dist
+  }
+
+  def format_coord(coord: SphereCoord) = "%s,%s" format (coord.lat, coord.long)
+
+  /**
+   * A worker thread, answering requests from the queue in batches using
+   * its own strategy object.
+   */
+  class ServerWorker(
+    strategy: GridLocateDocumentStrategy[SphereCell, SphereCellGrid]
+  ) extends Thread {
+    val mean_shift_obj =
+      if (params.coord_strategy == "mean-shift")
+        new SphereMeanShift(params.mean_shift_window,
+          params.mean_shift_max_stddev, params.mean_shift_max_iterations)
+      else null
+
+    def answer(request: ServerRequest) = {
+      try {
+        val dist = create_request_word_dist(request)
+        val cells = metrics.time("return-ranked-cells") {
+          strategy.return_ranked_cells(dist).toArray
+        }
+        val pred_coord =
+          if (cells.length == 0) null
+          else if (mean_shift_obj == null) cells(0)._1.get_center_coord
+          else {
+            val voting_points = strategy match {
+              case voter: PointVotingStrategy[_] =>
+                voter.asInstanceOf[PointVotingStrategy[SphereCoord]].
+                  voting_points(dist)
+              case _ => Seq[SphereCoord]()
+            }
+            val top_k =
+              if (voting_points.isEmpty)
+                cells.take(params.k_best).map(_._1.get_center_coord).toSeq
+              else voting_points.take(params.k_best)
+            mean_shift_obj.shifted_mean(top_k)
+          }
+        if (pred_coord == null)
+          "%s\tERROR\tNo cells to rank" format request.id
+        else {
+          val num_cells =
+            if (params.num_top_cells_to_output < 0) cells.length
+            else params.num_top_cells_to_output
+          val ranked =
+            for ((cell, score) <- cells.take(num_cells))
+              yield "%s:%s" format (format_coord(cell.get_center_coord), score)
+          (Seq(request.id, format_coord(pred_coord)) ++ ranked) mkString "\t"
+        }
+      } catch {
+        case e: Exception =>
+          "%s\tERROR\t%s" format (request.id, e.getMessage)
+      }
+    }
+
+    override def run() {
+      val batch = new java.util.ArrayList[ServerRequest]
+      while (true) {
+        batch.clear()
+        batch.add(request_queue.take())
+        request_queue.drainTo(batch, params.server_batch_size - 1)
+        val responses = cell_grid.reading_model {
+          for (i <- 0 until batch.size if batch.get(i).id != null)
+            yield (batch.get(i), answer(batch.get(i)))
+        }
+        for ((request, response) <- responses) {
+          val out = request.conn.out
+          try {
+            out.synchronized {
+              out.println(response)
+              out.flush()
+            }
+          } finally {
+            request.conn.request_answered()
+          }
+          latencies.record(System.nanoTime - request.start_nanos)
+        }
+        // Put back any other exit requests for the remaining workers.
+        var exit = false
+        for (i <- 0 until batch.size if batch.get(i).id == null) {
+          if (exit)
+            request_queue.put(batch.get(i))
+          exit = true
+        }
+        if (exit)
+          return
+      }
+    }
+  }
+
+  /**
+   * Read requests from `in` until end of input or "!quit", queueing them
+   * for the workers and sending responses to `out`.  Returns only once
+   * every request read has been answered, so `out` can then be closed.
+   */
+  def serve_stream(in: BufferedReader, out: PrintWriter) {
+    val conn = new ServerConnection(out)
+    try {
+      read_requests(in, conn)
+    } finally {
+      conn.await_responses()
+    }
+  }
+
+  protected def read_requests(in: BufferedReader, conn: ServerConnection) {
+    val out = conn.out
+    var line = in.readLine()
+    while (line != null && line != "!quit") {
+      if (line == "!stats") {
+        out.synchronized {
+          out.println(latencies.toString)
+          out.flush()
+        }
+      } else if (line.trim != "") {
+        val fields = line.split("\t", 3)
+        if (fields.length != 3) {
+          out.synchronized {
+            out.println("%s\tERROR\tRequest must have ID, format and document separated by tabs" format fields(0))
+            out.flush()
+          }
+        } else {
+          conn.request_queued()
+          request_queue.put(ServerRequest(fields(0), fields(1), fields(2),
+            conn, System.nanoTime))
+        }
+      }
+      line = in.readLine()
+    }
+  }
+
+  def utf8_writer(stream: OutputStream) =
+    new PrintWriter(new BufferedWriter(new OutputStreamWriter(stream, "UTF-8")))
+
+  def utf8_reader(stream: InputStream) =
+    new BufferedReader(new InputStreamReader(stream, "UTF-8"))
+
+  /**
+   * Run the server.  Returns only when reading from standard input and the
+   * input is exhausted.
+   */
+  override def run_after_setup() = {
+    if (strategies.length == 0)
+      param_error("A strategy other than 'none' must be given")
+    if (strategies.length > 1)
+      warning("Multiple strategies given; only using %s", strategies(0)._1)
+    val stratname = strategies(0)._1
+    val workers =
+      for (i <- 0 until params.server_threads) yield {
+        val strategy =
+          if (i == 0) strategies(0)._2
+          else create_strategies().find(_._1 == stratname).get._2
+        val worker = new ServerWorker(strategy)
+        worker.setDaemon(true)
+        worker.start()
+        worker
+      }
+    errprint("Server ready with strategy %s and %s worker(s)", stratname,
+      workers.length)
+
+    if (params.server_port == 0) {
+      serve_stream(utf8_reader(System.in), utf8_writer(System.out))
+      for (worker <- workers)
+        request_queue.put(ServerRequest(null, null, null, null, 0))
+      for (worker <- workers)
+        worker.join()
+    } else {
+      val server_socket = new ServerSocket(params.server_port, 50,
+        InetAddress.getByName("localhost"))
+      errprint("Listening on localhost port %s", params.server_port)
+      while (true) {
+        val socket = server_socket.accept()
+        val client = new Thread {
+          override def run() {
+            try {
+              serve_stream(utf8_reader(socket.getInputStream),
+                utf8_writer(socket.getOutputStream))
+            } catch {
+              case e: IOException =>
+                warning("Error reading from client: %s", e)
+            } finally {
+              socket.close()
+            }
+          }
+        }
+        client.setDaemon(true)
+        client.start()
+      }
+    }
+    errprint("Server statistics: %s", latencies)
+    Seq()
+  }
+}
+
+object GeolocateServerApp extends GeolocateApp("geolocate-server") {
+  type TDriver = GeolocateServerDriver
+  // FUCKING TYPE ERASURE
+  def create_param_object(ap: ArgParser) = new TParam(ap)
+  def create_driver() = new TDriver()
+}
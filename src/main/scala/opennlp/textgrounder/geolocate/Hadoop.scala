@@ -343,6 +343,13 @@ class HadoopGeolocateDocumentParameters(
 class HadoopGeolocateDocumentDriver extends
     GeolocateDocumentTypeDriver with HadoopGeolocateDriver {
   override type TParam = HadoopGeolocateDocumentParameters
+
+  override def handle_parameters() {
+    super.handle_parameters()
+    // Each mapper only sees some of the documents.
+    if (params.prediction_file != null)
+      param_error("--prediction-file can't be used with Hadoop")
+  }
 }
 
 object HadoopGeolocateDocumentApp extends
@@ -21,7 +21,9 @@
 package opennlp.textgrounder.geolocate
 
 import scala.collection.JavaConversions._
-import scala.collection.mutable.Map
+
+import java.io.DataOutput
+import java.nio.ByteBuffer
 
 import ags.utils.KdTree
 
@@ -29,7 +31,9 @@ import opennlp.textgrounder.util.distances.SphereCoord
 import opennlp.textgrounder.util.experiment._
 import opennlp.textgrounder.util.printutil.{errprint, warning}
 
-import opennlp.textgrounder.worddist.UnigramWordDist
+import opennlp.textgrounder.gridlocate.GridLocateDriver
+import opennlp.textgrounder.worddist.{SortedWordCounts, UnigramWordDist}
+import opennlp.textgrounder.worddist.WordDist.memoizer.Word
 
 class KdTreeCell(
   cellgrid: KdTreeCellGrid,
@@ -76,8 +80,16 @@ class KdTreeCellGrid(table: SphereDocumentTable,
   var total_num_cells: Int = 0
   var kdtree: KdTree = new KdTree(2, bucketSize, splitMethod)
 
-  val nodes_to_cell: Map[KdTree, KdTreeCell] = Map()
-  val leaves_to_cell: Map[KdTree, KdTreeCell] = Map()
+  /**
+   * Cell of each node of the tree, indexed by node ID.
+   */
+  var nodes_to_cell: Array[KdTreeCell] = null
+  /**
+   * Cell of each node that can be returned by `find_best_cell_for_coord`
+   * (the leaves, or all nodes when backing off), indexed by node ID; null
+   * for other nodes.
+   */
+  var leaves_to_cell: Array[KdTreeCell] = null
 
   override val num_training_passes: Int = 2
   var current_training_pass: Int = 0
@@ -98,9 +110,9 @@ class KdTreeCellGrid(table: SphereDocumentTable,
       // build the full kd-tree structure.
       kdtree.balance
 
-      for (node <- kdtree.getNodes) {
-        val c = new KdTreeCell(this, node)
-        nodes_to_cell.update(node, c)
+      nodes_to_cell = new Array[KdTreeCell](kdtree.getNodeCount)
+      for (id <- 0 until kdtree.getNodeCount) {
+        nodes_to_cell(id) = new KdTreeCell(this, kdtree.getNode(id))
         task.item_processed()
       }
       task.finish()
@@ -119,27 +131,43 @@ class KdTreeCellGrid(table: SphereDocumentTable,
     // FIXME: implementation note: the KD tree should tile the entire earth's surface,
     // but there's a possibility of something going awry here if we've never
     // seen a evaluation point before.
-    leaves_to_cell(kdtree.getLeaf(Array(coord.lat, coord.long)))
+    leaves_to_cell(kdtree.getLeafId(coord.lat, coord.long))
   }
 
   /**
-   * Add the given document to the cell grid.
+   * Add the given document to the cell grid.  In the second pass, the
+   * document goes straight into the cell of its leaf and those of all of
+   * the leaf's ancestors, so that no documents are held on to until
+   * `initialize_cells`.
    */
   def add_document_to_cell(document: SphereDocument) {
     if (current_training_pass == 1) {
       kdtree.addPoint(Array(document.coord.lat, document.coord.long))
     } else if (current_training_pass == 2) {
-      val leaf = kdtree.getLeaf(Array(document.coord.lat, document.coord.long))
-      var n = leaf
-      while (n != null) {
-        nodes_to_cell(n).add_document(document)
-        n = n.parent;
+      var id = kdtree.getLeafId(document.coord.lat, document.coord.long)
+      while (id >= 0) {
+        nodes_to_cell(id).add_document(document)
+        id = kdtree.getParentId(id)
       }
     } else {
       assert(false)
     }
   }
 
+  /**
+   * A document added incrementally goes into its leaf and all of the
+   * leaf's ancestors, as in the second training pass.
+   */
+  override def find_cells_for_incremental_document(document: SphereDocument) = {
+    val cells = new collection.mutable.ArrayBuffer[KdTreeCell]
+    var id = kdtree.getLeafId(document.coord.lat, document.coord.long)
+    while (id >= 0) {
+      cells += nodes_to_cell(id)
+      id = kdtree.getParentId(id)
+    }
+    cells
+  }
+
   /**
    * Generate all non-empty cells.  This will be called once (and only once),
    * after all documents have been added to the cell grid by calling
@@ -151,58 +179,154 @@ class KdTreeCellGrid(table: SphereDocumentTable,
     num_non_empty_cells = total_num_cells
 
     // need to finish generating all the word distributions
-    for (c <- nodes_to_cell.valuesIterator) {
+    for (c <- nodes_to_cell) {
       c.finish()
     }
 
-    if (interpolateWeight > 0) {
-      // this is really gross. we need to interpolate all the nodes
-      // by modifying their worddist.count map. We are breaking
-      // so many levels of abstraction by doing this AND preventing
-      // us from using interpolation with bigrams :(
-      //
-
-      // We'll do it top-down so dependencies are met.
-
-      val iwtopdown = true
-      val nodes =
-        if (iwtopdown) kdtree.getNodes.toList
-        else kdtree.getNodes.reverse
-
-      val task = new ExperimentMeteredTask(table.driver, "K-d tree cell",
-        "interpolating")
-      for (node <- nodes if node.parent != null) {
-        val cell = nodes_to_cell(node)
-        val wd = cell.combined_dist.word_dist
-        val uwd = wd.asInstanceOf[UnigramWordDist]
-
-        for ((k,v) <- uwd.counts) {
-          uwd.counts.put(k, (1 - interpolateWeight) * v)
-        }
+    if (interpolateWeight > 0)
+      interpolate_cells()
 
-        val pcell = nodes_to_cell(node.parent)
-        val pwd = pcell.combined_dist.word_dist
-        val puwd = pwd.asInstanceOf[UnigramWordDist]
+    record_lookup_cells()
+  }
 
-        for ((k,v) <- puwd.counts) {
-          val oldv = uwd.counts.getOrElse(k, 0.0)
-          val newv = oldv + interpolateWeight * v
-          if (newv > interpolateWeight)
-            uwd.counts.put(k, newv)
+  /**
+   * Sorted word IDs of a cell's counts, and the corresponding counts.
+   */
+  protected def sorted_counts(uwd: UnigramWordDist) = {
+    val counts = uwd.sorted_word_counts
+    (counts.words, counts.count_array)
+  }
+
+  /**
+   * Interpolate each node's counts with those of its (already interpolated)
+   * parent: scale the node's own counts by (1 - interpolateWeight), add
+   * interpolateWeight times the parent's counts, and keep a word only
+   * found in the parent if its new count is above interpolateWeight.
+   *
+   * This is really gross: we're modifying the counts of finished word
+   * distributions, breaking so many levels of abstraction AND preventing
+   * us from using interpolation with bigrams :(
+   *
+   * Dependencies are met by going top-down a level at a time; the nodes of
+   * a level only read their parents' counts, so they are done in parallel
+   * (unless --no-parallel).  Each node's frozen counts are already sorted
+   * by word ID, so combining them with the parent's is a linear merge,
+   * whose result becomes the node's new frozen counts directly, without
+   * thawing them; it is also kept for the node's own children.
+   */
+  protected def interpolate_cells() {
+    val w = interpolateWeight
+    def uwd_for(id: Int) =
+      nodes_to_cell(id).combined_dist.word_dist.asInstanceOf[UnigramWordDist]
+    val sorted_words = new Array[Array[Word]](kdtree.getNodeCount)
+    val sorted_values = new Array[Array[Double]](kdtree.getNodeCount)
+
+    def interpolate_node(id: Int) {
+      val uwd = uwd_for(id)
+      val (words, values) = sorted_counts(uwd)
+      val parent = kdtree.getParentId(id)
+      // Only stems need to keep their sorted counts, for their children.
+      val keep = !kdtree.isLeafId(id)
+      if (parent < 0) {
+        if (keep) {
+          sorted_words(id) = words
+          sorted_values(id) = values
+        }
+      } else {
+        val pwords = sorted_words(parent)
+        val pvalues = sorted_values(parent)
+        val newwords = new Array[Word](words.length + pwords.length)
+        val newvalues = new Array[Double](words.length + pwords.length)
+        var num_new = 0
+        var total = 0.0
+        var i = 0
+        var j = 0
+        while (i < words.length || j < pwords.length) {
+          val in_child = i < words.length &&
+            (j == pwords.length || words(i) <= pwords(j))
+          val in_parent = j < pwords.length &&
+            (i == words.length || pwords(j) <= words(i))
+          val word = if (in_child) words(i) else pwords(j)
+          val oldv = if (in_child) (1 - w) * values(i) else 0.0
+          val newv =
+            if (in_parent) {
+              val v = oldv + w * pvalues(j)
+              if (v > w) v else oldv
+            } else oldv
+          if (in_child || newv > w) {
+            newwords(num_new) = word
+            newvalues(num_new) = newv
+            num_new += 1
+            total += newv
+          }
+          if (in_child) i += 1
+          if (in_parent) j += 1
         }
+        val merged_words = java.util.Arrays.copyOf(newwords, num_new)
+        val merged_values = java.util.Arrays.copyOf(newvalues, num_new)
+        if (keep) {
+          sorted_words(id) = merged_words
+          sorted_values(id) = merged_values
+        }
+        uwd.set_frozen_counts(
+          SortedWordCounts.from_sorted(merged_words, merged_values))
+        uwd.num_word_tokens = total
+      }
+    }
 
-        // gotta update these variables
-        uwd.num_word_tokens = uwd.counts.values.sum
-        task.item_processed()
+    val task = new ExperimentMeteredTask(table.driver, "K-d tree level",
+      "interpolating")
+    var level: Seq[Int] = Seq(0)
+    while (level.nonEmpty) {
+      if (GridLocateDriver.Params.no_parallel)
+        level.foreach(interpolate_node)
+      else
+        level.par.foreach(interpolate_node)
+      // The parents' counts are no longer needed.
+      for (id <- level) {
+        val parent = kdtree.getParentId(id)
+        if (parent >= 0) {
+          sorted_words(parent) = null
+          sorted_values(parent) = null
+        }
       }
-      task.finish()
+      level = level.filter(id => !kdtree.isLeafId(id)).flatMap(
+        id => Seq(id + 1, kdtree.getRightId(id)))
+      task.item_processed()
     }
+    task.finish()
+  }
 
+  protected def record_lookup_cells() {
     // here we need to drop nonleaf nodes unless backoff is enabled.
     val nodes = if (useBackoff) kdtree.getNodes else kdtree.getLeaves
+    leaves_to_cell = new Array[KdTreeCell](kdtree.getNodeCount)
     for (node <- nodes) {
-      leaves_to_cell.update(node, nodes_to_cell(node))
+      leaves_to_cell(node.getId) = nodes_to_cell(node.getId)
+    }
+  }
+
+  /**
+   * The tree structure is written first, followed by the contents of the
+   * cell of each node, in the order of `getNodes`, which is the order in
+   * which `KdTree.readStructure` recreates the nodes.
+   */
+  override protected def write_cells_snapshot(out: DataOutput) {
+    kdtree.writeStructure(out)
+    for (cell <- nodes_to_cell)
+      cell.write_snapshot(out)
+  }
+
+  override protected def read_cells_snapshot(in: ByteBuffer,
+      words: Array[Word]) {
+    kdtree = KdTree.readStructure(in)
+    nodes_to_cell = new Array[KdTreeCell](kdtree.getNodeCount)
+    for (id <- 0 until kdtree.getNodeCount) {
+      val cell = new KdTreeCell(this, kdtree.getNode(id))
+      nodes_to_cell(id) = cell
+      cell.read_snapshot(in, words)
     }
+    record_lookup_cells()
   }
 
   /**
@@ -220,7 +344,7 @@ class KdTreeCellGrid(table: SphereDocumentTable,
     val nodes = if (useBackoff) kdtree.getNodes else kdtree.getLeaves
     for (leaf <- nodes
       if (leaf.size() > 0 || !nonempty_word_dist))
-        yield leaves_to_cell(leaf)
+        yield leaves_to_cell(leaf.getId)
   }
 }
 
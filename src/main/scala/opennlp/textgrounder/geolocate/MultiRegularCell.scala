@@ -21,6 +21,9 @@ package opennlp.textgrounder.geolocate
 import math._
 import collection.mutable
 
+import java.io.DataOutput
+import java.nio.ByteBuffer
+
 import opennlp.textgrounder.util.collectionutil._
 import opennlp.textgrounder.util.distances._
 import opennlp.textgrounder.util.printutil.{errout, errprint}
@@ -28,6 +31,8 @@ import opennlp.textgrounder.util.experiment._
 
 import opennlp.textgrounder.gridlocate.GridLocateDriver.Debug._
 
+import opennlp.textgrounder.worddist.WordDist.memoizer.Word
+
 /////////////////////////////////////////////////////////////////////////////
 //                         A regularly spaced grid                         //
 /////////////////////////////////////////////////////////////////////////////
@@ -460,6 +465,19 @@ class MultiRegularCellGrid(
     }
   }
 
+  /**
+   * Like `add_document_to_cell`, but only the existing multi cells are
+   * returned; no new ones are created.
+   */
+  override def find_cells_for_incremental_document(doc: SphereDocument) = {
+    for {
+      index <- iterate_overlapping_multi_cells(doc.coord)
+      val cell = find_cell_for_cell_index(index, create = false,
+        record_created_cell = false)
+      if (cell != null)
+    } yield cell
+  }
+
   protected def initialize_cells() {
     val task = new ExperimentMeteredTask(table.driver, "Earth-tiling cell",
       "generating non-empty")
@@ -480,6 +498,32 @@ class MultiRegularCellGrid(
     task.finish()
   }
 
+  /**
+   * Each non-empty multi cell is written as its index followed by its
+   * contents.  The grid's cell size is part of the snapshot's key, so it
+   * isn't written.
+   */
+  override protected def write_cells_snapshot(out: DataOutput) {
+    out.writeInt(corner_to_multi_cell.size)
+    for ((index, cell) <- corner_to_multi_cell) {
+      out.writeInt(index.latind)
+      out.writeInt(index.longind)
+      cell.write_snapshot(out)
+    }
+  }
+
+  override protected def read_cells_snapshot(in: ByteBuffer,
+      words: Array[Word]) {
+    val num_cells = in.getInt
+    for (i <- 0 until num_cells) {
+      val latind = in.getInt
+      val longind = in.getInt
+      val cell = find_cell_for_cell_index(RegularCellIndex(latind, longind),
+        create = true, record_created_cell = true)
+      cell.read_snapshot(in, words)
+    }
+  }
+
   def iter_nonempty_cells(nonempty_word_dist: Boolean = false) = {
     assert(all_cells_computed)
     for {
@@ -19,9 +19,13 @@
 
 package opennlp.textgrounder.geolocate
 
+import java.io.DataOutput
+import java.nio.ByteBuffer
+
 import opennlp.textgrounder.util.distances._
 
 import opennlp.textgrounder.gridlocate.{GeoCell,CellGrid}
+import opennlp.textgrounder.worddist.WordDist.memoizer.Word
 
 /////////////////////////////////////////////////////////////////////////////
 //                             Cells in a grid                             //
@@ -175,6 +179,19 @@ abstract class RectangularCell(
     super.add_document(document)
   }
 
+  override def write_snapshot(out: DataOutput) {
+    super.write_snapshot(out)
+    out.writeInt(num_docs)
+    out.writeDouble(centroid(0))
+    out.writeDouble(centroid(1))
+  }
+
+  override def read_snapshot(in: ByteBuffer, words: Array[Word]) {
+    super.read_snapshot(in, words)
+    num_docs = in.getInt
+    centroid(0) = in.getDouble
+    centroid(1) = in.getDouble
+  }
 
 
   /**
@@ -36,6 +36,9 @@ import opennlp.textgrounder.util.textutil.split_text_into_words
 import opennlp.textgrounder.gridlocate._
 import opennlp.textgrounder.gridlocate.GridLocateDriver.Debug._
 
+import opennlp.textgrounder.tr.topo.Coordinate
+import opennlp.textgrounder.tr.util.{LogFileParseElement, PredictionStore, PredictionStoreWriter}
+
 /////////////////////////////////////////////////////////////////////////////
 //                 General statistics on evaluation results                //
 /////////////////////////////////////////////////////////////////////////////
@@ -309,11 +312,15 @@ class CoordSphereDocumentEvaluationResult(
  * longitude coordinates on the surface of a sphere).  Class for evaluating
  * (geolocating) a test document using a strategy that ranks the cells in the
  * cell grid and picks the central point of the top-ranked one.
+ *
+ * @param prediction_file If not null, file to write the predictions to,
+ *   for use by the toponym resolvers (see `PredictionStore`).
  */
 class RankedSphereCellGridEvaluator(
   strategy: GridLocateDocumentStrategy[SphereCell, SphereCellGrid],
   stratname: String,
-  driver: GeolocateDocumentTypeDriver
+  driver: GeolocateDocumentTypeDriver,
+  prediction_file: String = null
 ) extends RankedCellGridEvaluator[
   SphereCoord, SphereDocument, SphereCell, SphereCellGrid,
   SphereDocumentEvaluationResult
@@ -326,6 +333,48 @@ class RankedSphereCellGridEvaluator(
       pred_cell: SphereCell, true_rank: Int) =
     new RankedSphereDocumentEvaluationResult(document, pred_cell, true_rank)
 
+  val prediction_writer =
+    if (prediction_file == null) null
+    else new PredictionStoreWriter(prediction_file)
+
+  /**
+   * The predictions written to `prediction_file`, once evaluation has
+   * finished, so a resolver in the same process can use them directly.
+   */
+  var predictions: PredictionStore = null
+
+  private def to_coordinate(coord: SphereCoord) =
+    Coordinate.fromDegrees(coord.lat, coord.long)
+
+  override def record_prediction(document: SphereDocument,
+      result: SphereDocumentEvaluationResult,
+      pred_cells: Array[(SphereCell, Double)]) {
+    if (prediction_writer != null) {
+      val num_cells = if (num_top_cells_to_output >= 0)
+                        math.min(num_top_cells_to_output, pred_cells.size)
+                      else pred_cells.size
+      val ranked_cells =
+        for (((cell, score), i) <- pred_cells.take(num_cells).zipWithIndex)
+          yield (i + 1, score, to_coordinate(cell.get_southwest_coord))
+      val ranks = pred_cells.take(num_nearest_neighbors).map(_._1).zipWithIndex.toMap
+      val neighbors =
+        for ((cell, dist) <- closest_neighbors(document, pred_cells))
+          yield (to_coordinate(cell.get_center_coord), ranks(cell) + 1)
+      prediction_writer.write(new LogFileParseElement(document.title,
+        to_coordinate(document.coord), to_coordinate(result.pred_coord),
+        ranked_cells.toList, neighbors.toList))
+    }
+  }
+
+  override def finish() {
+    super.finish()
+    if (prediction_writer != null) {
+      predictions = prediction_writer.close()
+      errprint("Wrote predictions for %s documents to %s",
+        predictions.size, prediction_file)
+    }
+  }
+
   override def print_individual_result(doctag: String, document: SphereDocument,
       result: SphereDocumentEvaluationResult,
       pred_cells: Array[(SphereCell, Double)]) {
@@ -19,10 +19,15 @@
 
 package opennlp.textgrounder.gridlocate
 
+import java.io.DataOutput
+import java.nio.ByteBuffer
+
 import opennlp.textgrounder.util.printutil.{errprint, warning}
 import opennlp.textgrounder.util.experiment._
+import opennlp.textgrounder.util.metrics
 
 import opennlp.textgrounder.worddist.WordDistFactory
+import opennlp.textgrounder.worddist.WordDist.memoizer.Word
 /* FIXME: Eliminate this. */
 import GridLocateDriver.Params
 
@@ -133,6 +138,23 @@ class CombinedWordDist(factory: WordDistFactory) {
       num_docs_for_word_dist += 1
     }
   }
+
+  /**
+   * Add the given document to the distribution after it has been finished.
+   * See `WordDist#add_word_distribution_incrementally`.
+   */
+  def add_document_incrementally(doc: DistDocument[_]) {
+    doc.incoming_links match {
+      case Some(x) => incoming_links += x
+      case _ =>
+    }
+    num_docs_for_links += 1
+
+    if (doc.dist != null) {
+      word_dist.add_word_distribution_incrementally(doc.dist)
+      num_docs_for_word_dist += 1
+    }
+  }
 }
 
 /////////////////////////////////////////////////////////////////////////////
@@ -249,6 +271,19 @@ abstract class GeoCell[TCoord, TDoc <: DistDocument[TCoord]](
     }
   }
 
+  /**
+   * Add a document to the cell after the cell has been finished.
+   */
+  def add_document_incrementally(doc: TDoc) {
+    assert(finished)
+    combined_dist.add_document_incrementally(doc)
+    if (doc.incoming_links != None &&
+      doc.incoming_links.get > mostpopdoc_links) {
+      mostpopdoc_links = doc.incoming_links.get
+      most_popular_document = doc
+    }
+  }
+
   /**
    * Finish any computations related to the cell's word distribution.
    */
@@ -257,6 +292,33 @@ abstract class GeoCell[TCoord, TDoc <: DistDocument[TCoord]](
     combined_dist.word_dist.finish_before_global()
     combined_dist.word_dist.finish_after_global()
   }
+
+  /**
+   * Write the contents of the finished cell in binary form, as part of a
+   * snapshot of the grid (see `CellGrid#write_snapshot`).  Only the link
+   * count of the most popular document is written, not the document.
+   */
+  def write_snapshot(out: DataOutput) {
+    assert(finished)
+    out.writeInt(combined_dist.num_docs_for_links)
+    out.writeInt(combined_dist.incoming_links)
+    out.writeInt(combined_dist.num_docs_for_word_dist)
+    out.writeInt(mostpopdoc_links)
+    combined_dist.word_dist.write_snapshot(out)
+  }
+
+  /**
+   * Fill this newly created cell from one written by `write_snapshot`,
+   * leaving it finished.
+   */
+  def read_snapshot(in: ByteBuffer, words: Array[Word]) {
+    assert(!finished)
+    combined_dist.num_docs_for_links = in.getInt
+    combined_dist.incoming_links = in.getInt
+    combined_dist.num_docs_for_word_dist = in.getInt
+    mostpopdoc_links = in.getInt
+    combined_dist.word_dist.read_snapshot(in, words)
+  }
 }
 
 /**
@@ -331,6 +393,10 @@ trait DocumentRememberingCell[TCoord, TDoc <: DistDocument[TCoord]] {
  *     to generate the cells and create their distribution.
  * (3) After this, it should be possible to list the cells by calling
  *     `iter_nonempty_cells`.
+ * (4) Optionally, further training documents can then be added by calling
+ *     `add_documents_incrementally`.  Code that looks up cells and their
+ *     distributions while this may be happening should do so inside of
+ *     `reading_model`, so that it sees a consistent version of the model.
  */
 abstract class CellGrid[
   TCoord,
@@ -398,7 +464,104 @@ abstract class CellGrid[
   def iter_nonempty_cells(nonempty_word_dist: Boolean = false):
     Iterable[TCell]
   
+  /**
+   * Find the existing cells that a document added incrementally should be
+   * added to.  By default, this is the single best cell for the document's
+   * coordinate, if there is one; grids with overlapping or nested cells
+   * should override this.
+   */
+  def find_cells_for_incremental_document(doc: TDoc): Iterable[TCell] = {
+    val cell = find_best_cell_for_coord(doc.coord, false)
+    if (cell == null) Seq() else Seq(cell)
+  }
+
+  /**
+   * Write the geometry of the cells of the finished grid, along with the
+   * contents of each cell (see `GeoCell#write_snapshot`), as part of
+   * `write_snapshot`.  Grids that support snapshots should override this
+   * and `read_cells_snapshot`.
+   */
+  protected def write_cells_snapshot(out: DataOutput) {
+    throw new UnsupportedOperationException(
+      "Snapshots not supported by %s" format getClass.getName)
+  }
+
+  /**
+   * Recreate the cells written by `write_cells_snapshot`, as part of
+   * `restore_snapshot`.  Afterwards, `find_best_cell_for_coord` and
+   * `iter_nonempty_cells` should work as they would after `finish`.
+   */
+  protected def read_cells_snapshot(in: ByteBuffer, words: Array[Word]) {
+    throw new UnsupportedOperationException(
+      "Snapshots not supported by %s" format getClass.getName)
+  }
+
   /*********************** Not meant to be overridden *********************/
+
+  /* Lock separating readers of the finished model (e.g. evaluation) from
+     incremental updates. */
+  protected val model_lock =
+    new java.util.concurrent.locks.ReentrantReadWriteLock
+  /* Incremented each time a batch of incremental updates is published. */
+  @volatile var model_version = 0
+
+  /**
+   * Execute `body` against a consistent version of the model: no
+   * incremental update will be applied while it runs.
+   */
+  def reading_model[T](body: => T): T = {
+    model_lock.readLock.lock()
+    try {
+      body
+    } finally {
+      model_lock.readLock.unlock()
+    }
+  }
+
+  /**
+   * Add the given training documents to the already-finished grid, updating
+   * the cells they fall into and, when enough has been added, the global
+   * statistics used for smoothing.  Documents that fall outside of all
+   * existing cells are skipped.  Readers inside `reading_model` see either
+   * none or all of the batch; afterwards `model_version` is incremented.
+   * The documents' distributions shouldn't already have been noted in the
+   * global statistics (i.e. they should have been created with
+   * `note_globally` false, as for evaluation documents); that's done here.
+   *
+   * @return Number of documents added to at least one cell.
+   */
+  def add_documents_incrementally(docs: Iterable[TDoc]) = {
+    assert(all_cells_computed)
+    model_lock.writeLock.lock()
+    try {
+      val factory = table.word_dist_factory
+      var num_added = 0
+      for (doc <- docs if doc.has_coord) {
+        val cells = find_cells_for_incremental_document(doc)
+        // The document goes into the global statistics once, however many
+        // cells it's added to.
+        if (!cells.isEmpty && doc.dist != null)
+          factory.note_dist_incrementally(doc.dist)
+        for (cell <- cells)
+          cell.add_document_incrementally(doc)
+        if (!cells.isEmpty) {
+          // Per-cell sums, as computed in `finish`.
+          total_num_docs_for_links += cells.size
+          if (doc.dist != null)
+            total_num_docs_for_word_dist += cells.size
+          num_added += 1
+        }
+      }
+      if (factory.needs_global_rebuild)
+        factory.rebuild_global_distribution(
+          for (cell <- iter_nonempty_cells(nonempty_word_dist = true))
+            yield cell.combined_dist.word_dist)
+      model_version += 1
+      num_added
+    } finally {
+      model_lock.writeLock.unlock()
+    }
+  }
   
   /* These are simply the sum of the corresponding counts
      `num_docs_for_word_dist` and `num_docs_for_links` of each individual
@@ -418,7 +581,7 @@ abstract class CellGrid[
   def finish() {
     assert(!all_cells_computed)
 
-    initialize_cells()
+    metrics.time("initialize-cells") { initialize_cells() }
 
     all_cells_computed = true
 
@@ -457,4 +620,38 @@ abstract class CellGrid[
     table.clear_training_document_distributions()
     table.driver.heartbeat
   }
+
+  /**
+   * Write a binary snapshot of the finished grid, from which
+   * `restore_snapshot` can recreate it without the training documents.
+   * The global statistics of the word-distribution factory are not
+   * included and need to be written separately.  Normally this does not
+   * need to be overridden.
+   */
+  def write_snapshot(out: DataOutput) {
+    assert(all_cells_computed)
+    out.writeInt(total_num_cells)
+    out.writeInt(num_non_empty_cells)
+    out.writeInt(total_num_docs_for_word_dist)
+    out.writeInt(total_num_docs_for_links)
+    write_cells_snapshot(out)
+  }
+
+  /**
+   * Restore a grid written by `write_snapshot` into this newly created,
+   * empty grid.  This takes the place of adding the training documents
+   * and calling `finish`; the factory's global statistics must already
+   * have been restored.  Normally this does not need to be overridden.
+   */
+  def restore_snapshot(in: ByteBuffer, words: Array[Word]) {
+    assert(!all_cells_computed)
+    val saved_total_num_cells = in.getInt
+    val saved_num_non_empty_cells = in.getInt
+    total_num_docs_for_word_dist = in.getInt
+    total_num_docs_for_links = in.getInt
+    read_cells_snapshot(in, words)
+    total_num_cells = saved_total_num_cells
+    num_non_empty_cells = saved_num_non_empty_cells
+    all_cells_computed = true
+  }
 }
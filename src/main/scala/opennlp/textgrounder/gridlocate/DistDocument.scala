@@ -28,6 +28,7 @@ import java.io._
 import opennlp.textgrounder.util.collectionutil._
 import opennlp.textgrounder.util.distances._
 import opennlp.textgrounder.util.experiment._
+import opennlp.textgrounder.util.metrics
 import opennlp.textgrounder.util.ioutil._
 import opennlp.textgrounder.util.osutil.output_resource_usage
 import opennlp.textgrounder.util.printutil.{errprint, warning}
@@ -82,10 +83,18 @@ abstract class DistDocumentTable[
   val loading_props = new DocumentLoadingProperties
 
   /**
-   * List of documents in each split.
+   * List of documents in each split.  Currently only filled in for the
+   * training split, and only if `keep_training_documents` is set.
    */
   val documents_by_split = bufmap[String, TDoc]()
 
+  /**
+   * If true, record the training documents in `documents_by_split` as they
+   * are read, and keep their distributions after the cell grid has been
+   * computed, e.g. for nearest-neighbor search.  This costs a lot of memory.
+   */
+  var keep_training_documents = false
+
   // Example of using TaskCounterWrapper directly for non-split values.
   // val num_documents = new driver.TaskCounterWrapper("num_documents") 
 
@@ -265,6 +274,8 @@ abstract class DistDocumentTable[
       if (doc != null) {
         assert(doc.dist != null)
         cell_grid.add_document_to_cell(doc)
+        if (pass == 1 && keep_training_documents)
+          documents_by_split(doc.split) += doc
         (true, true)
       }
       else (false, true)
@@ -280,7 +291,7 @@ abstract class DistDocumentTable[
       var should_stop = false
       breakable {
         for (line <- lines) {
-          if (!parse_row(line))
+          if (!metrics.time("read-document") { parse_row(line) })
             should_stop = true
           if (task.item_processed())
             should_stop = true
@@ -332,8 +343,10 @@ abstract class DistDocumentTable[
   }
 
   def clear_training_document_distributions() {
-    for (doc <- documents_by_split("training"))
-      doc.dist = null
+    if (!keep_training_documents) {
+      for (doc <- documents_by_split("training"))
+        doc.dist = null
+    }
   }
 
   def finish_document_loading() {
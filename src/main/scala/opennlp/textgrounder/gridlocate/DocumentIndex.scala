@@ -0,0 +1,225 @@
+///////////////////////////////////////////////////////////////////////////////
+//  DocumentIndex.scala
+//
+//  Copyright (C) 2012 Ben Wing, The University of Texas at Austin
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//  See the License for the specific language governing permissions and
+//  limitations under the License.
+///////////////////////////////////////////////////////////////////////////////
+
+package opennlp.textgrounder.gridlocate
+
+import math._
+
+import opennlp.textgrounder.util.printutil.errprint
+
+import opennlp.textgrounder.worddist.{UnigramWordDist, WordDist}
+
+/**
+ * An inverted index over the unigram word distributions of a set of
+ * documents (normally the training documents), used to find the documents
+ * most similar to a given distribution by cosine similarity without
+ * scoring every document.
+ *
+ * Each document is represented by its word counts, normalized to unit
+ * length.  For each word, the index holds a posting list of the documents
+ * containing the word, in increasing order of document number, along with
+ * their normalized counts, plus the largest such count.  Queries are
+ * evaluated a document at a time using the MaxScore algorithm: the query's
+ * words are ordered by the most they can contribute to a document's score,
+ * and once the K-th best score so far is high enough that documents
+ * containing only the least-contributing words can't reach it, those
+ * words' posting lists are no longer used to generate candidates but only
+ * probed (by binary search) for candidates found in the other lists, and
+ * only as long as the candidate could still make it into the top K.  The
+ * cost of a query is hence roughly proportional to the lengths of the
+ * posting lists of its more important words, rather than to the number of
+ * documents.
+ *
+ * The index is built once and not modified afterwards, so it can be shared
+ * between threads.  Documents added later (e.g. incrementally to a cell
+ * grid) aren't included.
+ *
+ * @param all_docs Documents to index.  Those without a unigram
+ *   distribution are skipped.
+ */
+class DocumentIndex[TDoc <: DistDocument[_]](all_docs: Iterable[TDoc]) {
+  /**
+   * Indexed documents.  Documents are referred to by their position here.
+   */
+  val docs: IndexedSeq[TDoc] =
+    all_docs.filter(_.dist.isInstanceOf[UnigramWordDist]).toIndexedSeq
+
+  /** Largest word ID known when the index was built. */
+  protected val max_word = WordDist.memoizer.number_of_words
+  protected val postings_docs = new Array[Array[Int]](max_word + 1)
+  protected val postings_weights = new Array[Array[Double]](max_word + 1)
+  protected val max_weights = new Array[Double](max_word + 1)
+
+  protected def counts_of(doc: TDoc) =
+    doc.dist.asInstanceOf[UnigramWordDist].word_counts
+
+  {
+    val doc_freqs = new Array[Int](max_word + 1)
+    for (doc <- docs; (word, count) <- counts_of(doc) if count > 0)
+      doc_freqs(word) += 1
+    for (word <- 0 to max_word if doc_freqs(word) > 0) {
+      postings_docs(word) = new Array[Int](doc_freqs(word))
+      postings_weights(word) = new Array[Double](doc_freqs(word))
+    }
+    // Reuse the document frequencies as the number filled in so far.
+    java.util.Arrays.fill(doc_freqs, 0)
+    for (i <- 0 until docs.length) {
+      val counts = counts_of(docs(i))
+      val norm = sqrt(counts.values.map(c => c * c).sum)
+      for ((word, count) <- counts if count > 0) {
+        val weight = count / norm
+        val pos = doc_freqs(word)
+        postings_docs(word)(pos) = i
+        postings_weights(word)(pos) = weight
+        doc_freqs(word) += 1
+        if (weight > max_weights(word))
+          max_weights(word) = weight
+      }
+    }
+    errprint("Indexed %s documents for nearest-neighbor search", docs.length)
+  }
+
+  /**
+   * Return the index of the first entry in `list`, at or after `from`,
+   * that is at least `doc`, or the list length if there is none.
+   */
+  protected def advance(list: Array[Int], from: Int, doc: Int) = {
+    var lo = from
+    var hi = list.length
+    while (lo < hi) {
+      val mid = (lo + hi) >>> 1
+      if (list(mid) < doc) lo = mid + 1
+      else hi = mid
+    }
+    lo
+  }
+
+  /**
+   * Return up to `k` of the indexed documents with the highest cosine
+   * similarity to `dist` (a nonzero similarity, i.e. sharing at least one
+   * word), as pairs of (position in `docs`, similarity), best first.
+   */
+  def nearest_documents(dist: UnigramWordDist, k: Int): Array[(Int, Double)] = {
+    val query_norm = sqrt(dist.word_counts.values.map(c => c * c).sum)
+    // The query's words that occur in the index, ordered by the most each
+    // can contribute to a score.
+    val terms =
+      (for ((word, count) <- dist.word_counts
+            if count > 0 && word <= max_word && postings_docs(word) != null)
+         yield (word, count / query_norm)).toArray.sortWith(
+           (x, y) => x._2 * max_weights(x._1) < y._2 * max_weights(y._1))
+    val n = terms.length
+    val lists = terms.map(t => postings_docs(t._1))
+    val weights = terms.map(t => postings_weights(t._1))
+    val query_weights = terms.map(_._2)
+    // Upper bound on the total contribution of terms 0 to i.
+    val cum_bounds = new Array[Double](n)
+    for (i <- 0 until n)
+      cum_bounds(i) = (if (i == 0) 0.0 else cum_bounds(i - 1)) +
+        query_weights(i) * max_weights(terms(i)._1)
+    val positions = new Array[Int](n)
+
+    // Min-heap of the best K scores so far.
+    val heap_scores = new Array[Double](k)
+    val heap_docs = new Array[Int](k)
+    var heap_size = 0
+    def threshold = if (heap_size < k) 0.0 else heap_scores(0)
+    def sift_down(start: Int) {
+      var i = start
+      var done = false
+      while (!done) {
+        val left = 2 * i + 1
+        val right = left + 1
+        var smallest = i
+        if (left < heap_size && heap_scores(left) < heap_scores(smallest))
+          smallest = left
+        if (right < heap_size && heap_scores(right) < heap_scores(smallest))
+          smallest = right
+        if (smallest == i) done = true
+        else {
+          val s = heap_scores(i); heap_scores(i) = heap_scores(smallest)
+          heap_scores(smallest) = s
+          val d = heap_docs(i); heap_docs(i) = heap_docs(smallest)
+          heap_docs(smallest) = d
+          i = smallest
+        }
+      }
+    }
+    def add_to_heap(doc: Int, score: Double) {
+      if (heap_size < k) {
+        // Sift up.
+        var i = heap_size
+        heap_size += 1
+        while (i > 0 && heap_scores((i - 1) / 2) > score) {
+          heap_scores(i) = heap_scores((i - 1) / 2)
+          heap_docs(i) = heap_docs((i - 1) / 2)
+          i = (i - 1) / 2
+        }
+        heap_scores(i) = score
+        heap_docs(i) = doc
+      } else {
+        heap_scores(0) = score
+        heap_docs(0) = doc
+        sift_down(0)
+      }
+    }
+
+    // Terms before this one are non-essential: together they can't get a
+    // document above the threshold.
+    var first_essential = 0
+    var done = k <= 0
+    while (!done) {
+      // The next candidate is the smallest document in an essential list.
+      var doc = Int.MaxValue
+      for (t <- first_essential until n) {
+        if (positions(t) < lists(t).length && lists(t)(positions(t)) < doc)
+          doc = lists(t)(positions(t))
+      }
+      if (doc == Int.MaxValue)
+        done = true
+      else {
+        var score = 0.0
+        for (t <- first_essential until n) {
+          val pos = positions(t)
+          if (pos < lists(t).length && lists(t)(pos) == doc) {
+            score += query_weights(t) * weights(t)(pos)
+            positions(t) = pos + 1
+          }
+        }
+        val thresh = threshold
+        var t = first_essential - 1
+        while (t >= 0 && score + cum_bounds(t) > thresh) {
+          val pos = advance(lists(t), positions(t), doc)
+          positions(t) = pos
+          if (pos < lists(t).length && lists(t)(pos) == doc)
+            score += query_weights(t) * weights(t)(pos)
+          t -= 1
+        }
+        if (t < 0 && score > thresh) {
+          add_to_heap(doc, score)
+          val new_thresh = threshold
+          while (first_essential < n && cum_bounds(first_essential) <= new_thresh)
+            first_essential += 1
+        }
+      }
+    }
+
+    (for (i <- 0 until heap_size) yield (heap_docs(i), heap_scores(i))).
+      toArray.sortWith(_._2 > _._2)
+  }
+}
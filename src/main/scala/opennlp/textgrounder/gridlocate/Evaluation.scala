@@ -26,6 +26,7 @@ import collection.mutable
 import opennlp.textgrounder.util.collectionutil._
 import opennlp.textgrounder.util.experiment.ExperimentDriverStats
 import opennlp.textgrounder.util.mathutil._
+import opennlp.textgrounder.util.metrics
 import opennlp.textgrounder.util.ioutil.{FileHandler, FileProcessor}
 import opennlp.textgrounder.util.MeteredTask
 import opennlp.textgrounder.util.osutil.{curtimehuman, output_resource_usage}
@@ -594,7 +595,8 @@ abstract class CorpusEvaluator[TEvalDoc, TEvalRes](
         errprint("Passed over document %s", doctag)
       else {
         // Don't put side-effecting code inside of an assert!
-        val result = evaluate_document(doc, doctag)
+        val result =
+          metrics.time("evaluate-document") { evaluate_document(doc, doctag) }
         assert(result != null)
         results(doc) = result
       }
@@ -800,7 +802,11 @@ abstract class CellGridEvaluator[
       (Array((true_cell, 0.0)), 1)
     else {
       def get_computed_results() = {
-        val cells = strategy.return_ranked_cells(document.dist).toArray
+        val cells = metrics.time("return-ranked-cells") {
+          strategy.cell_grid.reading_model {
+            strategy.return_ranked_cells(document.dist).toArray
+          }
+        }
         var rank = 1
         var broken = false
         breakable {
@@ -914,6 +920,25 @@ abstract class RankedCellGridEvaluator[
   val num_nearest_neighbors = driver.params.num_nearest_neighbors
   val num_top_cells_to_output = driver.params.num_top_cells_to_output
 
+  /**
+   * Return the half of the `num_nearest_neighbors` top-ranked cells whose
+   * centers are closest to the document, with their distances, closest
+   * first.
+   */
+  def closest_neighbors(document: XTDoc, pred_cells: Array[(TCell, Double)]) = {
+    val kNN = pred_cells.take(num_nearest_neighbors).map(_._1)
+    kNN.map(n => (n, document.distance_to_coord(n.get_center_coord))).sortWith(_._2 < _._2).take(num_nearest_neighbors/2)
+  }
+
+  /**
+   * Record the evaluation result somewhere other than the log, for the
+   * benefit of later processing.  Called for every evaluated document,
+   * whether or not individual results are printed.  By default, does
+   * nothing.
+   */
+  def record_prediction(document: XTDoc, result: TEvalRes,
+    pred_cells: Array[(TCell, Double)]) { }
+
   /**
    * Print out the evaluation result, possibly along with some of the
    * top-ranked cells.
@@ -936,9 +961,8 @@ abstract class RankedCellGridEvaluator[
     }
 
     //for (num_nearest_neighbors <- 2 to 100 by 2) {
-    val kNN = pred_cells.take(num_nearest_neighbors).map(_._1)
     val kNNranks = pred_cells.take(num_nearest_neighbors).zipWithIndex.map(p => (p._1._1, p._2+1)).toMap
-    val closest_half_with_dists = kNN.map(n => (n, document.distance_to_coord(n.get_center_coord))).sortWith(_._2 < _._2).take(num_nearest_neighbors/2)
+    val closest_half_with_dists = closest_neighbors(document, pred_cells)
 
     closest_half_with_dists.zipWithIndex.foreach(
       c => errprint("%s:  #%s close neighbor: %s; error distance: %s",
@@ -979,6 +1003,7 @@ abstract class RankedCellGridEvaluator[
       //}
       print_individual_result(doctag, document, result, pred_cells)
     }
+    record_prediction(document, result, pred_cells)
 
     return result
   }
@@ -1096,9 +1121,17 @@ abstract class MeanShiftCellGridEvaluator[
 
   def find_best_point(document: XTDoc, true_cell: TCell) = {
     val (pred_cells, true_rank) = return_ranked_cells(document, true_cell)
-    val top_k = pred_cells.take(k_best).map(_._1.get_center_coord)
-    val shifted_values = mean_shift_obj.mean_shift(top_k)
-    mean_shift_obj.vec_mean(shifted_values)
+    val voting_points = strategy match {
+      case voter: PointVotingStrategy[_] =>
+        voter.asInstanceOf[PointVotingStrategy[TCoord]].voting_points(
+          document.dist)
+      case _ => Seq[TCoord]()
+    }
+    val top_k =
+      if (voting_points.isEmpty)
+        pred_cells.take(k_best).map(_._1.get_center_coord).toSeq
+      else voting_points.take(k_best)
+    mean_shift_obj.shifted_mean(top_k)
   }
 }
 
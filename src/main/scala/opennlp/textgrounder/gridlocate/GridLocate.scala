@@ -27,9 +27,11 @@ import opennlp.textgrounder.util.argparser._
 import opennlp.textgrounder.util.collectionutil._
 import opennlp.textgrounder.util.distances._
 import opennlp.textgrounder.util.experiment._
-import opennlp.textgrounder.util.ioutil.{FileHandler, LocalFileHandler}
+import opennlp.textgrounder.util.metrics
+import opennlp.textgrounder.util.ioutil.{FileHandler, LocalFileHandler,
+  write_binary_string, read_binary_string, map_file_for_reading}
 import opennlp.textgrounder.util.osutil.output_resource_usage
-import opennlp.textgrounder.util.printutil.errprint
+import opennlp.textgrounder.util.printutil.{errprint, warning}
 
 import opennlp.textgrounder.worddist._
 
@@ -142,6 +144,20 @@ abstract class GridLocateDocumentStrategy[
   def return_ranked_cells(word_dist: WordDist): Iterable[(TCell, Double)]
 }
 
+/**
+ * A strategy that can supply its own points to use, in place of the
+ * centers of the top-ranked cells, when choosing a single coordinate for a
+ * document (e.g. by mean shift) -- such as the coordinates of the training
+ * documents nearest to it.
+ */
+trait PointVotingStrategy[TCoord] {
+  /**
+   * Return the points voting for the location of a document with the given
+   * word distribution, best first.
+   */
+  def voting_points(word_dist: WordDist): Seq[TCoord]
+}
+
 /**
  * Class that implements a very simple baseline strategy -- pick a random
  * cell.
@@ -740,6 +756,27 @@ class RandomGridLocateDocumentStrategy[
       ap.flag("test-kl",
         help = """If true, run both fast and slow KL-divergence variations and
   test to make sure results are the same.""")
+    var word_filter =
+      ap.flag("word-filter",
+        help = """Build a Bloom filter over the words of each finished
+  word distribution, and use it during ranking (KL-divergence and Naive
+  Bayes) to skip looking up most words that aren't in a cell's
+  distribution.  Costs about 10 bits of memory per word of each
+  distribution.  With '--metrics-file', the number of words passed and
+  ruled out by the filters are recorded as the counters 'word-filter-hits'
+  and 'word-filter-misses', and the fraction ruled out as the ratio
+  'word-filter-miss-rate'.""")
+    var grid_snapshot_dir =
+      ap.option[String]("grid-snapshot-dir", "gsd", metavar = "DIR",
+        help = """Local directory holding binary snapshots of finished cell
+  grids.  If given, and the directory holds a snapshot made with the same
+  training options, the grid is restored from the snapshot (by mapping it
+  into memory) instead of being built from the training documents;
+  otherwise the grid is built as usual and a snapshot of it written.
+  Snapshots are keyed by a hash of the options that affect training (corpus
+  names, word-distribution and cell-grid options), not by the contents of
+  the corpus, so remove them when a corpus changes.  Strategies that look
+  up individual training documents can't be used with a restored grid.""")
 
     //// Debugging/output options
     var max_time_per_stage =
@@ -747,6 +784,20 @@ class RandomGridLocateDocumentStrategy[
         default = 0.0,
         help = """Maximum time per stage in seconds.  If 0, no limit.
   Used for testing purposes.  Default 0, i.e. no limit.""")
+    var metrics_file =
+      ap.option[String]("metrics-file", metavar = "FILE",
+        help = """If given, record timing and allocation metrics for the
+  stages of the run (reading documents, parsing counts, memoizing words,
+  computing cells, ranking cells for each test document, etc.) and write
+  them as JSON to the given local file at the end of the run.  Times are
+  in nanoseconds, with mean, median (p50), 99th percentile (p99) and maximum
+  over all calls.  See also '--metrics-interval'.""")
+    var metrics_interval =
+      ap.option[Double]("metrics-interval", metavar = "SECONDS",
+        default = 0.0,
+        help = """If nonzero, and '--metrics-file' is given, also write the
+  metrics to the file every so many seconds during the run, e.g. for a
+  long-running server.  Default 0, i.e. only at the end.""")
     var no_individual_results =
       ap.flag("no-individual-results", "no-results",
         help = """Don't show individual results for each test document.""")
@@ -894,6 +945,14 @@ class RandomGridLocateDocumentStrategy[
       if (params.debug != null)
         parse_debug_spec(params.debug)
 
+      if (params.metrics_file != null) {
+        metrics.enable()
+        if (params.metrics_interval > 0)
+          metrics.start_periodic_dump(params.metrics_file,
+            params.metrics_interval)
+      } else if (params.metrics_interval > 0)
+        param_error("--metrics-interval requires --metrics-file")
+
       need_seq(params.input_corpus, "input-corpus")
     
       if (params.jelinek_factor < 0.0 || params.jelinek_factor > 1.0) {
@@ -971,10 +1030,99 @@ class RandomGridLocateDocumentStrategy[
   }
 
   protected def read_documents(table: TDocTable) {
-    for (fn <- params.input_corpus)
-      table.read_training_documents(get_file_handler, fn,
-        document_file_suffix, cell_grid)
-    table.finish_document_loading()
+    metrics.time("read-training-documents") {
+      for (fn <- params.input_corpus)
+        table.read_training_documents(get_file_handler, fn,
+          document_file_suffix, cell_grid)
+    }
+    metrics.time("finish-document-loading") {
+      table.finish_document_loading()
+    }
+  }
+
+  /**
+   * Values of all the options that affect the finished cell grid.  Their
+   * hash keys the snapshots in --grid-snapshot-dir.  Subclasses with
+   * further such options should add them.
+   */
+  protected def grid_snapshot_key: Seq[Any] = Seq(
+    params.input_corpus mkString ",", params.language, params.stopwords_file,
+    params.whitelist_file, params.num_training_docs, params.max_time_per_stage,
+    params.word_dist, params.interpolate, params.jelinek_factor,
+    params.dirichlet_factor, params.preserve_case_words,
+    params.include_stopwords_in_document_dists, params.minimum_word_count,
+    params.tf_idf, word_dist_constructor.getClass.getName)
+
+  /* Magic number and format version at the start of a snapshot. */
+  protected val grid_snapshot_magic = 0x54474753 // "TGGS"
+  protected val grid_snapshot_version = 2
+
+  /**
+   * Return the file in --grid-snapshot-dir holding the snapshot for the
+   * current options, along with the key string it was made from, or null
+   * if no snapshot directory was given.
+   */
+  protected def grid_snapshot_file() = {
+    if (params.grid_snapshot_dir == null) null
+    else {
+      val key = grid_snapshot_key mkString "\t"
+      val digest = java.security.MessageDigest.getInstance("MD5").digest(
+        key.getBytes("UTF-8"))
+      val hash = digest.map("%02x" format _).mkString
+      (new java.io.File(params.grid_snapshot_dir,
+        "grid-%s.snapshot" format hash), key)
+    }
+  }
+
+  /**
+   * Write a snapshot of the finished cell grid: the memoized vocabulary,
+   * the global word-distribution statistics and the cells.  The snapshot
+   * is written to a temporary file that is then renamed, so that a
+   * partly-written snapshot is never read.
+   */
+  protected def write_grid_snapshot(file: java.io.File, key: String) {
+    errprint("Writing cell-grid snapshot to %s", file)
+    file.getParentFile.mkdirs()
+    val tmpfile = new java.io.File(file.getPath + ".tmp")
+    val out = new java.io.DataOutputStream(new java.io.BufferedOutputStream(
+      new java.io.FileOutputStream(tmpfile)))
+    try {
+      out.writeInt(grid_snapshot_magic)
+      out.writeInt(grid_snapshot_version)
+      write_binary_string(out, key)
+      WordDistSnapshot.write_vocabulary(out)
+      word_dist_factory.write_snapshot(out)
+      cell_grid.write_snapshot(out)
+    } finally {
+      out.close()
+    }
+    if (!tmpfile.renameTo(file))
+      throw new java.io.IOException(
+        "Unable to rename %s to %s" format (tmpfile, file))
+  }
+
+  /**
+   * Restore the word-distribution factory and cell grid from a snapshot
+   * written by `write_grid_snapshot`.  Return false, without changing
+   * anything, if the snapshot was made from different options (a hash
+   * collision) or by a different version of the code.
+   */
+  protected def restore_grid_snapshot(file: java.io.File, key: String) = {
+    val in = map_file_for_reading(file)
+    if (in.getInt != grid_snapshot_magic ||
+        in.getInt != grid_snapshot_version ||
+        read_binary_string(in) != key) {
+      warning("Ignoring incompatible cell-grid snapshot %s", file)
+      false
+    } else {
+      errprint("Restoring cell grid from snapshot %s", file)
+      val words = WordDistSnapshot.read_vocabulary(in)
+      word_dist_factory.read_snapshot(in, words)
+      cell_grid.restore_snapshot(in, words)
+      errprint("Number of non-empty cells: %s", cell_grid.num_non_empty_cells)
+      errprint("Total number of cells: %s", cell_grid.total_num_cells)
+      true
+    }
   }
 
   def setup_for_run() {
@@ -985,20 +1133,29 @@ class RandomGridLocateDocumentStrategy[
     word_dist_factory.set_word_dist_constructor(word_dist_constructor)
     document_table = initialize_document_table(word_dist_factory)
     cell_grid = initialize_cell_grid(document_table)
-    // This accesses the stopwords and whitelist through the pointer to this in
-    // document_table.
-    read_documents(document_table)
-    if (debug("stop-after-reading-dists")) {
-      errprint("Stopping abruptly because debug flag stop-after-reading-dists set")
-      output_resource_usage()
-      // We throw to top level before exiting because hprof tends to report
-      // too much garbage as if it were live.  Unwinding the stack may fix
-      // some of that.  If you don't want this unwinding, comment out the
-      // throw and uncomment the call to System.exit().
-      throw new GridLocateAbruptExit
-      // System.exit(0)
+    val snapshot = grid_snapshot_file()
+    val restored = snapshot != null && snapshot._1.exists &&
+      metrics.time("restore-grid-snapshot") {
+        restore_grid_snapshot(snapshot._1, snapshot._2)
+      }
+    if (!restored) {
+      // This accesses the stopwords and whitelist through the pointer to
+      // this in document_table.
+      read_documents(document_table)
+      if (debug("stop-after-reading-dists")) {
+        errprint("Stopping abruptly because debug flag stop-after-reading-dists set")
+        output_resource_usage()
+        // We throw to top level before exiting because hprof tends to report
+        // too much garbage as if it were live.  Unwinding the stack may fix
+        // some of that.  If you don't want this unwinding, comment out the
+        // throw and uncomment the call to System.exit().
+        throw new GridLocateAbruptExit
+        // System.exit(0)
+      }
+      metrics.time("finish-cell-grid") { cell_grid.finish() }
+      if (snapshot != null)
+        write_grid_snapshot(snapshot._1, snapshot._2)
     }
-    cell_grid.finish()
     if(params.output_training_cell_dists) {
       for(cell <- cell_grid.iter_nonempty_cells(true)) {
         print(cell.shortstr+"\t")
@@ -1073,6 +1230,17 @@ abstract class GridLocateApp(appname: String) extends
         errprint("Caught abrupt exit throw, exiting")
         0
       }
+    } finally {
+      write_metrics()
+    }
+  }
+
+  def write_metrics() {
+    val metrics_file = driver.params.metrics_file
+    if (metrics_file != null) {
+      metrics.stop_periodic_dump()
+      errprint("Writing metrics to %s", metrics_file)
+      metrics.write_json(metrics_file)
     }
   }
 }
@@ -22,7 +22,7 @@ package opennlp.textgrounder.postprocess
 
 import org.clapper.argot._
 import opennlp.textgrounder.tr.topo._
-import opennlp.textgrounder.tr.util.LogUtil
+import opennlp.textgrounder.tr.util.PredictionStore
 
 object DocumentRankerByError {
 
@@ -45,11 +45,11 @@ object DocumentRankerByError {
     }
 
     val docsAndErrors:List[(String, Double, Coordinate, Coordinate)] =
-      (for(pe <- LogUtil.parseLogFile(logFile.value.get)) yield {
+      (for(pe <- PredictionStore.open(logFile.value.get)) yield {
         val dist = pe.trueCoord.distanceInKm(pe.predCoord)
 
         (pe.docName, dist, pe.trueCoord, pe.predCoord)
-      }).sortWith((x, y) => x._2 < y._2)
+      }).toList.sortWith((x, y) => x._2 < y._2)
 
     for((docName, dist, trueCoord, predCoord) <- docsAndErrors) {
       println(docName+"\t"+dist+"\t"+trueCoord+"\t"+predCoord)
@@ -23,7 +23,7 @@ import javax.xml.datatype._
 import javax.xml.stream._
 import opennlp.textgrounder.tr.topo._
 import opennlp.textgrounder.tr.util.KMLUtil
-import opennlp.textgrounder.tr.util.LogUtil
+import opennlp.textgrounder.tr.util.PredictionStore
 import scala.collection.JavaConversions._
 import org.clapper.argot._
 
@@ -63,7 +63,7 @@ object ErrorKMLGenerator {
 
     KMLUtil.writeHeader(out, "errors-at-"+(if(usePred.value == None) "true" else "pred"))
 
-    for(pe <- LogUtil.parseLogFile(logFile.value.get)) {
+    for(pe <- PredictionStore.open(logFile.value.get)) {
       val predCoord = Coordinate.fromDegrees(pe.predCoord.getLatDegrees() + (rand.nextDouble() - 0.5) * .1,
                                              pe.predCoord.getLngDegrees() + (rand.nextDouble() - 0.5) * .1);
 
@@ -23,7 +23,7 @@ import javax.xml.datatype._
 import javax.xml.stream._
 import opennlp.textgrounder.tr.topo._
 import opennlp.textgrounder.tr.util.KMLUtil
-import opennlp.textgrounder.tr.util.LogUtil
+import opennlp.textgrounder.tr.util.PredictionStore
 import scala.collection.JavaConversions._
 import org.clapper.argot._
 
@@ -61,7 +61,7 @@ object KNNKMLGenerator {
 
     KMLUtil.writeHeader(out, "knn")
 
-    for(pe <- LogUtil.parseLogFile(logFile.value.get)) {
+    for(pe <- PredictionStore.open(logFile.value.get)) {
 
       val jPredCoord = jitter(pe.predCoord)
 
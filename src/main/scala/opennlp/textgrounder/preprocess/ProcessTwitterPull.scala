@@ -24,9 +24,14 @@ import com.nicta.scoobi.Scoobi._
 import java.io._
 import java.lang.Double.isNaN
 import java.text.{SimpleDateFormat, ParseException}
+import java.util.concurrent.{Callable, Executors}
 
+import collection.mutable
 import util.control.Breaks._
 
+import opennlp.textgrounder.util.collectionutil.{LongHashSet, longmap}
+import opennlp.textgrounder.util.ioutil.LocalFileHandler
+import opennlp.textgrounder.util.printutil.errprint
 import opennlp.textgrounder.util.Twokenize
 
 /*
@@ -52,7 +57,22 @@ import opennlp.textgrounder.util.Twokenize
  * currently given a name by Scoobi and needs to be renamed to correspond
  * with the schema file: e.g. if the schema file is called
  * "sep-22-debate-training-unigram-counts-schema.txt", then the main file
- * should be called "sep-22-debate-training-unigram-counts.txt".
+ * should be called "sep-22-debate-training-unigram-counts.txt".  (This
+ * isn't necessary with --local, see below.)
+ *
+ * Tweets are parsed with lift-json's pull parser, extracting only the
+ * fields we need rather than building a tree for the whole tweet; use
+ * --tree-parser to parse into full trees instead.  Tokenizing and counting
+ * the words of a document are done together, in the same pass that
+ * outputs the document.
+ *
+ * With --local, Hadoop isn't used.  Instead, the input path should be a
+ * local directory of pull files (optionally compressed with gzip or
+ * bzip2), which are processed in parallel by --threads threads (by default,
+ * one per processor).  Duplicate tweets are removed using a single
+ * in-memory set of tweet IDs, and all documents are kept in memory until
+ * output, so this is suitable for pulls of moderate size.  The output
+ * directory will contain the schema and a properly named document file.
  *
  * When merging by user, the code uses the earliest geolocated tweet as the
  * user's location; tweets with a bounding box as their location rather than a
@@ -68,6 +88,9 @@ class ProcessTwitterPullOptions {
   var timeslice = 6000L
   var corpus_name = "unknown"
   var split = "training"
+  var tree_parser = false
+  var local = false
+  var threads = Runtime.getRuntime.availableProcessors
 }
 
 object ProcessTwitterPull extends ScoobiApp {
@@ -83,13 +106,6 @@ object ProcessTwitterPull extends ScoobiApp {
   type Record = (String, Tweet)
   // IDRecord = Tweet ID along with all other data for a tweet.
   type IDRecord = (TweetID, Record)
-  // TweetNoText = Data for a merged set of tweets other than the text =
-  // (username, earliest timestamp, best lat, best lng, max followers,
-  //    max following, number of tweets pulled)
-  type TweetNoText = (String, Long, Double, Double, Int, Int, Int)
-  // TweetWord = Data for the tweet minus the text, plus an individual word
-  //   from the text = (tweet_no_text_as_string, word)
-  type TweetWord = (String, String)
   // WordCount = (word, number of ocurrences)
   type WordCount = (String, Long)
 
@@ -100,12 +116,18 @@ object ProcessTwitterPull extends ScoobiApp {
         (value values) toString
   }
 
+  // SimpleDateFormat objects are expensive to create and not thread-safe.
+  val time_format = new ThreadLocal[SimpleDateFormat] {
+    override def initialValue() =
+      new SimpleDateFormat("EEE MMM dd HH:mm:ss ZZZZZ yyyy")
+  }
+
   /**
    * Convert a Twitter timestamp, e.g. "Tue Jun 05 14:31:21 +0000 2012", into
    * a time in milliseconds since the Epoch (Jan 1 1970, or so).
    */
   def parse_time(timestring: String): Long = {
-    val sdf = new SimpleDateFormat("EEE MMM dd HH:mm:ss ZZZZZ yyyy")
+    val sdf = time_format.get
     try {
       sdf.parse(timestring)
       sdf.getCalendar.getTimeInMillis
@@ -180,8 +202,29 @@ object ProcessTwitterPull extends ScoobiApp {
   val empty_tweet: IDRecord = ("", ("", ("", 0, "", Double.NaN, Double.NaN, 0, 0, 0)))
 
   /**
-   * Parse a JSON line into a tweet.  Return value is an IDRecord, including
-   * the tweet ID, username, text and all other data.
+   * Return the key that a tweet is grouped under: the user, or the time
+   * slice containing the tweet.
+   */
+  def tweet_key(user: String, timestamp: Long,
+      opts: ProcessTwitterPullOptions) = {
+    opts.keytype match {
+      case "user" => user
+      case _ => ((timestamp / opts.timeslice) * opts.timeslice).toString
+    }
+  }
+
+  /**
+   * Parse a JSON line into a tweet, using either `parse_json_streaming` or
+   * `parse_json` according to --tree-parser.
+   */
+  def parse_tweet(line: String, opts: ProcessTwitterPullOptions) =
+    if (opts.tree_parser) parse_json(line, opts)
+    else parse_json_streaming(line, opts)
+
+  /**
+   * Parse a JSON line into a tweet, building a full JSON tree.  Return value
+   * is an IDRecord, including the tweet ID, username, text and all other
+   * data.
    */
   def parse_json(line: String, opts: ProcessTwitterPullOptions): IDRecord = {
     try {
@@ -201,10 +244,7 @@ object ProcessTwitterPull extends ScoobiApp {
             (parsed \ "coordinates" \ "coordinates" values).asInstanceOf[List[Number]]
           (latlng(1).doubleValue, latlng(0).doubleValue)
         }
-      val key = opts.keytype match {
-        case "user" => user
-        case _ => ((timestamp / opts.timeslice) * opts.timeslice).toString
-      }
+      val key = tweet_key(user, timestamp, opts)
       (tweet_id, (key, (user, timestamp, text, lat, lng, followers, following, 1)))
     } catch {
       case jpe: json.JsonParser.ParseException => empty_tweet
@@ -213,6 +253,116 @@ object ProcessTwitterPull extends ScoobiApp {
     }
   }
 
+  /**
+   * Parse a JSON line into a tweet, with the same result as `parse_json`,
+   * but using lift-json's pull parser to pick out only the fields we need
+   * rather than building a tree of the whole tweet (most of which, e.g.
+   * the user's profile or, for retweets, the whole original tweet, we don't
+   * use).  Parsing stops as soon as all the fields have been seen.
+   */
+  def parse_json_streaming(line: String, opts: ProcessTwitterPullOptions):
+      IDRecord = {
+    import json.JsonParser._
+    try {
+      parse(line, (p: Parser) => {
+        var tweet_id: String = null
+        var user: String = null
+        var created_at: String = null
+        var text: String = null
+        var followers = -1
+        var following = -1
+        var coord_type: String = null
+        var lat = Double.NaN
+        var lng = Double.NaN
+        var num_coords = 0
+        var coords_seen = false
+        // Nesting depth of objects and arrays, and the most recent field
+        // names at depths 1 and 2.  We need to track these because nested
+        // objects (e.g. "retweeted_status" or "geo") have fields with the
+        // same names as the ones we want.
+        var depth = 0
+        var field1: String = null
+        var field2: String = null
+
+        def note_coordinate(value: Double) {
+          if (depth == 3 && field1 == "coordinates" &&
+              field2 == "coordinates") {
+            // GeoJSON order: longitude, then latitude.
+            if (num_coords == 0) lng = value
+            else if (num_coords == 1) lat = value
+            num_coords += 1
+          }
+        }
+
+        def have_all_fields =
+          tweet_id != null && user != null && created_at != null &&
+          text != null && followers >= 0 && following >= 0
+
+        var done = false
+        while (!done) {
+          p.nextToken match {
+            case OpenObj | OpenArr => depth += 1
+            case CloseObj | CloseArr => {
+              depth -= 1
+              if (depth == 1 && field1 == "coordinates")
+                coords_seen = true
+            }
+            case FieldStart(name) => {
+              if (depth == 1) {
+                field1 = name
+                field2 = null
+              } else if (depth == 2)
+                field2 = name
+            }
+            case StringVal(value) => {
+              if (depth == 1) {
+                if (field1 == "id_str") tweet_id = value
+                else if (field1 == "created_at") created_at = value
+                else if (field1 == "text") text = value
+              } else if (depth == 2) {
+                if (field1 == "user" && field2 == "screen_name")
+                  user = value
+                else if (field1 == "coordinates" && field2 == "type")
+                  coord_type = value
+              }
+            }
+            case IntVal(value) => {
+              if (depth == 2 && field1 == "user") {
+                if (field2 == "followers_count") followers = value.toInt
+                else if (field2 == "friends_count") following = value.toInt
+              } else
+                note_coordinate(value.toDouble)
+            }
+            case DoubleVal(value) => note_coordinate(value)
+            case NullVal => {
+              if (depth == 1 && field1 == "coordinates")
+                coords_seen = true
+            }
+            case End => done = true
+            case _ =>
+          }
+          if (coords_seen && have_all_fields)
+            done = true
+        }
+
+        if (!have_all_fields)
+          empty_tweet
+        else {
+          if (coord_type != "Point" || num_coords < 2) {
+            lat = Double.NaN
+            lng = Double.NaN
+          }
+          val timestamp = parse_time(created_at)
+          val key = tweet_key(user, timestamp, opts)
+          (tweet_id, (key, (user, timestamp, text.replaceAll("\\s+", " "),
+            lat, lng, followers, following, 1)))
+        }
+      })
+    } catch {
+      case jpe: json.JsonParser.ParseException => empty_tweet
+    }
+  }
+
   // Select the first tweet with the same ID.  For various reasons we may
   // have duplicates of the same tweet among our data.  E.g. it seems that
   // Twitter itself sometimes streams duplicates through its Streaming API,
@@ -243,23 +393,32 @@ object ProcessTwitterPull extends ScoobiApp {
     val text = text1 + " " + text2
     val numtw = numtw1 + numtw2
 
-    val (lat, lng, ts) = 
-      if (isNaN(lat1) && isNaN(lat2)) {
-        (lat1, lng1, math.min(ts1, ts2))
-      } else if (isNaN(lat2)) {
-        (lat1, lng1, ts1)
-      } else if (isNaN(lat1)) {
-        (lat2, lng2, ts2)
-      } else if (ts1 < ts2) {
-        (lat1, lng1, ts1)
-      } else {
-        (lat2, lng2, ts2)
-      }
+    val (lat, lng, ts) = merge_locations(lat1, lng1, ts1, lat2, lng2, ts2)
 
     // FIXME maybe want to track the different users
     (user1, ts, text, lat, lng, fers, fing, numtw)
   }
 
+  /**
+   * Choose the location and timestamp of a merged set of tweets from those
+   * of two sets being merged: the earliest provided location, or the
+   * earliest timestamp if neither has a location.
+   */
+  def merge_locations(lat1: Double, lng1: Double, ts1: Long,
+      lat2: Double, lng2: Double, ts2: Long) = {
+    if (isNaN(lat1) && isNaN(lat2)) {
+      (lat1, lng1, math.min(ts1, ts2))
+    } else if (isNaN(lat2)) {
+      (lat1, lng1, ts1)
+    } else if (isNaN(lat1)) {
+      (lat2, lng2, ts2)
+    } else if (ts1 < ts2) {
+      (lat1, lng1, ts1)
+    } else {
+      (lat2, lng2, ts2)
+    }
+  }
+
   /**
    * Return true if tweet (combination) has a fully-specified latitude
    * and longitude.
@@ -289,85 +448,152 @@ object ProcessTwitterPull extends ScoobiApp {
       word.startsWith("@")
   }
 
-  def checkpoint_str(r: Record): String = {
-    val (key, (user, ts, text, lat, lng, fers, fing, numtw)) = r
-    val text_2 = text.replaceAll("\\s+", " ")
-    val s = Seq(key, user, ts, lat, lng, fers, fing, numtw, "", text_2) mkString "\t"
-    s
-  }
-
-  def from_checkpoint_to_record(line: String): Record = {
-    val split = line.split("\t\t")
-    val (tweet_no_text, text) = (split(0), split(1))
-    val (key, (user, ts, lat, lng, fers, fing, numtw)) =
-      split_tweet_no_text(tweet_no_text)
-    (key, (user, ts, text, lat, lng, fers, fing, numtw))
+  /**
+   * Tokenize the text of a tweet (combination) and add the counts of its
+   * words to `counts`.
+   */
+  def count_words(text: String, counts: mutable.Map[String, Long]) {
+    for (word <- tokenize(text) if !filter_word(word))
+      counts(word) += 1
   }
 
-  def split_tweet_no_text(tweet_no_text: String): (String, TweetNoText) = {
-    val split2 = tweet_no_text.split("\t")
-    val key = split2(0)
-    val user = split2(1)
-    val ts = split2(2).toLong
-    val lat = split2(3).toDouble
-    val lng = split2(4).toDouble
-    val fers = split2(5).toInt
-    val fing = split2(6).toInt
-    val numtw = split2(7).toInt
-    (key, (user, ts, lat, lng, fers, fing, numtw))
+  /**
+   * Convert a document to a string suitable for outputting.
+   */
+  def format_document(user: String, ts: Long, lat: Double, lng: Double,
+      fers: Int, fing: Int, numtw: Int, counts: Iterable[WordCount]) = {
+    val nice_text = counts.map((w: WordCount) => w._1 + ":" + w._2).mkString(" ")
+    // Latitude/longitude need to be combined into a single field, but only
+    // if both actually exist.
+    val latlngstr =
+      if (!isNaN(lat) && !isNaN(lng))
+        "%s,%s" format (lat, lng)
+      else ""
+    Seq(user, ts, latlngstr, fers, fing, numtw, nice_text) mkString "\t"
   }
 
-  def from_checkpoint_to_tweet_text(line: String): (String, String) = {
-    val split = line.split("\t\t")
-    if (split.length != 2) {
-      System.err.println("Bad line: " + line)
-      ("", "")
-    } else {
-      (split(0), split(1))
-    }
+  /**
+   * Count the words of a tweet combination and convert it to a string
+   * suitable for outputting, dropping the key.
+   */
+  def count_and_format(r: Record): String = {
+    val (key, (user, ts, text, lat, lng, fers, fing, numtw)) = r
+    val counts = longmap[String]()
+    count_words(text, counts)
+    format_document(user, ts, lat, lng, fers, fing, numtw, counts)
   }
 
   /**
-   * Given the tweet data minus the text field combined into a string,
-   * plus the text field, tokenize the text and emit the words individually.
-   * Each word is emitted along with the text data and a count of 1,
-   * and later grouping + combining will add all the 1's to get the
-   * word count.
+   * Tweets merged under a single key when running locally, with their text
+   * already tokenized and counted.
    */
-  def emit_words(tweet_text: (String, String)): Iterable[(TweetWord, Long)] = {
-    val (tweet_no_text, text) = tweet_text
-    for (word <- tokenize(text) if !filter_word(word))
-      yield ((tweet_no_text, word), 1L)
+  class MergedTweets(tweet: Tweet) {
+    var (user, ts, _, lat, lng, fers, fing, numtw) = tweet
+    val counts = longmap[String]()
+    count_words(tweet._3, counts)
+
+    def add(tweet: Tweet) {
+      merge(tweet._2, tweet._4, tweet._5, tweet._6, tweet._7, tweet._8)
+      count_words(tweet._3, counts)
+    }
+
+    def add(other: MergedTweets) {
+      merge(other.ts, other.lat, other.lng, other.fers, other.fing,
+        other.numtw)
+      for ((word, count) <- other.counts)
+        counts(word) += count
+    }
+
+    protected def merge(ts2: Long, lat2: Double, lng2: Double, fers2: Int,
+        fing2: Int, numtw2: Int) {
+      val (newlat, newlng, newts) = merge_locations(lat, lng, ts, lat2, lng2, ts2)
+      lat = newlat
+      lng = newlng
+      ts = newts
+      fers = math.max(fers, fers2)
+      fing = math.max(fing, fing2)
+      numtw += numtw2
+    }
+
+    /**
+     * Return a record without text, for use with the filtering functions.
+     */
+    def to_record(key: String): Record =
+      (key, (user, ts, "", lat, lng, fers, fing, numtw))
   }
 
   /**
-   * We made the value in the key-value pair be a count so we can combine
-   * the counts easily to get the total word count, and stuffed all the
-   * rest of the data (tweet data plus word) into the key, but now we have to
-   * rearrange to move the word back into the value.
+   * Process the tweets in a single local file, skipping those whose IDs
+   * are already in `seen_ids` and merging the rest by key.
    */
-  def reposition_word(twc: (TweetWord, Long)): (String, WordCount) = {
-    val ((tweet_no_text, word), c) = twc
-    (tweet_no_text, (word, c))
+  def process_local_file(filehand: LocalFileHandler, file: String,
+      seen_ids: LongHashSet, opts: ProcessTwitterPullOptions) = {
+    val merged = mutable.Map[String, MergedTweets]()
+    for (line <- filehand.openr(file)) {
+      val id_r = parse_tweet(line, opts)
+      if (is_valid_tweet(id_r)) {
+        val (tw_id, (key, tweet)) = id_r
+        val id =
+          try { tw_id.toLong }
+          catch { case nfe: NumberFormatException => 0L }
+        if (id > 0 && seen_ids.synchronized { seen_ids.add(id) }) {
+          merged.get(key) match {
+            case Some(m) => m.add(tweet)
+            case None => merged(key) = new MergedTweets(tweet)
+          }
+        }
+      }
+    }
+    merged
   }
 
   /**
-   * Given tweet data minus text plus an iterable of word-count pairs,
-   * convert to a string suitable for outputting.
+   * Do everything locally, without Hadoop, processing the files in
+   * `inputPath` in parallel.  See above.
    */
-  def nicely_format_plain(twcs: (String, Iterable[WordCount])): String = {
-    val (tweet_no_text, wcs) = twcs
-    val nice_text = wcs.map((w: WordCount) => w._1 + ":" + w._2).mkString(" ")
-    val (key, (user, ts, lat, lng, fers, fing, numtw)) =
-      split_tweet_no_text(tweet_no_text)
-    // Latitude/longitude need to be combined into a single field, but only
-    // if both actually exist.
-    val latlngstr =
-      if (!isNaN(lat) && !isNaN(lng))
-        "%s,%s" format (lat, lng)
-      else ""
-    // Put back together but drop key.
-    Seq(user, ts, latlngstr, fers, fing, numtw, nice_text) mkString "\t"
+  def run_local(inputPath: String, outputPath: String,
+      opts: ProcessTwitterPullOptions) {
+    val filehand = new LocalFileHandler
+    val files =
+      if (filehand.is_directory(inputPath))
+        filehand.list_files(inputPath).toSeq.sorted
+      else Seq(inputPath)
+    val seen_ids = new LongHashSet(1 << 20)
+    val pool = Executors.newFixedThreadPool(opts.threads)
+    val results =
+      for (file <- files) yield
+        pool.submit(new Callable[mutable.Map[String, MergedTweets]] {
+          def call() = process_local_file(filehand, file, seen_ids, opts)
+        })
+    pool.shutdown()
+
+    // Merge the per-file results as they become available.
+    val merged = mutable.Map[String, MergedTweets]()
+    for ((file, result) <- files zip results) {
+      for ((key, m) <- result.get) {
+        merged.get(key) match {
+          case Some(existing) => existing.add(m)
+          case None => merged(key) = m
+        }
+      }
+      errprint("Processed %s", file)
+    }
+    errprint("%s unique tweets, %s documents", seen_ids.size, merged.size)
+
+    filehand.make_directories(outputPath)
+    val filename =
+      "%s/%s-%s-unigram-counts.txt" format
+        (outputPath, opts.corpus_name, opts.split)
+    val out = filehand.openw(filename)
+    try {
+      for ((key, m) <- merged) {
+        val r = m.to_record(key)
+        if (opts.keytype == "timestamp" ||
+            (has_latlng(r) && is_nonspammer(r) && northamerica_only(r)))
+          out.println(format_document(m.user, m.ts, m.lat, m.lng, m.fers,
+            m.fing, m.numtw, m.counts))
+      }
+    } finally { out.close() }
   }
 
   def output_schema(outputPath: String, opts: ProcessTwitterPullOptions) {
@@ -407,6 +633,15 @@ object ProcessTwitterPull extends ScoobiApp {
         } else if (a(0) == "--split") {
           opts.split = a(1)
           a = a.tail.tail
+        } else if (a(0) == "--tree-parser") {
+          opts.tree_parser = true
+          a = a.tail
+        } else if (a(0) == "--local") {
+          opts.local = true
+          a = a.tail
+        } else if (a(0) == "--threads") {
+          opts.threads = a(1).toInt
+          a = a.tail.tail
         } else break
       }
     }
@@ -419,11 +654,17 @@ object ProcessTwitterPull extends ScoobiApp {
         sys.error("Expecting input and output path.")
       }
 
+    if (opts.local) {
+      run_local(inputPath, outputPath, opts)
+      output_schema(outputPath, opts)
+      return
+    }
+
     // Firstly we load up all the (new-line-separated) JSON lines.
     val lines: DList[String] = TextInput.fromTextFile(inputPath)
 
     // Parse JSON into tweet records (IDRecord), filter out invalid tweets.
-    val values_extracted = lines.map(parse_json(_, opts)).filter(is_valid_tweet)
+    val values_extracted = lines.map(parse_tweet(_, opts)).filter(is_valid_tweet)
 
     // Filter out duplicate tweets -- group by Tweet ID and then take the
     // first tweet for a given ID.  Duplicate tweets occur for various
@@ -432,18 +673,10 @@ object ProcessTwitterPull extends ScoobiApp {
     // In the process, the tweet ID's are discarded.
     val single_tweets = values_extracted.groupByKey.map(tweet_once)
 
-    // Checkpoint the resulting tweets (minus ID) onto disk.
-    val checkpoint1 = single_tweets.map(checkpoint_str)
-    persist(TextOutput.toTextFile(checkpoint1, outputPath + "-st"))
-
-    // Then load back up.
-    val lines2: DList[String] = TextInput.fromTextFile(outputPath + "-st")
-    val values_extracted2 = lines2.map(from_checkpoint_to_record)
-
     // Group by username, then combine the tweets for a user into a
     // tweet combination, with text concatenated and the location taken
     // from the earliest/ tweet with a specific coordinate.
-    val concatted = values_extracted2.groupByKey.combine(merge_records)
+    val concatted = single_tweets.groupByKey.combine(merge_records)
 
     // If grouping by user, filter the tweet combinations, removing users
     // without a specific coordinate; users that appear to be "spammers" or
@@ -456,33 +689,11 @@ object ProcessTwitterPull extends ScoobiApp {
         concatted.filter(has_latlng).filter(is_nonspammer).
           filter(northamerica_only)
 
-
-    // Checkpoint a second time.
-    val checkpoint = with_coord.map(checkpoint_str)
-    persist(TextOutput.toTextFile(checkpoint, outputPath + "-cp"))
-
-    // Load from second checkpoint.  Note that each time we checkpoint,
-    // we extract the "text" field and stick it at the end.  This time
-    // when loading it up, we use `from_checkpoint_to_tweet_text`, which
-    // gives us the tweet data as a string (minus text) and the text, as
-    // two separate strings.
-    val lines_cp: DList[String] = TextInput.fromTextFile(outputPath + "-cp")
-
-    // Now word count.  We run `from_checkpoint_to_tweet_text` (see above)
-    // to get separate access to the text, then Twokenize it into words
-    // and emit a series of key-value pairs of (word, count).
-    val emitted_words = lines_cp.map(from_checkpoint_to_tweet_text)
-                                .flatMap(emit_words)
-    // Group based on key (the word) and combine by adding up the individual
-    // counts.
-    val word_counts = emitted_words.groupByKey.combine((a: Long, b: Long) => (a + b))
-
-    // Regroup with proper key (user, timestamp, etc.) as key,
-    // word pairs as values.
-    val regrouped_by_key = word_counts.map(reposition_word).groupByKey
-
-    // Nice string output.
-    val nicely_formatted = regrouped_by_key.map(nicely_format_plain)
+    // Now Twokenize the text of each tweet combination, count the words
+    // and produce a nice string for output, all in one step.  (This used
+    // to be done by checkpointing the combinations to disk, emitting
+    // each word separately and grouping twice to add up the counts.)
+    val nicely_formatted = with_coord.map(count_and_format)
 
     // Save to disk.
     persist(TextOutput.toTextFile(nicely_formatted, outputPath))
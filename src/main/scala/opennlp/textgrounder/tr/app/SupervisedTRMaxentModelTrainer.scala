@@ -30,6 +30,7 @@ object SupervisedTRFeatureExtractor extends App {
   val stoplistInputFile = parser.option[String](List("s", "stoplist"), "stoplist", "stopwords input file")
   val modelsOutputDir = parser.option[String](List("d", "models-dir"), "models-dir", "models output directory")
   val thresholdParam = parser.option[Double](List("t", "threshold"), "threshold", "maximum distance threshold")
+  val maxBufferedParam = parser.option[Int](List("m", "max-buffered"), "max-buffered", "maximum number of training events held in memory before spilling to the per-toponym event files")
 
   val windowSize = 20
   val dpc = 1.0
@@ -88,9 +89,34 @@ object SupervisedTRFeatureExtractor extends App {
       Set()
     }
 
+  val dir =
+    if(modelsOutputDir.value.get != None) {
+      println("Writing training events for each toponym type to directory " + modelsOutputDir.value.get + " ...")
+      val dirFile:File = new File(modelsOutputDir.value.get)
+      if(!dirFile.exists)
+        dirFile.mkdir
+      if(modelsOutputDir.value.get.endsWith("/"))
+        modelsOutputDir.value.get
+      else
+        modelsOutputDir.value.get+"/"
+    }
+    else {
+      println("Writing training events for each toponym type to current working directory ...")
+      ""
+    }
+
   println("Building training sets for each toponym type...")
 
-  val toponymsToTrainingSets = new collection.mutable.HashMap[String, List[(Array[String], String)]]
+  // Events are grouped per toponym type as the corpus streams by, and the
+  // buffered groups are appended to their per-toponym event files whenever
+  // too many events are held or the heap runs low, so memory use stays
+  // bounded no matter how large the Wikipedia corpus is.
+  val maxBufferedEvents = if(maxBufferedParam.value != None) maxBufferedParam.value.get else 1000000
+  val toponymsToTrainingSets = new collection.mutable.HashMap[String, collection.mutable.ArrayBuffer[(Array[String], String)]]
+  val spilledToponyms = new collection.mutable.HashSet[String]
+  var numBufferedEvents = 0
+  var numSpills = 0
+
   for(doc <- wikiTextCorpus) {
     if(idsToCoords.containsKey(doc.getId)) {
       val docCoord = idsToCoords(doc.getId)
@@ -109,12 +135,14 @@ object SupervisedTRFeatureExtractor extends App {
           val bestCellNum = getBestCellNum(toponym, docCoord, threshold, dpc)
           if(bestCellNum != -1) {
             val contextFeatures = TextUtil.getContextFeatures(docAsArray, tokIndex, windowSize, stoplist)
-            val prevSet = toponymsToTrainingSets.getOrElse(token.getForm, Nil)
             print(toponym+": ")
             contextFeatures.foreach(f => print(f+","))
             println(bestCellNum)
-            
-            toponymsToTrainingSets.put(token.getForm, (contextFeatures, bestCellNum.toString) :: prevSet)
+
+            toponymsToTrainingSets.getOrElseUpdate(token.getForm, new collection.mutable.ArrayBuffer[(Array[String], String)]) += ((contextFeatures, bestCellNum.toString))
+            numBufferedEvents += 1
+            if(numBufferedEvents >= maxBufferedEvents || (numBufferedEvents % 1000 == 0 && memoryIsTight))
+              spillTrainingSets
           }
         }
         tokIndex += 1
@@ -125,35 +153,9 @@ object SupervisedTRFeatureExtractor extends App {
       for(sent <- doc) { for(token <- sent) {} }
     }
   }
+  spillTrainingSets
 
-  val dir =
-    if(modelsOutputDir.value.get != None) {
-      println("Training Maxent models for each toponym type, outputting to directory " + modelsOutputDir.value.get + " ...")
-      val dirFile:File = new File(modelsOutputDir.value.get)
-      if(!dirFile.exists)
-        dirFile.mkdir
-      if(modelsOutputDir.value.get.endsWith("/"))
-        modelsOutputDir.value.get
-      else
-        modelsOutputDir.value.get+"/"
-    }
-    else {
-      println("Training Maxent models for each toponym type, outputting to current working directory ...")
-      ""
-    }
-  for((toponym, trainingSet) <- toponymsToTrainingSets) {
-    val outFile = new File(dir + toponym.replaceAll(" ", "_")+".txt")
-    val out = new BufferedWriter(new FileWriter(outFile))
-    for((context, label) <- trainingSet) {
-      for(feature <- context) out.write(feature+",")
-      out.write(label+"\n")
-    }
-    out.close
-    /*val model = GIS.trainModel(MaxentEventStreamFactory(trainingSet.toIterator), iterations, cutoff)
-    val modelWriter = new BinaryGISModelWriter(model, new File(dir + toponym.replaceAll(" ", "_")+".mxm"))
-    modelWriter.persist()
-    modelWriter.close()*/
-  }
+  println("Wrote training events for " + spilledToponyms.size + " toponym types in " + numSpills + " spill(s).")
 
   println("All done.")
 
@@ -165,6 +167,33 @@ object SupervisedTRFeatureExtractor extends App {
     }
     -1
   }
+
+  /* True when less than a fifth of the maximum heap is still available. */
+  def memoryIsTight: Boolean = {
+    val rt = Runtime.getRuntime
+    rt.maxMemory - (rt.totalMemory - rt.freeMemory) < rt.maxMemory / 5
+  }
+
+  /* Append all buffered events to their toponyms' event files and empty the
+     buffers. A toponym's file is truncated the first time it is written
+     during this run. */
+  def spillTrainingSets {
+    if(numBufferedEvents > 0) {
+      for((toponym, trainingSet) <- toponymsToTrainingSets) {
+        val outFile = new File(dir + toponym.replaceAll(" ", "_")+".txt")
+        val out = new BufferedWriter(new FileWriter(outFile, spilledToponyms(toponym)))
+        for((context, label) <- trainingSet) {
+          for(feature <- context) out.write(feature+",")
+          out.write(label+"\n")
+        }
+        out.close
+        spilledToponyms += toponym
+      }
+      toponymsToTrainingSets.clear
+      numBufferedEvents = 0
+      numSpills += 1
+    }
+  }
   
 }
 
@@ -173,22 +202,50 @@ object SupervisedTRMaxentModelTrainer extends App {
   val iterations = 10
   val cutoff = 2
 
+  // Each toponym's model is independent of the others, so the models are
+  // trained concurrently on a fixed-size pool. The optional second argument
+  // gives the number of threads; it defaults to the number of processors.
   val dir = new File(args(0))
-  for(file <- dir.listFiles.filter(_.getName.endsWith(".txt"))) {
-    try {
-      val reader = new BufferedReader(new FileReader(file))
-      val dataStream = new PlainTextByLineDataStream(reader)
-      val eventStream = new BasicEventStream(dataStream, ",")
-
-      //GIS.PRINT_MESSAGES = false
-      val model = GIS.trainModel(eventStream, iterations, cutoff)
-      val modelWriter = new BinaryGISModelWriter(model, new File(file.getAbsolutePath.replaceAll(".txt", ".mxm")))
-      modelWriter.persist()
-      modelWriter.close()
-    } catch {
-      case e: Exception => e.printStackTrace
-    }
+  val numThreads = if(args.length > 1) args(1).toInt else Runtime.getRuntime.availableProcessors
+
+  val files = dir.listFiles.filter(_.getName.endsWith(".txt"))
+  val numTrained = new java.util.concurrent.atomic.AtomicInteger(0)
+  val startTime = System.currentTimeMillis
+
+  println("Training " + files.length + " Maxent models on " + numThreads + " thread(s) ...")
+
+  val pool = java.util.concurrent.Executors.newFixedThreadPool(numThreads)
+  for(file <- files) {
+    pool.execute(new Runnable {
+      def run {
+        try {
+          val modelStartTime = System.currentTimeMillis
+          val reader = new BufferedReader(new FileReader(file))
+          val dataStream = new PlainTextByLineDataStream(reader)
+          val eventStream = new BasicEventStream(dataStream, ",")
+
+          //GIS.PRINT_MESSAGES = false
+          val model = GIS.trainModel(eventStream, iterations, cutoff)
+          reader.close
+          val modelWriter = new BinaryGISModelWriter(model, new File(file.getAbsolutePath.replaceAll(".txt", ".mxm")))
+          modelWriter.persist()
+          modelWriter.close()
+
+          val seconds = (System.currentTimeMillis - modelStartTime) / 1000.0
+          println("Trained model " + numTrained.incrementAndGet + "/" + files.length + " for " +
+                  file.getName.replaceAll(".txt", "") + " (" + model.getNumOutcomes + " outcomes) in " +
+                  seconds + " seconds")
+        } catch {
+          case e: Exception => e.printStackTrace
+        }
+      }
+    })
   }
+  pool.shutdown
+  pool.awaitTermination(Long.MaxValue, java.util.concurrent.TimeUnit.SECONDS)
+
+  println("Trained " + numTrained.get + " of " + files.length + " models in " +
+          (System.currentTimeMillis - startTime) / 1000.0 + " seconds.")
 }
 
 object MaxentEventStreamFactory {
@@ -17,6 +17,7 @@ package opennlp.textgrounder.tr.resolver
 
 import scala.collection.JavaConversions._
 import opennlp.textgrounder.tr.text._
+import opennlp.textgrounder.tr.topo.Coordinate
 
 
 class AltBasicMinDistResolver extends Resolver {
@@ -35,7 +36,8 @@ class AltBasicMinDistResolver extends Resolver {
         toponym.zipWithIndex.flatMap { case (candidate, idx) =>
           toponyms.filterNot(_ == toponym) match {
             case Nil => None
-            case ts  => Some(ts.map(_.map(_.distance(candidate)).min).sum, idx)
+            case ts  => Some(ts.map(t => Coordinate.chordSquaredToDistance(
+              t.map(_.comparableDistance(candidate)).min)).sum, idx)
           }
         } match {
           case Nil => ()
@@ -32,6 +32,8 @@ class BayesRuleResolver(val logFilePath:String,
         (file.getName.dropRight(4).replaceAll("_", " "), model)
       }).toMap
 
+    val toponymsToCellModels = toponymsToModels.map(p => (p._1, new CellModel(p._2)))
+
     val ngramDists = LogUtil.getNgramDists(logFilePath)
     //println(ngramDists.size)
 
@@ -43,12 +45,13 @@ class BayesRuleResolver(val logFilePath:String,
         val toponym = token.asInstanceOf[Toponym]
 
         // P(l|d_c(t))
+        val cellModel = toponymsToCellModels.getOrElse(toponym.getForm, null)
         val cellDistGivenLocalContext =
-        if(toponymsToModels.containsKey(toponym.getForm)) {
+        if(cellModel != null) {
           val contextFeatures = TextUtil.getContextFeatures(docAsArray, tokIndex, WINDOW_SIZE, Set[String]())
 
-          /*val d = */MaxentResolver.getCellDist(toponymsToModels(toponym.getForm), contextFeatures,
-                                     toponym.getCandidates.toList, DPC)
+          cellModel.getCellDist(cellModel.eval(contextFeatures),
+                                toponym.asInstanceOf[StoredToponym].getDistinctCandidateCellNumbers(DPC))
         }
         else
           null
@@ -61,7 +64,7 @@ class BayesRuleResolver(val logFilePath:String,
 
           val localContextComponent =
           if(cellDistGivenLocalContext != null)
-            cellDistGivenLocalContext.getOrElse(curCellNum, 0.0)
+            cellDistGivenLocalContext(curCellNum)
           else
             0.0
 
@@ -6,22 +6,20 @@ import opennlp.textgrounder.tr.util._
 
 import scala.collection.JavaConversions._
 
-class DocDistResolver(val logFilePath:String) extends Resolver {
+class DocDistResolver(val predictions:PredictionStore) extends Resolver {
 
-  def disambiguate(corpus:StoredCorpus): StoredCorpus = {
+  def this(logFilePath:String) = this(PredictionStore.open(logFilePath))
 
-    val predDocLocations = (for(pe <- LogUtil.parseLogFile(logFilePath)) yield {
-      (pe.docName, pe.predCoord)
-    }).toMap
+  def disambiguate(corpus:StoredCorpus): StoredCorpus = {
 
     for(doc <- corpus) {
+      val predDocLocation = predictions.get(doc.getId).map(_.predCoord).orNull
       for(sent <- doc) {
         for(toponym <- sent.getToponyms.filter(_.getAmbiguity > 0)) {
           if(overwriteSelecteds || !toponym.hasSelected) {
-            val predDocLocation = predDocLocations.getOrElse(doc.getId, null)
             if(predDocLocation != null) {
               val indexToSelect = toponym.getCandidates.zipWithIndex.minBy(
-                p => p._1.getRegion.distance(predDocLocation))._2
+                p => p._1.getRegion.comparableDistance(predDocLocation))._2
               if(indexToSelect != -1) {
                 toponym.setSelectedIdx(indexToSelect)
               }
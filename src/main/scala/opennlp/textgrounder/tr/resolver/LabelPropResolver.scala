@@ -261,7 +261,7 @@ class LabelPropResolver(
   def getDocCellLabelSeeds: List[Label] = {
     val result =
     if(logFilePath != null) {
-      (for(pe <- LogUtil.parseLogFile(logFilePath)) yield {
+      (for(pe <- PredictionStore.open(logFilePath)) yield {
         (for((cellNum, probMass) <- pe.getProbDistOverPredCells(knn, DPC)) yield {
           new Label(DOC+pe.docName, CELL_LABEL+cellNum, probMass)
         })
@@ -33,23 +33,24 @@ class MaxentResolver(val logFilePath:String,
       (file.getName.dropRight(4), model)
     }).toMap
 
-    for(doc <- corpus) {
-      val docAsArray = TextUtil.getDocAsArray(doc)
-      var tokIndex = 0
-      for(token <- docAsArray) {
-        if(token.isToponym && token.asInstanceOf[Toponym].getAmbiguity > 0
-           && toponymsToModels.containsKey(token.getForm)) {
-          val contextFeatures = TextUtil.getContextFeatures(docAsArray, tokIndex, windowSize, Set[String]())
-          //print("Features for "+token.getForm+": ")
-          //contextFeatures.foreach(f => print(f+","))
-          //println
-          val bestIndex = MaxentResolver.getBestIndex(toponymsToModels(token.getForm), contextFeatures,
-                                           token.asInstanceOf[Toponym].getCandidates.toList, dpc)
-          //println("best index for "+token.getForm+": "+bestIndex)
-          if(bestIndex != -1)
-            token.asInstanceOf[Toponym].setSelectedIdx(bestIndex)
-        }
-        tokIndex += 1
+    val features = new ContextFeatureExtractor(corpus)
+    val toponymsToCellModels = toponymsToModels.map(p => (p._1, new CellModel(p._2, features)))
+
+    // Every occurrence of a toponym type is scored in one batch, and the
+    // types are done in parallel.
+    val occurrencesByForm = MaxentResolver.gatherOccurrences(corpus, features, toponymsToCellModels.keySet, windowSize)
+    for((form, occurrences) <- occurrencesByForm.par; cellModel <- toponymsToCellModels.get(form)) {
+      val results = cellModel.eval(occurrences)
+      for(occurrence <- 0 until occurrences.size) {
+        val toponym = occurrences.toponyms(occurrence)
+        val candCells = toponym.getDistinctCandidateCellNumbers(dpc)
+        val bestCell = cellModel.bestCell(results(occurrence), candCells)
+        // The last candidate in the best cell, as getBestIndex picks.
+        val bestIndex =
+          if(bestCell >= 0) toponym.getCandidateCellNumbers(dpc).lastIndexOf(candCells(bestCell)) else -1
+        //println("best index for "+toponym.getForm+": "+bestIndex)
+        if(bestIndex != -1)
+          toponym.setSelectedIdx(bestIndex)
       }
     }
 
@@ -63,6 +64,39 @@ class MaxentResolver(val logFilePath:String,
 }
 
 object MaxentResolver {
+  /**
+   * Gather the occurrences of each ambiguous toponym type in `corpus`, by
+   * form, with the context features of those whose forms are in
+   * `modelForms`.
+   */
+  def gatherOccurrences(corpus:StoredCorpus, features:ContextFeatureExtractor,
+                        modelForms:collection.Set[String], windowSize:Int): Map[String, ToponymOccurrences] = {
+    val builders = new scala.collection.mutable.HashMap[String, ToponymOccurrences.Builder]
+    val featureBuffer = new Array[Int](2 * windowSize)
+    val cursor = corpus.getTokenCursor
+    for(docIndex <- 0 until cursor.getDocumentCount) {
+      cursor.setDocument(docIndex)
+      val positions = features.getDocPositions(cursor)
+      var tokIndex = 0
+      while(tokIndex < positions.length) {
+        cursor.seek(positions(tokIndex))
+        val toponym = cursor.getToponym
+        if(toponym != null && toponym.getAmbiguity > 0) {
+          val form = toponym.getForm
+          val featureCount =
+            if(modelForms(form))
+              features.getContextFeatures(cursor, positions, tokIndex, windowSize, featureBuffer)
+            else
+              0
+          builders.getOrElseUpdate(form, new ToponymOccurrences.Builder)
+            .add(toponym, docIndex, featureBuffer, featureCount)
+        }
+        tokIndex += 1
+      }
+    }
+    builders.map(p => (p._1, p._2.result)).toMap
+  }
+
   def getBestIndex(model:AbstractModel, features:Array[String], candidates:List[Location], dpc:Double): Int = {
     val candCellNums = candidates.map(c => TopoUtil.getCellNumber(c.getRegion.getCenter, dpc)).toSet
     //candCellNums.foreach(println)
@@ -105,3 +139,241 @@ object MaxentResolver {
     //toReturn
   }
 }
+
+/**
+ * The occurrences of one toponym type, gathered from across a corpus to be
+ * scored together: each one's toponym, the index of its document, and its
+ * context feature ids.  The features are flattened, occurrence i's running
+ * from `featureStarts(i)` until `featureStarts(i + 1)`.
+ */
+class ToponymOccurrences(val toponyms:Array[StoredToponym], val docIndices:Array[Int],
+                         val features:Array[Int], val featureStarts:Array[Int]) {
+  def size = toponyms.length
+}
+
+object ToponymOccurrences {
+  class Builder {
+    private val toponyms = new scala.collection.mutable.ArrayBuffer[StoredToponym]
+    private val docIndices = new scala.collection.mutable.ArrayBuilder.ofInt
+    private val features = new scala.collection.mutable.ArrayBuilder.ofInt
+    private val featureStarts = new scala.collection.mutable.ArrayBuilder.ofInt
+    private var featureCount = 0
+    featureStarts += 0
+
+    def add(toponym:StoredToponym, docIndex:Int, featureBuffer:Array[Int], count:Int) {
+      toponyms += toponym
+      docIndices += docIndex
+      var i = 0
+      while(i < count) {
+        features += featureBuffer(i)
+        i += 1
+      }
+      featureCount += count
+      featureStarts += featureCount
+    }
+
+    def result = new ToponymOccurrences(toponyms.toArray, docIndices.result,
+                                        features.result, featureStarts.result)
+  }
+}
+
+/**
+ * A maxent model whose outcomes are cell numbers, with the outcomes sorted
+ * by cell, so that the probability of a candidate's cell can be read off the
+ * model's output without building a map.
+ *
+ * Given a `ContextFeatureExtractor`, the model's predicates are matched up
+ * with its feature ids once, so features can also be scored as ids.  These
+ * are scored straight from the model's parameters, copied once into flat
+ * arrays, the same way `GISModel.eval` scores predicates.
+ */
+class CellModel(val model:AbstractModel, features:ContextFeatureExtractor = null) {
+  /** The cell number of each outcome. */
+  val outcomeCells = model.getDataStructures()(2).asInstanceOf[Array[String]].map(_.toInt)
+
+  private val (cells, outcomes) = {
+    val sorted = outcomeCells.zipWithIndex.sortBy(_._1)
+    (sorted.map(_._1), sorted.map(_._2))
+  }
+
+  private val numOutcomes = outcomeCells.length
+
+  // Predicate p's parameters are paramOutcomes and params from predStarts(p)
+  // until predStarts(p + 1).
+  private val (predStarts, paramOutcomes, params) = {
+    val contexts = model.getDataStructures()(0).asInstanceOf[Array[Context]]
+    val predStarts = new Array[Int](contexts.length + 1)
+    for(p <- 0 until contexts.length)
+      predStarts(p + 1) = predStarts(p) + contexts(p).getOutcomes.length
+    val paramOutcomes = new Array[Int](predStarts(contexts.length))
+    val params = new Array[Double](predStarts(contexts.length))
+    for(p <- 0 until contexts.length) {
+      val length = predStarts(p + 1) - predStarts(p)
+      System.arraycopy(contexts(p).getOutcomes, 0, paramOutcomes, predStarts(p), length)
+      System.arraycopy(contexts(p).getParameters, 0, params, predStarts(p), length)
+    }
+    (predStarts, paramOutcomes, params)
+  }
+
+  private val (correctionConstant, correctionParam) = {
+    val data = model.getDataStructures
+    (data(3).asInstanceOf[Number].doubleValue, data(4).asInstanceOf[Number].doubleValue)
+  }
+  private val constantInverse = 1.0 / correctionConstant
+
+  // The uniform prior model.eval starts from.
+  private val logPrior = math.log(1.0 / numOutcomes)
+
+  // The model's predicate indices, by sorted feature id.
+  private val (featureIds, predicates) =
+    if(features == null)
+      (new Array[Int](0), new Array[Int](0))
+    else {
+      val pmap = model.getDataStructures()(1).asInstanceOf[IndexHashTable[String]]
+      val predLabels = new Array[String](pmap.size)
+      pmap.toArray(predLabels)
+      val sorted = predLabels.zipWithIndex.map(p => (features.getFeatureId(p._1), p._2))
+        .filter(_._1 >= 0).sortBy(_._1)
+      (sorted.map(_._1), sorted.map(_._2))
+    }
+
+  def eval(features:Array[String]): Array[Double] = model.eval(features)
+
+  /**
+   * As above, for the first `count` feature ids in `featureBuffer` (from
+   * the extractor this model was made with).  Features the model doesn't
+   * know are skipped, as `model.eval` skips unknown predicates.
+   */
+  def eval(featureBuffer:Array[Int], count:Int): Array[Double] =
+    score(featureBuffer, 0, count, new Array[Int](numOutcomes))
+
+  /** The results for each of `occurrences`, in order. */
+  def eval(occurrences:ToponymOccurrences): Array[Array[Double]] = {
+    val numFeats = new Array[Int](numOutcomes)
+    Array.tabulate(occurrences.size)(i =>
+      score(occurrences.features, occurrences.featureStarts(i), occurrences.featureStarts(i + 1), numFeats))
+  }
+
+  private def score(featureBuffer:Array[Int], from:Int, until:Int, numFeats:Array[Int]): Array[Double] = {
+    val result = new Array[Double](numOutcomes)
+    java.util.Arrays.fill(result, logPrior)
+    java.util.Arrays.fill(numFeats, 0)
+
+    var i = from
+    while(i < until) {
+      val j = java.util.Arrays.binarySearch(featureIds, featureBuffer(i))
+      if(j >= 0) {
+        val pred = predicates(j)
+        var k = predStarts(pred)
+        val end = predStarts(pred + 1)
+        while(k < end) {
+          result(paramOutcomes(k)) += params(k)
+          numFeats(paramOutcomes(k)) += 1
+          k += 1
+        }
+      }
+      i += 1
+    }
+
+    var normal = 0.0
+    var outcome = 0
+    while(outcome < numOutcomes) {
+      result(outcome) =
+        if(correctionParam != 0)
+          math.exp(result(outcome) * constantInverse
+                   + (1.0 - numFeats(outcome) / correctionConstant) * correctionParam)
+        else
+          math.exp(result(outcome) * constantInverse)
+      normal += result(outcome)
+      outcome += 1
+    }
+    outcome = 0
+    while(outcome < numOutcomes) {
+      result(outcome) /= normal
+      outcome += 1
+    }
+    result
+  }
+  /** The probability `result` (from `eval`) gives to the cell, or 0. */
+  def prob(result:Array[Double], cell:Int): Double = {
+    val i = java.util.Arrays.binarySearch(cells, cell)
+    if(i >= 0) result(outcomes(i)) else 0.0
+  }
+
+  /**
+   * The total probability `result` gives to `sortedCells`, which must be
+   * sorted and distinct.
+   */
+  def sumOver(result:Array[Double], sortedCells:Array[Int]): Double = {
+    var sum = 0.0
+    var i = 0
+    var j = 0
+    while(i < cells.length && j < sortedCells.length) {
+      if(cells(i) < sortedCells(j))
+        i += 1
+      else if(cells(i) > sortedCells(j))
+        j += 1
+      else {
+        sum += result(outcomes(i))
+        i += 1
+        j += 1
+      }
+    }
+    sum
+  }
+  /**
+   * The probabilities `result` gives to `sortedCells` (sorted and
+   * distinct), normalized over those cells, as `MaxentResolver.getCellDist`
+   * gives them.
+   */
+  def getCellDist(result:Array[Double], sortedCells:Array[Int]): CellDist = {
+    val distCells = new scala.collection.mutable.ArrayBuilder.ofInt
+    val distProbs = new scala.collection.mutable.ArrayBuilder.ofDouble
+    var i = 0
+    var j = 0
+    while(i < cells.length && j < sortedCells.length) {
+      if(cells(i) < sortedCells(j))
+        i += 1
+      else if(cells(i) > sortedCells(j))
+        j += 1
+      else {
+        distCells += cells(i)
+        distProbs += result(outcomes(i))
+        i += 1
+        j += 1
+      }
+    }
+    val probs = distProbs.result
+    val normFactor = probs.sum
+    new CellDist(distCells.result, probs.map(_ / normFactor))
+  }
+
+  /**
+   * The index in `sortedCells` (sorted and distinct) of the cell `result`
+   * gives the highest probability, or -1 if the model has none of them.
+   * Ties go to the earlier outcome, as in `MaxentResolver.getBestIndex`.
+   */
+  def bestCell(result:Array[Double], sortedCells:Array[Int]): Int = {
+    var best = -1
+    var bestOutcome = -1
+    var i = 0
+    var j = 0
+    while(i < cells.length && j < sortedCells.length) {
+      if(cells(i) < sortedCells(j))
+        i += 1
+      else if(cells(i) > sortedCells(j))
+        j += 1
+      else {
+        val outcome = outcomes(i)
+        if(bestOutcome < 0 || result(outcome) > result(bestOutcome)
+           || (result(outcome) == result(bestOutcome) && outcome < bestOutcome)) {
+          best = j
+          bestOutcome = outcome
+        }
+        i += 1
+        j += 1
+      }
+    }
+    best
+  }
+}
@@ -12,24 +12,18 @@ import opennlp.model._
 
 import scala.collection.JavaConversions._
 
-class ProbabilisticResolver(val logFilePath:String,
+class ProbabilisticResolver(val predictions:PredictionStore,
                             val modelDirPath:String) extends Resolver {
 
+  def this(logFilePath:String, modelDirPath:String) =
+    this(PredictionStore.open(logFilePath), modelDirPath)
+
   val KNN = -1
   val DPC = 1.0
   val WINDOW_SIZE = 20
 
   def disambiguate(corpus:StoredCorpus): StoredCorpus = {
 
-  val docIdToCellDist:Map[String, Map[Int, Double]] =
-  (for(pe <- LogUtil.parseLogFile(logFilePath)) yield {
-    (pe.docName, pe.getProbDistOverPredCells(KNN, DPC).toMap)
-  }).toMap
-
-  val predDocLocations = (for(pe <- LogUtil.parseLogFile(logFilePath)) yield {
-    (pe.docName, pe.predCoord)
-  }).toMap
-
   val modelDir = new File(modelDirPath)
 
   val toponymsToModels:Map[String, AbstractModel] =
@@ -44,15 +38,16 @@ class ProbabilisticResolver(val logFilePath:String,
 
   var toponymsToCounts = new scala.collection.mutable.HashMap[String, Int]
   var total = 0
-  for(doc <- corpus) {
-    for(sent <- doc) {
-      for(token <- sent) {
-        if(token.isToponym) {
-          val prevCount = toponymsToCounts.getOrElse(token.getForm, 0)
-          toponymsToCounts.put(token.getForm, prevCount + 1)
-        }
-        total += 1
+  val countCursor = corpus.getTokenCursor
+  for(docIndex <- 0 until countCursor.getDocumentCount) {
+    countCursor.setDocument(docIndex)
+    while(countCursor.next) {
+      if(countCursor.isToponym) {
+        val form = countCursor.getForm
+        val prevCount = toponymsToCounts.getOrElse(form, 0)
+        toponymsToCounts.put(form, prevCount + 1)
       }
+      total += 1
     }
   }
 
@@ -61,104 +56,93 @@ class ProbabilisticResolver(val logFilePath:String,
   toponymsToCounts = null
   //toponymsToFrequencies.foreach(p => println(p._1+": "+p._2))
 
-  for(doc <- corpus) {
-    val docAsArray = TextUtil.getDocAsArray(doc)
-    var tokIndex = 0
-    for(token <- docAsArray) {
-      if(token.isToponym && token.asInstanceOf[Toponym].getAmbiguity > 0) {
-        val toponym = token.asInstanceOf[Toponym]
-
-        // P(l|t,d_c(t))
-        val cellDistGivenLocalContext =
-        if(toponymsToModels.containsKey(toponym.getForm)) {
-          val contextFeatures = TextUtil.getContextFeatures(docAsArray, tokIndex, WINDOW_SIZE, Set[String]())
-
-          //println("getting a cell dist for "+toponym.getForm)
-
-          /*val d = */MaxentResolver.getCellDist(toponymsToModels(toponym.getForm), contextFeatures,
-                                     toponym.getCandidates.toList, DPC)
-          //println(d.size)
-          //d.foreach(println)
-          //d
-        }
+  val features = new ContextFeatureExtractor(corpus)
+  val toponymsToCellModels = toponymsToModels.map(p => (p._1, new CellModel(p._2, features)))
+
+  // P(l|d) for each document, in the corpus's order.
+  val docCellDists = corpus.toIndexedSeq.par.map(doc =>
+    predictions.get(doc.getId).map(pe => CellDist(pe.getProbDistOverPredCells(KNN, DPC).toMap)).orNull).toArray
+
+  // Every occurrence of a toponym type is scored in one batch, and the
+  // types are done in parallel.
+  val occurrencesByForm = MaxentResolver.gatherOccurrences(corpus, features, toponymsToCellModels.keySet, WINDOW_SIZE)
+  for((form, occurrences) <- occurrencesByForm.par) {
+    val cellModel = toponymsToCellModels.getOrElse(form, null)
+    val localResults = if(cellModel != null) cellModel.eval(occurrences) else null
+
+    val topFreq = toponymsToFrequencies(form)
+    val lambda = topFreq / (topFreq + 1.0E-4)//0.7
+
+    for(occurrence <- 0 until occurrences.size) {
+      val toponym = occurrences.toponyms(occurrence)
+      val docCellDist = docCellDists(occurrences.docIndices(occurrence))
+      val candidates = toponym.getCandidates
+      val candCells = toponym.getCandidateCellNumbers(DPC)
+      val distinctCandCells = toponym.getDistinctCandidateCellNumbers(DPC)
+
+      // P(l|t,d_c(t)), normalized over the candidates' cells
+      val localResult = if(localResults != null) localResults(occurrence) else null
+      val localNorm = if(localResult != null) cellModel.sumOver(localResult, distinctCandCells) else 0.0
+
+      // P(l|d), likewise
+      val docNorm = if(docCellDist != null) docCellDist.sumOver(distinctCandCells) else 0.0
+
+      var totalRepresentatives = 0
+      var candIndex = 0
+      while(candIndex < candCells.length) {
+        totalRepresentatives += candidates.get(candIndex).getRegion.getRepresentatives.size
+        candIndex += 1
+      }
+
+      var indexToSelect = -1
+      var maxProb = 0.0
+      candIndex = 0
+      while(candIndex < candCells.length) {
+        val curCellNum = candCells(candIndex)
+
+        val localContextComponent =
+        if(localNorm > 0.0)
+          cellModel.prob(localResult, curCellNum) / localNorm
         else
-          null
-
-        // P(l|d)
-        //val prev = docIdToCellDist.getOrElse(doc.getId, null)
-        val cellDistGivenDocument = filterAndNormalize(docIdToCellDist.getOrElse(doc.getId, null), toponym)
-        /*if(prev != null) {
-          println("prev size = " + prev.size)
-          println(" new size = " + cellDistGivenDocument.size)
-          println("-----")
-        }*/
-
-        val topFreq = toponymsToFrequencies(toponym.getForm)
-        val lambda = topFreq / (topFreq + 1.0E-4)//0.7
-
-        var indexToSelect = -1
-        var maxProb = 0.0
-        var candIndex = 0
-        for(cand <- toponym.getCandidates) {
-          val curCellNum = TopoUtil.getCellNumber(cand.getRegion.getCenter, DPC)
-
-          val localContextComponent =
-          if(cellDistGivenLocalContext != null)
-            cellDistGivenLocalContext.getOrElse(curCellNum, 0.0)
-          else
-            0.0
-
-          val documentComponent =
-          if(cellDistGivenDocument != null && cellDistGivenDocument.size > 0)
-            cellDistGivenDocument.getOrElse(curCellNum, 0.0)
-          else
-            0.0
-
-          /*if(localContextComponent == 0.0) {
-            if(documentComponent == 0.0) {
-              println("BOTH ZERO")
-            }
-            else {
-              println("LOCAL ZERO")
-            }
-          }
-          else if(documentComponent == 0.0)
-            println("DOC ZERO")*/
+          0.0
 
-          // Incorporate administrative level here
-          val adminLevelComponent = getAdminLevelComponent(cand, toponym.getCandidates.toList/*cand.getType, cand.getAdmin1Code*/)
+        val documentComponent =
+        if(docNorm > 0.0)
+          docCellDist(curCellNum) / docNorm
+        else
+          0.0
 
-          // P(l|t,d)
-          val probOfLocation = adminLevelComponent * (lambda * localContextComponent + (1-lambda) * documentComponent)
+        // Incorporate administrative level here
+        val adminLevelComponent = candidates.get(candIndex).getRegion.getRepresentatives.size.toDouble / totalRepresentatives
 
-          if(probOfLocation > maxProb) {
-            indexToSelect = candIndex
-            maxProb = probOfLocation
-          }
+        // P(l|t,d)
+        val probOfLocation = adminLevelComponent * (lambda * localContextComponent + (1-lambda) * documentComponent)
 
-          candIndex += 1
+        if(probOfLocation > maxProb) {
+          indexToSelect = candIndex
+          maxProb = probOfLocation
         }
 
-        /*if(indexToSelect == -1) {
-          val predDocLocation = predDocLocations.getOrElse(doc.getId, null)
-          if(predDocLocation != null) {
-            val indexToSelectBackoff = toponym.getCandidates.zipWithIndex.minBy(p => p._1.getRegion.distance(predDocLocation))._2
-            if(indexToSelectBackoff != -1) {
-              indexToSelect = indexToSelectBackoff
-            }
-          }
-        }*/
+        candIndex += 1
+      }
 
-        if(indexToSelect >= 0)
-          toponym.setSelectedIdx(indexToSelect)
+      /*if(indexToSelect == -1) {
+        val predDocLocation = predictions.get(docId).map(_.predCoord).orNull
+        if(predDocLocation != null) {
+          val indexToSelectBackoff = toponym.getCandidates.zipWithIndex.minBy(p => p._1.getRegion.comparableDistance(predDocLocation))._2
+          if(indexToSelectBackoff != -1) {
+            indexToSelect = indexToSelectBackoff
+          }
+        }
+      }*/
 
-      }
-      tokIndex += 1
+      if(indexToSelect >= 0)
+        toponym.setSelectedIdx(indexToSelect)
     }
   }
 
   // Backoff to DocDist:
-  val docDistResolver = new DocDistResolver(logFilePath)
+  val docDistResolver = new DocDistResolver(predictions)
   docDistResolver.overwriteSelecteds = false
   docDistResolver.disambiguate(corpus)
     
@@ -172,13 +156,6 @@ class ProbabilisticResolver(val logFilePath:String,
     frac
   }
 
-  def filterAndNormalize(dist:Map[Int, Double], toponym:Toponym): Map[Int, Double] = {
-    val cells = toponym.getCandidates.map(l => TopoUtil.getCellNumber(l.getRegion.getCenter, DPC)).toSet
-    val filteredDist = dist.filter(c => cells(c._1))
-    val sum = filteredDist.map(_._2).sum
-    filteredDist.map(c => (c._1, c._2 / sum))
-  }
-
   //val countryRE = """^\w\w\.\d\d$""".r
   val usStateRE = """^US\.[A-Za-z][A-Za-z]$""".r
 
@@ -13,7 +13,7 @@ class ToponymAsDocDistResolver(val logFilePath:String) extends Resolver {
 
   def disambiguate(corpus:StoredCorpus): StoredCorpus = {
 
-    val predLocations = (for(pe <- LogUtil.parseLogFile(logFilePath)) yield {
+    val predLocations = (for(pe <- PredictionStore.open(logFilePath)) yield {
       val docTokRE(docName, tokenIndex) = pe.docName
       ((docName, tokenIndex.toInt), pe.predCoord)
     }).toMap
@@ -26,7 +26,7 @@ class ToponymAsDocDistResolver(val logFilePath:String) extends Resolver {
             val toponym = token.asInstanceOf[Toponym]
             val predLocation = predLocations.getOrElse((doc.getId, tokenIndex), null)
             if(predLocation != null) {
-              val indexToSelect = toponym.getCandidates.zipWithIndex.minBy(p => p._1.getRegion.distance(predLocation))._2
+              val indexToSelect = toponym.getCandidates.zipWithIndex.minBy(p => p._1.getRegion.comparableDistance(predLocation))._2
               if(indexToSelect != -1) {
                 toponym.setSelectedIdx(indexToSelect)
               }
@@ -0,0 +1,44 @@
+package opennlp.textgrounder.tr.util
+
+/**
+ * A probability distribution over cells (numbered as by
+ * `TopoUtil.getCellNumber`), kept as parallel arrays sorted by cell number,
+ * so that looking up a cell doesn't box or allocate.
+ */
+class CellDist(val cells: Array[Int], val probs: Array[Double]) {
+
+  /** The probability of `cell`, or 0 if it isn't in the distribution. */
+  def apply(cell: Int): Double = {
+    val i = java.util.Arrays.binarySearch(cells, cell)
+    if(i >= 0) probs(i) else 0.0
+  }
+
+  /**
+   * The total probability of `sortedCells`, which must be sorted and
+   * distinct (as from `StoredToponym.getDistinctCandidateCellNumbers`).
+   */
+  def sumOver(sortedCells: Array[Int]): Double = {
+    var sum = 0.0
+    var i = 0
+    var j = 0
+    while(i < cells.length && j < sortedCells.length) {
+      if(cells(i) < sortedCells(j))
+        i += 1
+      else if(cells(i) > sortedCells(j))
+        j += 1
+      else {
+        sum += probs(i)
+        i += 1
+        j += 1
+      }
+    }
+    sum
+  }
+}
+
+object CellDist {
+  def apply(dist: Map[Int, Double]): CellDist = {
+    val sorted = dist.toArray.sortBy(_._1)
+    new CellDist(sorted.map(_._1), sorted.map(_._2))
+  }
+}
@@ -0,0 +1,105 @@
+package opennlp.textgrounder.tr.util
+
+import opennlp.textgrounder.tr.text._
+
+/**
+ * Context-window features for the toponyms of a stored corpus, as int ids
+ * instead of strings.  Each distinct form in the corpus gets a feature id,
+ * and whether a form counts as a word (as `TextUtil.getDocAsArray` has it)
+ * and whether it's in the stoplist are worked out once per form, up front.
+ * A toponym's features can then be written into a reused buffer without
+ * looking at any strings, and scored with `CellModel.eval`.
+ */
+class ContextFeatureExtractor(corpus:StoredCorpus, stoplist:Set[String] = Set[String]()) {
+
+  private val featureLexicon = new CompactLexicon
+  private val words = new java.util.BitSet
+  private val stopwords = new java.util.BitSet
+
+  // Feature ids by original token and toponym type index.
+  private val (tokenFeatures, toponymFeatures) = {
+    val cursor = corpus.getTokenCursor
+    val tokenFeatures = Array.fill(corpus.getTokenOrigTypeCount)(-1)
+    val toponymFeatures = Array.fill(corpus.getToponymOrigTypeCount)(-1)
+
+    for(docIndex <- 0 until cursor.getDocumentCount) {
+      cursor.setDocument(docIndex)
+      while(cursor.next) {
+        val features = if(cursor.isToponym) toponymFeatures else tokenFeatures
+        val origIdx = cursor.getOrigIdx
+        if(features(origIdx) < 0) {
+          val form = cursor.getForm
+          val id = featureLexicon.getOrAdd(form)
+          features(origIdx) = id
+          if(TextUtil.alphanumRE.findFirstIn(form) != None)
+            words.set(id)
+          if(stoplist(form))
+            stopwords.set(id)
+        }
+      }
+    }
+    featureLexicon.stopGrowing
+
+    (tokenFeatures, toponymFeatures)
+  }
+
+  def featureCount = featureLexicon.size
+
+  /** The id of the feature for `form`, or -1 if no token has that form. */
+  def getFeatureId(form:String): Int = featureLexicon.get(form)
+
+  def getForm(featureId:Int): String = featureLexicon.atIndex(featureId)
+
+  /** The feature id of the token at `cursor`. */
+  def getFeatureId(cursor:TokenCursor): Int = {
+    val origIdx = cursor.getOrigIdx
+    if(cursor.isToponym) toponymFeatures(origIdx) else tokenFeatures(origIdx)
+  }
+
+  /**
+   * The positions in `cursor`'s current document of the tokens that
+   * `TextUtil.getDocAsArray` would keep, found without looking at the
+   * tokens' forms.
+   */
+  def getDocPositions(cursor:TokenCursor): Array[Int] = {
+    val positions = new Array[Int](cursor.size)
+    var count = 0
+    var position = 0
+    while(position < positions.length) {
+      cursor.seek(position)
+      if(words.get(getFeatureId(cursor))) {
+        positions(count) = position
+        count += 1
+      }
+      position += 1
+    }
+    java.util.Arrays.copyOf(positions, count)
+  }
+
+  /**
+   * Write the ids of the features `TextUtil.getContextFeatures` would give
+   * for the token at `positions(tokIndex)` into `buffer`, which must hold at
+   * least `2 * windowSize` ids, and return how many there are.  Leaves
+   * `cursor` somewhere in the window.
+   */
+  def getContextFeatures(cursor:TokenCursor, positions:Array[Int], tokIndex:Int, windowSize:Int,
+                         buffer:Array[Int]): Int = {
+    val startIndex = math.max(0, tokIndex - windowSize)
+    val endIndex = math.min(positions.length, tokIndex + windowSize + 1)
+
+    var count = 0
+    var i = startIndex
+    while(i < endIndex) {
+      if(i != tokIndex) {
+        cursor.seek(positions(i))
+        val id = getFeatureId(cursor)
+        if(!stopwords.get(id)) {
+          buffer(count) = id
+          count += 1
+        }
+      }
+      i += 1
+    }
+    count
+  }
+}
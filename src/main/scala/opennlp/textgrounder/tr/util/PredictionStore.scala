@@ -0,0 +1,235 @@
+package opennlp.textgrounder.tr.util
+
+import java.io._
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+
+import opennlp.textgrounder.tr.topo._
+
+/**
+ * Document geolocation results, as needed by the resolvers that back off to
+ * (or start from) the predicted location of a document: for each document,
+ * its true and predicted coordinates, the top-ranked cells with their
+ * scores, and the nearest-neighbor cells.  Looked up by document id.
+ */
+trait PredictionStore extends Iterable[LogFileParseElement] {
+  def get(docName: String): Option[LogFileParseElement]
+}
+
+object PredictionStore {
+  val MAGIC = 0x54475053 // "TGPS"
+  val VERSION = 1
+
+  /**
+   * Open the predictions in `filename`, which is either a prediction file
+   * written by `PredictionStoreWriter` (e.g. by geolocate-document's
+   * --prediction-file) or a geolocate log file, which is parsed into
+   * memory.
+   */
+  def open(filename: String): PredictionStore = {
+    if (isPredictionFile(filename))
+      new MappedPredictionStore(filename)
+    else
+      new InMemoryPredictionStore(LogUtil.parseLogFile(filename))
+  }
+
+  def isPredictionFile(filename: String): Boolean = {
+    val file = new File(filename)
+    if (file.length < 8)
+      return false
+    val in = new DataInputStream(new FileInputStream(file))
+    try {
+      in.readInt == MAGIC
+    } finally {
+      in.close
+    }
+  }
+}
+
+/**
+ * Predictions held in memory, e.g. parsed from a log file, or handed over
+ * directly by the geolocator running in the same JVM.  A later prediction
+ * for the same document replaces an earlier one.
+ */
+class InMemoryPredictionStore(elements: Seq[LogFileParseElement])
+    extends PredictionStore {
+  private val byDocName = elements.map(pe => (pe.docName, pe)).toMap
+
+  def get(docName: String) = byDocName.get(docName)
+
+  def iterator = elements.iterator
+}
+
+/**
+ * Writes predictions to a file that `MappedPredictionStore` can read.  The
+ * records are written one after another as documents are evaluated,
+ * followed by an index from document id to record offset.  All numbers are
+ * big-endian, coordinates in degrees:
+ *
+ * {{{
+ * header:   int magic, int version
+ * record:   double trueLat, trueLng, predLat, predLng
+ *           int numCells, then per cell: int rank, double kl, lat, lng
+ *             (the cell's southwest corner)
+ *           int numNeighbors, then per neighbor: double lat, lng, int rank
+ * index:    int numDocs, then per doc: int nameLength, UTF-8 name,
+ *             long recordOffset
+ * trailer:  long indexOffset
+ * }}}
+ */
+class PredictionStoreWriter(val filename: String) {
+  // DataOutputStream.size is an int and stops counting at 2GB, so the
+  // offsets are taken from our own count of the bytes written.
+  private val counter = new CountingOutputStream(
+    new BufferedOutputStream(new FileOutputStream(filename)))
+  private val out = new DataOutputStream(counter)
+  private val docNames = new scala.collection.mutable.ArrayBuffer[String]
+  private val offsets = new scala.collection.mutable.ArrayBuffer[Long]
+
+  out.writeInt(PredictionStore.MAGIC)
+  out.writeInt(PredictionStore.VERSION)
+
+  def write(pe: LogFileParseElement) {
+    docNames += pe.docName
+    offsets += position
+    writeCoord(pe.trueCoord)
+    writeCoord(pe.predCoord)
+    out.writeInt(pe.predCells.size)
+    for ((rank, kl, blCoord) <- pe.predCells) {
+      out.writeInt(rank)
+      out.writeDouble(kl)
+      writeCoord(blCoord)
+    }
+    out.writeInt(pe.neighbors.size)
+    for ((coord, rank) <- pe.neighbors) {
+      writeCoord(coord)
+      out.writeInt(rank)
+    }
+  }
+
+  /**
+   * The number of bytes written so far, which is the offset of whatever is
+   * written next.
+   */
+  private def position = {
+    checkSize()
+    counter.count
+  }
+
+  /* The reader maps the whole file into a single buffer, which can hold
+   * at most 2GB. */
+  private def checkSize() {
+    if (counter.count > Int.MaxValue)
+      throw new IOException(filename + ": prediction file larger than " +
+        Int.MaxValue + " bytes")
+  }
+
+  private def writeCoord(coord: Coordinate) {
+    out.writeDouble(coord.getLatDegrees)
+    out.writeDouble(coord.getLngDegrees)
+  }
+
+  /**
+   * Write the index and close the file, returning a store that reads it.
+   */
+  def close(): PredictionStore = {
+    val indexOffset = position
+    out.writeInt(docNames.size)
+    for ((docName, offset) <- docNames zip offsets) {
+      val bytes = docName.getBytes("UTF-8")
+      out.writeInt(bytes.length)
+      out.write(bytes)
+      out.writeLong(offset)
+    }
+    out.writeLong(indexOffset)
+    out.close
+    checkSize()
+    new MappedPredictionStore(filename)
+  }
+}
+
+/**
+ * An output stream that counts the bytes written through it.
+ */
+private class CountingOutputStream(stream: OutputStream)
+    extends FilterOutputStream(stream) {
+  var count = 0L
+
+  override def write(b: Int) {
+    stream.write(b)
+    count += 1
+  }
+
+  override def write(b: Array[Byte], off: Int, len: Int) {
+    stream.write(b, off, len)
+    count += len
+  }
+}
+
+/**
+ * Reads a file written by `PredictionStoreWriter`.  The file is memory-mapped
+ * and only the index is read up front; a record is decoded when it's asked
+ * for, so looking up a document costs the same however many there are.
+ */
+class MappedPredictionStore(val filename: String) extends PredictionStore {
+  private val buffer = {
+    val channel = new RandomAccessFile(filename, "r").getChannel
+    try {
+      channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size)
+    } finally {
+      channel.close
+    }
+  }
+
+  if (buffer.getInt(0) != PredictionStore.MAGIC)
+    throw new IOException(filename + ": not a prediction file")
+  if (buffer.getInt(4) != PredictionStore.VERSION)
+    throw new IOException(filename + ": unsupported prediction file version " +
+      buffer.getInt(4))
+
+  private val (docNames, offsets) = {
+    val index = buffer.duplicate
+    index.position(index.getLong(index.limit - 8).toInt)
+    val numDocs = index.getInt
+    val docNames = new Array[String](numDocs)
+    val offsets = new Array[Int](numDocs)
+    for (i <- 0 until numDocs) {
+      val bytes = new Array[Byte](index.getInt)
+      index.get(bytes)
+      docNames(i) = new String(bytes, "UTF-8")
+      offsets(i) = index.getLong.toInt
+    }
+    (docNames, offsets)
+  }
+
+  private val byDocName = (docNames zip offsets).toMap
+
+  def get(docName: String) = byDocName.get(docName).map(read(docName, _))
+
+  def iterator =
+    (0 until docNames.length).iterator.map(i => read(docNames(i), offsets(i)))
+
+  override def size = docNames.length
+
+  private def read(docName: String, offset: Int): LogFileParseElement = {
+    val record = buffer.duplicate
+    record.position(offset)
+    val trueCoord = readCoord(record)
+    val predCoord = readCoord(record)
+    val predCells = List.fill(record.getInt) {
+      val rank = record.getInt
+      val kl = record.getDouble
+      (rank, kl, readCoord(record))
+    }
+    val neighbors = List.fill(record.getInt) {
+      val coord = readCoord(record)
+      (coord, record.getInt)
+    }
+    new LogFileParseElement(docName, trueCoord, predCoord, predCells, neighbors)
+  }
+
+  private def readCoord(record: ByteBuffer) = {
+    val lat = record.getDouble
+    Coordinate.fromDegrees(lat, record.getDouble)
+  }
+}
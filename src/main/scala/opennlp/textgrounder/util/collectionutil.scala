@@ -49,6 +49,7 @@ import scala.collection.generic.CanBuildFrom
  *    them easier to use)
  * -- Dynamic arrays (similar to ArrayBuilder but specialized to use
  *    primitive arrays underlyingly, and allow direct access to that array)
+ * -- Compact hash sets of Longs
  * -- LRU (least-recently-used) caches
  * -- Hash tables by range (which keep track of a subtable for each range
  *    of numeric keys)
@@ -337,7 +338,57 @@ package object collectionutil {
       length = 0
     }
   }
-    
+
+  /////////////////////////////////////////////////////////////////////////////
+  //                              Primitive sets                             //
+  /////////////////////////////////////////////////////////////////////////////
+
+  /**
+   A compact hash set of Longs, using open addressing with linear probing in
+   a single array, so that each member costs 8 to 16 bytes rather than the
+   50-odd of a boxed entry in a standard set.  The value 0 is used to mark
+   empty slots and can't be stored.  Not thread-safe.
+   */
+  class LongHashSet(initial_alloc: Int = 1024) {
+    protected var table = new Array[Long](
+      Integer.highestOneBit((initial_alloc max 2) * 2 - 1))
+    protected var num_items = 0
+
+    def size = num_items
+
+    protected def slot_for(value: Long, tab: Array[Long]) = {
+      val mask = tab.length - 1
+      // Spread the bits, since IDs often differ only in their high bits.
+      val h = value * 0x9E3779B97F4A7C15L
+      var slot = (h ^ (h >>> 32)).toInt & mask
+      while (tab(slot) != 0 && tab(slot) != value)
+        slot = (slot + 1) & mask
+      slot
+    }
+
+    /**
+     * Add a value to the set.  Return true if it wasn't already there.
+     */
+    def add(value: Long) = {
+      require(value != 0, "0 can't be stored in a LongHashSet")
+      val slot = slot_for(value, table)
+      if (table(slot) == value) false
+      else {
+        table(slot) = value
+        num_items += 1
+        if (num_items * 2 > table.length) {
+          val newtable = new Array[Long](table.length * 2)
+          for (v <- table if v != 0)
+            newtable(slot_for(v, newtable)) = v
+          table = newtable
+        }
+        true
+      }
+    }
+
+    def contains(value: Long) = value != 0 && table(slot_for(value, table)) == value
+  }
+
   /////////////////////////////////////////////////////////////////////////////
   //                                Sorted lists                             //
   /////////////////////////////////////////////////////////////////////////////
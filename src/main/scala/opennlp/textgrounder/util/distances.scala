@@ -21,7 +21,7 @@ package opennlp.textgrounder.util
 import math._
 
 import printutil.warning
-import mathutil.MeanShift
+import mathutil.{MeanShift, ArrayMeanShift}
 
 /*
   The coordinates of a point are spherical coordinates, indicating a
@@ -178,6 +178,12 @@ package object distances {
     val anglecos = (sin(thisRadLat)*sin(otherRadLat)
                 + cos(thisRadLat)*cos(otherRadLat)*
                   cos(otherRadLong-thisRadLong))
+    spheredist_from_cosine(anglecos)
+  }
+
+  // Compute spherical distance in km given the cosine of the angle between
+  // two coordinates, as computed in spheredist().
+  def spheredist_from_cosine(anglecos: Double): Double = {
     // If the values are extremely close to each other, the resulting cosine
     // value will be extremely close to 1.  In reality, however, if the values
     // are too close (e.g. the same), the computed cosine will be slightly
@@ -268,5 +274,90 @@ package object distances {
       }
       SphereCoord(lat, long)
     }
+
+    protected val array_mean_shift =
+      new SphereArrayMeanShift(h, max_stddev, max_iterations)
+    protected var coord_buf = new Array[Double](0)
+    protected val mean_buf = new Array[Double](2)
+
+    /**
+     * Same as the generic version, but using `SphereArrayMeanShift` to
+     * avoid allocating per point and iteration.  Not thread-safe.
+     */
+    override def shifted_mean(list: Seq[SphereCoord]) = {
+      val n = list.length
+      if (coord_buf.length < 2 * n)
+        coord_buf = new Array[Double](2 * n)
+      var i = 0
+      for (c <- list) {
+        coord_buf(2 * i) = c.lat
+        coord_buf(2 * i + 1) = c.long
+        i += 1
+      }
+      val shifted = array_mean_shift.mean_shift(coord_buf, n)
+      array_mean_shift.mean(shifted, n, mean_buf)
+      SphereCoord(mean_buf(0), mean_buf(1))
+    }
+  }
+
+  /**
+   * Primitive mean shift over latitude/longitude pairs, using the same
+   * distance as `spheredist`.  The sine and cosine of each point's latitude
+   * are computed once per run rather than once per pair and iteration.
+   */
+  class SphereArrayMeanShift(
+    h: Double = 1.0,
+    max_stddev: Double = 1e-10,
+    max_iterations: Int = 100,
+    use_distance_matrix: Boolean = true
+  ) extends ArrayMeanShift(2, h, max_stddev, max_iterations,
+      use_distance_matrix) {
+    protected var sin_lats = new Array[Double](0)
+    protected var cos_lats = new Array[Double](0)
+    protected var rad_longs = new Array[Double](0)
+    protected var query_sin_lat = 0.0
+    protected var query_cos_lat = 0.0
+    protected var query_rad_long = 0.0
+
+    def squared_distance(xs: Array[Double], i: Int, ys: Array[Double],
+        j: Int) = {
+      val lat1 = (xs(2 * i) / 180.) * Pi
+      val lat2 = (ys(2 * j) / 180.) * Pi
+      val long1 = (xs(2 * i + 1) / 180.) * Pi
+      val long2 = (ys(2 * j + 1) / 180.) * Pi
+      val dist = spheredist_from_cosine(
+        sin(lat1)*sin(lat2) + cos(lat1)*cos(lat2)*cos(long2 - long1))
+      dist * dist
+    }
+
+    override protected def prepare_points(points: Array[Double], n: Int) {
+      if (sin_lats.length < n) {
+        sin_lats = new Array[Double](points.length / 2)
+        cos_lats = new Array[Double](points.length / 2)
+        rad_longs = new Array[Double](points.length / 2)
+      }
+      var i = 0
+      while (i < n) {
+        val lat = (points(2 * i) / 180.) * Pi
+        sin_lats(i) = sin(lat)
+        cos_lats(i) = cos(lat)
+        rad_longs(i) = (points(2 * i + 1) / 180.) * Pi
+        i += 1
+      }
+    }
+
+    override protected def set_query(xs: Array[Double], j: Int) {
+      val lat = (xs(2 * j) / 180.) * Pi
+      query_sin_lat = sin(lat)
+      query_cos_lat = cos(lat)
+      query_rad_long = (xs(2 * j + 1) / 180.) * Pi
+    }
+
+    override protected def squared_distance_to_point(i: Int) = {
+      val dist = spheredist_from_cosine(
+        query_sin_lat*sin_lats(i) +
+        query_cos_lat*cos_lats(i)*cos(rad_longs(i) - query_rad_long))
+      dist * dist
+    }
   }
 }
@@ -1345,6 +1345,49 @@ package object ioutil {
     fuckme_no_yield()
   }
 
+  ////////////////////////////////////////////////////////////////////////////
+  //                               Binary files                             //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * Write a string in binary form: its length in bytes followed by its
+   * UTF-8 encoding.  Unlike `DataOutput.writeUTF`, there is no limit on the
+   * length of the string.
+   */
+  def write_binary_string(out: DataOutput, str: String) {
+    val bytes = str.getBytes("UTF-8")
+    out.writeInt(bytes.length)
+    out.write(bytes)
+  }
+
+  /**
+   * Read a string written by `write_binary_string`.
+   */
+  def read_binary_string(in: java.nio.ByteBuffer) = {
+    val bytes = new Array[Byte](in.getInt)
+    in.get(bytes)
+    new String(bytes, "UTF-8")
+  }
+
+  /**
+   * Map the given local file into memory for reading.  The file needn't
+   * stay open once mapped.  Files larger than 2 GB can't be mapped this
+   * way; a FileFormatException is thrown for them.
+   */
+  def map_file_for_reading(file: File) = {
+    val raf = new RandomAccessFile(file, "r")
+    try {
+      val channel = raf.getChannel
+      if (channel.size > Int.MaxValue)
+        throw FileFormatException(
+          "File %s too large to map into memory" format file)
+      channel.map(java.nio.channels.FileChannel.MapMode.READ_ONLY, 0,
+        channel.size)
+    } finally {
+      raf.close()
+    }
+  }
+
   ////////////////////////////////////////////////////////////////////////////
   //                               Subprocesses                             //
   ////////////////////////////////////////////////////////////////////////////
@@ -86,5 +86,183 @@ package object mathutil {
       }
       shifted
     }
+
+    /**
+     * Run mean shift over the given points and return the mean of the
+     * shifted points.  Subclasses may override this with a faster
+     * implementation, e.g. one based on `ArrayMeanShift`.
+     */
+    def shifted_mean(list: Seq[Coord]): Coord = vec_mean(mean_shift(list))
+  }
+
+  /**
+   * A primitive version of `MeanShift`, for coordinates of `dims`
+   * dimensions stored consecutively in flat arrays of Doubles.  Computes
+   * the same thing as `MeanShift.mean_shift` but without allocating any
+   * objects per point or per iteration: the points, shifted points and
+   * weights are kept in scratch arrays that are reused from call to call.
+   * Hence an object of this class must not be shared between threads.
+   *
+   * Subclasses need to define `squared_distance`, and can speed up the
+   * inner loop by overriding `prepare_points`, `set_query` and
+   * `squared_distance_to_point` to cache per-point values (e.g. sines and
+   * cosines).
+   *
+   * @param use_distance_matrix If true, precompute the kernel weights
+   *   between all pairs of points for the first iteration, when each
+   *   shifted point still coincides with its original.  Since the matrix is
+   *   symmetric, this halves the distance computations of that iteration,
+   *   at the cost of n^2 Doubles of scratch space.
+   */
+  abstract class ArrayMeanShift(
+      val dims: Int,
+      h: Double = 1.0,
+      max_stddev: Double = 1e-10,
+      max_iterations: Int = 100,
+      use_distance_matrix: Boolean = true
+    ) {
+    /**
+     * Squared distance between point `i` of `xs` and point `j` of `ys`.
+     */
+    def squared_distance(xs: Array[Double], i: Int, ys: Array[Double],
+      j: Int): Double
+
+    protected var points = new Array[Double](0)
+    protected var shifted = new Array[Double](0)
+    protected var weights = new Array[Double](0)
+    protected var kernel = new Array[Double](0)
+    protected val center = new Array[Double](dims)
+    protected var query_xs: Array[Double] = null
+    protected var query_index = 0
+
+    /**
+     * Called once the points to be shifted have been stored in `points`.
+     */
+    protected def prepare_points(points: Array[Double], n: Int) { }
+
+    /**
+     * Set the point that `squared_distance_to_point` measures from.
+     */
+    protected def set_query(xs: Array[Double], j: Int) {
+      query_xs = xs
+      query_index = j
+    }
+
+    /**
+     * Squared distance between the point given to `set_query` and point `i`
+     * of `points`.
+     */
+    protected def squared_distance_to_point(i: Int) =
+      squared_distance(query_xs, query_index, points, i)
+
+    protected def ensure_capacity(n: Int) {
+      if (weights.length < n) {
+        val alloc = n max (weights.length * 2)
+        points = new Array[Double](alloc * dims)
+        shifted = new Array[Double](alloc * dims)
+        weights = new Array[Double](alloc)
+      }
+      if (use_distance_matrix && kernel.length < n * n)
+        kernel = new Array[Double](n * n)
+    }
+
+    protected def compute_kernel_matrix(n: Int, hh: Double) {
+      var i = 0
+      while (i < n) {
+        kernel(i * n + i) = 1.0
+        var j = i + 1
+        while (j < n) {
+          val w = exp(-squared_distance(points, i, points, j) / hh)
+          kernel(i * n + j) = w
+          kernel(j * n + i) = w
+          j += 1
+        }
+        i += 1
+      }
+    }
+
+    /**
+     * Store the mean of the first `n` points of `xs` in `result`.
+     */
+    def mean(xs: Array[Double], n: Int, result: Array[Double]) {
+      val scalar = 1.0 / n
+      var d = 0
+      while (d < dims) {
+        var sum = 0.0
+        var i = 0
+        while (i < n) {
+          sum += xs(i * dims + d) * scalar
+          i += 1
+        }
+        result(d) = sum
+        d += 1
+      }
+    }
+
+    def variance(xs: Array[Double], n: Int) = {
+      mean(xs, n, center)
+      var sum = 0.0
+      var i = 0
+      while (i < n) {
+        sum += squared_distance(center, 0, xs, i)
+        i += 1
+      }
+      sum / n
+    }
+
+    /**
+     * Run mean shift over the first `n` points of `input`.  The return
+     * value holds the shifted points in its first `n * dims` entries; it is
+     * a scratch array that is overwritten by the next call.
+     */
+    def mean_shift(input: Array[Double], n: Int): Array[Double] = {
+      ensure_capacity(n)
+      System.arraycopy(input, 0, points, 0, n * dims)
+      System.arraycopy(input, 0, shifted, 0, n * dims)
+      prepare_points(points, n)
+      val hh = h * h
+      var next_stddev = max_stddev + 1
+      var numiters = 0
+      while (next_stddev >= max_stddev && numiters <= max_iterations) {
+        val use_kernel = use_distance_matrix && numiters == 0
+        if (use_kernel)
+          compute_kernel_matrix(n, hh)
+        var j = 0
+        while (j < n) {
+          if (!use_kernel)
+            set_query(shifted, j)
+          var weight_sum = 0.0
+          var i = 0
+          while (i < n) {
+            val w =
+              if (use_kernel) kernel(j * n + i)
+              else exp(-squared_distance_to_point(i) / hh)
+            weights(i) = w
+            weight_sum += w
+            i += 1
+          }
+          i = 0
+          while (i < n) {
+            weights(i) /= weight_sum
+            i += 1
+          }
+          var d = 0
+          while (d < dims) {
+            var sum = 0.0
+            i = 0
+            while (i < n) {
+              sum += points(i * dims + d) * weights(i)
+              i += 1
+            }
+            shifted(j * dims + d) = sum
+            d += 1
+          }
+          j += 1
+        }
+        numiters += 1
+        next_stddev = sqrt(variance(shifted, n))
+      }
+      shifted
+    }
   }
 } 
@@ -0,0 +1,355 @@
+///////////////////////////////////////////////////////////////////////////////
+//  metrics.scala
+//
+//  Copyright (C) 2012 Ben Wing, The University of Texas at Austin
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//  See the License for the specific language governing permissions and
+//  limitations under the License.
+///////////////////////////////////////////////////////////////////////////////
+
+package opennlp.textgrounder.util
+
+import java.io._
+import java.lang.management.ManagementFactory
+import java.util.concurrent.{ConcurrentHashMap, CopyOnWriteArrayList}
+import java.util.concurrent.atomic.{AtomicLong, AtomicLongArray}
+
+import scala.collection.JavaConversions._
+
+import printutil.errprint
+
+/////////////////////////////////////////////////////////////////////////////
+//                                Metrics                                  //
+/////////////////////////////////////////////////////////////////////////////
+
+/**
+ * Lightweight timing metrics for the stages of a run.  Code to be measured
+ * is wrapped in `time("stage-name") { ... }`, which records the elapsed
+ * time in nanoseconds into a histogram for the stage and, where the JVM
+ * supports it, the number of bytes allocated by the current thread while
+ * running the code.  The collected metrics can be written out as JSON at
+ * the end of a run, and/or periodically by a background thread.
+ *
+ * Metrics are off until `enable()` is called; when off, `time` just runs
+ * its code.  When on, the overhead per measurement is two calls to
+ * `System.nanoTime`, two to `ThreadMXBean.getThreadAllocatedBytes` and a
+ * few atomic increments, so it's meant to be used around stages and
+ * per-document work, not per-word work.  All operations are thread-safe,
+ * so code run inside parallel collections can be measured.
+ */
+package object metrics {
+  /**
+   * Histogram of non-negative long values (e.g. nanoseconds), with
+   * buckets spaced logarithmically, four per power of two, so that
+   * percentiles are accurate to within about 19%.
+   */
+  class Histogram {
+    protected val counts = new AtomicLongArray(Histogram.num_buckets)
+    protected val total_count = new AtomicLong
+    protected val total_sum = new AtomicLong
+    protected val max_value = new AtomicLong
+
+    def record(value: Long) {
+      val v = value max 0L
+      counts.incrementAndGet(Histogram.bucket_of(v))
+      total_count.incrementAndGet()
+      total_sum.addAndGet(v)
+      var max = max_value.get
+      while (v > max && !max_value.compareAndSet(max, v))
+        max = max_value.get
+    }
+
+    def count = total_count.get
+    def sum = total_sum.get
+    def max = max_value.get
+    def mean = if (count == 0) 0.0 else sum.toDouble / count
+
+    /**
+     * Return an estimate of the given percentile (0 to 100) of the
+     * recorded values, i.e. the upper bound of the bucket holding it
+     * (but no more than the maximum value seen).
+     */
+    def percentile(pct: Double) = {
+      val n = count
+      if (n == 0) 0L
+      else {
+        val rank = math.ceil(n * pct / 100.0).toLong max 1L
+        var seen = 0L
+        var bucket = 0
+        while (bucket < Histogram.num_buckets - 1 &&
+               seen + counts.get(bucket) < rank) {
+          seen += counts.get(bucket)
+          bucket += 1
+        }
+        Histogram.bucket_upper_bound(bucket) min max
+      }
+    }
+  }
+
+  object Histogram {
+    // Bucket 0 holds zero; above that, a value whose highest set bit is
+    // bit B goes into one of four buckets according to its next two bits.
+    val num_buckets = 1 + 64 * 4
+
+    def bucket_of(value: Long) = {
+      if (value == 0) 0
+      else {
+        val high_bit = 63 - java.lang.Long.numberOfLeadingZeros(value)
+        val sub =
+          if (high_bit >= 2) ((value >>> (high_bit - 2)) & 3).toInt
+          else ((value << (2 - high_bit)) & 3).toInt
+        1 + high_bit * 4 + sub
+      }
+    }
+
+    def bucket_upper_bound(bucket: Int) = {
+      if (bucket == 0) 0L
+      else {
+        val high_bit = (bucket - 1) / 4
+        val sub = (bucket - 1) % 4
+        if (high_bit >= 62) Long.MaxValue
+        else if (high_bit >= 2)
+          (1L << high_bit) + ((sub + 1).toLong << (high_bit - 2)) - 1
+        else
+          (1L << high_bit) + (sub >> (2 - high_bit)).toLong
+      }
+    }
+  }
+
+  /**
+   * Timing and allocation statistics for one named stage.
+   */
+  class StageMetrics(val name: String) {
+    val nanos = new Histogram
+    val allocated_bytes = new AtomicLong
+  }
+
+  /**
+   * A named count, which many threads can add to at once without
+   * contending for it: each thread adds to a count of its own, and the
+   * counts are summed when the counter is read.  Code that counts often
+   * should keep the counter (see `counter`) rather than look it up by name
+   * each time.
+   */
+  class Counter(val name: String) {
+    protected class ThreadCount {
+      @volatile var value = 0L
+    }
+    protected val thread_counts = new CopyOnWriteArrayList[ThreadCount]
+    protected val local_count = new ThreadLocal[ThreadCount] {
+      override def initialValue = {
+        val count = new ThreadCount
+        thread_counts.add(count)
+        count
+      }
+    }
+
+    /** Add to the counter if metrics are enabled. */
+    def increment(byvalue: Long = 1) {
+      if (enabled) {
+        // Only this thread writes its count, so this needn't be atomic.
+        val count = local_count.get
+        count.value += byvalue
+      }
+    }
+
+    def get = thread_counts.foldLeft(0L)(_ + _.value)
+  }
+
+  protected val thread_bean = ManagementFactory.getThreadMXBean match {
+    case bean: com.sun.management.ThreadMXBean
+        if bean.isThreadAllocatedMemorySupported => {
+      if (!bean.isThreadAllocatedMemoryEnabled)
+        bean.setThreadAllocatedMemoryEnabled(true)
+      bean
+    }
+    case _ => null
+  }
+
+  /**
+   * Return the number of bytes allocated so far by the current thread, or
+   * 0 if the JVM can't tell us.
+   */
+  def thread_allocated_bytes() = {
+    if (thread_bean == null) 0L
+    else thread_bean.getThreadAllocatedBytes(Thread.currentThread.getId)
+  }
+
+  @volatile var enabled = false
+
+  protected val stages = new ConcurrentHashMap[String, StageMetrics]
+  protected val counters = new ConcurrentHashMap[String, Counter]
+  protected val ratios = new ConcurrentHashMap[String, (String, Seq[String])]
+  protected var dump_thread: Thread = null
+
+  def enable() {
+    enabled = true
+  }
+
+  /** Return the metrics object for the named stage, creating it if needed. */
+  def stage(name: String) = {
+    val existing = stages.get(name)
+    if (existing != null) existing
+    else {
+      stages.putIfAbsent(name, new StageMetrics(name))
+      stages.get(name)
+    }
+  }
+
+  /**
+   * Run `body`, recording its elapsed time and allocation under the given
+   * stage if metrics are enabled.
+   */
+  def time[T](name: String)(body: => T): T = {
+    if (!enabled)
+      body
+    else {
+      val start_bytes = thread_allocated_bytes()
+      val start = System.nanoTime
+      try {
+        body
+      } finally {
+        val elapsed = System.nanoTime - start
+        val bytes = thread_allocated_bytes() - start_bytes
+        val metrics = stage(name)
+        metrics.nanos.record(elapsed)
+        metrics.allocated_bytes.addAndGet(bytes)
+      }
+    }
+  }
+
+  /** Return the named counter, creating it if needed. */
+  def counter(name: String) = {
+    val existing = counters.get(name)
+    if (existing != null) existing
+    else {
+      counters.putIfAbsent(name, new Counter(name))
+      counters.get(name)
+    }
+  }
+
+  /** Add to a named counter if metrics are enabled. */
+  def increment(name: String, byvalue: Long = 1) {
+    if (enabled)
+      counter(name).increment(byvalue)
+  }
+
+  def get_counter(name: String) = {
+    val counter = counters.get(name)
+    if (counter == null) 0L else counter.get
+  }
+
+  /**
+   * Report, along with the counters, the named ratio of counter `part` to
+   * the sum of the counters in `whole` (e.g. the fraction of lookups that
+   * were misses).  It is left out while the sum is zero.
+   */
+  def define_ratio(name: String, part: String, whole: String*) {
+    ratios.put(name, (part, whole))
+  }
+
+  protected def json_string(str: String) = {
+    val sb = new StringBuilder("\"")
+    for (c <- str) c match {
+      case '"' => sb ++= "\\\""
+      case '\\' => sb ++= "\\\\"
+      case _ if c < ' ' => sb ++= "\\u%04x" format c.toInt
+      case _ => sb += c
+    }
+    sb += '"'
+    sb.toString
+  }
+
+  /**
+   * Return the current metrics as a JSON object, with per-stage times in
+   * nanoseconds.
+   */
+  def to_json = {
+    val stage_json =
+      for (name <- stages.keySet.toSeq.sorted) yield {
+        val st = stages.get(name)
+        val h = st.nanos
+        "    %s: {\"count\": %s, \"total_ns\": %s, \"mean_ns\": %.0f, \"p50_ns\": %s, \"p99_ns\": %s, \"max_ns\": %s, \"allocated_bytes\": %s}" format (
+          json_string(name), h.count, h.sum, h.mean, h.percentile(50),
+          h.percentile(99), h.max, st.allocated_bytes.get)
+      }
+    val counter_json =
+      for (name <- counters.keySet.toSeq.sorted)
+        yield "    %s: %s" format (json_string(name), counters.get(name).get)
+    val ratio_json =
+      for (name <- ratios.keySet.toSeq.sorted;
+           (part, whole) = ratios.get(name);
+           total = whole.map(get_counter).sum
+           if total > 0)
+        yield "    %s: %.4f" format (json_string(name),
+          get_counter(part).toDouble / total)
+    "{\n  \"timestamp\": %s,\n  \"stages\": {\n%s\n  },\n  \"counters\": {\n%s\n  },\n  \"ratios\": {\n%s\n  }\n}\n" format (
+      System.currentTimeMillis, stage_json mkString ",\n",
+      counter_json mkString ",\n", ratio_json mkString ",\n")
+  }
+
+  /**
+   * Write the current metrics as JSON to the given local file, replacing
+   * it atomically so that a reader never sees a partial file.
+   */
+  def write_json(filename: String) {
+    val file = new File(filename)
+    val temp = new File(filename + ".tmp")
+    val out = new PrintStream(new FileOutputStream(temp), false, "UTF-8")
+    try {
+      out.print(to_json)
+    } finally {
+      out.close()
+    }
+    if (!temp.renameTo(file)) {
+      file.delete()
+      temp.renameTo(file)
+    }
+  }
+
+  /**
+   * Start a daemon thread that writes the metrics to the given file every
+   * `interval` seconds.  Only one such thread is kept; starting another
+   * replaces it.
+   */
+  def start_periodic_dump(filename: String, interval: Double) = synchronized {
+    if (dump_thread != null)
+      dump_thread.interrupt()
+    val millis = (interval * 1000).toLong max 1L
+    dump_thread = new Thread("metrics-dump") {
+      override def run() {
+        try {
+          while (true) {
+            Thread.sleep(millis)
+            try {
+              write_json(filename)
+            } catch {
+              case e: IOException =>
+                errprint("Error writing metrics to %s: %s", filename, e)
+            }
+          }
+        } catch {
+          case e: InterruptedException => ()
+        }
+      }
+    }
+    dump_thread.setDaemon(true)
+    dump_thread.start()
+  }
+
+  def stop_periodic_dump() = synchronized {
+    if (dump_thread != null) {
+      dump_thread.interrupt()
+      dump_thread = null
+    }
+  }
+}
@@ -7,8 +7,11 @@ package opennlp.textgrounder.util
 
    https://bitbucket.org/jasonbaldridge/twokenize
 
-   The only change so far has been adding this comment and the above
-   package statement.
+   Changes since then: adding this comment and the above package
+   statement, and adding TwokenizeScanner, a hand-written tokenizer that
+   produces the same tokens without the regexps, which is now what
+   `Twokenize.apply` uses.  The regexp version is kept as the reference
+   (see `regexTokenize`).
 
    FIXME: Make Twokenize be a package retrievable by Maven.
 
@@ -54,6 +57,8 @@ package opennlp.textgrounder.util
 
 import scala.util.matching.Regex
 
+import collectionutil.DynamicArray
+
 object Twokenize {
 
   val Contractions = """(?i)(\w+)(n't|'ve|'ll|'d|'re|'s|'m)$""".r
@@ -191,8 +196,26 @@ object Twokenize {
     }
   }
 
+  // Tokenize using the regexps above.  This is the reference
+  // implementation that TwokenizeScanner must agree with.
+  def regexTokenize (text: String): List[String] = simpleTokenize(squeezeWhitespace(text))
+
+  // Scanners aren't thread-safe, so keep one per thread.
+  private val scanner = new ThreadLocal[TwokenizeScanner] {
+    override def initialValue() = new TwokenizeScanner
+  }
+
   // Apply method allows it to be used as Twokenize(line) in Scala.
-  def apply (text: String): List[String] = simpleTokenize(squeezeWhitespace(text))
+  def apply (text: String): List[String] = {
+    val tokens = scanner.get.tokenize(text)
+    var result = List[String]()
+    var i = tokens.length - 1
+    while (i >= 0) {
+      result = tokens.array(i) :: result
+      i -= 1
+    }
+    result
+  }
 
   // Named for Java coders who would wonder what the heck the 'apply' method is for.
   def tokenize (text: String): List[String] = apply(text)
@@ -205,3 +228,546 @@ object Twokenize {
   }
 
 }
+
+/**
+ * A hand-written version of `Twokenize.regexTokenize`, producing exactly
+ * the same tokens but several times faster.  The regexp version makes a
+ * pass over the text for each of `squeezeWhitespace` and the two edge
+ * punctuation regexps, then finds the protected spans with a regexp of a
+ * dozen alternatives and builds lists of strings for the pieces.  Here the
+ * first three passes are done together while copying the text into a
+ * buffer, and the protected spans are recognized in a single left-to-right
+ * scan of the buffer, trying the same alternatives in the same order at
+ * each position as the regexp does (including its quirks, such as where
+ * backtracking and lazy repetition leave a match, how `$` treats a final
+ * line separator and what `\b` counts as a word character), and adding the
+ * tokens directly to a buffer.
+ *
+ * The buffers are reused from one call to the next, so a scanner isn't
+ * thread-safe; `Twokenize.apply` keeps one per thread.
+ */
+class TwokenizeScanner {
+  import TwokenizeScanner._
+
+  // Whitespace-squeezed input; then the same with edge punctuation split
+  // off, which is the text that gets scanned.
+  protected var squeezed = new Array[Char](256)
+  protected var text = new Array[Char](512)
+  protected var len = 0
+  protected val tokens = new DynamicArray[String](64)
+
+  // Positions before which the URL-host and embedded-apostrophe patterns
+  // are known not to match, to avoid rescanning the rest of a word from
+  // each position in it.
+  protected var urlFailEnd = -1
+  protected var aposFailEnd = -1
+
+  /**
+   * Tokenize `input`.  The result is valid until the next call.
+   */
+  def tokenize(input: String): DynamicArray[String] = {
+    squeezeAndSplitEdgePunct(input)
+    tokens.clear()
+    urlFailEnd = -1
+    aposFailEnd = -1
+    var goodStart = 0
+    var i = 0
+    while (i < len) {
+      val end = protectedEnd(i)
+      if (end < 0)
+        i += 1
+      else {
+        addSplitByWhitespace(goodStart, i)
+        addToken(i, end)
+        goodStart = end
+        i = end
+      }
+    }
+    addSplitByWhitespace(goodStart, len)
+    tokens
+  }
+
+  /**
+   * Same as `Twokenize.splitEdgePunct(Twokenize.squeezeWhitespace(input))`,
+   * leaving the result in `text`.
+   */
+  protected def squeezeAndSplitEdgePunct(input: String) {
+    val n = input.length
+    if (squeezed.length < n)
+      squeezed = new Array[Char](n)
+    var m = 0
+    var inSpace = false
+    var i = 0
+    while (i < n) {
+      val c = input.charAt(i)
+      if (!isSpace(c)) {
+        squeezed(m) = c
+        m += 1
+        inSpace = false
+      } else if (!inSpace) {
+        squeezed(m) = ' '
+        m += 1
+        inSpace = true
+      }
+      i += 1
+    }
+    // Trim the same way as String.trim.
+    var lo = 0
+    var hi = m
+    while (lo < hi && squeezed(lo) <= ' ')
+      lo += 1
+    while (hi > lo && squeezed(hi - 1) <= ' ')
+      hi -= 1
+
+    // Each run of edge punctuation gets at most one space added, before or
+    // after it.
+    if (text.length < 2 * (hi - lo))
+      text = new Array[Char](2 * (hi - lo))
+    len = 0
+    i = lo
+    while (i < hi) {
+      val c = squeezed(i)
+      if (!isEdgePunct(c)) {
+        text(len) = c
+        len += 1
+        i += 1
+      } else {
+        var end = i
+        while (end < hi && isEdgePunct(squeezed(end)))
+          end += 1
+        // EdgePunctLeft: (\s|^)(edge+)(alnum)
+        val left = (i == lo || squeezed(i - 1) == ' ') &&
+          end < hi && isAlnum(squeezed(end))
+        // EdgePunctRight: (alnum)(edge+)(\s|$)
+        val right = i > lo && isAlnum(squeezed(i - 1)) &&
+          (end == hi || squeezed(end) == ' ' ||
+           (end == hi - 1 && isLineTerminator(squeezed(end))))
+        if (right) {
+          text(len) = ' '
+          len += 1
+        }
+        while (i < end) {
+          text(len) = squeezed(i)
+          len += 1
+          i += 1
+        }
+        if (left) {
+          text(len) = ' '
+          len += 1
+        }
+      }
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////////////
+  //                          Protected patterns                         //
+  /////////////////////////////////////////////////////////////////////////
+
+  // Each of these returns the end of the match at `i`, or -1 if none.
+
+  /**
+   * The end of the protected span starting at `i`, trying the
+   * alternatives in the order given in `Twokenize.Protected`.
+   */
+  protected def protectedEnd(i: Int): Int = {
+    var end = emoticon(i)
+    if (end < 0) end = url(i)
+    if (end < 0) end = entity(i)
+    if (end < 0 && isDigit(text(i))) {
+      end = digitsSepDigits(i, ':')
+      if (end < 0) end = digitsSepDigits(i, '.')
+      if (end < 0) end = numberWithCommas(i)
+    }
+    if (end < 0) end = punctSeq(i)
+    if (end < 0) end = abbreviation(i)
+    if (end < 0) end = separator(i)
+    if (end < 0) end = decorations(i)
+    if (end < 0) end = embeddedApostrophe(i)
+    end
+  }
+
+  // Whether `$` matches at `i`: at the end, or before a final line
+  // terminator.
+  protected def atEnd(i: Int) = {
+    if (i == len) true
+    else if (i == len - 1) {
+      val c = text(i)
+      if (c == '\n') i == 0 || text(i - 1) != '\r'
+      else isLineTerminator(c)
+    } else
+      i == len - 2 && text(i) == '\r' && text(i + 1) == '\n'
+  }
+
+  // The end of the code point at `i`; character classes match whole code
+  // points.
+  protected def codePointEnd(i: Int) =
+    i + Character.charCount(Character.codePointAt(text, i, len))
+
+  // `\b`, as java.util.regex has it: word characters are letters and
+  // digits in any script, plus underscore, with non-spacing marks taking
+  // on the status of their base character.
+  protected def isBoundaryWord(cp: Int, i: Int) =
+    cp == '_' || Character.isLetterOrDigit(cp) ||
+      (Character.getType(cp) == Character.NON_SPACING_MARK && hasBaseCharacter(i))
+
+  protected def hasBaseCharacter(i: Int): Boolean = {
+    var x = i
+    while (x >= 0) {
+      val cp = Character.codePointAt(text, x, len)
+      if (Character.isLetterOrDigit(cp))
+        return true
+      if (Character.getType(cp) != Character.NON_SPACING_MARK)
+        return false
+      x -= 1
+    }
+    false
+  }
+
+  protected def atWordBoundary(i: Int) = {
+    val left = i > 0 &&
+      isBoundaryWord(Character.codePointBefore(text, i, 0), i - 1)
+    val right = i < len &&
+      isBoundaryWord(Character.codePointAt(text, i, len), i)
+    left != right
+  }
+
+  protected def startsWith(i: Int, s: String): Boolean = {
+    if (i + s.length > len)
+      return false
+    var k = 0
+    while (k < s.length) {
+      if (text(i + k) != s.charAt(k))
+        return false
+      k += 1
+    }
+    true
+  }
+
+  protected def digitsEnd(i: Int) = {
+    var j = i
+    while (j < len && isDigit(text(j)))
+      j += 1
+    j
+  }
+
+  // emoticon: the empty nose is tried first, so ":o)" gives ":o".
+  protected def emoticon(i: Int): Int = {
+    val c = text(i)
+    if (c != ':' && c != '=' && c != ';')
+      -1
+    else if (i + 1 < len && isMouth(text(i + 1)))
+      i + 2
+    else if (i + 2 < len && isNose(text(i + 1)) && isMouth(text(i + 2)))
+      i + 3
+    else
+      -1
+  }
+
+  // url: a start (scheme, "www." or a host ending in a common TLD), then
+  // as little as possible up to where it can be followed by optional
+  // trailing punctuation and then an ending.
+  protected def url(i: Int): Int = {
+    if (!isHostChar(text(i)) || !atWordBoundary(i))
+      return -1
+    var p = urlStart(i)
+    if (p < 0)
+      return -1
+    // This always stops, at the latest at a space, '<', '>' or the end.
+    while (!urlEndsAt(p))
+      p = codePointEnd(p)
+    p
+  }
+
+  protected def urlStart(i: Int): Int = {
+    if (startsWith(i, "http://")) return i + 7
+    if (startsWith(i, "https://")) return i + 8
+    if (startsWith(i, "www.")) return i + 4
+    // Once this fails, it fails at every later position in the host.
+    if (i < urlFailEnd)
+      return -1
+    var j = i
+    while (j < len && isHostChar(text(j))) {
+      j += 1
+      if (j < len && text(j) == '.') {
+        val end = tldEnd(j + 1)
+        if (end >= 0)
+          return end
+      }
+    }
+    urlFailEnd = j
+    -1
+  }
+
+  protected def tldEnd(i: Int): Int = {
+    var k = 0
+    while (k < commonTLDs.length) {
+      if (startsWith(i, commonTLDs(k))) {
+        val end = i + commonTLDs(k).length
+        // (?=[/ \W])
+        if (end < len && !isWordChar(text(end)))
+          return end
+      }
+      k += 1
+    }
+    -1
+  }
+
+  protected def urlEndsAt(start: Int): Boolean = {
+    var i = start
+    while (true) {
+      if (atEnd(i))
+        return true
+      val c = text(i)
+      if (c == '<' || c == '>' || isSpace(c) ||
+          (c == '.' && i + 1 < len && text(i + 1) == '.'))
+        return true
+      if (isPunct(c))
+        i += 1
+      else {
+        val end = entity(i)
+        if (end < 0)
+          return false
+        i = end
+      }
+    }
+    false
+  }
+
+  protected def entity(i: Int) = {
+    if (text(i) != '&') -1
+    else if (startsWith(i + 1, "amp;")) i + 5
+    else if (startsWith(i + 1, "lt;") || startsWith(i + 1, "gt;")) i + 4
+    else if (startsWith(i + 1, "quot;")) i + 6
+    else -1
+  }
+
+  // timeLike and numNum
+  protected def digitsSepDigits(i: Int, sep: Char) = {
+    val j = digitsEnd(i)
+    if (j == i || j >= len || text(j) != sep) -1
+    else {
+      val end = digitsEnd(j + 1)
+      if (end > j + 1) end else -1
+    }
+  }
+
+  protected def numberWithCommas(i: Int): Int = {
+    var p = i
+    while (true) {
+      val j = digitsEnd(p)
+      if (j == p || j >= len || text(j) != ',')
+        return -1
+      p = j + 1
+      if (p + 3 <= len && isDigit(text(p)) && isDigit(text(p + 1)) &&
+          isDigit(text(p + 2)) && (p + 3 == len || text(p + 3) != ','))
+        return p + 3
+    }
+    -1
+  }
+
+  protected def punctSeq(i: Int) = {
+    var j = i
+    while (j < len && isPunct(text(j)))
+      j += 1
+    if (j > i) j else -1
+  }
+
+  // The end of a run of letter-period pairs starting at `i`.
+  protected def letterPeriodsEnd(i: Int) = {
+    var j = i
+    while (j + 1 < len && isLetter(text(j)) && text(j + 1) == '.')
+      j += 2
+    j
+  }
+
+  protected def boundaryNotDot(i: Int) = {
+    atEnd(i) || {
+      val c = text(i)
+      isSpace(c) || notDotBoundaryChars.indexOf(c) >= 0 || entity(i) >= 0
+    }
+  }
+
+  // arbitraryAbbrev: aa1, then aa2, then standardAbbreviations.
+  protected def abbreviation(i: Int): Int = {
+    val c = text(i)
+    if (isLetter(c)) {
+      var end = letterPeriodsEnd(i)
+      while (end >= i + 4) {
+        if (boundaryNotDot(end))
+          return end
+        end -= 2
+      }
+    } else {
+      val p = codePointEnd(i)
+      var end = letterPeriodsEnd(p)
+      while (end >= p + 2) {
+        if (end < len && isLetter(text(end)) && boundaryNotDot(end + 1))
+          return end + 1
+        end -= 2
+      }
+    }
+    if (isLetter(c) && atWordBoundary(i)) {
+      var k = 0
+      while (k < standardAbbreviations.length) {
+        val abbrev = standardAbbreviations(k)
+        if ((c == abbrev.charAt(0) || c == abbrev.charAt(0).toLower) &&
+            startsWith(i + 1, abbrev.substring(1))) {
+          val end = i + abbrev.length
+          if (end < len && text(end) == '.')
+            return end + 1
+        }
+        k += 1
+      }
+    }
+    -1
+  }
+
+  protected def separator(i: Int) = {
+    if (text(i) == '―') i + 1
+    else {
+      var j = i
+      while (j < len && text(j) == '-')
+        j += 1
+      if (j >= i + 2) j else -1
+    }
+  }
+
+  protected def decorations(i: Int) = {
+    var j = i
+    while (j < len && text(j) == '♫')
+      j += 1
+    if (j > i) j else -1
+  }
+
+  // embeddedApostrophe: a run of characters other than whitespace, '.' and
+  // ',' with an apostrophe somewhere other than at its ends.  Backtracking
+  // can only shorten the first half, so a match takes the whole run.
+  protected def embeddedApostrophe(i: Int): Int = {
+    if (i < aposFailEnd || splitsWords(text(i)))
+      return -1
+    var j = i
+    var found = false
+    while (j < len && !splitsWords(text(j))) {
+      if (text(j) == '\'' && j > i && j + 1 < len && !splitsWords(text(j + 1)))
+        found = true
+      j += 1
+    }
+    if (found)
+      j
+    else {
+      // Once this fails, it fails at every later position in the run.
+      aposFailEnd = j
+      -1
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////////////
+  //                               Tokens                                //
+  /////////////////////////////////////////////////////////////////////////
+
+  // Same as `str.trim.split(" ")` followed by `splitToken` on each piece.
+  protected def addSplitByWhitespace(start: Int, end: Int) {
+    var lo = start
+    var hi = end
+    while (lo < hi && text(lo) <= ' ')
+      lo += 1
+    while (hi > lo && text(hi - 1) <= ' ')
+      hi -= 1
+    var tokenStart = lo
+    var i = lo
+    while (i < hi) {
+      if (text(i) == ' ') {
+        addToken(tokenStart, i)
+        tokenStart = i + 1
+      }
+      i += 1
+    }
+    addToken(tokenStart, hi)
+  }
+
+  // Same as `splitToken`, dropping empty tokens.  The contraction is
+  // looked for before trimming, as there.
+  protected def addToken(start: Int, end: Int) {
+    val split = contractionSplit(start, end)
+    if (split < 0)
+      addTrimmed(start, end)
+    else {
+      addTrimmed(start, split)
+      addTrimmed(split, end)
+    }
+  }
+
+  protected def addTrimmed(start: Int, end: Int) {
+    var lo = start
+    var hi = end
+    while (lo < hi && text(lo) <= ' ')
+      lo += 1
+    while (hi > lo && text(hi - 1) <= ' ')
+      hi -= 1
+    if (hi > lo)
+      tokens += new String(text, lo, hi - lo)
+  }
+
+  // Where `Twokenize.Contractions` would split the token, or -1.  The stem
+  // is as long as possible, so "n't" is only split off if no other
+  // contraction matches after the last word character.
+  protected def contractionSplit(start: Int, end: Int): Int = {
+    var q = start
+    while (q < end && isWordChar(text(q)))
+      q += 1
+    if (q == start || q == end || text(q) != '\'')
+      return -1
+    var k = 0
+    while (k < apostropheContractions.length) {
+      if (equalsIgnoreCase(q, end, apostropheContractions(k)))
+        return q
+      k += 1
+    }
+    if (q - 1 > start && (text(q - 1) == 'n' || text(q - 1) == 'N') &&
+        equalsIgnoreCase(q, end, "'t"))
+      q - 1
+    else
+      -1
+  }
+
+  // Whether text[start, end) equals `lower`, ignoring ASCII case.
+  protected def equalsIgnoreCase(start: Int, end: Int, lower: String): Boolean = {
+    if (end - start != lower.length)
+      return false
+    var k = 0
+    while (k < lower.length) {
+      val c = text(start + k)
+      val l = lower.charAt(k)
+      if (c != l && c != l.toUpper)
+        return false
+      k += 1
+    }
+    true
+  }
+}
+
+object TwokenizeScanner {
+  // Character classes, as java.util.regex defines them (ASCII only).
+  def isSpace(c: Char) =
+    c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r'
+  def isDigit(c: Char) = c >= '0' && c <= '9'
+  def isLetter(c: Char) = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+  def isAlnum(c: Char) = isLetter(c) || isDigit(c)
+  def isWordChar(c: Char) = isAlnum(c) || c == '_'
+  def isLineTerminator(c: Char) =
+    c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029'
+
+  // The classes from Twokenize's patterns.
+  def isEdgePunct(c: Char) = "'\"“”‘’<>«»{}()[]".indexOf(c) >= 0
+  def isPunct(c: Char) = "'“\".?!,:;".indexOf(c) >= 0
+  def isNose(c: Char) = c == 'o' || c == 'O' || c == '-'
+  def isMouth(c: Char) = "pPdoO/\\([D)]".indexOf(c) >= 0
+  def isHostChar(c: Char) = isAlnum(c) || c == '.' || c == '-'
+  def splitsWords(c: Char) = isSpace(c) || c == '.' || c == ','
+  val notDotBoundaryChars = "“\"?!,:;"
+
+  val commonTLDs = Array("com", "co.uk", "org", "net", "info", "ca", "ly")
+  val standardAbbreviations =
+    Array("Mr", "Mrs", "Ms", "Dr", "Sr", "Jr", "Rep", "Sen", "St")
+  val apostropheContractions = Array("'ve", "'ll", "'d", "'re", "'s", "'m")
+}
@@ -36,12 +36,11 @@ class DirichletUnigramWordDist(
 ) extends DiscountedUnigramWordDist(
     factory, note_globally
   ) {
-  override protected def imp_finish_after_global() {
+  override protected def compute_unseen_mass() {
     unseen_mass = 1.0 -
       (num_word_tokens.toDouble /
         (num_word_tokens +
           factory.asInstanceOf[DirichletUnigramWordDistFactory].
             dirichlet_factor))
-    super.imp_finish_after_global()
   }
 }
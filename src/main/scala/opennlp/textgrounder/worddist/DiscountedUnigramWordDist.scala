@@ -20,6 +20,9 @@ package opennlp.textgrounder.worddist
 
 import math._
 
+import java.io.DataOutput
+import java.nio.ByteBuffer
+
 import opennlp.textgrounder.util.collectionutil._
 import opennlp.textgrounder.util.printutil.errprint
 
@@ -101,6 +104,103 @@ abstract class DiscountedUnigramWordDistFactory(
       overall_word_probs(word) = (
         count.toDouble/global_normalization_factor*(1.0 - globally_unseen_word_prob))
   }
+
+  /**
+   * Counts of words from documents added incrementally after
+   * `finish_global_distribution` was called, not yet folded into
+   * `overall_word_probs`.
+   */
+  val pending_word_counts = create_word_double_map()
+  var pending_num_word_tokens = 0.0
+  /**
+   * Fraction of the tokens in the global distribution that can be added
+   * incrementally before `needs_global_rebuild` becomes true.  Since a
+   * rebuild costs time proportional to the size of the whole model, and
+   * the number of tokens needed to trigger one grows with the model, this
+   * keeps the amortized cost of an incremental update proportional to the
+   * number of words added.
+   */
+  var incremental_rebuild_fraction = 0.1
+
+  /**
+   * Note the counts of a document added incrementally, to be folded into
+   * `overall_word_probs` by the next `rebuild_global_distribution`.
+   */
+  override def note_dist_incrementally(dist: WordDist) {
+    assert(owp_adjusted)
+    if (GridLocateDriver.Params.tf_idf)
+      throw new UnsupportedOperationException(
+        "Incremental updates can't be combined with --tf-idf")
+    val counts = dist.asInstanceOf[UnigramWordDist].word_counts
+    for ((word, count) <- counts) {
+      pending_word_counts(word) += count
+      pending_num_word_tokens += count
+      document_freq(word) += 1
+    }
+    num_documents += 1
+  }
+
+  override def needs_global_rebuild =
+    pending_num_word_tokens >
+      incremental_rebuild_fraction * global_normalization_factor
+
+  override def rebuild_global_distribution(dists: Iterable[WordDist]) {
+    assert(owp_adjusted)
+    if (pending_num_word_tokens > 0) {
+      // The existing probabilities are count/old_norm; rescaling them by
+      // old_norm/new_norm and adding the new counts over new_norm gives
+      // the same values that recomputing from scratch would.
+      val new_normalization_factor =
+        global_normalization_factor + pending_num_word_tokens
+      val scale = global_normalization_factor / new_normalization_factor
+      for ((word, prob) <- overall_word_probs)
+        overall_word_probs(word) = prob * scale
+      for ((word, count) <- pending_word_counts) {
+        if (!(overall_word_probs contains word))
+          total_num_word_types += 1
+        overall_word_probs(word) += count / new_normalization_factor
+      }
+      total_num_word_tokens += pending_num_word_tokens.toInt
+      global_normalization_factor = new_normalization_factor
+      pending_word_counts.clear()
+      pending_num_word_tokens = 0.0
+    }
+    for (dist <- dists) {
+      val udist = dist.asInstanceOf[DiscountedUnigramWordDist]
+      // A rebuild already costs time proportional to the whole model, so
+      // this is also when counts added incrementally are merged into the
+      // frozen counts.
+      udist.freeze_counts()
+      udist.compute_overall_unseen_mass()
+    }
+  }
+
+  override def write_snapshot(out: DataOutput) {
+    assert(owp_adjusted)
+    out.writeInt(total_num_word_types)
+    out.writeInt(total_num_word_tokens)
+    out.writeInt(total_num_unseen_word_types)
+    out.writeInt(num_documents)
+    out.writeDouble(global_normalization_factor)
+    WordDistSnapshot.write_word_map(out, overall_word_probs)
+    WordDistSnapshot.write_word_map(out, document_freq)
+    out.writeDouble(pending_num_word_tokens)
+    WordDistSnapshot.write_word_map(out, pending_word_counts)
+  }
+
+  override def read_snapshot(in: ByteBuffer, words: Array[Word]) {
+    assert(!owp_adjusted)
+    total_num_word_types = in.getInt
+    total_num_word_tokens = in.getInt
+    total_num_unseen_word_types = in.getInt
+    num_documents = in.getInt
+    global_normalization_factor = in.getDouble
+    WordDistSnapshot.read_word_map(in, overall_word_probs, words)
+    WordDistSnapshot.read_word_map(in, document_freq, words)
+    pending_num_word_tokens = in.getDouble
+    WordDistSnapshot.read_word_map(in, pending_word_counts, words)
+    owp_adjusted = true
+  }
 }
 
 abstract class DiscountedUnigramWordDist(
@@ -184,16 +284,24 @@ abstract class DiscountedUnigramWordDist(
   var normalization_factor = 0.0
 
   /**
-   * Here we compute the value of `overall_unseen_mass`, which depends
-   * on the global `overall_word_probs` computed from all of the
-   * distributions.
+   * Number of word types seen exactly once in the distribution.  Computed
+   * when the distribution is finished and kept up to date by incremental
+   * updates; used by smoothing methods that base `unseen_mass` on it.
    */
-  protected def imp_finish_after_global() {
-    val factory = dufactory
+  var num_types_seen_once = 0
 
-    // Make sure that overall_word_probs has been computed properly.
-    assert(factory.owp_adjusted)
+  /**
+   * Set `unseen_mass` from the current contents of the distribution.
+   * Called when the distribution is finished and again after each
+   * incremental update, so it should take constant time.
+   */
+  protected def compute_unseen_mass() { }
 
+  /**
+   * Set `overall_unseen_mass` from the global `overall_word_probs`.
+   */
+  def compute_overall_unseen_mass() {
+    val factory = dufactory
     if (factory.interpolate)
       overall_unseen_mass = 1.0
     else
@@ -202,20 +310,83 @@ abstract class DiscountedUnigramWordDist(
         // the computation yields different values, which cause a huge loss of
         // accuracy (on the order of 10-15%).  I have no idea why; I suspect a
         // Scala bug. (SCALABUG)
-        (for (ind <- counts.keys.toSeq)
+        (for (ind <- word_counts.keys.toSeq)
           yield factory.overall_word_probs(ind)) sum)
+  }
+
+  /**
+   * Here we compute the value of `overall_unseen_mass`, which depends
+   * on the global `overall_word_probs` computed from all of the
+   * distributions.
+   */
+  protected def imp_finish_after_global() {
+    val factory = dufactory
+
+    // Make sure that overall_word_probs has been computed properly.
+    assert(factory.owp_adjusted)
+
+    num_types_seen_once = counts.values count (_ == 1)
+    compute_unseen_mass()
+    compute_overall_unseen_mass()
     if (GridLocateDriver.Params.tf_idf) {
       for ((word, count) <- counts.toSeq) // SCALABUG, necessary?
         counts(word) = count*log(factory.num_documents/factory.document_freq(word))
     }
     normalization_factor = ((counts.values) sum)
-    //if (use_sorted_list)
-    //  counts = new SortedList(counts)
     if (debug("discount-factor") || debug("discountfactor"))
       errprint("For distribution %s, norm_factor = %g, num_word_tokens = %s, unseen_mass = %g"
         format (this, normalization_factor, num_word_tokens, unseen_mass))
   }
 
+  /**
+   * Add the counts of `other` to this finished distribution.  The values of
+   * `unseen_mass` and `overall_unseen_mass` are adjusted word by word, the
+   * latter using the current global probabilities; words never seen
+   * globally before only receive a global probability at the next
+   * `rebuild_global_distribution`.  Words below --minimum-word-count are
+   * not mapped to -OOV- here.  The global statistics themselves are
+   * updated separately, once per document (see
+   * `WordDistFactory#note_dist_incrementally`).
+   */
+  override protected def imp_add_word_distribution_incrementally(
+      xother: WordDist) {
+    val factory = dufactory
+    val other = xother.asInstanceOf[UnigramWordDist]
+    val other_counts = other.word_counts
+    for ((word, count) <- other_counts) {
+      val oldcount = get_count(word)
+      if (oldcount == 0.0 && !factory.interpolate)
+        overall_unseen_mass -= factory.overall_word_probs.getOrElse(word, 0.0)
+      if (oldcount == 1.0)
+        num_types_seen_once -= 1
+      val newcount = oldcount + count
+      if (newcount == 1.0)
+        num_types_seen_once += 1
+      num_word_tokens += count
+      normalization_factor += count
+    }
+    // Keeps the counts frozen, adding to a delta alongside them.
+    add_counts(other_counts)
+    compute_unseen_mass()
+  }
+
+  override protected def imp_write_snapshot(out: DataOutput) {
+    super.imp_write_snapshot(out)
+    out.writeDouble(unseen_mass)
+    out.writeDouble(overall_unseen_mass)
+    out.writeDouble(normalization_factor)
+    out.writeInt(num_types_seen_once)
+  }
+
+  override protected def imp_read_snapshot(in: ByteBuffer,
+      words: Array[Word]) {
+    super.imp_read_snapshot(in, words)
+    unseen_mass = in.getDouble
+    overall_unseen_mass = in.getDouble
+    normalization_factor = in.getDouble
+    num_types_seen_once = in.getInt
+  }
+
   def fast_kl_divergence(cache: KLDivergenceCache, other: WordDist,
       partial: Boolean = false) = {
     FastDiscountedUnigramWordDist.fast_kl_divergence(
@@ -239,7 +410,7 @@ abstract class DiscountedUnigramWordDist(
   def kl_divergence_34(other: UnigramWordDist) = {
     val factory = dufactory
     var overall_probs_diff_words = 0.0
-    for (word <- other.counts.keys if !(counts contains word)) {
+    for (word <- other.word_counts.keys if !has_word(word)) {
       overall_probs_diff_words += factory.overall_word_probs(word)
     }
 
@@ -299,7 +470,7 @@ abstract class DiscountedUnigramWordDist(
     val factory = dufactory
     assert(finished)
     if (factory.interpolate) {
-      val wordcount = counts.getOrElse(word, 0.0)
+      val wordcount = get_count(word)
       // if (debug("some")) {
       //   errprint("Found counts for document %s, num word types = %s",
       //            doc, wordcounts(0).length)
@@ -314,37 +485,10 @@ abstract class DiscountedUnigramWordDist(
                  unmemoize_string(word), wordprob)
       wordprob
     } else {
-      val retval = counts.get(word) match {
-        case None => {
-          factory.overall_word_probs.get(word) match {
-            case None => {
-              /*
-              The old way:
-
-              val wordprob = (unseen_mass*factory.globally_unseen_word_prob
-                        / factory.total_num_unseen_word_types)
-              */
-              /* The new way: Just return 0 */
-              val wordprob = 0.0
-              if (debug("lots"))
-                errprint("Word %s, never seen at all, wordprob = %s",
-                         unmemoize_string(word), wordprob)
-              wordprob
-            }
-            case Some(owprob) => {
-              val wordprob = unseen_mass * owprob / overall_unseen_mass
-              //if (wordprob <= 0)
-              //  warning("Bad values; unseen_mass = %s, overall_word_probs[word] = %s, overall_unseen_mass = %s",
-              //    unseen_mass, factory.overall_word_probs[word],
-              //    factory.overall_unseen_mass)
-              if (debug("lots"))
-                errprint("Word %s, seen but not in document, wordprob = %s",
-                         unmemoize_string(word), wordprob)
-              wordprob
-            }
-          }
-        }
-        case Some(wordcount) => {
+      // Counts are never negative, so -1 means the word wasn't seen.
+      val retval = get_count_or_else(word, -1.0) match {
+        case -1.0 => lookup_unseen_word(word)
+        case wordcount => {
           //if (wordcount <= 0 or num_word_tokens <= 0 or unseen_mass >= 1.0)
           //  warning("Bad values; wordcount = %s, unseen_mass = %s",
           //          wordcount, unseen_mass)
@@ -360,5 +504,46 @@ abstract class DiscountedUnigramWordDist(
       retval
     }
   }
+
+  def lookup_unseen_word(word: Word) = {
+    val factory = dufactory
+    assert(finished)
+    if (factory.interpolate) {
+      val owprob = factory.overall_word_probs.getOrElse(word, 0.0)
+      val wordprob = owprob*unseen_mass
+      if (debug("lots"))
+        errprint("Word %s, not in document, wordprob = %s",
+                 unmemoize_string(word), wordprob)
+      wordprob
+    } else {
+      factory.overall_word_probs.get(word) match {
+        case None => {
+          /*
+          The old way:
+
+          val wordprob = (unseen_mass*factory.globally_unseen_word_prob
+                    / factory.total_num_unseen_word_types)
+          */
+          /* The new way: Just return 0 */
+          val wordprob = 0.0
+          if (debug("lots"))
+            errprint("Word %s, never seen at all, wordprob = %s",
+                     unmemoize_string(word), wordprob)
+          wordprob
+        }
+        case Some(owprob) => {
+          val wordprob = unseen_mass * owprob / overall_unseen_mass
+          //if (wordprob <= 0)
+          //  warning("Bad values; unseen_mass = %s, overall_word_probs[word] = %s, overall_unseen_mass = %s",
+          //    unseen_mass, factory.overall_word_probs[word],
+          //    factory.overall_unseen_mass)
+          if (debug("lots"))
+            errprint("Word %s, seen but not in document, wordprob = %s",
+                     unmemoize_string(word), wordprob)
+          wordprob
+        }
+      }
+    }
+  }
 }
 
@@ -44,9 +44,10 @@ import WordDist.memoizer.Word
 class DiscountedUnigramKLDivergenceCache(
     val worddist: DiscountedUnigramWordDist
   ) extends KLDivergenceCache {
-  val self_size = worddist.counts.size
-  val self_keys = worddist.counts.keys.toArray
-  val self_values = worddist.counts.values.toArray
+  val self_counts = worddist.sorted_word_counts
+  val self_size = self_counts.size
+  val self_keys = self_counts.words
+  val self_values = self_counts.count_array
 }
 
 object FastDiscountedUnigramWordDist {
@@ -78,7 +79,7 @@ object FastDiscountedUnigramWordDist {
       else
         cache
     assert(the_cache.worddist == self)
-    assert(the_cache.self_size == self.counts.size)
+    assert(the_cache.self_size == self.num_word_types)
     val pkeys = the_cache.self_keys
     val pvalues = the_cache.self_values
     val pfact = (1.0 - self.unseen_mass)/self.num_word_tokens
@@ -92,12 +93,16 @@ object FastDiscountedUnigramWordDist {
         factory.total_num_unseen_word_types)
     */
     val owprobs = factory.overall_word_probs
-    val pcounts = self.counts
-    val qcounts = other.counts
+    val qcounts = other.word_counts
+    // Most words of `self` aren't in `other`; the filter lets us skip
+    // looking those up, giving them a count of 0.
+    val qfilter = other.word_filter
+    var filter_hits = 0L
+    var filter_misses = 0L
 
     // 1.
 
-    val psize = self.counts.size
+    val psize = the_cache.self_size
 
     // FIXME!! p * log(p) is the same for all calls of fast_kl_divergence
     // on this item, so we could cache it.  Not clear it would save much
@@ -112,7 +117,7 @@ object FastDiscountedUnigramWordDist {
       
        Note that HotSpot is good about inlining function calls.
        Hence we can assume that the calls to apply() below (e.g.
-       qcounts(word)) will be inlined.  However, it's *very important*
+       other.get_count(word)) will be inlined.  However, it's *very important*
        to avoid doing anything that creates objects each iteration,
        and best to avoid creating objects per call to fast_kl_divergence().
        This object creation will kill us, as it will trigger tons
@@ -127,7 +132,15 @@ object FastDiscountedUnigramWordDist {
       while (i < psize) {
         val word = pkeys(i)
         val pcount = pvalues(i)
-        val qcount = qcounts(word)
+        val qcount =
+          if (qfilter == null) other.get_count(word)
+          else if (qfilter.might_contain(word)) {
+            filter_hits += 1
+            other.get_count(word)
+          } else {
+            filter_misses += 1
+            0.0
+          }
         val owprob = owprobs(word)
         val p = pcount * pfact + owprob * pfact_unseen
         val q = qcount * qfact + owprob * qfact_unseen
@@ -148,7 +161,15 @@ object FastDiscountedUnigramWordDist {
         val pcount = pvalues(i)
         val p = pcount * pfact
         val q = {
-          val qcount = qcounts(word)
+          val qcount =
+            if (qfilter == null) other.get_count(word)
+            else if (qfilter.might_contain(word)) {
+              filter_hits += 1
+              other.get_count(word)
+            } else {
+              filter_misses += 1
+              0.0
+            }
           if (qcount != 0) qcount * qfact
           else {
             val owprob = owprobs(word)
@@ -175,13 +196,15 @@ object FastDiscountedUnigramWordDist {
         i += 1
       }
     }
+    if (qfilter != null)
+      WordBloomFilter.record_lookups(filter_hits, filter_misses)
   
     if (partial)
       return kldiv
 
     // 2.
     var overall_probs_diff_words = 0.0
-    for ((word, qcount) <- qcounts if !(pcounts contains word)) {
+    for ((word, qcount) <- qcounts if !self.has_word(word)) {
       val word_overall_prob = owprobs(word)
       val p = word_overall_prob * pfact_unseen
       val q = qcount * qfact
@@ -213,8 +236,8 @@ object FastDiscountedUnigramWordDist {
         factory.total_num_unseen_word_types)
     */
     val owprobs = factory.overall_word_probs
-    val pcounts = self.counts
-    val qcounts = other.counts
+    val pcounts = self.word_counts
+    val qcounts = other.word_counts
 
     // 1.
 
@@ -227,7 +250,7 @@ object FastDiscountedUnigramWordDist {
     for ((word, pcount) <- pcounts) {
       val p = pcount * pfact
       val q = {
-        val qcount = qcounts(word)
+        val qcount = other.get_count(word)
         val owprob = owprobs(word)
         qcount * qfact + owprob * qfact_unseen
       }
@@ -249,7 +272,7 @@ object FastDiscountedUnigramWordDist {
     // 2.
     val pfact_unseen = self.unseen_mass / self.overall_unseen_mass
     var overall_probs_diff_words = 0.0
-    for ((word, qcount) <- qcounts if !(pcounts contains word)) {
+    for ((word, qcount) <- qcounts if !self.has_word(word)) {
       val word_overall_prob = owprobs(word)
       val p = word_overall_prob * pfact_unseen
       val q = qcount * qfact
@@ -285,8 +308,8 @@ object FastDiscountedUnigramWordDist {
     val pfact = 1.0/self.num_word_tokens
     val qfact = 1.0/other.num_word_tokens
     // 1.
-    val pcounts = self.counts
-    val qcounts = other.counts
+    val pcounts = self.word_counts
+    val qcounts = other.word_counts
 
     // FIXME!! Length of p is the same for all calls of fast_cosine_similarity
     // on this item, so we could cache it.  Not clear it would save much
@@ -296,7 +319,7 @@ object FastDiscountedUnigramWordDist {
     var q2sum = 0.0
     for ((word, pcount) <- pcounts) {
       val p = pcount * pfact
-      val q = qcounts(word) * qfact
+      val q = other.get_count(word) * qfact
       //if (q == 0.0)
       //  errprint("Strange: word=%s qfact_globally_unseen_prob=%s qcount=%s qfact=%s",
       //           word, qfact_globally_unseen_prob, qcount, qfact)
@@ -311,7 +334,7 @@ object FastDiscountedUnigramWordDist {
   
     // 2.
     if (!partial)
-    for ((word, qcount) <- qcounts if !(pcounts contains word)) {
+    for ((word, qcount) <- qcounts if !self.has_word(word)) {
       val q = qcount * qfact
       q2sum += q * q
     }
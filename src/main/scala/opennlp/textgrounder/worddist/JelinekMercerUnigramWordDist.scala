@@ -36,9 +36,8 @@ class JelinekMercerUnigramWordDist(
 ) extends DiscountedUnigramWordDist(
     factory, note_globally
   ) {
-  override protected def imp_finish_after_global() {
+  override protected def compute_unseen_mass() {
     unseen_mass = (factory.asInstanceOf[JelinekMercerUnigramWordDistFactory].
       jelinek_factor)
-    super.imp_finish_after_global()
   }
 }
@@ -41,6 +41,18 @@ abstract class Memoizer {
    * Map a word as a string to its memoized form.
    */
   def memoize_string(word: String): Word
+  /**
+   * The memoized form of a word that was never memoized (see
+   * `lookup_string`).
+   */
+  val invalid_word: Word
+  /**
+   * Map a word as a string to its memoized form if it has already been
+   * memoized, else return `invalid_word`.  Unlike `memoize_string`, this
+   * never modifies the memoizer, so it can be called from several threads
+   * at once as long as nothing is being memoized.
+   */
+  def lookup_string(word: String): Word
   /**
    * Map a word from its memoized form back to a string.
    */
@@ -102,8 +114,16 @@ class IntStringMemoizer extends Memoizer {
     }
   }
 
+  def lookup_string(word: String) = word_id_map.getOrElse(word, invalid_word)
+
   def unmemoize_string(word: Word) = id_word_map(word)
 
+  /**
+   * Number of different words memoized so far.  Their IDs run from 1
+   * to this number.
+   */
+  def number_of_words = next_word_count - 1
+
   def create_word_int_map() = trovescala.IntIntMap()
   type WordIntMap = trovescala.IntIntMap
   def create_word_double_map() = trovescala.IntDoubleMap()
@@ -157,6 +177,7 @@ object IdentityMemoizer extends Memoizer {
   type Word = String
   val invalid_word: Word = null
   def memoize_string(word: String): Word = word
+  def lookup_string(word: String): Word = word
   def unmemoize_string(word: Word): String = word
 
   type WordIntMap = mutable.Map[Word, Int]
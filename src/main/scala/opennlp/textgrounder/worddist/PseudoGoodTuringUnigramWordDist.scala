@@ -83,16 +83,10 @@ class PseudoGoodTuringUnigramWordDist(
 ) extends DiscountedUnigramWordDist(
     factory, note_globally
   ) {
-  /**
-   * Here we compute the value of `overall_unseen_mass`, which depends
-   * on the global `overall_word_probs` computed from all of the
-   * distributions.
-   */
-  override protected def imp_finish_after_global() {
+  override protected def compute_unseen_mass() {
     // Compute probabilities.  Use a very simple version of Good-Turing
     // smoothing where we assign to unseen words the probability mass of
     // words seen once, and adjust all other probs accordingly.
-    val num_types_seen_once = counts.values count (_ == 1)
     unseen_mass =
       if (num_word_tokens > 0)
         // If no words seen only once, we will have a problem if we assign 0
@@ -104,6 +98,5 @@ class PseudoGoodTuringUnigramWordDist(
         // words.
         0.5 min ((1.0 max num_types_seen_once)/num_word_tokens)
       else 0.5
-    super.imp_finish_after_global()
   }
 }
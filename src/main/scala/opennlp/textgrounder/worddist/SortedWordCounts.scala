@@ -0,0 +1,235 @@
+///////////////////////////////////////////////////////////////////////////////
+//  SortedWordCounts.scala
+//
+//  Copyright (C) 2012 Ben Wing, The University of Texas at Austin
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//  See the License for the specific language governing permissions and
+//  limitations under the License.
+///////////////////////////////////////////////////////////////////////////////
+
+package opennlp.textgrounder.worddist
+
+import WordDist.memoizer._
+
+/**
+ * A read-only table of word counts, stored as an array of word IDs in
+ * increasing order and a parallel array of counts, and looked up by binary
+ * search.  This is used for the counts of finished distributions (see
+ * `UnigramWordDist.freeze_counts`), and takes a fraction of the memory of
+ * a `WordDoubleMap`, which has to leave room in its hash table and stores
+ * a double for every count.  Here the counts are stored as floats when
+ * that loses nothing, as for the whole-number counts taken from the
+ * training data, and as doubles otherwise (e.g. for interpolated or
+ * TF-IDF-weighted counts).
+ *
+ * The `apply`, `contains` and `count_at` methods take unboxed words and
+ * counts and don't allocate, and so are what should be used in inner
+ * loops; the rest of the `Map` interface is there for everything else.
+ */
+class SortedWordCounts private[worddist] (
+  /** Word IDs, in increasing order. */
+  val words: Array[Word],
+  /* The counts, parallel to `words`; exactly one of these is non-null. */
+  private[worddist] val float_counts: Array[Float],
+  private[worddist] val double_counts: Array[Double]
+) extends collection.Map[Word, Double] {
+  override def size = words.length
+
+  /**
+   * Return the position of `word` in `words`, or a negative number if
+   * it isn't there.
+   */
+  def find(word: Word) = java.util.Arrays.binarySearch(words, word)
+
+  /** Return the count of the word at position `i` of `words`. */
+  def count_at(i: Int): Double =
+    if (float_counts != null) float_counts(i) else double_counts(i)
+
+  /** Return the count of `word`, or 0 if it isn't there. */
+  override def apply(word: Word): Double = {
+    val i = find(word)
+    if (i >= 0) count_at(i) else 0.0
+  }
+
+  override def contains(word: Word) = find(word) >= 0
+
+  def get(word: Word) = {
+    val i = find(word)
+    if (i >= 0) Some(count_at(i)) else None
+  }
+
+  def iterator =
+    (0 until words.length).iterator.map(i => (words(i), count_at(i)))
+
+  override def foreach[U](f: ((Word, Double)) => U) {
+    var i = 0
+    while (i < words.length) {
+      f((words(i), count_at(i)))
+      i += 1
+    }
+  }
+
+  def +[B1 >: Double](kv: (Word, B1)) = Map[Word, B1]() ++ this + kv
+
+  def -(word: Word) = Map[Word, Double]() ++ this - word
+
+  /** Return the counts as an array parallel to `words`. */
+  def count_array = {
+    val counts = new Array[Double](words.length)
+    for (i <- 0 until words.length)
+      counts(i) = count_at(i)
+    counts
+  }
+
+  /**
+   * Return new counts holding the sum of these and `other`, by merging
+   * the two sorted lists of words.
+   */
+  def add_counts(other: collection.Map[Word, Double]) = {
+    val other_words = other.keys.toArray
+    java.util.Arrays.sort(other_words)
+    val merged_words = new Array[Word](words.length + other_words.length)
+    val merged_counts = new Array[Double](merged_words.length)
+    var i = 0
+    var j = 0
+    var n = 0
+    while (i < words.length || j < other_words.length) {
+      if (j == other_words.length ||
+          (i < words.length && words(i) < other_words(j))) {
+        merged_words(n) = words(i)
+        merged_counts(n) = count_at(i)
+        i += 1
+      } else if (i == words.length || other_words(j) < words(i)) {
+        merged_words(n) = other_words(j)
+        merged_counts(n) = other(other_words(j))
+        j += 1
+      } else {
+        merged_words(n) = words(i)
+        merged_counts(n) = count_at(i) + other(other_words(j))
+        i += 1
+        j += 1
+      }
+      n += 1
+    }
+    SortedWordCounts.from_sorted(merged_words.take(n), merged_counts.take(n))
+  }
+
+  /** Return a new, modifiable map holding the same counts. */
+  def to_word_double_map = {
+    val map = create_word_double_map()
+    for (i <- 0 until words.length)
+      map(words(i)) = count_at(i)
+    map
+  }
+}
+
+object SortedWordCounts {
+  def apply(counts: collection.Map[Word, Double]) = {
+    val words = counts.keys.toArray
+    java.util.Arrays.sort(words)
+    val values = new Array[Double](words.length)
+    for (i <- 0 until words.length)
+      values(i) = counts(words(i))
+    from_sorted(words, values)
+  }
+
+  /**
+   * Return counts made from `words`, which must be in increasing order,
+   * and the parallel array `values`.  The arrays aren't copied, and
+   * shouldn't be modified afterwards.
+   */
+  def from_sorted(words: Array[Word], values: Array[Double]) = {
+    val exact = values forall (v => v.toFloat == v)
+    if (exact)
+      new SortedWordCounts(words, values.map(_.toFloat), null)
+    else
+      new SortedWordCounts(words, null, values)
+  }
+}
+
+/**
+ * Frozen counts plus a small map of the counts added to them since they
+ * were frozen, as kept by a finished distribution that documents are
+ * added to incrementally (see `UnigramWordDist.add_counts`).  Adding to
+ * the delta costs time proportional to the number of words added, where
+ * merging them into new frozen counts costs time proportional to all the
+ * words of the distribution; so the merge is put off until the delta has
+ * grown to a fair fraction of the frozen counts (see `needs_merge`), or
+ * until the global distribution is rebuilt, keeping the amortized cost of
+ * adding a document proportional to its number of words.
+ */
+class DeltaWordCounts(
+  val frozen: SortedWordCounts
+) extends collection.Map[Word, Double] {
+  /** Counts added to `frozen`, by word. */
+  val delta = create_word_double_map()
+  /* Number of words in `delta` that aren't in `frozen`. */
+  protected var num_new_words = 0
+
+  override def size = frozen.size + num_new_words
+
+  /** Add the counts in `other`. */
+  def add(other: collection.Map[Word, Double]) {
+    for ((word, count) <- other) {
+      if (!(delta contains word) && !(frozen contains word))
+        num_new_words += 1
+      delta(word) += count
+    }
+  }
+
+  /**
+   * Whether the delta has grown large enough that it should be merged
+   * into new frozen counts.
+   */
+  def needs_merge =
+    delta.size > (DeltaWordCounts.min_merge_size max
+                  (frozen.size * DeltaWordCounts.merge_fraction).toInt)
+
+  /** Return new frozen counts holding the frozen counts plus the delta. */
+  def merged = frozen.add_counts(delta)
+
+  override def apply(word: Word): Double =
+    if (delta contains word) frozen(word) + delta(word) else frozen(word)
+
+  override def contains(word: Word) =
+    (delta contains word) || (frozen contains word)
+
+  def get(word: Word) =
+    if (contains(word)) Some(apply(word)) else None
+
+  def iterator =
+    frozen.iterator.map { case (word, count) =>
+      if (delta contains word) (word, count + delta(word)) else (word, count)
+    } ++ delta.iterator.filter { case (word, _) => !(frozen contains word) }
+
+  def +[B1 >: Double](kv: (Word, B1)) = Map[Word, B1]() ++ this + kv
+
+  def -(word: Word) = Map[Word, Double]() ++ this - word
+
+  /** Return a new, modifiable map holding the same counts. */
+  def to_word_double_map = {
+    val map = frozen.to_word_double_map
+    for ((word, count) <- delta)
+      map(word) += count
+    map
+  }
+}
+
+object DeltaWordCounts {
+  /**
+   * The delta is merged once it holds more than this fraction of the
+   * number of frozen words ...
+   */
+  val merge_fraction = 0.1
+  /** ... or this many words, whichever is more. */
+  val min_merge_size = 256
+}
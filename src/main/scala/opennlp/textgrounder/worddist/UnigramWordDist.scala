@@ -33,8 +33,10 @@ import java.io._
 
 import opennlp.textgrounder.util.collectionutil.DynamicArray
 import opennlp.textgrounder.util.ioutil.{FileHandler, FileFormatException}
+import opennlp.textgrounder.util.metrics
 import opennlp.textgrounder.util.printutil.{errprint, warning}
 
+import opennlp.textgrounder.gridlocate.GridLocateDriver
 import opennlp.textgrounder.gridlocate.GridLocateDriver.Debug._
 import opennlp.textgrounder.gridlocate.GenericTypes._
 import opennlp.textgrounder.gridlocate.DistDocument
@@ -58,17 +60,200 @@ abstract class UnigramWordDist(
     note_globally: Boolean
   ) extends WordDist(factory, note_globally) with FastSlowKLDivergence {
   /**
-   * A map (or possibly a "sorted list" of tuples, to save memory?) of
-   * (word, count) items, specifying the counts of all words seen
+   * A map of (word, count) items, specifying the counts of all words seen
    * at least once.  These are given as double because in some cases
    * they may store "partial" counts (in particular, when the K-d tree
    * code does interpolation on cells).  FIXME: This seems ugly, perhaps
    * there is a better way?
+   *
+   * Once the distribution is finished, the counts are frozen into a
+   * `SortedWordCounts` (see `freeze_counts`), which takes much less
+   * memory and replaces the map.  Counts added incrementally after that
+   * are kept in a small delta alongside the frozen counts, as a
+   * `DeltaWordCounts` (see `add_counts`).  The counts are kept in a single
+   * volatile field, holding a `WordDoubleMap`, a `SortedWordCounts` or a
+   * `DeltaWordCounts`, so that a reader always sees one of them even
+   * while another thread freezes or thaws them.
    */
-  val counts = create_word_double_map()
+  @volatile private var stored_counts: collection.Map[Word, Double] =
+    create_word_double_map()
+  @volatile private var frozen_filter: WordBloomFilter = null
   var num_word_tokens = 0.0
 
-  def num_word_types = counts.size
+  /**
+   * The counts of the distribution, in a form that can be modified.  If
+   * the counts have been frozen, they are thawed first, i.e. copied back
+   * into a `WordDoubleMap`, so code that only reads the counts should use
+   * `word_counts`, `get_count` or `has_word` instead, and code that only
+   * adds to them should use `add_counts`.
+   */
+  def counts: WordDoubleMap = stored_counts match {
+    case _: SortedWordCounts | _: DeltaWordCounts => synchronized {
+      val live = stored_counts match {
+        case frozen: SortedWordCounts => frozen.to_word_double_map
+        case frozen: DeltaWordCounts => frozen.to_word_double_map
+        case live => live.asInstanceOf[WordDoubleMap]
+      }
+      frozen_filter = null
+      stored_counts = live
+      live
+    }
+    case live => live.asInstanceOf[WordDoubleMap]
+  }
+
+  /**
+   * The counts of the distribution, for reading only.  Unlike `counts`,
+   * this doesn't thaw frozen counts.
+   */
+  def word_counts: collection.Map[Word, Double] = stored_counts
+
+  /**
+   * The counts of the distribution as a `SortedWordCounts`: the frozen
+   * counts if there are any and nothing has been added since, otherwise a
+   * copy of the current ones.
+   */
+  def sorted_word_counts = stored_counts match {
+    case frozen: SortedWordCounts => frozen
+    case frozen: DeltaWordCounts => frozen.merged
+    case live => SortedWordCounts(live)
+  }
+
+  /**
+   * A filter over the words of the frozen counts and any added since, to
+   * rule out lookups of words not in the distribution (see
+   * `WordBloomFilter`), or null if the counts aren't frozen or there is no
+   * filter (--word-filter wasn't given, or the distribution was empty when
+   * frozen).  Words the filter rules out have a count of 0 and should be
+   * given `lookup_unseen_word`'s probability.
+   */
+  def word_filter = frozen_filter
+
+  /** Return the count of `word`, or 0 if it wasn't seen. */
+  final def get_count(word: Word): Double = stored_counts match {
+    case frozen: SortedWordCounts => frozen(word)
+    case frozen: DeltaWordCounts => frozen(word)
+    case live => live.asInstanceOf[WordDoubleMap](word)
+  }
+
+  /** Return the count of `word`, or `default` if it wasn't seen. */
+  final def get_count_or_else(word: Word, default: Double): Double =
+    stored_counts match {
+      case frozen: SortedWordCounts => {
+        val i = frozen.find(word)
+        if (i >= 0) frozen.count_at(i) else default
+      }
+      case frozen: DeltaWordCounts =>
+        if (frozen contains word) frozen(word) else default
+      case xlive => {
+        val live = xlive.asInstanceOf[WordDoubleMap]
+        if (live contains word) live(word) else default
+      }
+    }
+
+  /** Return whether `word` was seen. */
+  final def has_word(word: Word) = stored_counts match {
+    case frozen: SortedWordCounts => frozen contains word
+    case frozen: DeltaWordCounts => frozen contains word
+    case live => live.asInstanceOf[WordDoubleMap] contains word
+  }
+
+  /* Make `frozen` the counts, along with a filter over them if
+     --word-filter was given.  The filter is built first, so that no
+     reader sees the new counts with the old filter. */
+  private def install_frozen_counts(frozen: SortedWordCounts) {
+    frozen_filter =
+      if (GridLocateDriver.Params.word_filter && frozen.size > 0)
+        WordBloomFilter(frozen)
+      else null
+    stored_counts = frozen
+  }
+
+  /**
+   * Freeze the counts into a `SortedWordCounts`, to save memory, and
+   * build the word filter if --word-filter was given.  Done when the
+   * distribution is finished; if the counts are modified after that
+   * (through `counts`), they are thawed again, and can be refrozen by
+   * calling this again.  Counts added through `add_counts` since the last
+   * freeze are merged in.
+   */
+  def freeze_counts() {
+    synchronized {
+      stored_counts match {
+        case _: SortedWordCounts =>
+        case frozen: DeltaWordCounts => install_frozen_counts(frozen.merged)
+        case live => install_frozen_counts(SortedWordCounts(live))
+      }
+    }
+  }
+
+  /**
+   * Replace the counts of the distribution with `frozen`, e.g. counts
+   * computed directly in sorted form, without going through `counts`.
+   * The caller is responsible for updating `num_word_tokens`.
+   */
+  def set_frozen_counts(frozen: SortedWordCounts) {
+    synchronized {
+      install_frozen_counts(frozen)
+    }
+  }
+
+  /**
+   * Add the counts in `other` to the counts of the distribution.  Frozen
+   * counts stay frozen: the new counts go into a delta kept alongside
+   * them, and their words into the filter, and the delta is only merged
+   * into new frozen counts (and a new filter) once it grows large (see
+   * `DeltaWordCounts`) or `freeze_counts` is called again.
+   */
+  def add_counts(other: collection.Map[Word, Double]) {
+    synchronized {
+      stored_counts match {
+        case frozen: SortedWordCounts =>
+          add_delta_counts(new DeltaWordCounts(frozen), other)
+        case frozen: DeltaWordCounts =>
+          add_delta_counts(frozen, other)
+        case xlive => {
+          val live = xlive.asInstanceOf[WordDoubleMap]
+          for ((word, count) <- other)
+            live(word) += count
+        }
+      }
+    }
+  }
+
+  private def add_delta_counts(frozen: DeltaWordCounts,
+      other: collection.Map[Word, Double]) {
+    // Words go into the filter before their counts become visible, so
+    // the filter never rules out a word that's there.
+    val filter = frozen_filter
+    if (filter != null)
+      for ((word, _) <- other)
+        filter.add(word)
+    frozen.add(other)
+    if (frozen.needs_merge)
+      install_frozen_counts(frozen.merged)
+    else
+      stored_counts = frozen
+  }
+
+  def num_word_types = word_counts.size
+
+  override def finish_after_global() {
+    super.finish_after_global()
+    freeze_counts()
+  }
+
+  /* The counts are written in their frozen form and read straight back
+     into it, without going through a `WordDoubleMap`. */
+  override protected def imp_write_snapshot(out: DataOutput) {
+    out.writeDouble(num_word_tokens)
+    WordDistSnapshot.write_sorted_counts(out, sorted_word_counts)
+  }
+
+  override protected def imp_read_snapshot(in: java.nio.ByteBuffer,
+      words: Array[Word]) {
+    num_word_tokens = in.getDouble
+    set_frozen_counts(WordDistSnapshot.read_sorted_counts(in, words))
+  }
 
   def innerToString: String
 
@@ -76,9 +261,9 @@ abstract class UnigramWordDist(
     val finished_str =
       if (!finished) ", unfinished" else ""
     val num_words_to_print = 100
-    val need_dots = counts.size > num_words_to_print
+    val need_dots = num_word_types > num_words_to_print
     val items =
-      for ((word, count) <- counts.toSeq.sortWith(_._2 > _._2).view(0, num_words_to_print))
+      for ((word, count) <- word_counts.toSeq.sortWith(_._2 > _._2).view(0, num_words_to_print))
       yield "%s=%s" format (unmemoize_string(word), count) 
     val words = (items mkString " ") + (if (need_dots) " ..." else "")
     "UnigramWordDist(%d types, %s tokens%s%s, %s)" format (
@@ -111,7 +296,7 @@ abstract class UnigramWordDist(
     val contribs =
       if (return_contributing_words) mutable.Map[Word, Double]() else null
     // 1.
-    for (word <- counts.keys) {
+    for (word <- word_counts.keys) {
       val p = lookup_word(word)
       val q = other.lookup_word(word)
       if (q == 0.0)
@@ -129,7 +314,7 @@ abstract class UnigramWordDist(
       (kldiv, contribs)
     else {
       // Step 2.
-      for (word <- other.counts.keys if !(counts contains word)) {
+      for (word <- other.word_counts.keys if !has_word(word)) {
         val p = lookup_word(word)
         val q = other.lookup_word(word)
         kldiv += p*(log(p) - log(q))
@@ -151,8 +336,20 @@ abstract class UnigramWordDist(
   def get_nbayes_logprob(xworddist: WordDist) = {
     val worddist = xworddist.asInstanceOf[UnigramWordDist]
     var logprob = 0.0
-    for ((word, count) <- worddist.counts) {
-      val value = lookup_word(word)
+    val filter = word_filter
+    var filter_hits = 0L
+    var filter_misses = 0L
+    for ((word, count) <- worddist.word_counts) {
+      val value =
+        if (filter == null)
+          lookup_word(word)
+        else if (filter.might_contain(word)) {
+          filter_hits += 1
+          lookup_word(word)
+        } else {
+          filter_misses += 1
+          lookup_unseen_word(word)
+        }
       if (value <= 0) {
         // FIXME: Need to figure out why this happens (perhaps the word was
         // never seen anywhere in the training data? But I thought we have
@@ -161,6 +358,8 @@ abstract class UnigramWordDist(
       } else
         logprob += log(value)
     }
+    if (filter != null)
+      WordBloomFilter.record_lookups(filter_hits, filter_misses)
     // FIXME: Also use baseline (prior probability)
     logprob
   }
@@ -169,6 +368,13 @@ abstract class UnigramWordDist(
    * Return the probabilitiy of a given word in the distribution.
    */
   def lookup_word(word: Word): Double
+
+  /**
+   * Return the probability of a word known not to be in the distribution,
+   * i.e. the same as `lookup_word` but without looking for the word in
+   * the counts.
+   */
+  def lookup_unseen_word(word: Word): Double
   
   /**
    * Look for the most common word matching a given predicate.
@@ -179,7 +385,7 @@ abstract class UnigramWordDist(
    */
   def find_most_common_word(pred: String => Boolean): Option[Word] = {
     val filtered =
-      (for ((word, count) <- counts if pred(unmemoize_string(word)))
+      (for ((word, count) <- word_counts if pred(unmemoize_string(word)))
         yield (word, count)).toSeq
     if (filtered.length == 0) None
     else {
@@ -247,41 +453,49 @@ class DefaultUnigramWordDistConstructor(
   var seen_documents = new scala.collection.mutable.HashSet[String]()
 
   // Returns true if the word was counted, false if it was ignored due to stoplisting
-  // and/or whitelisting
+  // and/or whitelisting, or because it was never memoized and
+  // `known_words_only` was given
   protected def add_word_with_count(counts: WordDoubleMap,
-      word: String, count: Int): Boolean = {
+      word: String, count: Int, known_words_only: Boolean = false): Boolean = {
     val lword = maybe_lowercase(word)
     if (!stopwords.contains(lword) && (whitelist.size == 0 || whitelist.contains(lword))) {
-      counts(memoize_string(lword)) += count
-      true
+      val memword =
+        if (known_words_only) lookup_string(lword) else memoize_string(lword)
+      if (memword != invalid_word) {
+        counts(memword) += count
+        true
+      }
+      else
+        false
     }
     else
       false
   }
 
-  protected def imp_add_document(dist: WordDist, words: Traversable[String]) {
+  protected def imp_add_document(dist: WordDist, words: Traversable[String],
+      known_words_only: Boolean) {
     val counts = dist.asInstanceOf[UnigramWordDist].counts
     for (word <- words)
-      add_word_with_count(counts, word, 1)
+      add_word_with_count(counts, word, 1, known_words_only)
   }
 
   protected def imp_add_word_distribution(dist: WordDist, other: WordDist,
       partial: Double) {
     // FIXME: Implement partial!
     val counts = dist.asInstanceOf[UnigramWordDist].counts
-    val othercounts = other.asInstanceOf[UnigramWordDist].counts
+    val othercounts = other.asInstanceOf[UnigramWordDist].word_counts
     for ((word, count) <- othercounts)
       counts(word) += count
   }
 
   protected def imp_add_keys_values(dist: WordDist, keys: Array[String],
-      values: Array[Int], num_words: Int) {
+      values: Array[Int], num_words: Int, known_words_only: Boolean) {
     val counts = dist.asInstanceOf[UnigramWordDist].counts
     var addedTypes = 0
     var addedTokens = 0
     var totalTokens = 0
     for (i <- 0 until num_words) {
-      if(add_word_with_count(counts, keys(i), values(i))) {
+      if(add_word_with_count(counts, keys(i), values(i), known_words_only)) {
         addedTypes += 1
         addedTokens += values(i)
       }
@@ -316,7 +530,7 @@ class DefaultUnigramWordDistConstructor(
 
   def initialize_distribution(doc: GenericDistDocument, countstr: String,
       is_training_set: Boolean) {
-    parse_counts(countstr)
+    metrics.time("parse-counts") { parse_counts(countstr) }
     // Now set the distribution on the document; but don't use the test
     // set's distributions in computing global smoothing values and such.
     //
@@ -326,8 +540,10 @@ class DefaultUnigramWordDistConstructor(
 
     val dist = factory.create_word_dist(note_globally =
       is_training_set && first_time_document_seen)
-    add_keys_values(dist, keys_dynarr.array, values_dynarr.array,
-      keys_dynarr.length)
+    metrics.time("memoize-words") {
+      add_keys_values(dist, keys_dynarr.array, values_dynarr.array,
+        keys_dynarr.length)
+    }
     seen_documents += doc.title
     doc.dist = dist
   }
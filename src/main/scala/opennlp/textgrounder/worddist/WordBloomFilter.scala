@@ -0,0 +1,99 @@
+///////////////////////////////////////////////////////////////////////////////
+//  WordBloomFilter.scala
+//
+//  Copyright (C) 2012 Ben Wing, The University of Texas at Austin
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//  See the License for the specific language governing permissions and
+//  limitations under the License.
+///////////////////////////////////////////////////////////////////////////////
+
+package opennlp.textgrounder.worddist
+
+import opennlp.textgrounder.util.metrics
+
+import WordDist.memoizer._
+
+/**
+ * A blocked Bloom filter over word IDs, used to rule out most lookups of
+ * words that aren't in a distribution without searching its counts.  Each
+ * word sets four bits within a single 64-bit block chosen by its hash, so
+ * checking a word costs one memory access.  `might_contain` can be wrong
+ * when it says yes (about 2% of the time, with the default of 10 bits of
+ * filter per word), but never when it says no.
+ *
+ * @param num_words Number of words the filter will hold, used to size it.
+ * @param bits_per_word Number of bits of filter per word.
+ */
+class WordBloomFilter(num_words: Int, bits_per_word: Int = 10) {
+  protected val blocks =
+    new Array[Long](((num_words.toLong * bits_per_word + 63) / 64).toInt max 1)
+
+  /* Mix the bits of a word ID, so that consecutive IDs don't land in
+     consecutive blocks with the same bits set (MurmurHash3's finalizer). */
+  protected def hash(word: Word) = {
+    var h = word.toLong
+    h ^= h >>> 33
+    h *= 0xff51afd7ed558ccdL
+    h ^= h >>> 33
+    h *= 0xc4ceb9fe1a85ec53L
+    h ^= h >>> 33
+    h
+  }
+
+  /* The block for a hash, from its high 32 bits. */
+  protected def block_index(h: Long) = (((h >>> 32) * blocks.length) >>> 32).toInt
+
+  /* The bits to set within the block, from the low 24 bits of the hash. */
+  protected def block_bits(h: Long) =
+    (1L << (h & 63)) | (1L << ((h >>> 6) & 63)) |
+    (1L << ((h >>> 12) & 63)) | (1L << ((h >>> 18) & 63))
+
+  def add(word: Word) {
+    val h = hash(word)
+    blocks(block_index(h)) |= block_bits(h)
+  }
+
+  /**
+   * Return false if `word` was definitely never added, true if it
+   * probably was.
+   */
+  def might_contain(word: Word) = {
+    val h = hash(word)
+    val bits = block_bits(h)
+    (blocks(block_index(h)) & bits) == bits
+  }
+}
+
+object WordBloomFilter {
+  protected val hits = metrics.counter("word-filter-hits")
+  protected val misses = metrics.counter("word-filter-misses")
+  metrics.define_ratio("word-filter-miss-rate", "word-filter-misses",
+    "word-filter-hits", "word-filter-misses")
+
+  /**
+   * Record in the run metrics how many lookups a filter let through
+   * (`num_hits`) and ruled out (`num_misses`).  Callers count their
+   * lookups locally and record them once per distribution scored.
+   */
+  def record_lookups(num_hits: Long, num_misses: Long) {
+    hits.increment(num_hits)
+    misses.increment(num_misses)
+  }
+
+  /** Return a filter holding the words of `counts`. */
+  def apply(counts: SortedWordCounts) = {
+    val filter = new WordBloomFilter(counts.size)
+    for (word <- counts.words)
+      filter.add(word)
+    filter
+  }
+}
@@ -20,6 +20,9 @@ package opennlp.textgrounder.worddist
 
 import math._
 
+import java.io.DataOutput
+import java.nio.ByteBuffer
+
 import opennlp.textgrounder.util.ioutil.FileHandler
 import opennlp.textgrounder.util.printutil.{errprint, warning}
 import opennlp.textgrounder.util.Serializer
@@ -133,7 +136,8 @@ abstract class WordDistConstructor(factory: WordDistFactory) {
    * Actual implementation of `add_document` by subclasses.
    * External callers should use `add_document`.
    */
-  protected def imp_add_document(dist: WordDist, words: Traversable[String])
+  protected def imp_add_document(dist: WordDist, words: Traversable[String],
+    known_words_only: Boolean)
 
   /**
    * Actual implementation of `add_word_distribution` by subclasses.
@@ -147,7 +151,8 @@ abstract class WordDistConstructor(factory: WordDistFactory) {
    * External callers should use `add_keys_values`.
    */
   protected def imp_add_keys_values(dist: WordDist,
-      keys: Array[String], values: Array[Int], num_words: Int)
+      keys: Array[String], values: Array[Int], num_words: Int,
+      known_words_only: Boolean)
 
   /**
    * Actual implementation of `finish_before_global` by subclasses.
@@ -157,11 +162,18 @@ abstract class WordDistConstructor(factory: WordDistFactory) {
 
   /**
    * Incorporate a document into the distribution.
-   */
-  def add_document(dist: WordDist, words: Traversable[String]) {
+   *
+   * @param known_words_only If true, words that haven't already been
+   *   memoized are dropped rather than memoized, so the memoizer isn't
+   *   modified.  This is for distributions built at scoring time from
+   *   outside text (e.g. by the geolocation server), whose new words can't
+   *   match anything in the model and would only make the memoizer grow.
+   */
+  def add_document(dist: WordDist, words: Traversable[String],
+      known_words_only: Boolean = false) {
     assert(!dist.finished)
     assert(!dist.finished_before_global)
-    imp_add_document(dist, words)
+    imp_add_document(dist, words, known_words_only)
   }
 
   /**
@@ -183,14 +195,16 @@ abstract class WordDistConstructor(factory: WordDistFactory) {
    * the actual length of the arrays passed in.  The code should be able
    * to handle the possibility that the same word appears multiple times,
    * adding up the counts for each appearance of the word.
+   * `known_words_only` is as for `add_document`.
    */
   def add_keys_values(dist: WordDist,
-      keys: Array[String], values: Array[Int], num_words: Int) {
+      keys: Array[String], values: Array[Int], num_words: Int,
+      known_words_only: Boolean = false) {
     assert(!dist.finished)
     assert(!dist.finished_before_global)
     assert(keys.length >= num_words)
     assert(values.length >= num_words)
-    imp_add_keys_values(dist, keys, values, num_words)
+    imp_add_keys_values(dist, keys, values, num_words, known_words_only)
   }
 
   /**
@@ -272,6 +286,14 @@ abstract class WordDistFactory {
    */
   def note_dist_globally(dist: WordDist) { }
 
+  /**
+   * Add the given distribution, that of a document added incrementally to
+   * finished distributions (see `WordDist#add_word_distribution_incrementally`),
+   * to the global word-distribution statistics, if any.  This should be
+   * called once per document, however many distributions it's added to.
+   */
+  def note_dist_incrementally(dist: WordDist) { }
+
   /**
    * Finish computing any global word-distribution statistics, e.g. tables for
    * doing back-off.  This is called after all of the relevant WordDists
@@ -280,6 +302,43 @@ abstract class WordDistFactory {
    * during `read_word_counts`.
    */
   def finish_global_distribution()
+
+  /**
+   * Whether the global word-distribution statistics have drifted far enough
+   * from the counts added incrementally (see
+   * `WordDist#add_word_distribution_incrementally`) that they should be
+   * recomputed by calling `rebuild_global_distribution`.
+   */
+  def needs_global_rebuild = false
+
+  /**
+   * Fold the counts added incrementally since the last call into the
+   * global word-distribution statistics, and update the given (finished)
+   * distributions to reflect the new statistics.  The distributions should
+   * be all of those that can be looked up, e.g. those of all non-empty
+   * cells in a cell grid.
+   */
+  def rebuild_global_distribution(dists: Iterable[WordDist]) { }
+
+  /**
+   * Write the global word-distribution statistics in binary form, as part
+   * of a snapshot of a finished cell grid (see `WordDistSnapshot`).  Only
+   * called after `finish_global_distribution`.
+   */
+  def write_snapshot(out: DataOutput) {
+    throw new UnsupportedOperationException(
+      "Snapshots not supported by %s" format getClass.getName)
+  }
+
+  /**
+   * Restore the global statistics written by `write_snapshot`.  This takes
+   * the place of noting the training distributions globally and calling
+   * `finish_global_distribution`.
+   */
+  def read_snapshot(in: ByteBuffer, words: Array[Word]) {
+    throw new UnsupportedOperationException(
+      "Snapshots not supported by %s" format getClass.getName)
+  }
 }
 
 object WordDist {
@@ -322,10 +381,13 @@ abstract class WordDist(factory: WordDistFactory, val note_globally: Boolean) {
   var finished_before_global = false
 
   /**
-   * Incorporate a document into the distribution.
+   * Incorporate a document into the distribution.  If `known_words_only`,
+   * words that haven't already been memoized are dropped (see
+   * `WordDistConstructor.add_document`).
    */
-  def add_document(words: Traversable[String]) {
-    factory.constructor.add_document(this, words)
+  def add_document(words: Traversable[String],
+      known_words_only: Boolean = false) {
+    factory.constructor.add_document(this, words, known_words_only)
   }
 
   /**
@@ -345,8 +407,9 @@ abstract class WordDist(factory: WordDistFactory, val note_globally: Boolean) {
    * adding up the counts for each appearance of the word.
    */
   def add_keys_values(keys: Array[String], values: Array[Int],
-      num_words: Int) {
-    factory.constructor.add_keys_values(this, keys, values, num_words)
+      num_words: Int, known_words_only: Boolean = false) {
+    factory.constructor.add_keys_values(this, keys, values, num_words,
+      known_words_only)
   }
 
   /**
@@ -386,6 +449,68 @@ abstract class WordDist(factory: WordDistFactory, val note_globally: Boolean) {
     finished = true
   }
 
+  /**
+   * Actual implementation of `add_word_distribution_incrementally` by
+   * subclasses.  External callers should use
+   * `add_word_distribution_incrementally`.
+   */
+  protected def imp_add_word_distribution_incrementally(other: WordDist) {
+    throw new UnsupportedOperationException(
+      "Incremental updates not supported by %s" format getClass.getName)
+  }
+
+  /**
+   * Incorporate the given distribution (typically that of a newly-seen
+   * training document) into this distribution after it has been finished.
+   * The distribution's own smoothing values are brought up to date at
+   * once, at a cost proportional to the number of words in `other`; the
+   * global statistics it depends on are only refreshed when the factory's
+   * `rebuild_global_distribution` is called.  The caller should also pass
+   * `other` to the factory's `note_dist_incrementally`, once, however many
+   * distributions it's added to.
+   */
+  def add_word_distribution_incrementally(other: WordDist) {
+    assert(finished)
+    imp_add_word_distribution_incrementally(other)
+  }
+
+  /**
+   * Actual implementation of `write_snapshot` by subclasses.
+   */
+  protected def imp_write_snapshot(out: DataOutput) {
+    throw new UnsupportedOperationException(
+      "Snapshots not supported by %s" format getClass.getName)
+  }
+
+  /**
+   * Actual implementation of `read_snapshot` by subclasses.
+   */
+  protected def imp_read_snapshot(in: ByteBuffer, words: Array[Word]) {
+    throw new UnsupportedOperationException(
+      "Snapshots not supported by %s" format getClass.getName)
+  }
+
+  /**
+   * Write the finished distribution in binary form, as part of a snapshot
+   * of a finished cell grid (see `WordDistSnapshot`).
+   */
+  def write_snapshot(out: DataOutput) {
+    assert(finished)
+    imp_write_snapshot(out)
+  }
+
+  /**
+   * Fill this newly created distribution from one written by
+   * `write_snapshot`, leaving it finished.  The factory's global statistics
+   * should already have been restored.
+   */
+  def read_snapshot(in: ByteBuffer, words: Array[Word]) {
+    assert(!finished_before_global)
+    imp_read_snapshot(in, words)
+    finished_before_global = true
+    finished = true
+  }
+
   /**
    * Actual implementation of `kl_divergence` by subclasses.
    * External callers should use `kl_divergence`.
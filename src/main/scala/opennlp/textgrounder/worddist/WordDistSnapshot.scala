@@ -0,0 +1,140 @@
+///////////////////////////////////////////////////////////////////////////////
+//  WordDistSnapshot.scala
+//
+//  Copyright (C) 2012 Ben Wing, The University of Texas at Austin
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//  See the License for the specific language governing permissions and
+//  limitations under the License.
+///////////////////////////////////////////////////////////////////////////////
+
+package opennlp.textgrounder.worddist
+
+import java.io.DataOutput
+import java.nio.ByteBuffer
+
+import opennlp.textgrounder.util.ioutil.{write_binary_string, read_binary_string}
+
+import WordDist.memoizer._
+
+/**
+ * Functions for writing word distributions and the global statistics
+ * behind them in binary form, as part of a snapshot of a finished cell
+ * grid, and for reading them back from a (usually memory-mapped) buffer.
+ *
+ * Words are written using the IDs they had when the snapshot was written.
+ * The vocabulary, written by `write_vocabulary`, gives the string for each
+ * such ID; `read_vocabulary` memoizes these strings in the current
+ * memoizer, which may already have memoized other words, and returns a
+ * table mapping the written IDs to the current ones.  This table must be
+ * passed to all functions that read words.
+ */
+object WordDistSnapshot {
+  def write_vocabulary(out: DataOutput) {
+    val num_words = WordDist.memoizer.number_of_words
+    out.writeInt(num_words)
+    for (id <- 1 to num_words)
+      write_binary_string(out, unmemoize_string(id))
+  }
+
+  def read_vocabulary(in: ByteBuffer) = {
+    val num_words = in.getInt
+    val words = new Array[Word](num_words + 1)
+    for (id <- 1 to num_words)
+      words(id) = memoize_string(read_binary_string(in))
+    words
+  }
+
+  /**
+   * Write a map from words to doubles as a count followed by
+   * (word ID, value) pairs.
+   */
+  def write_word_map(out: DataOutput, map: collection.Map[Word, Double]) {
+    out.writeInt(map.size)
+    for ((word, value) <- map) {
+      out.writeInt(word)
+      out.writeDouble(value)
+    }
+  }
+
+  /**
+   * Write frozen counts as they are stored: the number of words, whether
+   * the counts are floats, the word IDs in increasing order and then the
+   * counts, so that `read_sorted_counts` can read them straight back into
+   * arrays.
+   */
+  def write_sorted_counts(out: DataOutput, counts: SortedWordCounts) {
+    val floats = counts.float_counts != null
+    out.writeInt(counts.words.length)
+    out.writeBoolean(floats)
+    for (word <- counts.words)
+      out.writeInt(word)
+    if (floats)
+      for (count <- counts.float_counts)
+        out.writeFloat(count)
+    else
+      for (count <- counts.double_counts)
+        out.writeDouble(count)
+  }
+
+  /**
+   * Read counts written by `write_sorted_counts`.  The written IDs are
+   * normally mapped to current IDs in the same order, in which case no
+   * sorting is needed; otherwise (e.g. words were memoized before the
+   * vocabulary was read) the counts are re-sorted.
+   */
+  def read_sorted_counts(in: ByteBuffer, words: Array[Word]) = {
+    val size = in.getInt
+    val floats = in.get != 0
+    val ids = new Array[Word](size)
+    var in_order = true
+    for (i <- 0 until size) {
+      ids(i) = words(in.getInt)
+      if (i > 0 && ids(i) <= ids(i - 1))
+        in_order = false
+    }
+    val float_counts =
+      if (floats) {
+        val counts = new Array[Float](size)
+        in.asFloatBuffer.get(counts)
+        in.position(in.position + 4 * size)
+        counts
+      } else null
+    val double_counts =
+      if (floats) null
+      else {
+        val counts = new Array[Double](size)
+        in.asDoubleBuffer.get(counts)
+        in.position(in.position + 8 * size)
+        counts
+      }
+    if (in_order)
+      new SortedWordCounts(ids, float_counts, double_counts)
+    else {
+      val order = (0 until size).sortBy(ids(_)).toArray
+      new SortedWordCounts(order.map(ids(_)),
+        if (floats) order.map(float_counts(_)) else null,
+        if (floats) null else order.map(double_counts(_)))
+    }
+  }
+
+  /**
+   * Read a map written by `write_word_map`, adding its entries to `map`.
+   */
+  def read_word_map(in: ByteBuffer, map: WordDoubleMap,
+      words: Array[Word]) {
+    val size = in.getInt
+    for (i <- 0 until size) {
+      val word = words(in.getInt)
+      map(word) = in.getDouble
+    }
+  }
+}
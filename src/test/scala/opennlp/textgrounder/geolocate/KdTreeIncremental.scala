@@ -0,0 +1,119 @@
+///////////////////////////////////////////////////////////////////////////////
+//  Copyright (C) 2012 Ben Wing, The University of Texas at Austin
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//  See the License for the specific language governing permissions and
+//  limitations under the License.
+///////////////////////////////////////////////////////////////////////////////
+package opennlp.textgrounder.geolocate
+
+import org.specs._
+import org.specs.runner._
+
+import opennlp.textgrounder.util.ioutil.Schema
+import opennlp.textgrounder.worddist.{DeltaWordCounts,
+  DiscountedUnigramWordDistFactory, SortedWordCounts, UnigramWordDist}
+
+/**
+ * A driver that builds its K-d tree grid from documents given in code
+ * instead of a corpus directory.
+ */
+class InMemoryGeolocateDriver(training: Seq[(String, String, String)])
+    extends GeolocateDocumentDriver {
+  val training_schema =
+    Schema(Seq("title", "coord", "counts"), Map("split" -> "training"))
+  val dev_schema =
+    Schema(Seq("title", "coord", "counts"), Map("split" -> "dev"))
+
+  override protected def read_stopwords() = Set[String]()
+
+  override protected def read_documents(table: SphereDocumentTable) {
+    // As when reading a corpus, the documents are created anew for each
+    // pass.
+    for (pass <- 1 to cell_grid.num_training_passes) {
+      cell_grid.begin_training_pass(pass)
+      for ((title, coord, counts) <- training)
+        cell_grid.add_document_to_cell(table.create_and_init_document(
+          training_schema, Seq(title, coord, counts), true))
+    }
+    table.finish_document_loading()
+  }
+
+  def make_dev_document(title: String, coord: String, counts: String) =
+    document_table.create_and_init_document(dev_schema,
+      Seq(title, coord, counts), false)
+}
+
+class KdTreeIncrementalTest extends JUnit4(KdTreeIncrementalSpec)
+object KdTreeIncrementalSpec extends Specification {
+  val training =
+    for (i <- 0 until 16) yield
+      ("train" + i, "%s,%s" format (-60 + 8 * i, -150 + 20 * i),
+       "word%s:2 common:3" format (i % 4))
+
+  def make_driver() = {
+    val params = new GeolocateDocumentParameters()
+    params.input_corpus = Seq("in-memory")
+    params.kd_tree = true
+    params.kd_bucket_size = 2
+    params.no_parallel = true
+    val driver = new InMemoryGeolocateDriver(training)
+    driver.set_parameters(params)
+    driver.setup_for_run()
+    driver
+  }
+
+  "Adding documents incrementally to a K-d tree grid" should {
+    val driver = make_driver()
+    val grid = driver.cell_grid.asInstanceOf[KdTreeCellGrid]
+    val factory =
+      driver.word_dist_factory.asInstanceOf[DiscountedUnigramWordDistFactory]
+    val docs =
+      for (i <- 0 until 5) yield
+        driver.make_dev_document("new" + i,
+          "%s,%s" format (-55 + 20 * i, -140 + 50 * i), "word1:1 novel:2")
+
+    "add each document to several nested cells" in {
+      for (doc <- docs)
+        grid.find_cells_for_incremental_document(doc).size must be_>(1)
+    }
+
+    "note each document in the global statistics exactly once" in {
+      // Keep the counts pending, so they can be checked.
+      factory.incremental_rebuild_fraction = Double.PositiveInfinity
+      val num_documents = factory.num_documents
+      val pending_tokens = factory.pending_num_word_tokens
+      grid.add_documents_incrementally(docs) must_== docs.size
+      factory.num_documents must_== num_documents + docs.size
+      factory.pending_num_word_tokens must_==
+        pending_tokens + docs.map(_.dist.num_word_tokens).sum
+    }
+
+    "keep the added counts in a delta beside the frozen counts" in {
+      for (doc <- docs; cell <- grid.find_cells_for_incremental_document(doc)) {
+        val dist = cell.combined_dist.word_dist.asInstanceOf[UnigramWordDist]
+        dist.word_counts must haveClass[DeltaWordCounts]
+        for ((word, count) <- doc.dist.asInstanceOf[UnigramWordDist].word_counts)
+          dist.get_count(word) must be_>=(count)
+      }
+    }
+
+    "merge the delta without changing any counts" in {
+      for (doc <- docs; cell <- grid.find_cells_for_incremental_document(doc)) {
+        val dist = cell.combined_dist.word_dist.asInstanceOf[UnigramWordDist]
+        val before = dist.word_counts.toMap
+        dist.freeze_counts()
+        dist.word_counts must haveClass[SortedWordCounts]
+        dist.word_counts.toMap must_== before
+      }
+    }
+  }
+}
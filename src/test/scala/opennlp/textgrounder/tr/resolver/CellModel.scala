@@ -0,0 +1,99 @@
+///////////////////////////////////////////////////////////////////////////////
+//  Copyright (C) 2012 Travis Brown, The University of Texas at Austin
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//  See the License for the specific language governing permissions and
+//  limitations under the License.
+///////////////////////////////////////////////////////////////////////////////
+package opennlp.textgrounder.tr.resolver
+
+import java.io.StringReader
+
+import opennlp.maxent.GIS
+import opennlp.model.{Event, EventStream}
+
+import opennlp.textgrounder.tr.text.Corpus
+import opennlp.textgrounder.tr.text.io.GeoTextSource
+import opennlp.textgrounder.tr.text.prep.Tokenizer
+import opennlp.textgrounder.tr.util.ContextFeatureExtractor
+
+import org.specs._
+import org.specs.runner._
+
+class CellModelTest extends JUnit4(CellModelSpec)
+object CellModelSpec extends Specification {
+  // A tiny corpus, to give every form a feature id.
+  val corpus = {
+    val lines = Seq(
+      "USER_1\t2012-01-01\tx\t30.27\t-97.74\tthe river runs past the capitol",
+      "USER_2\t2012-01-02\tx\t40.71\t-74.00\tthe harbor and the bridge at night",
+      "USER_3\t2012-01-03\tx\t29.76\t-95.36\tthe bayou runs under the bridge")
+    val tokenizer = new Tokenizer {
+      def tokenize(text: String) = java.util.Arrays.asList(text.split(" "): _*)
+    }
+    val corpus = Corpus.createStoredCorpus
+    corpus.addSource(new GeoTextSource(new StringReader(lines mkString "\n"),
+      tokenizer))
+    corpus.load()
+    corpus
+  }
+  val features = new ContextFeatureExtractor(corpus)
+
+  // A toy GIS model whose outcomes are cell numbers.  "night" and "at" are
+  // in the corpus but not the model.
+  val model = {
+    val events = Seq(
+      ("3", Array("river", "runs", "capitol")),
+      ("3", Array("river", "the")),
+      ("7", Array("harbor", "bridge", "the")),
+      ("7", Array("harbor", "and")),
+      ("12", Array("bayou", "runs", "bridge")),
+      ("12", Array("bayou", "under")))
+    val stream = new EventStream {
+      val events_left = events.iterator
+      def hasNext = events_left.hasNext
+      def next = {
+        val (outcome, context) = events_left.next
+        new Event(outcome, context)
+      }
+    }
+    GIS.PRINT_MESSAGES = false
+    GIS.trainModel(stream, 50, 0)
+  }
+  val cellModel = new CellModel(model, features)
+
+  def evalBoth(forms: Array[String]) = {
+    val ids = forms.map(features.getFeatureId)
+    // Some room past the features, as in a reused buffer.
+    val buffer = ids ++ Array(-1, -1)
+    (cellModel.eval(buffer, ids.length), model.eval(forms))
+  }
+
+  "Scoring a toponym's context features as ids" should {
+    "give the same probabilities as scoring them as strings" in {
+      for (forms <- Seq(Array("river", "runs"), Array("the", "bridge", "night"),
+                        Array("bayou", "harbor", "capitol", "under"),
+                        Array("at", "night"), Array[String]())) {
+        val (fromIds, fromStrings) = evalBoth(forms)
+        fromIds.length must_== fromStrings.length
+        for (i <- 0 until fromIds.length)
+          fromIds(i) must beCloseTo(fromStrings(i), 1e-12)
+      }
+    }
+
+    "match up the outcomes with their cells" in {
+      val (result, _) = evalBoth(Array("bayou", "under"))
+      cellModel.prob(result, 12) must be_>(cellModel.prob(result, 3))
+      cellModel.prob(result, 12) must be_>(cellModel.prob(result, 7))
+      cellModel.prob(result, 5) must_== 0.0
+    }
+  }
+}
@@ -0,0 +1,63 @@
+///////////////////////////////////////////////////////////////////////////////
+//  Copyright (C) 2012 Travis Brown, The University of Texas at Austin
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//  See the License for the specific language governing permissions and
+//  limitations under the License.
+///////////////////////////////////////////////////////////////////////////////
+package opennlp.textgrounder.tr.text.io
+
+import java.io.ByteArrayOutputStream
+import javax.xml.stream.{XMLOutputFactory, XMLStreamWriter}
+
+import org.specs._
+import org.specs.runner._
+
+class ChunkedXMLOutputTest extends JUnit4(ChunkedXMLOutputSpec)
+object ChunkedXMLOutputSpec extends Specification {
+  val factory = XMLOutputFactory.newInstance
+  val output = new ChunkedXMLOutput[Integer](factory,
+    new ChunkedXMLOutput.ElementWriter[Integer] {
+      def write(out: XMLStreamWriter, item: Integer) {
+        out.writeStartElement("item")
+        out.writeAttribute("n", item.toString)
+        out.writeEndElement()
+      }
+    })
+
+  // More than a few chunks' worth, ending in a partial chunk.
+  val items = java.util.Arrays.asList((0 until 200).map(i => i: Integer): _*)
+
+  def write_items(parallel: Boolean) = {
+    val stream = new ByteArrayOutputStream
+    val out = factory.createXMLStreamWriter(stream, "UTF-8")
+    out.writeStartDocument("UTF-8", "1.0")
+    out.writeStartElement("items")
+    output.write(out, stream, items, parallel)
+    out.writeEndElement()
+    out.close()
+    stream.toString("UTF-8")
+  }
+
+  "Chunked XML output" should {
+    "give the same bytes whether or not chunks are encoded in parallel" in {
+      write_items(true) must_== write_items(false)
+    }
+
+    "write every element, in order" in {
+      val xml = write_items(true)
+      xml must include("<items><item n=\"0\">")
+      xml.split("<item ").length must_== items.size + 1
+      xml.indexOf("n=\"63\"") must be_<(xml.indexOf("n=\"64\""))
+      xml must endWith("<item n=\"199\"></item></items>")
+    }
+  }
+}
@@ -0,0 +1,69 @@
+///////////////////////////////////////////////////////////////////////////////
+//  Copyright (C) 2012 Travis Brown, The University of Texas at Austin
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//  See the License for the specific language governing permissions and
+//  limitations under the License.
+///////////////////////////////////////////////////////////////////////////////
+package opennlp.textgrounder.tr.text.io
+
+import java.io.{ByteArrayOutputStream, StringReader, StringWriter}
+
+import opennlp.textgrounder.tr.app.BaseApp
+import opennlp.textgrounder.tr.text.Corpus
+import opennlp.textgrounder.tr.text.prep.Tokenizer
+
+import org.specs._
+import org.specs.runner._
+
+class GeoTextCorpusKMLWriterTest extends JUnit4(GeoTextCorpusKMLWriterSpec)
+object GeoTextCorpusKMLWriterSpec extends Specification {
+  // Enough users for several chunks of placemarks, at coordinates with more
+  // digits than the KML output keeps, so every one goes through the
+  // coordinate formatting.
+  val corpus = {
+    val random = new util.Random(3)
+    val lines = for (user <- 1 to 300; tweet <- 0 until 3) yield
+      "USER_%x\t2012-01-01\tx\t%s\t%s\tword%d tweet %d".format(user,
+        random.nextDouble * 180 - 90, random.nextDouble * 360 - 180,
+        tweet, user)
+    val tokenizer = new Tokenizer {
+      def tokenize(text: String) = java.util.Arrays.asList(text.split(" "): _*)
+    }
+    val corpus = Corpus.createStoredCorpus
+    corpus.setFormat(BaseApp.CORPUS_FORMAT.GEOTEXT)
+    corpus.addSource(new GeoTextSource(new StringReader(lines mkString "\n"),
+      tokenizer))
+    corpus.load()
+    corpus
+  }
+
+  def write_parallel = {
+    val stream = new ByteArrayOutputStream
+    new GeoTextCorpusKMLWriter(corpus, true).write(stream)
+    stream.toString("UTF-8")
+  }
+
+  def write_sequential = {
+    val writer = new StringWriter
+    new GeoTextCorpusKMLWriter(corpus, true).write(writer)
+    writer.toString
+  }
+
+  "A GeoText corpus KML writer" should {
+    "write the same KML in parallel as on a single thread" in {
+      val sequential = write_sequential
+      sequential.split("<Placemark>").length must be_>(64 * 3)
+      for (_ <- 1 to 3)
+        write_parallel must_== sequential
+    }
+  }
+}
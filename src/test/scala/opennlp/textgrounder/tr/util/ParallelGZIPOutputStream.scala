@@ -0,0 +1,56 @@
+///////////////////////////////////////////////////////////////////////////////
+//  Copyright (C) 2012 Travis Brown, The University of Texas at Austin
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//  See the License for the specific language governing permissions and
+//  limitations under the License.
+///////////////////////////////////////////////////////////////////////////////
+package opennlp.textgrounder.tr.util
+
+import java.io.{ByteArrayInputStream, ByteArrayOutputStream}
+import java.util.zip.GZIPInputStream
+
+import org.specs._
+import org.specs.runner._
+
+class ParallelGZIPOutputStreamTest extends JUnit4(ParallelGZIPOutputStreamSpec)
+object ParallelGZIPOutputStreamSpec extends Specification {
+  def gunzip(bytes: Array[Byte]) = {
+    val in = new GZIPInputStream(new ByteArrayInputStream(bytes))
+    val out = new ByteArrayOutputStream
+    val buf = new Array[Byte](512)
+    var n = in.read(buf)
+    while (n > 0) {
+      out.write(buf, 0, n)
+      n = in.read(buf)
+    }
+    out.toByteArray
+  }
+
+  "A parallel GZIP stream" should {
+    "read back as what was written across many blocks" in {
+      val random = new scala.util.Random(1)
+      val data = Array.fill(10000)(('a' + random.nextInt(4)).toByte)
+      val bytes = new ByteArrayOutputStream
+      val out = new ParallelGZIPOutputStream(bytes, 3, 1000, 6)
+      out.write(data(0))
+      out.write(data, 1, data.length - 1)
+      out.close()
+      gunzip(bytes.toByteArray).toSeq must_== data.toSeq
+    }
+
+    "read back as empty when nothing was written" in {
+      val bytes = new ByteArrayOutputStream
+      new ParallelGZIPOutputStream(bytes, 2).close()
+      gunzip(bytes.toByteArray).length must_== 0
+    }
+  }
+}
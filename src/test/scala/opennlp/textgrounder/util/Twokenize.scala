@@ -0,0 +1,105 @@
+///////////////////////////////////////////////////////////////////////////////
+//  Copyright (C) 2012 Ben Wing, The University of Texas at Austin
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//  See the License for the specific language governing permissions and
+//  limitations under the License.
+///////////////////////////////////////////////////////////////////////////////
+package opennlp.textgrounder.util
+
+import util.Random
+
+import org.specs._
+import org.specs.runner._
+
+class TwokenizeTest extends JUnit4(TwokenizeSpec)
+object TwokenizeSpec extends Specification {
+
+  def scan(text: String) = {
+    val tokens = new TwokenizeScanner().tokenize(text)
+    tokens.array.take(tokens.length).toList
+  }
+
+  "The scanner" should {
+    "tokenize the README example" in {
+      scan("@foo #bar $1.00 isn't 8:42 p.m. Mr. baz.") must_==
+        List("@foo", "#bar", "$", "1.00", "is", "n't", "8:42", "p.m.",
+             "Mr.", "baz", ".")
+    }
+
+    "keep URLs, emoticons and entities together" in {
+      scan("see http://x.com/a?b=1... :-) &amp; www.foo.org!") must_==
+        List("see", "http://x.com/a?b=1", "...", ":-)", "&amp;",
+             "www.foo.org", "!")
+    }
+
+    "split edge punctuation and contractions" in {
+      scan("\"(hi)\" they'll   DON'T") must_==
+        List("\"", "(", "hi", ")", "\"", "they", "'ll", "DO", "N'T")
+    }
+
+    "return nothing for blank input" in {
+      scan("") must_== Nil
+      scan(" \t\n ") must_== Nil
+    }
+  }
+
+  // Pieces that exercise each of the protected patterns, the edge
+  // punctuation and contraction rules, and the odd corners of the regexps:
+  // line separators, control characters, combining marks (for `\b`) and
+  // surrogates (for character classes).
+  val fragments = Array(
+    "a", "b", "Z", "x", "_", "foo", "co", "ca", "o", "O", "d", "D", "p",
+    "http://", "https://", "www.", ".com", ".co.uk", ".org", ".net",
+    ".info", ".ca", ".ly", "x.y", "#tag", "@user",
+    "Mr", "Mrs", "st", "Rep", "Sen", "Dr", "jr", "A.B.", "U.S.", "e.g.",
+    "n't", "'s", "'ve", "'LL", "'D", "N'T", "don't", "can't", "I'm",
+    "'", "\"", "“", "”", "‘", "’", "<", ">", "«", "»", "{", "}", "(", ")",
+    "[", "]", ".", "..", "...", "?", "!", ",", ":", ";", "=", "/", "\\",
+    "-", "--", "―", "♫", "&amp;", "&lt;", "&gt;", "&quot;", "&", "amp;",
+    "0", "1", "12", "123", "1234", "12:30", "3.14", "1,234", "1,234,567",
+    "12,34", ":-)", ";)", ":D", ":p",
+    " ", "  ", "\t", "\n", "\r\n", "\u000B", "\f", "\u0001", "\u0085",
+    "\u2028", "\u2029", "\u00E9", "e\u0301", "日本", "\uD835\uDC00",
+    "\uD83D\uDE00", "\uD800", "\uDC00")
+
+  def randomText(rand: Random) = {
+    val sb = new StringBuilder
+    for (i <- 0 until rand.nextInt(20)) {
+      if (rand.nextInt(8) == 0)
+        sb += rand.nextInt(0x3000).toChar
+      else
+        sb ++= fragments(rand.nextInt(fragments.length))
+    }
+    sb.toString
+  }
+
+  "The scanner and the regexps" should {
+    "agree on random text" in {
+      val rand = new Random(42)
+      val scanner = new TwokenizeScanner
+      for (i <- 0 until 100000) {
+        val text = randomText(rand)
+        val tokens = scanner.tokenize(text)
+        tokens.array.take(tokens.length).toList must_==
+          Twokenize.regexTokenize(text)
+      }
+    }
+
+    "agree through Twokenize.apply" in {
+      val rand = new Random(43)
+      for (i <- 0 until 1000) {
+        val text = randomText(rand)
+        Twokenize(text) must_== Twokenize.regexTokenize(text)
+      }
+    }
+  }
+}